@@ -0,0 +1,40 @@
+package com.senseidb.perf;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.browseengine.bobo.api.FacetSpec;
+import com.senseidb.indexing.activity.facet.ActivityRangeFacetCountCollector;
+import com.senseidb.indexing.activity.primitives.ActivityIntValues;
+
+/**
+ * Measures the range counts of an activity facet over every document of a large segment, one in
+ * ten documents having no activity values.
+ *
+ * Usage: ActivityRangeFacetBenchmark [segmentSize] [runs]
+ */
+public class ActivityRangeFacetBenchmark {
+  private static final List<String> RANGES = Arrays.asList("[* TO 9]", "[10 TO 99]",
+    "[100 TO *]");
+
+  public static void main(String[] args) {
+    int segmentSize = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    ActivityIntValues values = new ActivityIntValues(segmentSize);
+    int[] indexes = new int[segmentSize];
+    Random random = new Random(0);
+    for (int i = 0; i < segmentSize; i++) {
+      values.fieldValues[i] = random.nextInt(1000);
+      indexes[i] = i % 10 == 0 ? -1 : i;
+    }
+    for (int run = 0; run < runs; run++) {
+      long time = System.currentTimeMillis();
+      ActivityRangeFacetCountCollector collector = ActivityRangeFacetCountCollector.valueOf(
+        "likes", values, indexes, RANGES, new FacetSpec());
+      collector.collectAll();
+      System.out.println("Counted " + segmentSize + " docs in "
+          + (System.currentTimeMillis() - time) + "ms, " + collector.getFacets());
+    }
+  }
+}
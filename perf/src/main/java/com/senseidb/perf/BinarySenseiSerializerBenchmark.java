@@ -0,0 +1,101 @@
+package com.senseidb.perf;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import zu.finagle.serialize.JOSSSerializer;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.FacetAccessible;
+import com.senseidb.search.node.ResultMerger.MappedFacetAccessible;
+import com.senseidb.search.req.ErrorType;
+import com.senseidb.search.req.SenseiError;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiResult;
+import com.senseidb.svc.impl.BinarySenseiSerializer;
+
+/**
+ * Compares the size and the round trip time of a result written by the binary serializer, with
+ * and without compression, and by the Java serialization.
+ *
+ * Usage: BinarySenseiSerializerBenchmark [numHits] [iterations]
+ */
+public class BinarySenseiSerializerBenchmark {
+
+  public static void main(String[] args) {
+    int numHits = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+    SenseiResult result = createResult(numHits);
+    JOSSSerializer<SenseiResult, SenseiResult> java = new JOSSSerializer<SenseiResult, SenseiResult>();
+    BinarySenseiSerializer binary = new BinarySenseiSerializer(false);
+    BinarySenseiSerializer compressed = new BinarySenseiSerializer(true);
+    for (int round = 0; round < 2; ++round) {
+      long start = System.nanoTime();
+      int bytes = 0;
+      for (int i = 0; i < iterations; ++i) {
+        ByteBuffer buffer = java.serializeResponse(result);
+        bytes = buffer.remaining();
+        java.deserializeResponse(buffer);
+      }
+      System.out.println("java: " + bytes + " bytes, " + (System.nanoTime() - start) / iterations
+          + "ns per round trip");
+      for (BinarySenseiSerializer serializer : new BinarySenseiSerializer[] { binary, compressed }) {
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+          ByteBuffer buffer = serializer.serializeResponse(result);
+          bytes = buffer.remaining();
+          serializer.deserializeResponse(buffer);
+        }
+        System.out.println((serializer == binary ? "binary: " : "binary compressed: ") + bytes
+            + " bytes, " + (System.nanoTime() - start) / iterations + "ns per round trip");
+      }
+    }
+  }
+
+  private static SenseiHit createHit(int docid) {
+    SenseiHit hit = new SenseiHit();
+    hit.setUID(docid * 7L - 3);
+    hit.setDocid(docid);
+    hit.setScore(docid / 3.0f);
+    hit.setComparable(docid);
+    Map<String, String[]> fieldValues = new HashMap<String, String[]>();
+    fieldValues.put("color", new String[] { docid % 2 == 0 ? "red" : "blue" });
+    fieldValues.put("tags", new String[] { "cool", "hybrid" });
+    hit.setFieldValues(fieldValues);
+    Map<String, Object[]> rawFieldValues = new HashMap<String, Object[]>();
+    rawFieldValues.put("price", new Object[] { (float) docid * 1000 });
+    rawFieldValues.put("mileage", new Object[] { docid * 100 });
+    rawFieldValues.put("time", new Object[] { 1368000000000L + docid });
+    rawFieldValues.put("name", new Object[] { "car" + docid });
+    hit.setRawFieldValues(rawFieldValues);
+    hit.setSrcData("{\"id\":" + docid + "}");
+    return hit;
+  }
+
+  private static SenseiResult createResult(int numHits) {
+    SenseiResult result = new SenseiResult();
+    result.setTid(42);
+    result.setTime(15);
+    result.setNumHitsLong(12345678901L);
+    result.setTotalDocsLong(15000);
+    result.setParsedQuery("color:red");
+    result.addError(new SenseiError("partial result", ErrorType.ExecutionTimeout));
+
+    SenseiHit[] hits = new SenseiHit[numHits];
+    for (int i = 0; i < numHits; ++i) {
+      hits[i] = createHit(i);
+    }
+    result.setHits(hits);
+
+    Map<String, FacetAccessible> facetMap = new HashMap<String, FacetAccessible>();
+    facetMap.put("color", new MappedFacetAccessible(new BrowseFacet[] {
+        new BrowseFacet("red", 10), new BrowseFacet("blue", 5) }));
+    result.addAll(facetMap);
+
+    Map<Integer, String> partitionVersions = new HashMap<Integer, String>();
+    partitionVersions.put(0, "1234");
+    result.setPartitionVersions(partitionVersions);
+    return result;
+  }
+}
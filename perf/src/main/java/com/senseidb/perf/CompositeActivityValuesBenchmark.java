@@ -0,0 +1,91 @@
+package com.senseidb.perf;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import proj.zoie.impl.indexing.ZoieConfig;
+
+import com.senseidb.conf.SenseiSchema.FieldDefinition;
+import com.senseidb.indexing.activity.ActivityPersistenceFactory;
+import com.senseidb.indexing.activity.CompositeActivityManager.TimeAggregateInfo;
+import com.senseidb.indexing.activity.CompositeActivityValues;
+
+/**
+ * Compares the throughput of concurrent activity updates with updates serialized on a single
+ * lock, the way every update used to run. The values are kept in memory only.
+ *
+ * Usage: CompositeActivityValuesBenchmark [threads] [updatesPerThread] [numUids]
+ */
+public class CompositeActivityValuesBenchmark {
+  private static final String VERSION = String.format("%08d", 1);
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int updatesPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+    int numUids = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+    for (boolean serialized : new boolean[] { true, false, true, false }) {
+      CompositeActivityValues values = create();
+      values.init(numUids);
+      long time = run(values, threads, updatesPerThread, numUids, serialized);
+      System.out.println((serialized ? "serialized: " : "concurrent: ")
+          + (threads * (long) updatesPerThread * 1000000000L / time) + " updates/sec");
+      values.close();
+    }
+  }
+
+  private static CompositeActivityValues create() {
+    FieldDefinition likes = new FieldDefinition();
+    likes.name = "likes";
+    likes.type = int.class;
+    likes.isActivity = true;
+    return CompositeActivityValues.createCompositeValues(
+      ActivityPersistenceFactory.getInMemoryInstance(), Arrays.asList(likes),
+      Collections.<TimeAggregateInfo> emptyList(), ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+  }
+
+  /**
+   * @return the time in nanoseconds it took all the threads to run their updates
+   */
+  private static long run(final CompositeActivityValues values, int threads,
+      final int updatesPerThread, final int numUids, final boolean serialized)
+      throws InterruptedException {
+    final Map<String, Object> update = new HashMap<String, Object>();
+    update.put("likes", "+=1");
+    final Object lock = new Object();
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final int threadId = i;
+      workers[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < updatesPerThread; j++) {
+            long uid = (j * 31L + threadId) % numUids;
+            if (serialized) {
+              synchronized (lock) {
+                values.update(uid, VERSION, update);
+              }
+            } else {
+              values.update(uid, VERSION, update);
+            }
+          }
+        }
+      });
+      workers[i].start();
+    }
+    long time = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return System.nanoTime() - time;
+  }
+}
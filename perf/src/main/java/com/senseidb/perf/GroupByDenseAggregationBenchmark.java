@@ -0,0 +1,162 @@
+package com.senseidb.perf;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.browseengine.bobo.facets.data.TermStringList;
+import com.senseidb.search.req.mapred.CombinerStage;
+import com.senseidb.search.req.mapred.DefaultIntArray;
+import com.senseidb.search.req.mapred.FieldAccessor;
+import com.senseidb.search.req.mapred.SingleFieldAccessor;
+import com.senseidb.search.req.mapred.functions.groupby.GroupByMapReduceJob;
+
+/**
+ * Compares the group by of the dense arrays with the group by of the hash map, over the same
+ * random columns held in memory, so the numbers do not include reading the index.
+ *
+ * Usage: GroupByDenseAggregationBenchmark [numDocs] [runs]
+ */
+public class GroupByDenseAggregationBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    FieldAccessor accessor = newAccessor(numDocs, 50, 100);
+    for (int run = 0; run < runs; run++) {
+      long time = System.currentTimeMillis();
+      run(newJob(GroupByMapReduceJob.DEFAULT_DENSE_THRESHOLD), accessor, numDocs);
+      long denseTime = System.currentTimeMillis() - time;
+      time = System.currentTimeMillis();
+      run(newJob(0), accessor, numDocs);
+      long hashTime = System.currentTimeMillis() - time;
+      System.out.println("Grouped " + numDocs + " docs, dense - " + denseTime + "ms, hash - "
+          + hashTime + "ms");
+    }
+  }
+
+  private static GroupByMapReduceJob newJob(int denseThreshold) throws Exception {
+    GroupByMapReduceJob job = new GroupByMapReduceJob();
+    job.init(new JSONObject().put("metric", "price").put("function", "sum")
+        .put("columns", new JSONArray(Arrays.asList("color", "category"))).put("top", 1000)
+        .put("denseThreshold", denseThreshold));
+    return job;
+  }
+
+  private static int run(GroupByMapReduceJob job, FieldAccessor accessor, int numDocs) {
+    int[] docIds = new int[numDocs];
+    for (int i = 0; i < numDocs; i++) {
+      docIds[i] = i;
+    }
+    List<Serializable> mapResults = new ArrayList<Serializable>();
+    mapResults.add(job.map(new DefaultIntArray(docIds), numDocs, null, accessor, null));
+    return job.reduce(job.combine(mapResults, CombinerStage.partitionLevel)).size();
+  }
+
+  private static FieldAccessor newAccessor(int numDocs, int colors, int categories) {
+    Random random = new Random(0);
+    final Map<String, TermStringList> dictionaries = new HashMap<String, TermStringList>();
+    final Map<String, SingleFieldAccessor> accessors = new HashMap<String, SingleFieldAccessor>();
+    dictionaries.put("color", newDictionary("color", colors));
+    accessors.put("color", new ArraySingleFieldAccessor(randomArray(random, numDocs, colors)));
+    dictionaries.put("category", newDictionary("category", categories));
+    accessors.put("category", new ArraySingleFieldAccessor(randomArray(random, numDocs,
+      categories)));
+    accessors.put("price", new ArraySingleFieldAccessor(randomArray(random, numDocs, 10000)));
+    return (FieldAccessor) Proxy.newProxyInstance(FieldAccessor.class.getClassLoader(),
+      new Class[] { FieldAccessor.class }, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          if ("getTermValueList".equals(method.getName())) {
+            return dictionaries.get(args[0]);
+          }
+          if ("getSingleFieldAccessor".equals(method.getName())) {
+            return accessors.get(args[0]);
+          }
+          return null;
+        }
+      });
+  }
+
+  private static TermStringList newDictionary(String prefix, int size) {
+    TermStringList ret = new TermStringList(size);
+    for (int i = 0; i < size; i++) {
+      ret.add(prefix + i);
+    }
+    return ret;
+  }
+
+  private static int[] randomArray(Random random, int size, int bound) {
+    int[] ret = new int[size];
+    for (int i = 0; i < size; i++) {
+      ret[i] = random.nextInt(bound);
+    }
+    return ret;
+  }
+
+  /**
+   * The dictionary id of a document is also its value
+   */
+  private static class ArraySingleFieldAccessor implements SingleFieldAccessor {
+    private final int[] values;
+
+    public ArraySingleFieldAccessor(int[] values) {
+      this.values = values;
+    }
+
+    @Override
+    public Object get(int docId) {
+      return values[docId];
+    }
+
+    @Override
+    public String getString(int docId) {
+      return String.valueOf(values[docId]);
+    }
+
+    @Override
+    public long getLong(int docId) {
+      return values[docId];
+    }
+
+    @Override
+    public double getDouble(int docId) {
+      return values[docId];
+    }
+
+    @Override
+    public short getShort(int docId) {
+      return (short) values[docId];
+    }
+
+    @Override
+    public int getInteger(int docId) {
+      return values[docId];
+    }
+
+    @Override
+    public float getFloat(int docId) {
+      return values[docId];
+    }
+
+    @Override
+    public Object[] getArray(int docId) {
+      return new Object[] { values[docId] };
+    }
+
+    @Override
+    public int getDictionaryId(int docId) {
+      return values[docId];
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package com.senseidb.perf;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.MapConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.search.SortField;
+import org.json.JSONObject;
+
+import com.browseengine.bobo.api.FacetSpec;
+import com.senseidb.conf.SenseiConfParams;
+import com.senseidb.conf.SenseiServerBuilder;
+import com.senseidb.search.node.SenseiCore;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.svc.impl.CoreSenseiServiceImpl;
+
+/**
+ * Compares the latency distribution of the sequential partition search with the intra-partition
+ * parallel segment search. Both services run in-process over the same index, so the numbers do
+ * not include network or broker time.
+ *
+ * Usage: SegmentParallelSearchBenchmark [confDir] [numDocs] [numQueries]
+ */
+public class SegmentParallelSearchBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    String confDir = args.length > 0 ? args[0] : "conf-perf";
+    int numDocs = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+    int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+    org.apache.log4j.PropertyConfigurator.configure(confDir + "/log4j-perf.properties");
+
+    SenseiServerBuilder builder = new SenseiServerBuilder(new File(confDir), null);
+    SenseiCore core = builder.buildCore();
+    core.start();
+    feed(numDocs);
+
+    Map<String, Object> sequentialProps = new HashMap<String, Object>();
+    CoreSenseiServiceImpl sequential = new CoreSenseiServiceImpl(core, new MapConfiguration(
+        sequentialProps));
+    Map<String, Object> parallelProps = new HashMap<String, Object>();
+    parallelProps.put(SenseiConfParams.SENSEI_NODE_SEGMENT_PARALLELISM, Runtime.getRuntime()
+        .availableProcessors());
+    parallelProps.put(SenseiConfParams.SENSEI_NODE_SEGMENT_PARALLEL_MIN_SEGMENTS, 2);
+    parallelProps.put(SenseiConfParams.SENSEI_NODE_SEGMENT_PARALLEL_MIN_DOCS, 0);
+    CoreSenseiServiceImpl parallel = new CoreSenseiServiceImpl(core, new MapConfiguration(
+        parallelProps));
+
+    while (sequential.execute(buildRequest()).getTotalDocs() < numDocs) {
+      System.out.println("Waiting for the index to catch up...");
+      Thread.sleep(1000);
+    }
+
+    run(sequential, numQueries / 10);
+    run(parallel, numQueries / 10);
+    report("sequential", run(sequential, numQueries));
+    report("parallel", run(parallel, numQueries));
+    sequential.shutdown();
+    parallel.shutdown();
+    core.shutdown();
+    System.exit(0);
+  }
+
+  private static void feed(int numDocs) throws Exception {
+    List<String> lines = FileUtils.readLines(new File("data/cars.json"));
+    int uid = 0;
+    while (uid < numDocs) {
+      for (String line : lines) {
+        if (line == null || !line.contains("{")) {
+          continue;
+        }
+        JSONObject event = new JSONObject(line);
+        event.put("id", uid++);
+        PerfFileDataProvider.queue.put(event);
+        if (uid == numDocs) {
+          break;
+        }
+      }
+    }
+  }
+
+  private static SenseiRequest buildRequest() {
+    SenseiRequest req = new SenseiRequest();
+    req.setCount(10);
+    req.setSort(new SortField[] { new SortField("mileage", SortField.Type.INT, true) });
+    FacetSpec colorSpec = new FacetSpec();
+    colorSpec.setMaxCount(10);
+    req.setFacetSpec("color", colorSpec);
+    return req;
+  }
+
+  private static long[] run(CoreSenseiServiceImpl service, int numQueries) {
+    long[] latencies = new long[numQueries];
+    for (int i = 0; i < numQueries; i++) {
+      long start = System.nanoTime();
+      service.execute(buildRequest());
+      latencies[i] = System.nanoTime() - start;
+    }
+    return latencies;
+  }
+
+  private static void report(String name, long[] latencies) {
+    Arrays.sort(latencies);
+    System.out.println(name + ": p50 = " + percentile(latencies, 0.5) + "us, p99 = "
+        + percentile(latencies, 0.99) + "us, max = " + latencies[latencies.length - 1] / 1000
+        + "us");
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(index, 0)] / 1000;
+  }
+}
@@ -0,0 +1,96 @@
+package com.senseidb.perf;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.FacetAccessible;
+import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.api.FacetSpec.FacetSortSpec;
+import com.senseidb.search.node.ResultMerger.MappedFacetAccessible;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+import com.senseidb.servlet.DefaultSenseiJSONServlet;
+import com.senseidb.servlet.SenseiJSONResultWriter;
+
+/**
+ * Compares the time to write the JSON of a result through the JSON objects of the servlet with the
+ * time to stream it.
+ *
+ * Usage: SenseiJSONResultWriterBenchmark [numHits] [runs]
+ */
+public class SenseiJSONResultWriterBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int numHits = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    SenseiRequest req = createRequest();
+    SenseiResult res = createResult(numHits);
+    for (int run = 0; run < runs; run++) {
+      long time = System.currentTimeMillis();
+      for (int i = 0; i < 100; i++) {
+        DefaultSenseiJSONServlet.buildJSONResultString(req, res).getBytes("UTF-8");
+      }
+      long domTime = System.currentTimeMillis() - time;
+      time = System.currentTimeMillis();
+      for (int i = 0; i < 100; i++) {
+        Writer writer = new StringWriter();
+        new SenseiJSONResultWriter(writer).write(req, res);
+        writer.toString().getBytes("UTF-8");
+      }
+      long streamTime = System.currentTimeMillis() - time;
+      System.out.println("Wrote 100 results of " + numHits + " hits, dom - " + domTime
+          + "ms, stream - " + streamTime + "ms");
+    }
+  }
+
+  private static SenseiHit createHit(int docid) {
+    SenseiHit hit = new SenseiHit();
+    hit.setUID(docid * 7L - 3);
+    hit.setDocid(docid);
+    hit.setScore(docid / 3.0f);
+    Map<String, String[]> fieldValues = new HashMap<String, String[]>();
+    fieldValues.put("color", new String[] { docid % 2 == 0 ? "red" : "blue" });
+    fieldValues.put("tags", new String[] { "cool", "hybrid" });
+    hit.setFieldValues(fieldValues);
+    hit.setSrcData("{\"id\":" + docid + ",\"text\":\"café\"}");
+    return hit;
+  }
+
+  private static SenseiResult createResult(int numHits) {
+    SenseiResult result = new SenseiResult();
+    result.setTid(42);
+    result.setTime(15);
+    result.setNumHitsLong(12345678901L);
+    result.setTotalDocsLong(15000);
+    result.setParsedQuery("color:red");
+
+    SenseiHit[] hits = new SenseiHit[numHits];
+    for (int i = 0; i < numHits; ++i) {
+      hits[i] = createHit(i);
+    }
+    result.setHits(hits);
+
+    Map<String, FacetAccessible> facetMap = new HashMap<String, FacetAccessible>();
+    facetMap.put("color", new MappedFacetAccessible(new BrowseFacet[] {
+        new BrowseFacet("red", 10), new BrowseFacet("blue", 5) }));
+    result.addAll(facetMap);
+    return result;
+  }
+
+  private static SenseiRequest createRequest() {
+    SenseiRequest req = new SenseiRequest();
+    BrowseSelection sel = new BrowseSelection("color");
+    sel.addValue("red");
+    sel.addValue("green");
+    req.addSelection(sel);
+    FacetSpec spec = new FacetSpec();
+    spec.setOrderBy(FacetSortSpec.OrderHitsDesc);
+    req.setFacetSpec("color", spec);
+    return req;
+  }
+}
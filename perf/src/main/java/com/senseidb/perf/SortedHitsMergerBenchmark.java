@@ -0,0 +1,76 @@
+package com.senseidb.perf;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.search.SortField;
+
+import com.browseengine.bobo.util.ListMerger;
+import com.senseidb.search.node.ResultMerger;
+import com.senseidb.search.node.SortedHitsMerger;
+import com.senseidb.search.req.SenseiHit;
+
+/**
+ * Compares the merge of the sorted hits arrays of the partitions with the bobo list merger, over
+ * random hits held in memory.
+ *
+ * Usage: SortedHitsMergerBenchmark [numLists] [hitsPerList] [offset] [count] [iterations]
+ */
+public class SortedHitsMergerBenchmark {
+
+  @SuppressWarnings("unchecked")
+  public static void main(String[] args) {
+    int numLists = args.length > 0 ? Integer.parseInt(args[0]) : 24;
+    int hitsPerList = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+    int offset = args.length > 2 ? Integer.parseInt(args[2]) : 4000;
+    int count = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+    int iterations = args.length > 4 ? Integer.parseInt(args[4]) : 2000;
+    Comparator<SenseiHit> comparator = ResultMerger
+        .getHitComparator(new SortField[] { SortField.FIELD_SCORE });
+    SenseiHit[][] lists = createLists(numLists, hitsPerList, 4);
+    for (int round = 0; round < 2; ++round) {
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; ++i) {
+        Iterator<SenseiHit>[] iterators = new Iterator[lists.length];
+        for (int j = 0; j < lists.length; ++j) {
+          iterators[j] = Arrays.asList(lists[j]).iterator();
+        }
+        List<SenseiHit> merged = ListMerger.mergeLists(offset, count, iterators, comparator);
+        merged.toArray(new SenseiHit[merged.size()]);
+      }
+      long listMergerTime = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; ++i) {
+        SortedHitsMerger.merge(lists, offset, count, comparator);
+      }
+      long sortedHitsMergerTime = System.nanoTime() - start;
+      System.out.println("ListMerger: " + listMergerTime / iterations + "ns per merge, "
+          + "SortedHitsMerger: " + sortedHitsMergerTime / iterations + "ns per merge");
+    }
+  }
+
+  private static SenseiHit[][] createLists(int numLists, int hitsPerList, long seed) {
+    Random random = new Random(seed);
+    SenseiHit[][] lists = new SenseiHit[numLists][];
+    int docid = 0;
+    for (int i = 0; i < numLists; ++i) {
+      float[] scores = new float[hitsPerList];
+      for (int j = 0; j < hitsPerList; ++j) {
+        scores[j] = random.nextInt(1000);
+      }
+      Arrays.sort(scores);
+      lists[i] = new SenseiHit[hitsPerList];
+      for (int j = 0; j < hitsPerList; ++j) {
+        SenseiHit hit = new SenseiHit();
+        hit.setScore(scores[hitsPerList - j - 1]);
+        hit.setDocid(docid++);
+        hit.setUID(hit.getDocid());
+        lists[i][j] = hit;
+      }
+    }
+    return lists;
+  }
+}
@@ -0,0 +1,156 @@
+package com.senseidb.bql.parsers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.json.JSONObject;
+
+import com.senseidb.metrics.MetricsConstants;
+import com.senseidb.util.JSONUtil;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+
+/**
+ * LRU cache of the compiled BQL statements, keyed on the statement with its whitespace normalized.
+ * The cached requests are never handed out, every call gets its own copy. The statements that
+ * fail to compile are not cached.
+ */
+public class BQLStatementCache {
+  private static Meter HitMeter = null;
+  private static Meter MissMeter = null;
+  private static Timer CompileTimer = null;
+  static {
+    HitMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter",
+        "bql-cache-hits", "broker"), "requests", TimeUnit.SECONDS);
+    MissMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter",
+        "bql-cache-misses", "broker"), "requests", TimeUnit.SECONDS);
+    CompileTimer = Metrics.newTimer(new MetricName(MetricsConstants.Domain, "timer",
+        "bql-compile-time", "broker"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+  }
+
+  private final BQLCompiler _compiler;
+  private final int _maxEntries;
+  private final LinkedHashMap<String, PreparedBQLStatement> _entries;
+
+  public BQLStatementCache(BQLCompiler compiler, int maxEntries) {
+    _compiler = compiler;
+    _maxEntries = maxEntries;
+    _entries = new LinkedHashMap<String, PreparedBQLStatement>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, PreparedBQLStatement> eldest) {
+        return size() > _maxEntries;
+      }
+    };
+
+    Metrics.newGauge(new MetricName(MetricsConstants.Domain, "gauge", "bql-cache-entries",
+        "broker"), new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        synchronized (BQLStatementCache.this) {
+          return _entries.size();
+        }
+      }
+    });
+    Metrics.newGauge(new MetricName(MetricsConstants.Domain, "gauge", "bql-cache-hit-ratio",
+        "broker"), new Gauge<Double>() {
+      @Override
+      public Double value() {
+        long hits = HitMeter.count();
+        long total = hits + MissMeter.count();
+        return total == 0 ? 0 : (double) hits / total;
+      }
+    });
+  }
+
+  /**
+   * @return a copy of the compiled statement, that may be modified by the caller
+   */
+  public JSONObject compile(String bqlStmt) throws RecognitionException,
+      ParseCancellationException {
+    if (_maxEntries <= 0) {
+      return compileTimed(bqlStmt);
+    }
+    String key = PreparedBQLStatement.normalize(bqlStmt);
+    PreparedBQLStatement entry;
+    synchronized (this) {
+      entry = _entries.get(key);
+    }
+    if (entry != null) {
+      HitMeter.mark();
+      return entry.getCompiledJson();
+    }
+    MissMeter.mark();
+    JSONObject compiled = compileTimed(bqlStmt);
+    synchronized (this) {
+      _entries.put(key, new PreparedBQLStatement(key, 0, compiled));
+    }
+    return JSONUtil.deepCopy(compiled);
+  }
+
+  /**
+   * @return the statement compiled with its <code>?</code> placeholders, it is shared and it must
+   *         only be bound
+   */
+  public PreparedBQLStatement prepare(String bqlStmt) throws RecognitionException,
+      ParseCancellationException {
+    // the prepared statements are kept apart from the plain ones, a ? means something else there
+    String key = "?" + PreparedBQLStatement.normalize(bqlStmt);
+    if (_maxEntries > 0) {
+      PreparedBQLStatement entry;
+      synchronized (this) {
+        entry = _entries.get(key);
+      }
+      if (entry != null) {
+        HitMeter.mark();
+        return entry;
+      }
+      MissMeter.mark();
+    }
+    TimerContext context = CompileTimer.time();
+    PreparedBQLStatement entry;
+    try {
+      entry = PreparedBQLStatement.prepare(_compiler, bqlStmt);
+    } finally {
+      context.stop();
+    }
+    if (_maxEntries > 0) {
+      synchronized (this) {
+        _entries.put(key, entry);
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * The facet types are compiled into the requests, so the cache is emptied together with the
+   * change
+   */
+  public void setFacetInfoMap(Map<String, String[]> facetInfoMap) {
+    synchronized (this) {
+      _compiler.setFacetInfoMap(facetInfoMap);
+      _entries.clear();
+    }
+  }
+
+  public synchronized int size() {
+    return _entries.size();
+  }
+
+  private JSONObject compileTimed(String bqlStmt) {
+    TimerContext context = CompileTimer.time();
+    try {
+      return _compiler.compile(bqlStmt);
+    } finally {
+      context.stop();
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package com.senseidb.bql.parsers;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.senseidb.util.JSONUtil;
+import com.senseidb.util.JSONUtil.FastJSONArray;
+import com.senseidb.util.JSONUtil.FastJSONObject;
+import com.senseidb.util.JsonTemplateProcessor;
+
+/**
+ * A BQL statement compiled once and bound to the values of its placeholders on every call. The
+ * named placeholders are the BQL variables, like <code>$color</code>, and every <code>?</code>
+ * outside of the string literals and of the relevance model bodies is a positional placeholder.
+ * The values are passed to the request as its template mapping, the same way the values of the
+ * variables are passed by the clients.
+ */
+public class PreparedBQLStatement {
+  // the positional placeholders become the variables $_p1_, $_p2_ ... so that one is never the
+  // prefix of another
+  private static final String POSITIONAL_PREFIX = "_p";
+  private static final String POSITIONAL_SUFFIX = "_";
+
+  private final String _statement;
+  private final int _parameterCount;
+  private final JSONObject _compiledJson;
+
+  PreparedBQLStatement(String statement, int parameterCount, JSONObject compiledJson) {
+    _statement = statement;
+    _parameterCount = parameterCount;
+    _compiledJson = compiledJson;
+  }
+
+  public static PreparedBQLStatement prepare(BQLCompiler compiler, String bqlStmt) {
+    StringBuilder statement = new StringBuilder(bqlStmt.length());
+    int parameterCount = rewrite(bqlStmt, statement, true);
+    return new PreparedBQLStatement(statement.toString(), parameterCount,
+        compiler.compile(statement.toString()));
+  }
+
+  /**
+   * @return the statement without the comments and with the runs of whitespace outside of the
+   *         string literals collapsed, that is the same for the statements that compile to the
+   *         same request
+   */
+  public static String normalize(String bqlStmt) {
+    StringBuilder ret = new StringBuilder(bqlStmt.length());
+    rewrite(bqlStmt, ret, false);
+    return ret.toString();
+  }
+
+  /**
+   * @return the number of the positional placeholders
+   */
+  private static int rewrite(String bqlStmt, StringBuilder ret, boolean placeholders) {
+    int parameterCount = 0;
+    // the relevance models between BEGIN and END have their own ? operator
+    boolean inModel = false;
+    char quote = 0;
+    boolean whitespace = false;
+    for (int i = 0; i < bqlStmt.length(); i++) {
+      char c = bqlStmt.charAt(i);
+      if (quote != 0) {
+        // a doubled quote is an escaped one, it closes and opens the literal again
+        if (c == quote) {
+          quote = 0;
+        }
+        ret.append(c);
+        continue;
+      }
+      // the comments are dropped, a line comment would swallow the rest of the statement once
+      // its line break is collapsed. Like in the lexer a -- inside of an identifier is not one
+      if (c == '-' && bqlStmt.startsWith("--", i)
+          && (i == 0 || !isIdentifierPart(bqlStmt.charAt(i - 1)))) {
+        int end = bqlStmt.indexOf('\n', i);
+        i = end < 0 ? bqlStmt.length() : end;
+        whitespace = true;
+        continue;
+      }
+      if (c == '/' && bqlStmt.startsWith("/*", i)) {
+        int end = bqlStmt.indexOf("*/", i + 2);
+        i = end < 0 ? bqlStmt.length() : end + 1;
+        whitespace = true;
+        continue;
+      }
+      if (Character.isWhitespace(c)) {
+        whitespace = true;
+        continue;
+      }
+      if (whitespace && ret.length() > 0) {
+        ret.append(' ');
+      }
+      whitespace = false;
+      if (Character.isLetter(c)) {
+        int end = i + 1;
+        while (end < bqlStmt.length() && isIdentifierPart(bqlStmt.charAt(end))) {
+          end++;
+        }
+        String word = bqlStmt.substring(i, end);
+        boolean variable = i > 0 && bqlStmt.charAt(i - 1) == '$';
+        if (!variable && word.equalsIgnoreCase("BEGIN")) {
+          inModel = true;
+        } else if (!variable && word.equalsIgnoreCase("END")) {
+          inModel = false;
+        }
+        ret.append(word);
+        i = end - 1;
+        continue;
+      }
+      if (c == '"' || c == '\'') {
+        quote = c;
+      } else if (c == '?' && !inModel && placeholders) {
+        ret.append('$').append(POSITIONAL_PREFIX).append(++parameterCount)
+            .append(POSITIONAL_SUFFIX);
+        continue;
+      }
+      ret.append(c);
+    }
+    return parameterCount;
+  }
+
+  private static boolean isIdentifierPart(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '-';
+  }
+
+  /**
+   * @return the statement that was compiled, with the positional placeholders replaced by the
+   *         variables
+   */
+  public String getStatement() {
+    return _statement;
+  }
+
+  public int getParameterCount() {
+    return _parameterCount;
+  }
+
+  /**
+   * @return a copy of the compiled request that may be modified by the caller
+   */
+  public JSONObject getCompiledJson() {
+    return JSONUtil.deepCopy(_compiledJson);
+  }
+
+  public JSONObject bind(Object... values) throws JSONException {
+    return bind(null, values);
+  }
+
+  /**
+   * @param namedValues the values of the variables, may be null
+   * @param values the values of the positional placeholders, a collection or an array becomes a
+   *          list of values
+   * @return a copy of the compiled request with the values in its template mapping
+   */
+  public JSONObject bind(Map<String, ?> namedValues, Object... values) throws JSONException {
+    if (values.length != _parameterCount) {
+      throw new IllegalArgumentException("The statement has " + _parameterCount
+          + " positional parameters, but " + values.length + " values were bound");
+    }
+    JSONObject templates = new FastJSONObject();
+    if (namedValues != null) {
+      for (Entry<String, ?> entry : namedValues.entrySet()) {
+        templates.put(entry.getKey(), toTemplateValue(entry.getValue()));
+      }
+    }
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] == null) {
+        throw new IllegalArgumentException("The value of the parameter " + (i + 1) + " is null");
+      }
+      templates.put(POSITIONAL_PREFIX + (i + 1) + POSITIONAL_SUFFIX, toTemplateValue(values[i]));
+    }
+    JSONObject ret = getCompiledJson();
+    if (templates.length() > 0) {
+      ret.put(JsonTemplateProcessor.TEMPLATE_MAPPING_PARAM, templates);
+    }
+    return ret;
+  }
+
+  private static Object toTemplateValue(Object value) {
+    if (value instanceof Collection) {
+      return new FastJSONArray((Collection<?>) value);
+    }
+    if (value != null && value.getClass().isArray()) {
+      FastJSONArray ret = new FastJSONArray();
+      for (int i = 0; i < Array.getLength(value); i++) {
+        ret.put(Array.get(value, i));
+      }
+      return ret;
+    }
+    return value;
+  }
+}
@@ -13,6 +13,8 @@ public class SenseiConfParams {
   public static final String SENSEI_CLUSTER_NAME = "sensei.cluster.name";
   public static final String SENSEI_CLUSTER_URL = "sensei.cluster.url";
   public static final String SENSEI_CLUSTER_TIMEOUT = "sensei.cluster.timeout";
+  public static final String SENSEI_CLUSTER_SERIALIZER = "sensei.cluster.serializer";
+  public static final String SENSEI_CLUSTER_SERIALIZER_COMPRESS = "sensei.cluster.serializer.compress";
 
   public static final String SENSEI_INDEX_DIR = "sensei.index.directory";
   public static final String SENSEI_FEDERATED_BROKER = "sensei.federated.broker";
@@ -67,6 +69,19 @@ public class SenseiConfParams {
   public static final String SERVER_BROKER_MAXWAIT = "sensei.broker.maxWaittime";
   public static final String SERVER_BROKER_TIMEOUT = "sensei.broker.timeout";
   public static final String SERVER_BROKER_FINAGLE_THREAD = "sensei.broker.finagle.thread";
+  public static final String SERVER_BROKER_CACHE_MAX_ENTRIES = "sensei.broker.cache.maxEntries";
+  public static final String SERVER_BROKER_CACHE_MAX_BYTES = "sensei.broker.cache.maxBytes";
+  public static final String SERVER_BROKER_CACHE_MAX_STALENESS = "sensei.broker.cache.maxStaleness";
+  public static final String SERVER_BROKER_ROUTING = "sensei.broker.routing";
+  public static final String SERVER_BROKER_HEDGE_ENABLED = "sensei.broker.hedge.enabled";
+  public static final String SERVER_BROKER_HEDGE_PERCENTILE = "sensei.broker.hedge.percentile";
+  public static final String SERVER_BROKER_HEDGE_MIN_DELAY = "sensei.broker.hedge.minDelay";
+  public static final String SERVER_BROKER_HEDGE_BUDGET = "sensei.broker.hedge.budget";
+  public static final String SERVER_BROKER_TWO_PHASE_FETCH = "sensei.broker.twoPhaseFetch";
+  public static final String SERVER_BROKER_TWO_PHASE_FETCH_QUERY_SHARE = "sensei.broker.twoPhaseFetch.queryShare";
+  public static final String SERVER_BROKER_JSON_STREAMING = "sensei.broker.json.streaming";
+  public static final String SERVER_BROKER_GZIP = "sensei.broker.gzip";
+  public static final String SERVER_BROKER_BQL_CACHE_MAX_ENTRIES = "sensei.broker.bql.cache.maxEntries";
 
   public static final String SENSEI_INDEX_PRUNER = "sensei.index.pruner";
   public static final String SENSEI_REQUEST_POSTPROCESSOR = "sensei.request.postrocessor";
@@ -81,4 +96,13 @@ public class SenseiConfParams {
   public static final String SENSEI_INDEX_ACTIVITY_PURGE_FREQUENCY_MINUTES = "sensei.index.activity.purge.minutes";
 
   public static final String SENSEI_NODE_PARTITION_TIMEOUT = "sensei.node.partition.timeout";
+  public static final String SENSEI_NODE_SEARCH_THREADS = "sensei.node.search.threads";
+  public static final String SENSEI_NODE_SEARCH_QUEUE_SIZE = "sensei.node.search.queueSize";
+  public static final String SENSEI_NODE_SEGMENT_PARALLELISM = "sensei.node.search.segmentParallelism";
+  public static final String SENSEI_NODE_SEGMENT_PARALLEL_MIN_SEGMENTS = "sensei.node.search.segmentParallel.minSegments";
+  public static final String SENSEI_NODE_SEGMENT_PARALLEL_MIN_DOCS = "sensei.node.search.segmentParallel.minDocs";
+  public static final String SENSEI_NODE_EARLY_TERMINATION_SORT_FIELDS = "sensei.node.search.earlyTermination.sortFields";
+  public static final String SENSEI_NODE_PARTITION_CACHE_MAX_ENTRIES = "sensei.node.search.partitionCache.maxEntries";
+  public static final String SENSEI_NODE_FILTER_CACHE_MAX_BYTES = "sensei.node.search.filterCache.maxBytes";
+  public static final String SENSEI_NODE_FILTER_CACHE_MIN_USES = "sensei.node.search.filterCache.minUses";
 }
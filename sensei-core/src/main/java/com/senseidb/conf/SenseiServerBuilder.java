@@ -24,6 +24,7 @@ import com.senseidb.search.node.impl.DefaultJsonQueryBuilderFactory;
 import com.senseidb.search.plugin.PluggableSearchEngineManager;
 import com.senseidb.search.query.RetentionFilterFactory;
 import com.senseidb.search.query.TimeRetentionFilter;
+import com.senseidb.search.query.filters.FilterDocIdSetCache;
 import com.senseidb.search.relevance.CustomRelevanceFunction.CustomRelevanceFunctionFactory;
 import com.senseidb.search.relevance.ExternalRelevanceDataStorage;
 import com.senseidb.search.relevance.ExternalRelevanceDataStorage.RelevanceObjPlugin;
@@ -601,6 +602,9 @@ public class SenseiServerBuilder {
 
   public SenseiServer buildServer() throws ConfigurationException {
     JmxSenseiMBeanServer.registerCustomMBeanServer();
+    FilterDocIdSetCache.configure(
+      _senseiConf.getLong(SenseiConfParams.SENSEI_NODE_FILTER_CACHE_MAX_BYTES, 64L * 1024 * 1024),
+      _senseiConf.getInt(SenseiConfParams.SENSEI_NODE_FILTER_CACHE_MIN_USES, 2));
 
     ZuCluster cluster = buildClusterClient();
     SenseiCore core = buildCore();
@@ -14,6 +14,18 @@ abstract public class CustomMatchingStrategy {
 
   public void init() {}
 
+  /**
+   * @return a new strategy to score one segment with, the strategy of a query is shared by all the
+   *         searches of the query. The strategies without a default constructor must override it
+   */
+  public CustomMatchingStrategy newInstance() {
+    try {
+      return getClass().newInstance();
+    } catch (Exception e) {
+      throw new IllegalStateException("Cannot create a new " + getClass().getName(), e);
+    }
+  }
+
   public void setMatchedMatrix(MatchedInfoMatrix matchedMatrix) {
     this.matchedMatrix = matchedMatrix;
   }
@@ -40,7 +40,8 @@ public class FlexibleScorer extends Scorer {
     }
     this.matchedInfoMatrix = new MatchedInfoMatrix(matchedInfos, weight.getQuery().getFieldBoosts());
 
-    strategy = weight.getQuery().getStrategy();
+    // the strategy holds the doc being scored, every scorer has its own
+    strategy = weight.getQuery().getStrategy().newInstance();
     strategy.setMatchedMatrix(matchedInfoMatrix);
     strategy.setBoboReader((BoboSegmentReader) context.reader());
     strategy.init();
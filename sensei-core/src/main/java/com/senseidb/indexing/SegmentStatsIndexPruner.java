@@ -0,0 +1,168 @@
+package com.senseidb.indexing;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.browseengine.bobo.api.BoboSegmentReader;
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.BrowseSelection.ValueOperation;
+import com.browseengine.bobo.facets.FacetHandler;
+import com.browseengine.bobo.facets.data.FacetDataCache;
+import com.browseengine.bobo.facets.data.TermNumberList;
+import com.browseengine.bobo.facets.data.TermValueList;
+import com.browseengine.bobo.facets.filter.FacetRangeFilter;
+import com.browseengine.bobo.facets.impl.MultiValueFacetHandler;
+import com.browseengine.bobo.facets.impl.RangeFacetHandler;
+import com.browseengine.bobo.facets.impl.SimpleFacetHandler;
+import com.senseidb.metrics.MetricsConstants;
+import com.senseidb.plugin.SenseiPlugin;
+import com.senseidb.plugin.SenseiPluginRegistry;
+import com.senseidb.search.req.SenseiRequest;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Skips the segments, that can't match a selection of the request. The statistics of a segment are
+ * read from the sorted term dictionaries of its facets, that bobo loads once the segment is
+ * flushed or merged:
+ * <ul>
+ * <li>a range selection on a numeric range facet is compared with the min and max terms</li>
+ * <li>a term selection on a simple or multi value facet is looked up in the dictionary</li>
+ * </ul>
+ * Not values and other facet types never skip a segment.
+ */
+public class SegmentStatsIndexPruner implements SenseiIndexPruner, SenseiPlugin {
+  private static final String FACETS = "facets";
+  private static Counter processedReadersCount;
+  private static Counter filteredReadersCount;
+  static {
+    MetricName processedReadersMetric = new MetricName(MetricsConstants.Domain,
+        "segmentStatsIndexPruner", "processedReaderCount");
+    processedReadersCount = Metrics.newCounter(processedReadersMetric);
+    MetricName filteredReadersMetric = new MetricName(MetricsConstants.Domain,
+        "segmentStatsIndexPruner", "filteredReaderCount");
+    filteredReadersCount = Metrics.newCounter(filteredReadersMetric);
+  }
+  private Set<String> facets;
+
+  private final IndexReaderSelector defaultReaderSelector = new IndexReaderSelector() {
+    @Override
+    public boolean isSelected(BoboSegmentReader reader) throws IOException {
+      return true;
+    }
+  };
+
+  @Override
+  public IndexReaderSelector getReaderSelector(SenseiRequest req) {
+    final BrowseSelection[] selections = req.getSelections();
+    if (selections == null || selections.length == 0) {
+      return defaultReaderSelector;
+    }
+    return new IndexReaderSelector() {
+      @Override
+      public boolean isSelected(BoboSegmentReader reader) throws IOException {
+        processedReadersCount.inc();
+        for (BrowseSelection selection : selections) {
+          if (facets != null && !facets.contains(selection.getFieldName())) {
+            continue;
+          }
+          if (!mightMatch(reader, selection)) {
+            filteredReadersCount.inc();
+            return false;
+          }
+        }
+        return true;
+      }
+    };
+  }
+
+  private static boolean mightMatch(BoboSegmentReader reader, BrowseSelection selection) {
+    String[] values = selection.getValues();
+    if (values == null || values.length == 0) {
+      return true;
+    }
+    FacetHandler<?> handler = reader.getFacetHandler(selection.getFieldName());
+    boolean isRange = handler instanceof RangeFacetHandler;
+    if (!isRange && !(handler instanceof SimpleFacetHandler)
+        && !(handler instanceof MultiValueFacetHandler)) {
+      return true;
+    }
+    Object facetData = reader.getFacetData(selection.getFieldName());
+    if (!(facetData instanceof FacetDataCache)) {
+      return true;
+    }
+    TermValueList<?> valArray = ((FacetDataCache<?>) facetData).valArray;
+    if (isRange && !(valArray instanceof TermNumberList)) {
+      return true;
+    }
+    boolean and = selection.getSelectionOperation() == ValueOperation.ValueOperationAnd;
+    for (String value : values) {
+      boolean valueMightMatch;
+      try {
+        valueMightMatch = isRange ? rangeMightMatch(valArray, value)
+            : valArray.indexOf(value) >= 0;
+      } catch (RuntimeException e) {
+        // the value is not in the format of the facet, let the filter deal with it
+        valueMightMatch = true;
+      }
+      if (and && !valueMightMatch) {
+        return false;
+      }
+      if (!and && valueMightMatch) {
+        return true;
+      }
+    }
+    return and;
+  }
+
+  /**
+   * The first term of a numeric dictionary stands for the missing value, the others are sorted.
+   * The bounds are treated as inclusive, a segment is never skipped by mistake.
+   */
+  private static boolean rangeMightMatch(TermValueList<?> valArray, String range) {
+    if (valArray.size() < 2) {
+      return false;
+    }
+    Number min = (Number) valArray.getRawValue(1);
+    Number max = (Number) valArray.getRawValue(valArray.size() - 1);
+    String[] rangeStrings = FacetRangeFilter.getRangeStrings(range);
+    String lower = rangeStrings[0];
+    String upper = rangeStrings[1];
+    if (min instanceof Float || min instanceof Double) {
+      return ("*".equals(lower) || Double.parseDouble(lower) <= max.doubleValue())
+          && ("*".equals(upper) || Double.parseDouble(upper) >= min.doubleValue());
+    }
+    return ("*".equals(lower) || Long.parseLong(lower) <= max.longValue())
+        && ("*".equals(upper) || Long.parseLong(upper) >= min.longValue());
+  }
+
+  @Override
+  public void sort(List<BoboSegmentReader> readers) {
+    // do nothing
+  }
+
+  @Override
+  public void init(Map<String, String> config, SenseiPluginRegistry pluginRegistry) {
+    String facetsConfig = config.get(FACETS);
+    if (facetsConfig != null) {
+      facets = new HashSet<String>();
+      for (String facet : facetsConfig.split(",")) {
+        if (facet.trim().length() > 0) {
+          facets.add(facet.trim());
+        }
+      }
+    }
+  }
+
+  @Override
+  public void start() {
+  }
+
+  @Override
+  public void stop() {
+  }
+}
@@ -8,7 +8,12 @@ public class ActivityConfig {
   private int flushBufferSize = 50000;
   private int flushBufferMaxDelayInSeconds = 15;
   private int purgeJobFrequencyInSeconds = 0;
+  private int purgeJobTickInSeconds = 10;
+  private int purgeJobChunkSize = 100000;
   private int undeletableBufferSize = 500;
+  private boolean offHeapColumns = false;
+  private boolean writeAheadLog = false;
+  private int writeAheadLogSyncIntervalInMillis = 100;
 
   public ActivityConfig(SenseiPluginRegistry pluginRegistry) {
     flushBufferSize = getInt(pluginRegistry.getConfiguration(), "flushBufferSize", 50000);
@@ -16,7 +21,13 @@ public class ActivityConfig {
       "flushBufferMaxDelayInSeconds", 15);
     purgeJobFrequencyInSeconds = getInt(pluginRegistry.getConfiguration(),
       "purgeJobFrequencyInMinutes", 0);
+    purgeJobTickInSeconds = getInt(pluginRegistry.getConfiguration(), "purgeJobTickInSeconds", 10);
+    purgeJobChunkSize = getInt(pluginRegistry.getConfiguration(), "purgeJobChunkSize", 100000);
     undeletableBufferSize = getInt(pluginRegistry.getConfiguration(), "undeletableBufferSize", 500);
+    offHeapColumns = getBoolean(pluginRegistry.getConfiguration(), "offHeapColumns", false);
+    writeAheadLog = getBoolean(pluginRegistry.getConfiguration(), "writeAheadLog", false);
+    writeAheadLogSyncIntervalInMillis = getInt(pluginRegistry.getConfiguration(),
+      "writeAheadLogSyncIntervalInMillis", 100);
 
   }
 
@@ -28,6 +39,11 @@ public class ActivityConfig {
     return configuration.getInt(compoundKey, defaultValue);
   }
 
+  private static boolean getBoolean(Configuration configuration, String key, boolean defaultValue) {
+    String compoundKey = "sensei.activity.config." + key;
+    return configuration.getBoolean(compoundKey, defaultValue);
+  }
+
   public int getFlushBufferSize() {
     return flushBufferSize;
   }
@@ -40,8 +56,52 @@ public class ActivityConfig {
     return purgeJobFrequencyInSeconds;
   }
 
+  /**
+   * @return how often the purge job checks the next chunk of uids
+   */
+  public int getPurgeJobTickInSeconds() {
+    return purgeJobTickInSeconds;
+  }
+
+  /**
+   * @return the maximum number of uids the purge job checks per tick
+   */
+  public int getPurgeJobChunkSize() {
+    return purgeJobChunkSize;
+  }
+
   public int getUndeletableBufferSize() {
     return undeletableBufferSize;
   }
 
+  /**
+   * @return true if the activity columns are kept in direct memory instead of java arrays
+   */
+  public boolean isOffHeapColumns() {
+    return offHeapColumns;
+  }
+
+  public void setOffHeapColumns(boolean offHeapColumns) {
+    this.offHeapColumns = offHeapColumns;
+  }
+
+  /**
+   * @return true if the updates are logged, the flushes then only checkpoint the log
+   */
+  public boolean isWriteAheadLog() {
+    return writeAheadLog;
+  }
+
+  public void setWriteAheadLog(boolean writeAheadLog) {
+    this.writeAheadLog = writeAheadLog;
+  }
+
+  public int getWriteAheadLogSyncIntervalInMillis() {
+    return writeAheadLogSyncIntervalInMillis;
+  }
+
+  public void setWriteAheadLogSyncIntervalInMillis(int writeAheadLogSyncIntervalInMillis) {
+    this.writeAheadLogSyncIntervalInMillis = writeAheadLogSyncIntervalInMillis;
+  }
+
 }
@@ -20,6 +20,11 @@ public class ActivityInMemoryFactory extends ActivityPersistenceFactory {
     return null;
   }
 
+  @Override
+  public ActivityWriteAheadLog getWriteAheadLog() {
+    return null;
+  }
+
   @Override
   public ActivityPrimitivesStorage getActivivityPrimitivesStorage(String fieldName) {
     return null;
@@ -40,5 +45,12 @@ public class ActivityInMemoryFactory extends ActivityPersistenceFactory {
     public void updateTime(int currentTime) {
       this.currentTime = currentTime;
     }
+
+    public int[][] readTimeHits() {
+      return null;
+    }
+
+    public void writeTimeHits(int[][] timeHits) {
+    }
   }
 }
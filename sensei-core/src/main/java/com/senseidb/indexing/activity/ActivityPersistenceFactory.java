@@ -1,9 +1,17 @@
 package com.senseidb.indexing.activity;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
 
 import com.senseidb.indexing.activity.primitives.ActivityPrimitivesStorage;
 
@@ -11,6 +19,7 @@ public class ActivityPersistenceFactory {
   private static ThreadLocal<ActivityPersistenceFactory> overrideForCurrentThread = new ThreadLocal<ActivityPersistenceFactory>();
 
   private Metadata metadata;
+  private ActivityWriteAheadLog writeAheadLog;
   private final String indexDirPath;
 
   private final ActivityConfig activityConfig;
@@ -70,12 +79,16 @@ public class ActivityPersistenceFactory {
       throw new RuntimeException(e);
     }
     ret.aggregatesFile = aggregatesFile;
+    ret.timeHitsFile = new File(indexDirPath, fieldName + ".timehits");
     return ret;
   }
 
   public static class AggregatesMetadata {
+    private static final Logger logger = Logger.getLogger(AggregatesMetadata.class);
+    private static final int TIME_HITS_MAGIC = 0x54484831;
     protected int lastUpdatedTime;
     protected File aggregatesFile;
+    protected File timeHitsFile;
 
     protected AggregatesMetadata() {
 
@@ -94,6 +107,62 @@ public class ActivityPersistenceFactory {
       return lastUpdatedTime;
     }
 
+    /**
+     * @return the times, indexes and values of the persisted time hits, null if there are none
+     *         or they can't be read
+     */
+    public int[][] readTimeHits() {
+      if (!timeHitsFile.exists()) {
+        return null;
+      }
+      DataInputStream inputStream = null;
+      try {
+        inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(timeHitsFile)));
+        if (inputStream.readInt() != TIME_HITS_MAGIC) {
+          return null;
+        }
+        int[][] ret = new int[3][inputStream.readInt()];
+        for (int[] column : ret) {
+          for (int i = 0; i < column.length; i++) {
+            column[i] = inputStream.readInt();
+          }
+        }
+        return ret;
+      } catch (IOException e) {
+        logger.warn("Couldn't read the time hits from " + timeHitsFile, e);
+        return null;
+      } finally {
+        IOUtils.closeQuietly(inputStream);
+      }
+    }
+
+    /**
+     * Replaces the persisted time hits, the file is renamed into place so it is never torn
+     */
+    public void writeTimeHits(int[][] timeHits) {
+      File tmpFile = new File(timeHitsFile.getPath() + ".tmp");
+      DataOutputStream outputStream = null;
+      try {
+        outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        outputStream.writeInt(TIME_HITS_MAGIC);
+        outputStream.writeInt(timeHits[0].length);
+        for (int[] column : timeHits) {
+          for (int value : column) {
+            outputStream.writeInt(value);
+          }
+        }
+        outputStream.close();
+        outputStream = null;
+        if (!tmpFile.renameTo(timeHitsFile)) {
+          FileUtils.copyFile(tmpFile, timeHitsFile);
+          FileUtils.deleteQuietly(tmpFile);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      } finally {
+        IOUtils.closeQuietly(outputStream);
+      }
+    }
   }
 
   public Metadata getMetadata() {
@@ -103,6 +172,18 @@ public class ActivityPersistenceFactory {
     return metadata;
   }
 
+  /**
+   * @return the log shared by all the activity fields of the index, null if the updates are not
+   *         logged
+   */
+  public synchronized ActivityWriteAheadLog getWriteAheadLog() {
+    if (writeAheadLog == null && activityConfig.isWriteAheadLog()) {
+      writeAheadLog = new ActivityWriteAheadLog(new File(indexDirPath, "wal"),
+          activityConfig.getWriteAheadLogSyncIntervalInMillis());
+    }
+    return writeAheadLog;
+  }
+
   public static void setOverrideForCurrentThread(ActivityPersistenceFactory overrideForCurrentThread) {
     ActivityPersistenceFactory.overrideForCurrentThread.set(overrideForCurrentThread);
   }
@@ -14,6 +14,12 @@ public interface ActivityValues {
    */
   public boolean update(int index, Object value);
 
+  /**
+   * Grows the underlying storage, so the index can be updated without reallocation
+   * @param index
+   */
+  public void ensureCapacity(int index);
+
   /**
    * Deletes the corresponding element
    * @param index
@@ -0,0 +1,520 @@
+package com.senseidb.indexing.activity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import com.senseidb.indexing.activity.CompositeActivityStorage.Update;
+import com.senseidb.indexing.activity.primitives.ActivityPrimitivesStorage;
+import com.senseidb.metrics.MetricsConstants;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Append only log of the activity updates, shared by all the activity fields of the index.
+ *
+ * Every change that is added to an update batch is also appended to the log. Appends only go to
+ * memory; a background thread writes them to the current segment and fsyncs it every
+ * syncIntervalInMillis, so many updates share one fsync and at most one interval of updates is
+ * lost on a crash.
+ *
+ * Records are absolute values for an array index, so replaying them is idempotent. A flush of
+ * the activity values is a checkpoint: the log is rolled to a new segment before the batches are
+ * swapped and the older segments are deleted once the batches and the metadata are persisted. On
+ * startup the remaining segments are replayed into the storage files before they are loaded.
+ */
+public class ActivityWriteAheadLog {
+  private static final Logger logger = Logger.getLogger(ActivityWriteAheadLog.class);
+  /**
+   * Name of the uid to array index mapping, which is logged like an activity field
+   */
+  public static final String INDEXES_FIELD = "activity.indexes";
+  private static final String SEGMENT_PREFIX = "activity.wal.";
+  private static final byte FIELD_RECORD = 1;
+  private static final byte UPDATE_RECORD = 2;
+  private static final byte VERSION_RECORD = 3;
+  private static final int REPLAY_BATCH_SIZE = 50000;
+
+  private static Timer commitTimer = null;
+  private static Meter bytesMeter = null;
+  static {
+    commitTimer = Metrics.newTimer(new MetricName(MetricsConstants.Domain, "timer",
+        "wal-commit-time", "activity"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+    bytesMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter",
+        "wal-bytes", "activity"), "bytes", TimeUnit.SECONDS);
+  }
+
+  private final File dir;
+  private final long syncIntervalInMillis;
+  private final List<String> fieldNames = new ArrayList<String>();
+  private final List<Integer> fieldWidths = new ArrayList<Integer>();
+  private final Object ioLock = new Object();
+
+  // guarded by this
+  private ByteArrayOutputStream pending = new ByteArrayOutputStream(64 * 1024);
+  private DataOutputStream pendingOut = new DataOutputStream(pending);
+  private List<Chunk> sealed = new ArrayList<Chunk>();
+  private long segment = -1;
+  private String lastVersion;
+
+  // guarded by ioLock
+  private FileChannel channel;
+  private long channelSegment = -1;
+  private long deletedBefore = -1;
+
+  private volatile boolean closed = false;
+  private Thread syncThread;
+
+  public ActivityWriteAheadLog(File dir, long syncIntervalInMillis) {
+    this.dir = dir;
+    this.syncIntervalInMillis = syncIntervalInMillis;
+  }
+
+  /**
+   * Replays the segments left by the previous run into the storage files and the metadata. Must
+   * be called before the storages are opened.
+   */
+  public void replay(ActivityPersistenceFactory activityPersistenceFactory, Metadata metadata,
+      Comparator<String> versionComparator) {
+    long[] segments = listSegments();
+    if (segments.length == 0) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+    Map<String, List<AtomicFieldUpdate>> fieldUpdates = new HashMap<String, List<AtomicFieldUpdate>>();
+    List<Update> indexUpdates = new ArrayList<Update>();
+    ActivityStorages storages = new ActivityStorages(activityPersistenceFactory);
+    String version = null;
+    int count = 0;
+    int records = 0;
+    try {
+      for (long id : segments) {
+        List<String> names = new ArrayList<String>();
+        List<Integer> widths = new ArrayList<Integer>();
+        for (byte[] frame : readFrames(segmentFile(id))) {
+          DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+          while (in.available() > 0) {
+            byte type = in.readByte();
+            if (type == FIELD_RECORD) {
+              int fieldId = in.readShort();
+              String name = in.readUTF();
+              int width = in.readByte();
+              while (names.size() <= fieldId) {
+                names.add(null);
+                widths.add(0);
+              }
+              names.set(fieldId, name);
+              widths.set(fieldId, width);
+            } else if (type == UPDATE_RECORD) {
+              int fieldId = in.readShort();
+              int index = in.readInt();
+              String name = names.get(fieldId);
+              records++;
+              if (INDEXES_FIELD.equals(name)) {
+                indexUpdates.add(new Update(index, in.readLong()));
+                count = Math.max(count, index + 1);
+                if (indexUpdates.size() >= REPLAY_BATCH_SIZE) {
+                  storages.flushIndexes(indexUpdates);
+                }
+              } else {
+                AtomicFieldUpdate update = widths.get(fieldId) == 8 ? AtomicFieldUpdate.valueOf(
+                  index, in.readLong()) : AtomicFieldUpdate.valueOf(index, in.readInt());
+                List<AtomicFieldUpdate> updates = fieldUpdates.get(name);
+                if (updates == null) {
+                  updates = new ArrayList<AtomicFieldUpdate>();
+                  fieldUpdates.put(name, updates);
+                }
+                updates.add(update);
+                if (updates.size() >= REPLAY_BATCH_SIZE) {
+                  storages.flush(name, updates);
+                }
+              }
+            } else if (type == VERSION_RECORD) {
+              String recordVersion = in.readUTF();
+              if (version == null || versionComparator.compare(version, recordVersion) < 0) {
+                version = recordVersion;
+              }
+            } else {
+              throw new IOException("Unknown record type " + type + " in " + segmentFile(id));
+            }
+          }
+        }
+      }
+      storages.flushIndexes(indexUpdates);
+      for (Map.Entry<String, List<AtomicFieldUpdate>> entry : fieldUpdates.entrySet()) {
+        storages.flush(entry.getKey(), entry.getValue());
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      storages.close();
+    }
+    metadata.init();
+    if (version != null) {
+      if (metadata.version != null && versionComparator.compare(metadata.version, version) > 0) {
+        version = metadata.version;
+      }
+      metadata.update(version, Math.max(metadata.count, count));
+    }
+    logger.info("Replayed " + records + " activity updates from " + segments.length
+        + " log segments in " + (System.currentTimeMillis() - start) + "ms, version = " + version);
+  }
+
+  /**
+   * Starts a new segment after the existing ones and the background commits. The existing
+   * segments are kept until the first checkpoint, replaying them again is harmless.
+   */
+  public synchronized void open() {
+    dir.mkdirs();
+    long[] segments = listSegments();
+    segment = segments.length == 0 ? 0 : segments[segments.length - 1] + 1;
+    writeFieldTable();
+    syncThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!closed) {
+          try {
+            Thread.sleep(syncIntervalInMillis);
+          } catch (InterruptedException e) {
+            continue;
+          }
+          try {
+            commit();
+          } catch (Exception e) {
+            logger.error("Failed to commit the activity log", e);
+          }
+        }
+      }
+    }, "activity-wal-sync");
+    syncThread.setDaemon(true);
+    syncThread.start();
+  }
+
+  /**
+   * @return the id the field is logged with
+   */
+  public synchronized int register(String fieldName, int widthInBytes) {
+    int fieldId = fieldNames.indexOf(fieldName);
+    if (fieldId < 0) {
+      fieldId = fieldNames.size();
+      fieldNames.add(fieldName);
+      fieldWidths.add(widthInBytes);
+      if (segment >= 0) {
+        writeField(fieldId);
+      }
+    }
+    return fieldId;
+  }
+
+  public synchronized void append(int fieldId, AtomicFieldUpdate update) {
+    try {
+      pendingOut.writeByte(UPDATE_RECORD);
+      pendingOut.writeShort(fieldId);
+      pendingOut.writeInt(update.index);
+      if (update.getFieldSizeInBytes() == 8) {
+        pendingOut.writeLong(update.getBits());
+      } else {
+        pendingOut.writeInt((int) update.getBits());
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public synchronized void append(int fieldId, Update update) {
+    try {
+      pendingOut.writeByte(UPDATE_RECORD);
+      pendingOut.writeShort(fieldId);
+      pendingOut.writeInt(update.index);
+      pendingOut.writeLong(update.value);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public synchronized void appendVersion(String version) {
+    if (version == null || version.equals(lastVersion)) {
+      return;
+    }
+    lastVersion = version;
+    try {
+      pendingOut.writeByte(VERSION_RECORD);
+      pendingOut.writeUTF(version);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Starts a new segment. Does no IO, so it can be called while updates are blocked.
+   * @return the id of the new segment, everything appended before belongs to older segments
+   */
+  public synchronized long roll() {
+    sealed.add(new Chunk(segment, pending.toByteArray()));
+    pending.reset();
+    segment++;
+    lastVersion = null;
+    writeFieldTable();
+    return segment;
+  }
+
+  /**
+   * Deletes the segments older than the given one, their updates are persisted by a checkpoint.
+   */
+  public void deleteSegmentsBefore(long segmentId) {
+    synchronized (ioLock) {
+      // older appends still in memory must not recreate a deleted segment
+      commit();
+      deletedBefore = Math.max(deletedBefore, segmentId);
+      for (long id : listSegments()) {
+        if (id < segmentId && !segmentFile(id).delete()) {
+          logger.warn("Failed to delete " + segmentFile(id));
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes everything appended so far and fsyncs it.
+   */
+  public void commit() {
+    synchronized (ioLock) {
+      final List<Chunk> chunks;
+      synchronized (this) {
+        chunks = sealed;
+        sealed = new ArrayList<Chunk>();
+        if (pending.size() > 0) {
+          chunks.add(new Chunk(segment, pending.toByteArray()));
+          pending.reset();
+        }
+      }
+      if (chunks.isEmpty()) {
+        return;
+      }
+      try {
+        commitTimer.time(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (Chunk chunk : chunks) {
+              if (chunk.segment < deletedBefore || chunk.data.length == 0) {
+                continue;
+              }
+              if (chunk.segment != channelSegment) {
+                openChannel(chunk.segment);
+              }
+              writeFrame(chunk.data);
+            }
+            if (channel != null) {
+              channel.force(false);
+            }
+            return null;
+          }
+        });
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  public void close() {
+    closed = true;
+    if (syncThread != null) {
+      syncThread.interrupt();
+    }
+    synchronized (ioLock) {
+      commit();
+      closeChannel();
+    }
+  }
+
+  private void openChannel(long segmentId) throws IOException {
+    closeChannel();
+    channel = new RandomAccessFile(segmentFile(segmentId), "rw").getChannel();
+    channel.position(channel.size());
+    channelSegment = segmentId;
+  }
+
+  private void closeChannel() {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.force(false);
+      channel.close();
+    } catch (IOException e) {
+      logger.error("Failed to close the activity log segment " + channelSegment, e);
+    }
+    channel = null;
+    channelSegment = -1;
+  }
+
+  /**
+   * Frames are length and checksum prefixed, a torn frame at the end of a segment is ignored on
+   * replay.
+   */
+  private void writeFrame(byte[] data) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    ByteBuffer frame = ByteBuffer.allocate(data.length + 8);
+    frame.putInt(data.length);
+    frame.putInt((int) crc.getValue());
+    frame.put(data);
+    frame.flip();
+    while (frame.hasRemaining()) {
+      channel.write(frame);
+    }
+    bytesMeter.mark(data.length + 8);
+  }
+
+  private static List<byte[]> readFrames(File file) throws IOException {
+    List<byte[]> frames = new ArrayList<byte[]>();
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      while (true) {
+        byte[] data;
+        int checksum;
+        try {
+          int length = in.readInt();
+          checksum = in.readInt();
+          if (length < 0 || length > file.length()) {
+            break;
+          }
+          data = new byte[length];
+          in.readFully(data);
+        } catch (EOFException e) {
+          break;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if ((int) crc.getValue() != checksum) {
+          logger.warn("Ignoring the corrupted tail of " + file);
+          break;
+        }
+        frames.add(data);
+      }
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+    return frames;
+  }
+
+  private void writeFieldTable() {
+    for (int i = 0; i < fieldNames.size(); i++) {
+      writeField(i);
+    }
+  }
+
+  private void writeField(int fieldId) {
+    try {
+      pendingOut.writeByte(FIELD_RECORD);
+      pendingOut.writeShort(fieldId);
+      pendingOut.writeUTF(fieldNames.get(fieldId));
+      pendingOut.writeByte(fieldWidths.get(fieldId));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private File segmentFile(long segmentId) {
+    return new File(dir, SEGMENT_PREFIX + segmentId);
+  }
+
+  private long[] listSegments() {
+    String[] names = dir.list();
+    if (names == null) {
+      return new long[0];
+    }
+    long[] ret = new long[names.length];
+    int size = 0;
+    for (String name : names) {
+      if (name.startsWith(SEGMENT_PREFIX)) {
+        try {
+          ret[size++] = Long.parseLong(name.substring(SEGMENT_PREFIX.length()));
+        } catch (NumberFormatException e) {
+          logger.warn("Unexpected file in the activity log directory: " + name);
+        }
+      }
+    }
+    ret = Arrays.copyOf(ret, size);
+    Arrays.sort(ret);
+    return ret;
+  }
+
+  private static class Chunk {
+    final long segment;
+    final byte[] data;
+
+    Chunk(long segment, byte[] data) {
+      this.segment = segment;
+      this.data = data;
+    }
+  }
+
+  /**
+   * Storages opened for the replay only
+   */
+  private static class ActivityStorages {
+    private final ActivityPersistenceFactory activityPersistenceFactory;
+    private final Map<String, ActivityPrimitivesStorage> storages = new HashMap<String, ActivityPrimitivesStorage>();
+    private CompositeActivityStorage compositeStorage;
+
+    ActivityStorages(ActivityPersistenceFactory activityPersistenceFactory) {
+      this.activityPersistenceFactory = activityPersistenceFactory;
+    }
+
+    void flush(String fieldName, List<AtomicFieldUpdate> updates) {
+      if (updates.isEmpty()) {
+        return;
+      }
+      ActivityPrimitivesStorage storage = storages.get(fieldName);
+      if (storage == null) {
+        storage = activityPersistenceFactory.getActivivityPrimitivesStorage(fieldName);
+        storages.put(fieldName, storage);
+      }
+      storage.flush(updates);
+      updates.clear();
+    }
+
+    void flushIndexes(List<Update> updates) {
+      if (updates.isEmpty()) {
+        return;
+      }
+      if (compositeStorage == null) {
+        compositeStorage = activityPersistenceFactory.getCompositeStorage();
+      }
+      compositeStorage.flush(updates);
+      updates.clear();
+    }
+
+    void close() {
+      for (ActivityPrimitivesStorage storage : storages.values()) {
+        storage.close();
+      }
+      if (compositeStorage != null) {
+        compositeStorage.close();
+      }
+    }
+  }
+}
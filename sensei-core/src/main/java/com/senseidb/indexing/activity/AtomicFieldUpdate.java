@@ -13,6 +13,11 @@ public abstract class AtomicFieldUpdate {
 
   public abstract void update(RandomAccessFile storedFile, int offset);
 
+  /**
+   * @return the raw bits of the value, in the low bytes for 4 bytes values
+   */
+  public abstract long getBits();
+
   public static class IntFieldUpdate extends AtomicFieldUpdate {
     public int value;
 
@@ -21,6 +26,11 @@ public abstract class AtomicFieldUpdate {
       return 4;
     }
 
+    @Override
+    public long getBits() {
+      return value;
+    }
+
     @Override
     public void update(MappedByteBuffer mappedByteBuffer, int offset) {
       mappedByteBuffer.putInt(offset, value);
@@ -45,6 +55,11 @@ public abstract class AtomicFieldUpdate {
       return 8;
     }
 
+    @Override
+    public long getBits() {
+      return value;
+    }
+
     @Override
     public void update(MappedByteBuffer mappedByteBuffer, int offset) {
       mappedByteBuffer.putLong(offset, value);
@@ -90,6 +105,11 @@ public abstract class AtomicFieldUpdate {
       return 4;
     }
 
+    @Override
+    public long getBits() {
+      return Float.floatToRawIntBits(value);
+    }
+
     @Override
     public void update(MappedByteBuffer mappedByteBuffer, int offset) {
       mappedByteBuffer.putFloat(offset, value);
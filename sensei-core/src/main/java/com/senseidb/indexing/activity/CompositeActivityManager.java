@@ -21,6 +21,7 @@ import proj.zoie.api.IndexReaderFactory;
 import com.browseengine.bobo.api.BoboSegmentReader;
 import com.browseengine.bobo.facets.FacetHandler;
 import com.senseidb.conf.SenseiConfParams;
+import com.senseidb.conf.SenseiFacetHandlerBuilder;
 import com.senseidb.conf.SenseiSchema;
 import com.senseidb.conf.SenseiSchema.FacetDefinition;
 import com.senseidb.conf.SenseiSchema.FieldDefinition;
@@ -45,7 +46,7 @@ public class CompositeActivityManager implements PluggableSearchEngine {
   private BaseActivityFilter activityFilter;
   private ShardingStrategy shardingStrategy;
   private SenseiCore senseiCore;
-  private PurgeUnusedActivitiesJob purgeUnusedActivitiesJob;
+  private volatile PurgeUnusedActivitiesJob purgeUnusedActivitiesJob;
   private final Map<String, Set<String>> columnToFacetMapping = new HashMap<String, Set<String>>();
   private ActivityPersistenceFactory activityPersistenceFactory;
   private int shardNumber;
@@ -184,6 +185,11 @@ public class CompositeActivityManager implements PluggableSearchEngine {
       int previousIndex = activityValues.getIndexByUID(uid);
       int index = activityValues.update(uid, version, activityFilteredResult.getActivityValues());
       if (index >= 0 && previousIndex < 0 && onlyActivityUpdate) {
+        // there might be no Zoie document for the uid
+        PurgeUnusedActivitiesJob purgeJob = purgeUnusedActivitiesJob;
+        if (purgeJob != null) {
+          purgeJob.addSuspects(uid);
+        }
         int shard = shardingStrategy.caculateShard(shardNumber, event);
         updateExistingBoboIndexes(shard, uid, index, activityFilteredResult.getActivityValues()
             .keySet());
@@ -281,10 +287,10 @@ public class CompositeActivityManager implements PluggableSearchEngine {
         zoieSystems.add(senseiCore.getIndexReaderFactory(partition));
       }
     }
-    int purgeJobFrequencyInMinutes = activityPersistenceFactory.getActivityConfig()
-        .getPurgeJobFrequencyInMinutes();
+    ActivityConfig activityConfig = activityPersistenceFactory.getActivityConfig();
     purgeUnusedActivitiesJob = new PurgeUnusedActivitiesJob(activityValues, senseiCore,
-        purgeJobFrequencyInMinutes * 60 * 1000);
+        activityConfig.getPurgeJobFrequencyInMinutes() * 60 * 1000L,
+        activityConfig.getPurgeJobTickInSeconds() * 1000L, activityConfig.getPurgeJobChunkSize());
     purgeUnusedActivitiesJob.start();
 
   }
@@ -331,6 +337,7 @@ public class CompositeActivityManager implements PluggableSearchEngine {
         continue;
       }
       ActivityValues activityValues = getActivityValues().getActivityValuesMap().get(facet.column);
+      List<String> predefinedRanges = SenseiFacetHandlerBuilder.buildPredefinedRanges(facet.params);
 
       if ("aggregated-range".equals(facet.type)) {
         if (!(activityValues instanceof TimeAggregatedActivityValues)) {
@@ -341,14 +348,14 @@ public class CompositeActivityManager implements PluggableSearchEngine {
         for (String time : facet.params.get("time")) {
           String name = facet.name + ":" + time;
           ret.add(ActivityRangeFacetHandler.valueOf(name, facet.column, this,
-            aggregatedActivityValues.getValuesMap().get(time)));
+            aggregatedActivityValues.getValuesMap().get(time), predefinedRanges));
         }
         ret.add(ActivityRangeFacetHandler.valueOf(facet.name, facet.column, this,
-          aggregatedActivityValues.getDefaultIntValues()));
+          aggregatedActivityValues.getDefaultIntValues(), predefinedRanges));
       } else if ("range".equals(facet.type)) {
 
         ret.add(ActivityRangeFacetHandler.valueOf(facet.name, facet.column, this,
-          getActivityValues().getActivityValues(facet.column)));
+          getActivityValues().getActivityValues(facet.column), predefinedRanges));
 
       } else {
         throw new UnsupportedOperationException("The facet " + facet.name
@@ -130,29 +130,27 @@ public class CompositeActivityStorage {
             }
             activityValues
                 .init((int) (metadata.count * ActivityPrimitivesStorage.INIT_GROWTH_RATIO));
-            synchronized (activityValues.deletedIndexes) {
-              if (metadata.count * BYTES_IN_LONG > fileLength) {
-                logger.warn("The composite activityIndex is corrupted. The file contains "
-                    + (fileLength / BYTES_IN_LONG) + " records, while metadata a bigger number "
-                    + metadata.count);
-                logger.warn("trimming the metadata");
-                int newCount = (int) (fileLength / BYTES_IN_LONG);
-                metadata.update(metadata.version, newCount);
+            if (metadata.count * BYTES_IN_LONG > fileLength) {
+              logger.warn("The composite activityIndex is corrupted. The file contains "
+                  + (fileLength / BYTES_IN_LONG) + " records, while metadata a bigger number "
+                  + metadata.count);
+              logger.warn("trimming the metadata");
+              int newCount = (int) (fileLength / BYTES_IN_LONG);
+              metadata.update(metadata.version, newCount);
+            }
+            for (int i = 0; i < metadata.count; i++) {
+              long value;
+              if (activateMemoryMappedBuffers) {
+                value = buffer.getLong(i * BYTES_IN_LONG);
+              } else {
+                storedFile.seek(i * BYTES_IN_LONG);
+                value = storedFile.readLong();
               }
-              for (int i = 0; i < metadata.count; i++) {
-                long value;
-                if (activateMemoryMappedBuffers) {
-                  value = buffer.getLong(i * BYTES_IN_LONG);
-                } else {
-                  storedFile.seek(i * BYTES_IN_LONG);
-                  value = storedFile.readLong();
-                }
-
-                if (value != Long.MIN_VALUE) {
-                  activityValues.uidToArrayIndex.put(value, i);
-                } else {
-                  activityValues.deletedIndexes.add(i);
-                }
+
+              if (value != Long.MIN_VALUE) {
+                activityValues.uidToArrayIndex.put(value, i);
+              } else {
+                activityValues.deletedIndexes.push(i);
               }
             }
             activityValues.indexSize = new AtomicInteger(activityValues.uidToArrayIndex.size()
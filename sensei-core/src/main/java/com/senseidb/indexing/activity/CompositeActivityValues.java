@@ -1,10 +1,5 @@
 package com.senseidb.indexing.activity;
 
-import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntList;
-import it.unimi.dsi.fastutil.longs.Long2IntMap;
-import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
-
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -17,6 +12,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -45,6 +41,10 @@ import com.yammer.metrics.core.MetricName;
  * uid to index mapping, and change the activity values for the activity fields
  * found in the document
  *
+ * Updates of different uids run concurrently: they share the read side of the global lock and
+ * only serialize on the stripe of their uid. The write side of the global lock is taken to swap
+ * the pending batches on flush and to grow the activity values arrays.
+ *
  */
 public class CompositeActivityValues {
 
@@ -56,18 +56,24 @@ public class CompositeActivityValues {
 
   protected Map<String, ActivityValues> valuesMap = new ConcurrentHashMap<String, ActivityValues>();
   protected volatile String lastVersion = "";
-  protected Long2IntMap uidToArrayIndex = new Long2IntOpenHashMap();
+  protected UidIndexMap uidToArrayIndex = new UidIndexMap(DEFAULT_INITIAL_CAPACITY);
   protected ReadWriteLock globalLock = new ReentrantReadWriteLock();
   protected ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-  protected IntList deletedIndexes = new IntArrayList(2000);
+  protected IndexStack deletedIndexes = new IndexStack();
   protected CompositeActivityStorage activityStorage;
   protected UpdateBatch<Update> updateBatch;
   protected RecentlyAddedUids recentlyAddedUids;
   protected AtomicInteger indexSize = new AtomicInteger(0);
   protected volatile Metadata metadata;
+  /**
+   * Every activity values array can hold indexes below this one without growing.
+   */
+  private volatile int capacity = 0;
 
   private volatile boolean closed;
   private ActivityConfig activityConfig;
+  protected ActivityWriteAheadLog writeAheadLog;
+  private int indexesFieldId;
 
   protected static Counter reclaimedDocumentsCounter;
   protected static Counter currentDocumentsCounter;
@@ -75,6 +81,8 @@ public class CompositeActivityValues {
   protected static Counter insertedDocumentsCounter;
   protected static Counter totalUpdatesCounter;
   protected static Counter versionRejectionCounter;
+  private static final AtomicReferenceFieldUpdater<CompositeActivityValues, String> lastVersionUpdater = AtomicReferenceFieldUpdater
+      .newUpdater(CompositeActivityValues.class, String.class, "lastVersion");
   static {
     reclaimedDocumentsCounter = Metrics.newCounter(new MetricName(CompositeActivityValues.class,
         "reclaimedActivityDocs"));
@@ -100,12 +108,16 @@ public class CompositeActivityValues {
   }
 
   public void init(int count) {
-    uidToArrayIndex = new Long2IntOpenHashMap(count);
+    uidToArrayIndex = new UidIndexMap(count);
   }
 
   public void updateVersion(String version) {
-    if (versionComparator.compare(lastVersion, version) < 0) {
-      lastVersion = version;
+    while (true) {
+      String current = lastVersion;
+      if (versionComparator.compare(current, version) >= 0
+          || lastVersionUpdater.compareAndSet(this, current, version)) {
+        return;
+      }
     }
   }
 
@@ -118,36 +130,58 @@ public class CompositeActivityValues {
       return -1;
     }
     if (map.isEmpty()) {
-      lastVersion = version;
+      updateVersion(version);
+      if (writeAheadLog != null) {
+        writeAheadLog.appendVersion(version);
+      }
       return -1;
     }
+    totalUpdatesCounter.inc();
     int index = -1;
-
-    Lock writeLock = globalLock.writeLock();
+    // index allocated for the uid, but not yet usable by every activity values array
+    int newIndex = -1;
     boolean needToFlush = false;
-    try {
-      writeLock.lock();
-      totalUpdatesCounter.inc();
-      if (uidToArrayIndex.containsKey(uid)) {
+    Lock readLock = globalLock.readLock();
+    Lock uidLock = uidToArrayIndex.getLock(uid).writeLock();
+    while (index < 0) {
+      readLock.lock();
+      uidLock.lock();
+      try {
         index = uidToArrayIndex.get(uid);
-      } else {
-        insertedDocumentsCounter.inc();
-        synchronized (deletedIndexes) {
-          if (deletedIndexes.size() > 0) {
-            index = deletedIndexes.removeInt(deletedIndexes.size() - 1);
-          } else {
-            index = indexSize.getAndIncrement();
+        if (index < 0) {
+          if (newIndex < 0) {
+            newIndex = deletedIndexes.pop();
+            if (newIndex < 0) {
+              newIndex = indexSize.getAndIncrement();
+            }
+          }
+          if (newIndex < capacity) {
+            index = newIndex;
+            newIndex = -1;
+            insertedDocumentsCounter.inc();
+            uidToArrayIndex.put(uid, index);
+            recentlyAddedUids.add(uid);
+            needToFlush = addIndexUpdate(updateBatch, new Update(index, uid));
           }
         }
-        uidToArrayIndex.put(uid, index);
-        recentlyAddedUids.add(uid);
-        needToFlush = updateBatch.addFieldUpdate(new Update(index, uid));
+        if (index >= 0) {
+          needToFlush = updateActivities(map, index) || needToFlush;
+          updateVersion(version);
+          if (writeAheadLog != null) {
+            writeAheadLog.appendVersion(version);
+          }
+        }
+      } finally {
+        uidLock.unlock();
+        readLock.unlock();
       }
-      boolean currentUpdate = updateActivities(map, index);
-      needToFlush = needToFlush || currentUpdate;
-      lastVersion = version;
-    } finally {
-      writeLock.unlock();
+      if (index < 0) {
+        ensureCapacity(newIndex);
+      }
+    }
+    if (newIndex >= 0) {
+      // the uid was inserted concurrently, the allocated index is free again
+      deletedIndexes.push(newIndex);
     }
     if (needToFlush) {
       flush();
@@ -155,6 +189,40 @@ public class CompositeActivityValues {
     return index;
   }
 
+  /**
+   * Adds the change to the batch and then to the log, so a change logged before a checkpoint is
+   * always persisted by it.
+   */
+  private boolean addIndexUpdate(UpdateBatch<Update> batch, Update update) {
+    boolean needToFlush = batch.addFieldUpdate(update);
+    if (writeAheadLog != null) {
+      writeAheadLog.append(indexesFieldId, update);
+    }
+    return needToFlush;
+  }
+
+  /**
+   * Grows all activity values arrays, so they can hold the index. Growth copies the arrays and
+   * must not race with updates, hence the write lock.
+   */
+  private void ensureCapacity(int index) {
+    Lock writeLock = globalLock.writeLock();
+    writeLock.lock();
+    try {
+      if (index < capacity) {
+        return;
+      }
+      int newCapacity = Math.max(index + 1,
+        Math.max(capacity + (capacity >> 1), DEFAULT_INITIAL_CAPACITY));
+      for (ActivityValues activityValues : valuesMap.values()) {
+        activityValues.ensureCapacity(newCapacity - 1);
+      }
+      capacity = newCapacity;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
   public ActivityPrimitiveValues getActivityValues(String fieldName) {
     ActivityValues activityValues = valuesMap.get(fieldName);
     if (activityValues == null) {
@@ -201,21 +269,24 @@ public class CompositeActivityValues {
       if (uid == Long.MIN_VALUE) {
         continue;
       }
-      Lock writeLock = globalLock.writeLock();
+      Lock readLock = globalLock.readLock();
+      Lock uidLock = uidToArrayIndex.getLock(uid).writeLock();
+      readLock.lock();
+      uidLock.lock();
       try {
-        writeLock.lock();
-        if (!uidToArrayIndex.containsKey(uid)) {
+        int index = uidToArrayIndex.remove(uid);
+        if (index < 0) {
           continue;
         }
         deletedDocumentsCounter.inc();
-        int index = uidToArrayIndex.remove(uid);
         for (ActivityValues activityValues : valuesMap.values()) {
           activityValues.delete(index);
         }
         needToFlush = needToFlush
-            | pendingDeletes.addFieldUpdate(new Update(index, Long.MIN_VALUE));
+            | addIndexUpdate(pendingDeletes, new Update(index, Long.MIN_VALUE));
       } finally {
-        writeLock.unlock();
+        uidLock.unlock();
+        readLock.unlock();
       }
     }
     if (needToFlush) {
@@ -296,16 +367,22 @@ public class CompositeActivityValues {
     if (activityStorage == null) {
       return;
     }
-    final boolean flushDeletesNeeded = pendingDeletes.updates.size() > 0;
-    final boolean flushUpdatesNeeded = updateBatch.updates.size() > 0;
-
-    final UpdateBatch<Update> batchToDelete = flushDeletesNeeded ? pendingDeletes : null;
-    final UpdateBatch<Update> batchToPersist = flushUpdatesNeeded ? updateBatch : null;
-
     Lock writeLock = globalLock.writeLock();
     String version = null;
+    final List<Runnable> underlyingFlushes = new ArrayList<Runnable>(valuesMap.size());
+    final boolean flushDeletesNeeded;
+    final boolean flushUpdatesNeeded;
+    final UpdateBatch<Update> batchToDelete;
+    final UpdateBatch<Update> batchToPersist;
+    final long checkpointSegment;
     try {
       writeLock.lock();
+      // the log is rolled first: whatever it logged before is in the batches swapped below
+      checkpointSegment = writeAheadLog != null ? writeAheadLog.roll() : -1;
+      flushDeletesNeeded = pendingDeletes.updates.size() > 0;
+      flushUpdatesNeeded = updateBatch.updates.size() > 0;
+      batchToDelete = flushDeletesNeeded ? pendingDeletes : null;
+      batchToPersist = flushUpdatesNeeded ? updateBatch : null;
       if (flushDeletesNeeded) {
         pendingDeletes = new UpdateBatch<Update>(activityConfig);
       }
@@ -313,15 +390,15 @@ public class CompositeActivityValues {
         updateBatch = new UpdateBatch<CompositeActivityStorage.Update>(activityConfig);
       }
       version = lastVersion;
+      // no update may add to the batches being flushed
+      for (ActivityValues activityValues : valuesMap.values()) {
+        underlyingFlushes.add(activityValues.prepareFlush());
+      }
     } finally {
       writeLock.unlock();
     }
 
     final String finalVersion = version;
-    final List<Runnable> underlyingFlushes = new ArrayList<Runnable>(valuesMap.size());
-    for (ActivityValues activityValues : valuesMap.values()) {
-      underlyingFlushes.add(activityValues.prepareFlush());
-    }
     executor.submit(new Runnable() {
       @Override
       public void run() {
@@ -331,31 +408,31 @@ public class CompositeActivityValues {
         if (flushDeletesNeeded) {
           Collections.reverse(batchToDelete.updates);
           activityStorage.flush(batchToDelete.updates);
-          synchronized (deletedIndexes) {
-            for (Update update : batchToDelete.updates) {
-              deletedIndexes.add(update.index);
-            }
+          for (Update update : batchToDelete.updates) {
+            deletedIndexes.push(update.index);
           }
         }
         int count = 0;
-        globalLock.readLock().lock();
+        // exclusive, so both sizes are taken at the same point of the update stream
+        globalLock.writeLock().lock();
         try {
-          synchronized (deletedIndexes) {
-            count = uidToArrayIndex.size() + deletedIndexes.size();
-            currentDocumentsCounter.clear();
-            currentDocumentsCounter.inc(uidToArrayIndex.size());
-            reclaimedDocumentsCounter.clear();
-            reclaimedDocumentsCounter.inc(deletedIndexes.size());
-            logger.info("Flush compositeActivityValues. Documents = " + uidToArrayIndex.size()
-                + ", Deletes = " + deletedIndexes.size());
-          }
+          count = uidToArrayIndex.size() + deletedIndexes.size();
+          currentDocumentsCounter.clear();
+          currentDocumentsCounter.inc(uidToArrayIndex.size());
+          reclaimedDocumentsCounter.clear();
+          reclaimedDocumentsCounter.inc(deletedIndexes.size());
+          logger.info("Flush compositeActivityValues. Documents = " + uidToArrayIndex.size()
+              + ", Deletes = " + deletedIndexes.size());
         } finally {
-          globalLock.readLock().unlock();
+          globalLock.writeLock().unlock();
         }
         for (Runnable runnable : underlyingFlushes) {
           runnable.run();
         }
         metadata.update(finalVersion, count);
+        if (writeAheadLog != null) {
+          writeAheadLog.deleteSegmentsBefore(checkpointSegment);
+        }
       }
     });
 
@@ -370,6 +447,9 @@ public class CompositeActivityValues {
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
     }
+    if (writeAheadLog != null) {
+      writeAheadLog.close();
+    }
     if (activityStorage != null) {
       activityStorage.close();
     }
@@ -387,17 +467,7 @@ public class CompositeActivityValues {
         continue;
       }
 
-      Lock lock = globalLock.readLock();
-      try {
-        lock.lock();
-        if (!uidToArrayIndex.containsKey(uid)) {
-          ret[i] = -1;
-        } else {
-          ret[i] = uidToArrayIndex.get(uid);
-        }
-      } finally {
-        lock.unlock();
-      }
+      ret[i] = uidToArrayIndex.get(uid);
     }
     return ret;
   }
@@ -407,64 +477,50 @@ public class CompositeActivityValues {
   }
 
   public int getIntValueByUID(long uid, String column) {
-    Lock lock = globalLock.readLock();
-    try {
-      lock.lock();
-      if (!uidToArrayIndex.containsKey(uid)) {
-        return Integer.MIN_VALUE;
-      }
-      return ((ActivityIntValues) getActivityValues(column)).getIntValue(uidToArrayIndex.get(uid));
-    } finally {
-      lock.unlock();
+    int index = uidToArrayIndex.get(uid);
+    if (index < 0) {
+      return Integer.MIN_VALUE;
     }
+    return ((ActivityIntValues) getActivityValues(column)).getIntValue(index);
   }
 
+
   public float getFloatValueByUID(long uid, String column) {
-    Lock lock = globalLock.readLock();
-    try {
-      lock.lock();
-      if (!uidToArrayIndex.containsKey(uid)) {
-        return -Float.MAX_VALUE;
-      }
-      return ((ActivityFloatValues) getActivityValues(column)).getFloatValue(uidToArrayIndex
-          .get(uid));
-    } finally {
-      lock.unlock();
+    int index = uidToArrayIndex.get(uid);
+    if (index < 0) {
+      return -Float.MAX_VALUE;
     }
+    return ((ActivityFloatValues) getActivityValues(column)).getFloatValue(index);
   }
 
+
   public long getLongValueByUID(long uid, String column) {
-    Lock lock = globalLock.readLock();
-    try {
-      lock.lock();
-      if (!uidToArrayIndex.containsKey(uid)) {
-        return Long.MIN_VALUE;
-      }
-      return ((ActivityLongValues) getActivityValues(column))
-          .getLongValue(uidToArrayIndex.get(uid));
-    } finally {
-      lock.unlock();
+    int index = uidToArrayIndex.get(uid);
+    if (index < 0) {
+      return Long.MIN_VALUE;
     }
+    return ((ActivityLongValues) getActivityValues(column)).getLongValue(index);
   }
 
+
   public int getIndexByUID(long uid) {
-    Lock lock = globalLock.readLock();
-    try {
-      lock.lock();
-      if (!uidToArrayIndex.containsKey(uid)) {
-        return -1;
-      }
-      return uidToArrayIndex.get(uid);
-    } finally {
-      lock.unlock();
-    }
+    return uidToArrayIndex.get(uid);
   }
 
+
   public static CompositeActivityValues createCompositeValues(
       ActivityPersistenceFactory activityPersistenceFactory,
       Collection<SenseiSchema.FieldDefinition> fieldNames,
       List<TimeAggregateInfo> aggregatedActivities, Comparator<String> versionComparator) {
     CompositeActivityValues ret = new CompositeActivityValues();
+    ret.writeAheadLog = activityPersistenceFactory.getWriteAheadLog();
+    if (ret.writeAheadLog != null) {
+      // before any storage is opened, they are loaded with the replayed updates
+      ret.writeAheadLog.replay(activityPersistenceFactory, activityPersistenceFactory.getMetadata(),
+        versionComparator);
+      ret.writeAheadLog.open();
+      ret.indexesFieldId = ret.writeAheadLog.register(ActivityWriteAheadLog.INDEXES_FIELD, 8);
+    }
     CompositeActivityStorage persistentColumnManager = activityPersistenceFactory
         .getCompositeStorage();
 
@@ -0,0 +1,49 @@
+package com.senseidb.indexing.activity;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock free LIFO stack of free array indexes (Treiber stack). Nodes are never reused, so the
+ * compare and set can not suffer from ABA.
+ */
+public class IndexStack {
+  private final AtomicReference<Node> head = new AtomicReference<Node>();
+  private final AtomicInteger size = new AtomicInteger(0);
+
+  public void push(int index) {
+    Node node = new Node(index);
+    do {
+      node.next = head.get();
+    } while (!head.compareAndSet(node.next, node));
+    size.incrementAndGet();
+  }
+
+  /**
+   * @return the most recently pushed index, or -1 if the stack is empty
+   */
+  public int pop() {
+    Node node;
+    do {
+      node = head.get();
+      if (node == null) {
+        return -1;
+      }
+    } while (!head.compareAndSet(node, node.next));
+    size.decrementAndGet();
+    return node.index;
+  }
+
+  public int size() {
+    return size.get();
+  }
+
+  private static class Node {
+    final int index;
+    Node next;
+
+    Node(int index) {
+      this.index = index;
+    }
+  }
+}
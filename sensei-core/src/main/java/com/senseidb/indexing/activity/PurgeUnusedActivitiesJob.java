@@ -1,6 +1,8 @@
 package com.senseidb.indexing.activity;
 
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
@@ -28,11 +30,29 @@ import com.senseidb.plugin.SenseiPluginRegistry;
 import com.senseidb.search.node.SenseiCore;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.Timer;
 
+/**
+ * Purges the activity values of the uids, that are not present in any of the Zoie readers of the
+ * node. The job runs in ticks, every tick checks at most a chunk of uids, so it never holds the
+ * readers or the uid locks for long:
+ * <ul>
+ * <li>first the suspects, the uids that got the activity values without a Zoie document. They
+ * are checked only after they waited for at least a tick, so that the document has a chance to
+ * get indexed</li>
+ * <li>then the next part of the sweep over all the uids, one uid map stripe at a time. The sweep
+ * starts at most once per the purge frequency and catches the uids, that lost their documents
+ * without the delete event</li>
+ * </ul>
+ * The Zoie deletes and the purged segments are still applied directly through the
+ * {@link com.senseidb.indexing.activity.deletion.DeletionListener}
+ */
 public class PurgeUnusedActivitiesJob implements Runnable, PurgeUnusedActivitiesJobMBean {
   private final static Logger logger = Logger.getLogger(PurgeUnusedActivitiesJob.class);
+  public static final int DEFAULT_CHUNK_SIZE = 100000;
+  public static final long DEFAULT_TICK_IN_MILLIS = 10000L;
 
   private final CompositeActivityValues compositeActivityValues;
   private static Timer timer = Metrics.newTimer(new MetricName(PurgeUnusedActivitiesJob.class,
@@ -41,25 +61,65 @@ public class PurgeUnusedActivitiesJob implements Runnable, PurgeUnusedActivities
       PurgeUnusedActivitiesJob.class, "foundActivitiesToPurge"));
   private static Counter recentUidsSavedFromPurge = Metrics.newCounter(new MetricName(
       PurgeUnusedActivitiesJob.class, "recentUidsSavedFromPurge"));
+  private static Counter checkedUids = Metrics.newCounter(new MetricName(
+      PurgeUnusedActivitiesJob.class, "checkedUids"));
+  private static Counter droppedSuspects = Metrics.newCounter(new MetricName(
+      PurgeUnusedActivitiesJob.class, "droppedSuspects"));
+  private static Counter completedSweeps = Metrics.newCounter(new MetricName(
+      PurgeUnusedActivitiesJob.class, "completedSweeps"));
 
   protected ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
 
   private final long frequencyInMillis;
+  private final long tickInMillis;
+  private final int chunkSize;
 
   private final SenseiCore senseiCore;
 
+  // the suspects of the current tick, the previous tick and the ones ready to be checked
+  private LongOpenHashSet newSuspects = new LongOpenHashSet();
+  private LongOpenHashSet agingSuspects = new LongOpenHashSet();
+  private final LongArrayList suspects = new LongArrayList();
+  private int suspectsPosition = 0;
+
+  // the sweep is only advanced by the ticks
+  private long lastSweepStart = 0;
+  private int sweepStripe = -1;
+  private volatile long[] sweepKeys = new long[0];
+  private volatile int sweepPosition = 0;
+
   public PurgeUnusedActivitiesJob(CompositeActivityValues compositeActivityValues,
       SenseiCore senseiCore, long frequencyInMillis) {
+    this(compositeActivityValues, senseiCore, frequencyInMillis, DEFAULT_TICK_IN_MILLIS,
+        DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * @param frequencyInMillis how often the sweep over all the uids starts, the job is disabled if it's not positive
+   * @param tickInMillis how often the next chunk of uids is checked
+   * @param chunkSize the maximum number of uids checked per tick
+   */
+  public PurgeUnusedActivitiesJob(CompositeActivityValues compositeActivityValues,
+      SenseiCore senseiCore, long frequencyInMillis, long tickInMillis, int chunkSize) {
     this.compositeActivityValues = compositeActivityValues;
     this.senseiCore = senseiCore;
     this.frequencyInMillis = frequencyInMillis;
-
+    this.tickInMillis = Math.min(tickInMillis, frequencyInMillis);
+    this.chunkSize = chunkSize;
+    lastSweepStart = System.currentTimeMillis();
   }
 
   public void start() {
     if (frequencyInMillis > 0) {
-      executorService.scheduleAtFixedRate(this, frequencyInMillis, frequencyInMillis,
+      executorService.scheduleAtFixedRate(this, tickInMillis, tickInMillis,
         TimeUnit.MILLISECONDS);
+      Metrics.newGauge(new MetricName(PurgeUnusedActivitiesJob.class, "backlog"),
+        new Gauge<Long>() {
+          @Override
+          public Long value() {
+            return getBacklog();
+          }
+        });
     }
     MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
     ObjectName name;
@@ -78,13 +138,41 @@ public class PurgeUnusedActivitiesJob implements Runnable, PurgeUnusedActivities
     executorService.shutdown();
   }
 
+  /**
+   * Marks the uids, that got the activity values without a Zoie document, to be checked in one of
+   * the next ticks. If there are too many suspects already, the uids are left to the sweep
+   */
+  public synchronized void addSuspects(long... uids) {
+    if (frequencyInMillis <= 0) {
+      return;
+    }
+    for (long uid : uids) {
+      if (newSuspects.size() + agingSuspects.size() + suspects.size() - suspectsPosition >= 10 * chunkSize) {
+        droppedSuspects.inc();
+        continue;
+      }
+      newSuspects.add(uid);
+    }
+  }
+
+  /**
+   * @return the number of the suspects and the uids in the current sweep stripe, that are not checked yet
+   */
+  public long getBacklog() {
+    long[] keys = sweepKeys;
+    long ret = Math.max(0, keys.length - sweepPosition);
+    synchronized (this) {
+      return ret + newSuspects.size() + agingSuspects.size() + suspects.size() - suspectsPosition;
+    }
+  }
+
   @Override
   public void run() {
     try {
       timer.time(new Callable<Integer>() {
         @Override
         public Integer call() throws Exception {
-          return purgeUnusedActivityIndexes();
+          return purgeNextChunk();
         }
       });
     } catch (Exception e) {
@@ -92,22 +180,101 @@ public class PurgeUnusedActivitiesJob implements Runnable, PurgeUnusedActivities
     }
   }
 
+  /**
+   * Checks the suspects, that waited for at least a tick, and then continues the sweep, at most
+   * chunkSize uids in total. Only the suspects are taken under the lock, so the indexing never
+   * waits for the check
+   * @return the number of purged uids
+   */
+  public int purgeNextChunk() {
+    long[] uids = pollSuspects();
+    int purged = uids.length > 0 ? purge(uids) : 0;
+    int budget = chunkSize - uids.length;
+    if (sweepStripe < 0 && System.currentTimeMillis() - lastSweepStart >= frequencyInMillis) {
+      lastSweepStart = System.currentTimeMillis();
+      sweepStripe = 0;
+      sweepPosition = 0;
+      sweepKeys = compositeActivityValues.uidToArrayIndex.keys(sweepStripe);
+    }
+    while (budget > 0 && sweepStripe >= 0) {
+      if (sweepPosition == sweepKeys.length) {
+        sweepStripe++;
+        sweepPosition = 0;
+        if (sweepStripe == compositeActivityValues.uidToArrayIndex.getStripeCount()) {
+          sweepStripe = -1;
+          sweepKeys = new long[0];
+          completedSweeps.inc();
+          break;
+        }
+        sweepKeys = compositeActivityValues.uidToArrayIndex.keys(sweepStripe);
+        continue;
+      }
+      int length = Math.min(budget, sweepKeys.length - sweepPosition);
+      uids = new long[length];
+      System.arraycopy(sweepKeys, sweepPosition, uids, 0, length);
+      sweepPosition += length;
+      purged += purge(uids);
+      budget -= length;
+    }
+    if (purged > 0) {
+      logger.info("purgeUnusedActivitiesJob purged " + purged + " activities");
+    }
+    return purged;
+  }
+
+  /**
+   * Ages the suspects by a tick
+   * @return at most chunkSize suspects, that waited for at least a tick
+   */
+  private synchronized long[] pollSuspects() {
+    LongIterator iterator = agingSuspects.iterator();
+    while (iterator.hasNext()) {
+      suspects.add(iterator.nextLong());
+    }
+    agingSuspects = newSuspects;
+    newSuspects = new LongOpenHashSet();
+    int length = Math.min(chunkSize, suspects.size() - suspectsPosition);
+    long[] ret = new long[length];
+    suspects.getElements(suspectsPosition, ret, 0, length);
+    suspectsPosition += length;
+    if (suspectsPosition == suspects.size()) {
+      suspects.clear();
+      suspectsPosition = 0;
+    }
+    return ret;
+  }
+
+  /**
+   * Checks all the uids at once, a chunk at a time
+   */
   @Override
   public int purgeUnusedActivityIndexes() {
     logger.info("Starting the purgeUnusedActivitiesJob");
-    long[] keys;
-    try {
-      compositeActivityValues.globalLock.readLock().lock();
-      keys = new long[compositeActivityValues.uidToArrayIndex.size()];
-      LongIterator iterator = compositeActivityValues.uidToArrayIndex.keySet().iterator();
-      int i = 0;
-      while (iterator.hasNext()) {
-        keys[i++] = iterator.nextLong();
+    int purged = 0;
+    UidIndexMap uidToArrayIndex = compositeActivityValues.uidToArrayIndex;
+    for (int stripe = 0; stripe < uidToArrayIndex.getStripeCount(); stripe++) {
+      long[] keys = uidToArrayIndex.keys(stripe);
+      for (int offset = 0; offset < keys.length; offset += chunkSize) {
+        int length = Math.min(chunkSize, keys.length - offset);
+        long[] uids = new long[length];
+        System.arraycopy(keys, offset, uids, 0, length);
+        purged += purge(uids);
       }
-    } finally {
-      compositeActivityValues.globalLock.readLock().unlock();
     }
-    int bitSetLength = keys.length;
+    completedSweeps.inc();
+    if (purged == 0) {
+      logger.info("purgeUnusedActivitiesJob found  no activities to purge");
+    } else {
+      logger.info("purgeUnusedActivitiesJob found  " + purged + " activities to purge");
+    }
+    return purged;
+  }
+
+  /**
+   * Deletes the activity values of the given uids, that are neither in the Zoie readers nor added recently
+   * @return the number of purged uids
+   */
+  private int purge(long[] keys) {
     BitSet foundSet = new BitSet(keys.length);
     for (int partition : senseiCore.getPartitions()) {
       IndexReaderFactory<BoboSegmentReader> zoie = senseiCore
@@ -128,18 +295,20 @@ public class PurgeUnusedActivitiesJob implements Runnable, PurgeUnusedActivities
         }
       } catch (IOException e) {
         logger.error(e.getMessage(), e);
+        // don't purge anything the reader might have contained
+        return 0;
       } finally {
         if (indexReaders != null) {
           zoie.returnIndexReaders(indexReaders);
         }
       }
     }
+    checkedUids.inc(keys.length);
     int recovered = compositeActivityValues.recentlyAddedUids.markRecentAsFoundInBitSet(keys,
-      foundSet, bitSetLength);
+      foundSet, keys.length);
     recentUidsSavedFromPurge.inc(recovered);
     int found = foundSet.cardinality();
     if (found == keys.length) {
-      logger.info("purgeUnusedActivitiesJob found  no activities to purge");
       return 0;
     }
     long[] notFound = new long[keys.length - found];
@@ -151,7 +320,6 @@ public class PurgeUnusedActivitiesJob implements Runnable, PurgeUnusedActivities
       }
     }
     compositeActivityValues.delete(notFound);
-    logger.info("purgeUnusedActivitiesJob found  " + notFound.length + " activities to purge");
     foundActivitiesToPurge.inc(notFound.length);
     return notFound.length;
   }
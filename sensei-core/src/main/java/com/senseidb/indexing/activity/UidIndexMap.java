@@ -0,0 +1,138 @@
+package com.senseidb.indexing.activity;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Concurrent uid to array index map. Uids are spread over a fixed number of stripes, each one a
+ * primitive hash map guarded by its own read write lock, so updates of different documents
+ * rarely contend and lookups only block on writers of the same stripe.
+ */
+public class UidIndexMap {
+  private static final int STRIPES = 64;
+
+  private final Long2IntOpenHashMap[] maps = new Long2IntOpenHashMap[STRIPES];
+  private final ReadWriteLock[] locks = new ReadWriteLock[STRIPES];
+  private final AtomicInteger size = new AtomicInteger(0);
+
+  public UidIndexMap(int expectedSize) {
+    for (int i = 0; i < STRIPES; i++) {
+      maps[i] = new Long2IntOpenHashMap(Math.max(16, expectedSize / STRIPES));
+      maps[i].defaultReturnValue(-1);
+      locks[i] = new ReentrantReadWriteLock();
+    }
+  }
+
+  private static int stripe(long uid) {
+    long hash = uid * 0x9E3779B97F4A7C15L;
+    return (int) (hash >>> 58);
+  }
+
+  /**
+   * @return the lock of the stripe the uid belongs to. Holding its write lock makes a lookup
+   *         followed by a put or remove of the uid atomic.
+   */
+  public ReadWriteLock getLock(long uid) {
+    return locks[stripe(uid)];
+  }
+
+  /**
+   * @return the index of the uid, or -1 if it is not mapped
+   */
+  public int get(long uid) {
+    int stripe = stripe(uid);
+    locks[stripe].readLock().lock();
+    try {
+      return maps[stripe].get(uid);
+    } finally {
+      locks[stripe].readLock().unlock();
+    }
+  }
+
+  public boolean containsKey(long uid) {
+    return get(uid) >= 0;
+  }
+
+  /**
+   * @return the previous index of the uid, or -1
+   */
+  public int put(long uid, int index) {
+    int stripe = stripe(uid);
+    locks[stripe].writeLock().lock();
+    try {
+      int previous = maps[stripe].put(uid, index);
+      if (previous < 0) {
+        size.incrementAndGet();
+      }
+      return previous;
+    } finally {
+      locks[stripe].writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the removed index of the uid, or -1
+   */
+  public int remove(long uid) {
+    int stripe = stripe(uid);
+    locks[stripe].writeLock().lock();
+    try {
+      int previous = maps[stripe].remove(uid);
+      if (previous >= 0) {
+        size.decrementAndGet();
+      }
+      return previous;
+    } finally {
+      locks[stripe].writeLock().unlock();
+    }
+  }
+
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * @return a snapshot of the mapped uids, consistent per stripe
+   */
+  public long[] keys() {
+    long[][] stripeKeys = new long[STRIPES][];
+    int count = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      stripeKeys[i] = keys(i);
+      count += stripeKeys[i].length;
+    }
+    long[] keys = new long[count];
+    int offset = 0;
+    for (long[] stripe : stripeKeys) {
+      System.arraycopy(stripe, 0, keys, offset, stripe.length);
+      offset += stripe.length;
+    }
+    return keys;
+  }
+
+  /**
+   * @return a snapshot of the uids mapped in one stripe, only that stripe is locked while copying
+   */
+  public long[] keys(int stripe) {
+    locks[stripe].readLock().lock();
+    try {
+      long[] ret = new long[maps[stripe].size()];
+      LongIterator iterator = maps[stripe].keySet().iterator();
+      int j = 0;
+      while (iterator.hasNext()) {
+        ret[j++] = iterator.nextLong();
+      }
+      return ret;
+    } finally {
+      locks[stripe].readLock().unlock();
+    }
+  }
+
+  public int getStripeCount() {
+    return STRIPES;
+  }
+}
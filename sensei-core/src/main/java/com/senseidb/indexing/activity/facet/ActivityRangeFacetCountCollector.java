@@ -0,0 +1,246 @@
+package com.senseidb.indexing.activity.facet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.FacetIterator;
+import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.api.FacetSpec.FacetSortSpec;
+import com.browseengine.bobo.facets.FacetCountCollector;
+import com.browseengine.bobo.facets.data.TermStringList;
+import com.browseengine.bobo.facets.impl.DefaultFacetIterator;
+import com.browseengine.bobo.util.BigIntArray;
+import com.browseengine.bobo.util.BigSegmentedArray;
+import com.senseidb.indexing.activity.primitives.ActivityFloatValues;
+import com.senseidb.indexing.activity.primitives.ActivityIntValues;
+import com.senseidb.indexing.activity.primitives.ActivityLongValues;
+import com.senseidb.indexing.activity.primitives.ActivityPrimitiveValues;
+
+/**
+ * Counts the documents of a segment, that fall into the predefined ranges of an activity column.
+ * The values are read through the segment's docId to activity array index mapping, a document
+ * without the activity value is not counted. The ranges might overlap, the document is counted in
+ * every range it falls into
+ */
+public abstract class ActivityRangeFacetCountCollector implements FacetCountCollector {
+  private final String name;
+  private final FacetSpec facetSpec;
+  private final List<String> ranges;
+  protected final int[] indexes;
+  protected final int[] counts;
+
+  protected ActivityRangeFacetCountCollector(String name, int[] indexes, List<String> ranges,
+      FacetSpec facetSpec) {
+    this.name = name;
+    this.indexes = indexes;
+    this.ranges = ranges;
+    this.facetSpec = facetSpec;
+    counts = new int[ranges.size()];
+  }
+
+  public static ActivityRangeFacetCountCollector valueOf(String name,
+      ActivityPrimitiveValues activityValues, int[] indexes, List<String> ranges,
+      FacetSpec facetSpec) {
+    if (activityValues instanceof ActivityIntValues) {
+      return new IntRangeFacetCountCollector(name, (ActivityIntValues) activityValues, indexes,
+          ranges, facetSpec);
+    }
+    if (activityValues instanceof ActivityLongValues) {
+      return new LongRangeFacetCountCollector(name, (ActivityLongValues) activityValues, indexes,
+          ranges, facetSpec);
+    }
+    if (activityValues instanceof ActivityFloatValues) {
+      return new FloatRangeFacetCountCollector(name, (ActivityFloatValues) activityValues,
+          indexes, ranges, facetSpec);
+    }
+    throw new UnsupportedOperationException("Unsupported activity values "
+        + activityValues.getClass());
+  }
+
+  @Override
+  public void collectAll() {
+    for (int docId = 0; docId < indexes.length; docId++) {
+      collect(docId);
+    }
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public BigSegmentedArray getCountDistribution() {
+    BigIntArray ret = new BigIntArray(counts.length);
+    for (int i = 0; i < counts.length; i++) {
+      ret.add(i, counts[i]);
+    }
+    return ret;
+  }
+
+  @Override
+  public BrowseFacet getFacet(String value) {
+    int i = ranges.indexOf(value);
+    return i >= 0 ? new BrowseFacet(value, counts[i]) : null;
+  }
+
+  @Override
+  public int getFacetHitsCount(Object value) {
+    int i = ranges.indexOf(value);
+    return i >= 0 ? counts[i] : 0;
+  }
+
+  @Override
+  public List<BrowseFacet> getFacets() {
+    int minHitCount = facetSpec != null ? facetSpec.getMinHitCount() : 1;
+    List<BrowseFacet> ret = new ArrayList<BrowseFacet>(counts.length);
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] >= minHitCount) {
+        ret.add(new BrowseFacet(ranges.get(i), counts[i]));
+      }
+    }
+    if (facetSpec == null) {
+      return ret;
+    }
+    if (facetSpec.getOrderBy() == FacetSortSpec.OrderHitsDesc) {
+      // the sort is stable, the ranges with the same count keep their configured order
+      Collections.sort(ret, new Comparator<BrowseFacet>() {
+        @Override
+        public int compare(BrowseFacet f1, BrowseFacet f2) {
+          return f2.getFacetValueHitCount() - f1.getFacetValueHitCount();
+        }
+      });
+    } else if (facetSpec.getOrderBy() == FacetSortSpec.OrderByCustom
+        && facetSpec.getCustomComparatorFactory() != null) {
+      Collections.sort(ret, facetSpec.getCustomComparatorFactory().newComparator());
+    }
+    if (facetSpec.getMaxCount() > 0 && ret.size() > facetSpec.getMaxCount()) {
+      return new ArrayList<BrowseFacet>(ret.subList(0, facetSpec.getMaxCount()));
+    }
+    return ret;
+  }
+
+  @Override
+  public FacetIterator iterator() {
+    TermStringList termList = new TermStringList(ranges.size());
+    for (String range : ranges) {
+      termList.add(range);
+    }
+    return new DefaultFacetIterator(termList, getCountDistribution(), counts.length, true);
+  }
+
+  @Override
+  public void close() {
+  }
+
+  private static class IntRangeFacetCountCollector extends ActivityRangeFacetCountCollector {
+    private final ActivityIntValues values;
+    private final int[] starts;
+    private final int[] ends;
+
+    public IntRangeFacetCountCollector(String name, ActivityIntValues values, int[] indexes,
+        List<String> ranges, FacetSpec facetSpec) {
+      super(name, indexes, ranges, facetSpec);
+      this.values = values;
+      starts = new int[ranges.size()];
+      ends = new int[ranges.size()];
+      for (int i = 0; i < starts.length; i++) {
+        int[] range = ActivityRangeFacetHandler.parseIntRange(ranges.get(i));
+        starts[i] = range[0];
+        ends[i] = range[1];
+      }
+    }
+
+    @Override
+    public void collect(int docId) {
+      int index = indexes[docId];
+      if (index == -1) {
+        return;
+      }
+      int value = values.getIntValue(index);
+      if (value == Integer.MIN_VALUE) {
+        return;
+      }
+      for (int i = 0; i < starts.length; i++) {
+        if (value >= starts[i] && value < ends[i]) {
+          counts[i]++;
+        }
+      }
+    }
+  }
+
+  private static class LongRangeFacetCountCollector extends ActivityRangeFacetCountCollector {
+    private final ActivityLongValues values;
+    private final long[] starts;
+    private final long[] ends;
+
+    public LongRangeFacetCountCollector(String name, ActivityLongValues values, int[] indexes,
+        List<String> ranges, FacetSpec facetSpec) {
+      super(name, indexes, ranges, facetSpec);
+      this.values = values;
+      starts = new long[ranges.size()];
+      ends = new long[ranges.size()];
+      for (int i = 0; i < starts.length; i++) {
+        long[] range = ActivityRangeFacetHandler.parseLongRange(ranges.get(i));
+        starts[i] = range[0];
+        ends[i] = range[1];
+      }
+    }
+
+    @Override
+    public void collect(int docId) {
+      int index = indexes[docId];
+      if (index == -1) {
+        return;
+      }
+      long value = values.getLongValue(index);
+      if (value == Long.MIN_VALUE) {
+        return;
+      }
+      for (int i = 0; i < starts.length; i++) {
+        if (value >= starts[i] && value < ends[i]) {
+          counts[i]++;
+        }
+      }
+    }
+  }
+
+  private static class FloatRangeFacetCountCollector extends ActivityRangeFacetCountCollector {
+    private final ActivityFloatValues values;
+    private final float[] starts;
+    private final float[] ends;
+
+    public FloatRangeFacetCountCollector(String name, ActivityFloatValues values, int[] indexes,
+        List<String> ranges, FacetSpec facetSpec) {
+      super(name, indexes, ranges, facetSpec);
+      this.values = values;
+      starts = new float[ranges.size()];
+      ends = new float[ranges.size()];
+      for (int i = 0; i < starts.length; i++) {
+        float[] range = ActivityRangeFacetHandler.parseFloatRange(ranges.get(i));
+        starts[i] = range[0];
+        ends[i] = range[1];
+      }
+    }
+
+    @Override
+    public void collect(int docId) {
+      int index = indexes[docId];
+      if (index == -1) {
+        return;
+      }
+      float value = values.getFloatValue(index);
+      if (value == -Float.MAX_VALUE) {
+        return;
+      }
+      for (int i = 0; i < starts.length; i++) {
+        if (value >= starts[i] && value < ends[i]) {
+          counts[i]++;
+        }
+      }
+    }
+  }
+}
@@ -1,7 +1,9 @@
 package com.senseidb.indexing.activity.facet;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 
 import org.apache.lucene.index.AtomicReader;
@@ -15,6 +17,7 @@ import com.browseengine.bobo.api.BrowseSelection;
 import com.browseengine.bobo.api.FacetSpec;
 import com.browseengine.bobo.docidset.EmptyDocIdSet;
 import com.browseengine.bobo.docidset.RandomAccessDocIdSet;
+import com.browseengine.bobo.facets.FacetCountCollector;
 import com.browseengine.bobo.facets.FacetCountCollectorSource;
 import com.browseengine.bobo.facets.FacetHandler;
 import com.browseengine.bobo.facets.filter.FacetRangeFilter;
@@ -38,24 +41,43 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
   public static volatile boolean isSynchronized = false;
 
   private final ActivityPrimitiveValues activityValues;
+  private final List<String> predefinedRanges;
 
   protected final CompositeActivityManager compositeActivityManager;
 
   public ActivityRangeFacetHandler(String facetName, String fieldName,
       CompositeActivityManager compositeActivityManager, ActivityPrimitiveValues activityValues) {
+    this(facetName, fieldName, compositeActivityManager, activityValues, Collections
+        .<String> emptyList());
+  }
+
+  /**
+   * @param predefinedRanges the ranges the facets are counted for, eg [10 TO 100]
+   */
+  public ActivityRangeFacetHandler(String facetName, String fieldName,
+      CompositeActivityManager compositeActivityManager, ActivityPrimitiveValues activityValues,
+      List<String> predefinedRanges) {
     super(facetName, new HashSet<String>());
     this.compositeActivityManager = compositeActivityManager;
     this.activityValues = activityValues;
+    this.predefinedRanges = predefinedRanges;
   }
 
   public static FacetHandler<?> valueOf(String facetName, String fieldName,
       CompositeActivityManager compositeActivityManager, ActivityPrimitiveValues activityValues) {
+    return valueOf(facetName, fieldName, compositeActivityManager, activityValues,
+      Collections.<String> emptyList());
+  }
+
+  public static FacetHandler<?> valueOf(String facetName, String fieldName,
+      CompositeActivityManager compositeActivityManager, ActivityPrimitiveValues activityValues,
+      List<String> predefinedRanges) {
     if (isSynchronized) {
       return new SynchronizedActivityRangeFacetHandler(facetName, fieldName,
-          compositeActivityManager, activityValues);
+          compositeActivityManager, activityValues, predefinedRanges);
     }
     return new ActivityRangeFacetHandler(facetName, fieldName, compositeActivityManager,
-        activityValues);
+        activityValues, predefinedRanges);
 
   }
 
@@ -77,14 +99,14 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
         if (value == null || value.isEmpty()) {
           return EmptyDocIdSet.getInstance();
         }
-        final int[] intArray = activityValues instanceof ActivityIntValues ? ((ActivityIntValues) activityValues)
-            .getFieldValues() : null;
-        final long[] longArray = activityValues instanceof ActivityLongValues ? ((ActivityLongValues) activityValues)
-            .getFieldValues() : null;
-        final float[] floatArray = activityValues instanceof ActivityFloatValues ? ((ActivityFloatValues) activityValues)
-            .getFieldValues() : null;
-
-        if (intArray != null) {
+        final ActivityIntValues intValues = activityValues instanceof ActivityIntValues ? (ActivityIntValues) activityValues
+            : null;
+        final ActivityLongValues longValues = activityValues instanceof ActivityLongValues ? (ActivityLongValues) activityValues
+            : null;
+        final ActivityFloatValues floatValues = activityValues instanceof ActivityFloatValues ? (ActivityFloatValues) activityValues
+            : null;
+
+        if (intValues != null) {
           final int[] range = parseIntRange(value);
           final int startValue = range[0];
           final int endValue = range[1];
@@ -94,7 +116,7 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
           return new RandomAccessDocIdSet() {
             @Override
             public DocIdSetIterator iterator() throws IOException {
-              return new ActivityRangeIntFilterIterator(intArray, indexes, startValue, endValue);
+              return new ActivityRangeIntFilterIterator(intValues, indexes, startValue, endValue);
             }
 
             @Override
@@ -102,11 +124,11 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
               if (indexes[docId] == -1) {
                 return false;
               }
-              int val = intArray[indexes[docId]];
+              int val = intValues.getIntValue(indexes[docId]);
               return val >= startValue && val < endValue && val != Integer.MIN_VALUE;
             }
           };
-        } else if (longArray != null) {
+        } else if (longValues != null) {
           final long[] longRange = parseLongRange(value);
           final long startValue = longRange[0];
           final long endValue = longRange[1];
@@ -116,7 +138,7 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
           return new RandomAccessDocIdSet() {
             @Override
             public DocIdSetIterator iterator() throws IOException {
-              return new ActivityRangeLongFilterIterator(longArray, indexes, startValue, endValue);
+              return new ActivityRangeLongFilterIterator(longValues, indexes, startValue, endValue);
             }
 
             @Override
@@ -124,11 +146,11 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
               if (indexes[docId] == -1) {
                 return false;
               }
-              long val = longArray[indexes[docId]];
+              long val = longValues.getLongValue(indexes[docId]);
               return val >= startValue && val < endValue && val != Long.MIN_VALUE;
             }
           };
-        } else if (floatArray != null) {
+        } else if (floatValues != null) {
           float[] range = parseFloatRange(value);
           final float startValue = range[0];
           final float endValue = range[1];
@@ -138,7 +160,7 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
           return new RandomAccessDocIdSet() {
             @Override
             public DocIdSetIterator iterator() throws IOException {
-              return new ActivityRangeFloatFilterIterator(floatArray, indexes, startValue, endValue);
+              return new ActivityRangeFloatFilterIterator(floatValues, indexes, startValue, endValue);
             }
 
             @Override
@@ -146,7 +168,7 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
               if (indexes[docId] == -1) {
                 return false;
               }
-              float val = floatArray[indexes[docId]];
+              float val = floatValues.getFloatValue(indexes[docId]);
               return val >= startValue && val < endValue && val != -Float.MAX_VALUE;
             }
           };
@@ -157,8 +179,20 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
   }
 
   @Override
-  public FacetCountCollectorSource getFacetCountCollectorSource(BrowseSelection sel, FacetSpec fspec) {
-    throw new UnsupportedOperationException("Facets on activity columns are unsupported");
+  public FacetCountCollectorSource getFacetCountCollectorSource(BrowseSelection sel,
+      final FacetSpec fspec) {
+    if (predefinedRanges.isEmpty()) {
+      throw new UnsupportedOperationException("The activity facet " + _name
+          + " has no predefined ranges to count");
+    }
+    return new FacetCountCollectorSource() {
+      @Override
+      public FacetCountCollector getFacetCountCollector(BoboSegmentReader reader, int docBase) {
+        final int[] indexes = (int[]) reader.getFacetData(_name);
+        return ActivityRangeFacetCountCollector.valueOf(_name, activityValues, indexes,
+          predefinedRanges, fspec);
+      }
+    };
   }
 
   @Override
@@ -172,7 +206,7 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
     if (id < 0 || id >= facetData.length) {
       return Integer.MIN_VALUE;
     }
-    return facetData[id] != -1 ? ((ActivityIntValues) activityValues).fieldValues[facetData[id]]
+    return facetData[id] != -1 ? ((ActivityIntValues) activityValues).getIntValue(facetData[id])
         : Integer.MIN_VALUE;
   }
 
@@ -180,7 +214,7 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
     if (id < 0 || id >= facetData.length) {
       return Long.MIN_VALUE;
     }
-    return facetData[id] != -1 ? ((ActivityLongValues) activityValues).fieldValues[facetData[id]]
+    return facetData[id] != -1 ? ((ActivityLongValues) activityValues).getLongValue(facetData[id])
         : Long.MIN_VALUE;
   }
 
@@ -188,7 +222,7 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
     if (id < 0 || id >= facetData.length) {
       return -Float.MAX_VALUE;
     }
-    return facetData[id] != -1 ? ((ActivityFloatValues) activityValues).fieldValues[facetData[id]]
+    return facetData[id] != -1 ? ((ActivityFloatValues) activityValues).getFloatValue(facetData[id])
         : -Float.MAX_VALUE;
   }
 
@@ -208,67 +242,67 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
 
   @Override
   public DocComparatorSource getDocComparatorSource() {
-    final int[] intArray = activityValues instanceof ActivityIntValues ? ((ActivityIntValues) activityValues)
-        .getFieldValues() : null;
-    final long[] longArray = activityValues instanceof ActivityLongValues ? ((ActivityLongValues) activityValues)
-        .getFieldValues() : null;
-    final float[] floatArray = activityValues instanceof ActivityFloatValues ? ((ActivityFloatValues) activityValues)
-        .getFieldValues() : null;
-
-    if (intArray != null) return new DocComparatorSource() {
+    final ActivityIntValues intValues = activityValues instanceof ActivityIntValues ? (ActivityIntValues) activityValues
+        : null;
+    final ActivityLongValues longValues = activityValues instanceof ActivityLongValues ? (ActivityLongValues) activityValues
+        : null;
+    final ActivityFloatValues floatValues = activityValues instanceof ActivityFloatValues ? (ActivityFloatValues) activityValues
+        : null;
+
+    if (intValues != null) return new DocComparatorSource() {
       @Override
       public DocComparator getComparator(AtomicReader reader, int docbase) throws IOException {
         final int[] indexes = (int[]) ((BoboSegmentReader) reader).getFacetData(_name);
         return new DocComparator() {
           @Override
           public Comparable<Integer> value(ScoreDoc doc) {
-            return indexes[doc.doc] != -1 ? intArray[indexes[doc.doc]] : 0;
+            return indexes[doc.doc] != -1 ? intValues.getIntValue(indexes[doc.doc]) : 0;
           }
 
           @Override
           public int compare(ScoreDoc doc1, ScoreDoc doc2) {
-            int val1 = indexes[doc1.doc] != -1 ? intArray[indexes[doc1.doc]] : 0;
-            int val2 = indexes[doc2.doc] != -1 ? intArray[indexes[doc2.doc]] : 0;
+            int val1 = indexes[doc1.doc] != -1 ? intValues.getIntValue(indexes[doc1.doc]) : 0;
+            int val2 = indexes[doc2.doc] != -1 ? intValues.getIntValue(indexes[doc2.doc]) : 0;
             return (val1 < val2 ? -1 : (val1 == val2 ? 0 : 1));
           }
         };
       }
     };
 
-    if (longArray != null) return new DocComparatorSource() {
+    if (longValues != null) return new DocComparatorSource() {
       @Override
       public DocComparator getComparator(AtomicReader reader, int docbase) throws IOException {
         final int[] indexes = (int[]) ((BoboSegmentReader) reader).getFacetData(_name);
         return new DocComparator() {
           @Override
           public Comparable<Long> value(ScoreDoc doc) {
-            return indexes[doc.doc] != -1 ? longArray[indexes[doc.doc]] : 0;
+            return indexes[doc.doc] != -1 ? longValues.getLongValue(indexes[doc.doc]) : 0;
           }
 
           @Override
           public int compare(ScoreDoc doc1, ScoreDoc doc2) {
-            long val1 = indexes[doc1.doc] != -1 ? longArray[indexes[doc1.doc]] : 0;
-            long val2 = indexes[doc2.doc] != -1 ? longArray[indexes[doc2.doc]] : 0;
+            long val1 = indexes[doc1.doc] != -1 ? longValues.getLongValue(indexes[doc1.doc]) : 0;
+            long val2 = indexes[doc2.doc] != -1 ? longValues.getLongValue(indexes[doc2.doc]) : 0;
             return (val1 < val2 ? -1 : (val1 == val2 ? 0 : 1));
           }
         };
       }
     };
 
-    if (floatArray != null) return new DocComparatorSource() {
+    if (floatValues != null) return new DocComparatorSource() {
       @Override
       public DocComparator getComparator(AtomicReader reader, int docbase) throws IOException {
         final int[] indexes = (int[]) ((BoboSegmentReader) reader).getFacetData(_name);
         return new DocComparator() {
           @Override
           public Comparable<Float> value(ScoreDoc doc) {
-            return indexes[doc.doc] != -1 ? floatArray[indexes[doc.doc]] : 0;
+            return indexes[doc.doc] != -1 ? floatValues.getFloatValue(indexes[doc.doc]) : 0;
           }
 
           @Override
           public int compare(ScoreDoc doc1, ScoreDoc doc2) {
-            float val1 = indexes[doc1.doc] != -1 ? floatArray[indexes[doc1.doc]] : 0;
-            float val2 = indexes[doc2.doc] != -1 ? floatArray[indexes[doc2.doc]] : 0;
+            float val1 = indexes[doc1.doc] != -1 ? floatValues.getFloatValue(indexes[doc1.doc]) : 0;
+            float val2 = indexes[doc2.doc] != -1 ? floatValues.getFloatValue(indexes[doc2.doc]) : 0;
             return (val1 < val2 ? -1 : (val1 == val2 ? 0 : 1));
           }
         };
@@ -277,7 +311,7 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
     return null;
   }
 
-  private static int[] parseIntRange(String rangeString) {
+  static int[] parseIntRange(String rangeString) {
     String[] ranges = FacetRangeFilter.getRangeStrings(rangeString);
     String lower = ranges[0];
     String upper = ranges[1];
@@ -304,7 +338,7 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
     return new int[] { start, end };
   }
 
-  private static long[] parseLongRange(String rangeString) {
+  static long[] parseLongRange(String rangeString) {
     String[] ranges = FacetRangeFilter.getRangeStrings(rangeString);
     String lower = ranges[0];
     String upper = ranges[1];
@@ -331,7 +365,7 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
     return new long[] { start, end };
   }
 
-  private static float[] parseFloatRange(String rangeString) {
+  static float[] parseFloatRange(String rangeString) {
     String[] ranges = FacetRangeFilter.getRangeStrings(rangeString);
     String lower = ranges[0];
     String upper = ranges[1];
@@ -4,6 +4,8 @@ import java.io.IOException;
 
 import org.apache.lucene.search.DocIdSetIterator;
 
+import com.senseidb.indexing.activity.primitives.ActivityFloatValues;
+
 /**
  * Performs range iteration over activity fields
  * @author vzhabiuk
@@ -11,13 +13,14 @@ import org.apache.lucene.search.DocIdSetIterator;
  */
 public class ActivityRangeFloatFilterIterator extends DocIdSetIterator {
   private int _doc;
-  protected final float[] fieldValues;
+  protected final ActivityFloatValues fieldValues;
   private final float start;
   private final float end;
   private final int arrLength;
   private final int[] indexes;
 
-  public ActivityRangeFloatFilterIterator(float[] fieldValues, int[] indexes, float start, float end) {
+  public ActivityRangeFloatFilterIterator(ActivityFloatValues fieldValues, int[] indexes, float start,
+      float end) {
     this.fieldValues = fieldValues;
     this.start = start;
     this.end = end;
@@ -37,7 +40,7 @@ public class ActivityRangeFloatFilterIterator extends DocIdSetIterator {
       if (indexes[_doc] == -1) {
         continue;
       }
-      float value = fieldValues[indexes[_doc]];
+      float value = fieldValues.getFloatValue(indexes[_doc]);
       if (value >= start && value < end && value != -Float.MAX_VALUE) {
         return _doc;
       }
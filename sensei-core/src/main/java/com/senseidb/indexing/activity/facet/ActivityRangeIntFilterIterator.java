@@ -4,6 +4,8 @@ import java.io.IOException;
 
 import org.apache.lucene.search.DocIdSetIterator;
 
+import com.senseidb.indexing.activity.primitives.ActivityIntValues;
+
 /**
  * Performs range iteration over activity fields
  * @author vzhabiuk
@@ -11,13 +13,14 @@ import org.apache.lucene.search.DocIdSetIterator;
  */
 public class ActivityRangeIntFilterIterator extends DocIdSetIterator {
   private int _doc;
-  protected final int[] fieldValues;
+  protected final ActivityIntValues fieldValues;
   private final int start;
   private final int end;
   private final int arrLength;
   private final int[] indexes;
 
-  public ActivityRangeIntFilterIterator(int[] fieldValues, int[] indexes, int start, int end) {
+  public ActivityRangeIntFilterIterator(ActivityIntValues fieldValues, int[] indexes, int start,
+      int end) {
     this.fieldValues = fieldValues;
     this.start = start;
     this.end = end;
@@ -37,7 +40,7 @@ public class ActivityRangeIntFilterIterator extends DocIdSetIterator {
       if (indexes[_doc] == -1) {
         continue;
       }
-      int value = fieldValues[indexes[_doc]];
+      int value = fieldValues.getIntValue(indexes[_doc]);
       if (value >= start && value < end && value != Integer.MIN_VALUE) {
         return _doc;
       }
@@ -1,6 +1,7 @@
 package com.senseidb.indexing.activity.facet;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Properties;
 
 import org.apache.lucene.index.AtomicReader;
@@ -30,6 +31,13 @@ public class SynchronizedActivityRangeFacetHandler extends ActivityRangeFacetHan
     super(facetName, fieldName, compositeActivityManager, activityPrimitiveValues);
   }
 
+  public SynchronizedActivityRangeFacetHandler(String facetName, String fieldName,
+      CompositeActivityManager compositeActivityManager,
+      ActivityPrimitiveValues activityPrimitiveValues, List<String> predefinedRanges) {
+    super(facetName, fieldName, compositeActivityManager, activityPrimitiveValues,
+        predefinedRanges);
+  }
+
   @Override
   public int[] load(BoboSegmentReader reader) throws IOException {
     synchronized (GLOBAL_ACTIVITY_TEST_LOCK) {
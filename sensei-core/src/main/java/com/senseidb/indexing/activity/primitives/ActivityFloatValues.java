@@ -22,9 +22,12 @@ public class ActivityFloatValues extends ActivityPrimitiveValues {
    */
   @Override
   public boolean update(int index, Object value) {
-    ensureCapacity(index);
-    setValue(fieldValues, value, index);
-    return updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, fieldValues[index]));
+    if (!hasCapacity(index)) {
+      ensureCapacity(index);
+    }
+    float newValue = newValue(getFloatValue(index), value);
+    setFloatValue(index, newValue);
+    return addFieldUpdate(AtomicFieldUpdate.valueOf(index, newValue));
   }
 
   protected ActivityFloatValues() {
@@ -38,11 +41,20 @@ public class ActivityFloatValues extends ActivityPrimitiveValues {
     return fieldValues[index];
   }
 
-  private synchronized void ensureCapacity(int currentArraySize) {
+  protected void setFloatValue(int index, float value) {
+    fieldValues[index] = value;
+  }
+
+  protected boolean hasCapacity(int index) {
+    return fieldValues != null && fieldValues.length - index >= 2;
+  }
+
+  @Override
+  public synchronized void ensureCapacity(int index) {
     if (fieldValues == null || fieldValues.length == 0) {
       init(50000);
     }
-    if (fieldValues.length - currentArraySize < 2) {
+    while (fieldValues.length - index < 2) {
       int newSize = fieldValues.length < 10000000 ? fieldValues.length * 2
           : (int) (fieldValues.length * 1.5);
       float[] newFieldValues = new float[newSize];
@@ -54,20 +66,20 @@ public class ActivityFloatValues extends ActivityPrimitiveValues {
 
   /**
    * value might be int or long or String. +n, -n  operations are supported
-   * @param fieldValues
+   * @param currentValue
    * @param value
-   * @param index
+   * @return the value after the update
    */
-  private static void setValue(float[] fieldValues, Object value, int index) {
+  private static float newValue(float currentValue, Object value) {
     if (value == null) {
-      return;
+      return currentValue;
     }
     if (value instanceof Number) {
-      fieldValues[index] = ((Number) value).floatValue();
+      return ((Number) value).floatValue();
     } else if (value instanceof String) {
       String valStr = (String) value;
       if (valStr.isEmpty()) {
-        return;
+        return currentValue;
       }
       float number = 0;
       boolean delta = true;
@@ -81,15 +93,13 @@ public class ActivityFloatValues extends ActivityPrimitiveValues {
       }
       // parseFloat is successful
       // -Float.MAX_VALUE means not initialized
-      if (fieldValues[index] == -Float.MAX_VALUE) {
-        fieldValues[index] = number;
-        return;
+      if (currentValue == -Float.MAX_VALUE) {
+        return number;
       }
       if (delta) {
-        fieldValues[index] += number;
-      } else {
-        fieldValues[index] = number;
+        return currentValue + number;
       }
+      return number;
     } else {
       throw new UnsupportedOperationException("Only Number and String are supported");
     }
@@ -108,7 +118,7 @@ public class ActivityFloatValues extends ActivityPrimitiveValues {
     for (int i = 0; i < count; i++) {
       float value;
       value = buffer.getFloat(i * 4);
-      fieldValues[i] = value;
+      setFloatValue(i, value);
     }
   }
 
@@ -119,7 +129,7 @@ public class ActivityFloatValues extends ActivityPrimitiveValues {
       try {
         storedFile.seek(i * 4);
         value = storedFile.readFloat();
-        fieldValues[i] = value;
+        setFloatValue(i, value);
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
@@ -128,8 +138,8 @@ public class ActivityFloatValues extends ActivityPrimitiveValues {
 
   @Override
   public void delete(int index) {
-    fieldValues[index] = -Float.MAX_VALUE;
-    updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, fieldValues[index]));
+    setFloatValue(index, -Float.MAX_VALUE);
+    addFieldUpdate(AtomicFieldUpdate.valueOf(index, -Float.MAX_VALUE));
   }
 
   @Override
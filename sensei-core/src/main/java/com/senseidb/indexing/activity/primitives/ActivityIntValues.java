@@ -26,9 +26,12 @@ public class ActivityIntValues extends ActivityPrimitiveValues {
    */
   @Override
   public boolean update(int index, Object value) {
-    ensureCapacity(index);
-    setValue(fieldValues, value, index);
-    return updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, fieldValues[index]));
+    if (!hasCapacity(index)) {
+      ensureCapacity(index);
+    }
+    int newValue = newValue(getIntValue(index), value);
+    setIntValue(index, newValue);
+    return addFieldUpdate(AtomicFieldUpdate.valueOf(index, newValue));
   }
 
   protected ActivityIntValues() {
@@ -42,11 +45,20 @@ public class ActivityIntValues extends ActivityPrimitiveValues {
     return fieldValues[index];
   }
 
-  private synchronized void ensureCapacity(int currentArraySize) {
+  protected void setIntValue(int index, int value) {
+    fieldValues[index] = value;
+  }
+
+  protected boolean hasCapacity(int index) {
+    return fieldValues != null && fieldValues.length - index >= 2;
+  }
+
+  @Override
+  public synchronized void ensureCapacity(int index) {
     if (fieldValues == null || fieldValues.length == 0) {
       init(50000);
     }
-    if (fieldValues.length - currentArraySize < 2) {
+    while (fieldValues.length - index < 2) {
       int newSize = fieldValues.length < 10000000 ? fieldValues.length * 2
           : (int) (fieldValues.length * 1.5);
       int[] newFieldValues = new int[newSize];
@@ -58,20 +70,20 @@ public class ActivityIntValues extends ActivityPrimitiveValues {
 
   /**
    * value might be int or long or String. +n, -n  operations are supported
-   * @param fieldValues
+   * @param currentValue
    * @param value
-   * @param index
+   * @return the value after the update
    */
-  private static void setValue(int[] fieldValues, Object value, int index) {
+  private static int newValue(int currentValue, Object value) {
     if (value == null) {
-      return;
+      return currentValue;
     }
     if (value instanceof Number) {
-      fieldValues[index] = ((Number) value).intValue();
+      return ((Number) value).intValue();
     } else if (value instanceof String) {
       String valStr = (String) value;
       if (valStr.isEmpty()) {
-        return;
+        return currentValue;
       }
       int number = 0;
       boolean delta = true;
@@ -85,15 +97,13 @@ public class ActivityIntValues extends ActivityPrimitiveValues {
       }
       // parseInt is successful
       // Integer.MIN_VALUE means not initialized
-      if (fieldValues[index] == Integer.MIN_VALUE) {
-        fieldValues[index] = number;
-        return;
+      if (currentValue == Integer.MIN_VALUE) {
+        return number;
       }
       if (delta) {
-        fieldValues[index] += number;
-      } else {
-        fieldValues[index] = number;
+        return currentValue + number;
       }
+      return number;
     } else {
       throw new UnsupportedOperationException("Only Number and String are supported");
     }
@@ -112,7 +122,7 @@ public class ActivityIntValues extends ActivityPrimitiveValues {
     for (int i = 0; i < count; i++) {
       int value;
       value = buffer.getInt(i * 4);
-      fieldValues[i] = value;
+      setIntValue(i, value);
     }
   }
 
@@ -123,7 +133,7 @@ public class ActivityIntValues extends ActivityPrimitiveValues {
       try {
         storedFile.seek(i * 4);
         value = storedFile.readInt();
-        fieldValues[i] = value;
+        setIntValue(i, value);
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
@@ -132,8 +142,8 @@ public class ActivityIntValues extends ActivityPrimitiveValues {
 
   @Override
   public void delete(int index) {
-    fieldValues[index] = Integer.MIN_VALUE;
-    updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, fieldValues[index]));
+    setIntValue(index, Integer.MIN_VALUE);
+    addFieldUpdate(AtomicFieldUpdate.valueOf(index, Integer.MIN_VALUE));
   }
 
   @Override
@@ -143,6 +153,6 @@ public class ActivityIntValues extends ActivityPrimitiveValues {
 
   @Override
   public Number getValue(int index) {
-    return fieldValues[index];
+    return getIntValue(index);
   }
 }
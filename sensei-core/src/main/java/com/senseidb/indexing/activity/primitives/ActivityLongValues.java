@@ -22,9 +22,12 @@ public class ActivityLongValues extends ActivityPrimitiveValues {
    */
   @Override
   public boolean update(int index, Object value) {
-    ensureCapacity(index);
-    setValue(fieldValues, value, index);
-    return updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, fieldValues[index]));
+    if (!hasCapacity(index)) {
+      ensureCapacity(index);
+    }
+    long newValue = newValue(getLongValue(index), value);
+    setLongValue(index, newValue);
+    return addFieldUpdate(AtomicFieldUpdate.valueOf(index, newValue));
   }
 
   protected ActivityLongValues() {
@@ -39,11 +42,20 @@ public class ActivityLongValues extends ActivityPrimitiveValues {
     return fieldValues[index];
   }
 
-  private synchronized void ensureCapacity(int currentArraySize) {
+  protected void setLongValue(int index, long value) {
+    fieldValues[index] = value;
+  }
+
+  protected boolean hasCapacity(int index) {
+    return fieldValues != null && fieldValues.length - index >= 2;
+  }
+
+  @Override
+  public synchronized void ensureCapacity(int index) {
     if (fieldValues == null || fieldValues.length == 0) {
       init(50000);
     }
-    if (fieldValues.length - currentArraySize < 2) {
+    while (fieldValues.length - index < 2) {
       int newSize = fieldValues.length < 10000000 ? fieldValues.length * 2
           : (int) (fieldValues.length * 1.5);
       long[] newFieldValues = new long[newSize];
@@ -55,20 +67,20 @@ public class ActivityLongValues extends ActivityPrimitiveValues {
 
   /**
    * value might be int or long or String. +n, -n  operations are supported
-   * @param fieldValues
+   * @param currentValue
    * @param value
-   * @param index
+   * @return the value after the update
    */
-  private static void setValue(long[] fieldValues, Object value, int index) {
+  private static long newValue(long currentValue, Object value) {
     if (value == null) {
-      return;
+      return currentValue;
     }
     if (value instanceof Number) {
-      fieldValues[index] = ((Number) value).longValue();
+      return ((Number) value).longValue();
     } else if (value instanceof String) {
       String valStr = (String) value;
       if (valStr.isEmpty()) {
-        return;
+        return currentValue;
       }
       long number = 0;
       boolean delta = true;
@@ -82,15 +94,13 @@ public class ActivityLongValues extends ActivityPrimitiveValues {
       }
       // parseLong is successful
       // Long.MIN_VALUE means not initialized
-      if (fieldValues[index] == Long.MIN_VALUE) {
-        fieldValues[index] = number;
-        return;
+      if (currentValue == Long.MIN_VALUE) {
+        return number;
       }
       if (delta) {
-        fieldValues[index] += number;
-      } else {
-        fieldValues[index] = number;
+        return currentValue + number;
       }
+      return number;
     } else {
       throw new UnsupportedOperationException("Only Number and String are supported");
     }
@@ -109,7 +119,7 @@ public class ActivityLongValues extends ActivityPrimitiveValues {
     for (int i = 0; i < count; i++) {
       long value;
       value = buffer.getLong(i * 8);
-      fieldValues[i] = value;
+      setLongValue(i, value);
     }
   }
 
@@ -120,7 +130,7 @@ public class ActivityLongValues extends ActivityPrimitiveValues {
       try {
         storedFile.seek(i * 8);
         value = storedFile.readLong();
-        fieldValues[i] = value;
+        setLongValue(i, value);
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
@@ -129,8 +139,8 @@ public class ActivityLongValues extends ActivityPrimitiveValues {
 
   @Override
   public void delete(int index) {
-    fieldValues[index] = Long.MIN_VALUE;
-    updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, fieldValues[index]));
+    setLongValue(index, Long.MIN_VALUE);
+    addFieldUpdate(AtomicFieldUpdate.valueOf(index, Long.MIN_VALUE));
   }
 
   @Override
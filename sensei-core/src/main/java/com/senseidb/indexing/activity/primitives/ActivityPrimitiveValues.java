@@ -9,6 +9,7 @@ import com.senseidb.conf.SenseiSchema;
 import com.senseidb.indexing.activity.ActivityConfig;
 import com.senseidb.indexing.activity.ActivityPersistenceFactory;
 import com.senseidb.indexing.activity.ActivityValues;
+import com.senseidb.indexing.activity.ActivityWriteAheadLog;
 import com.senseidb.indexing.activity.AtomicFieldUpdate;
 import com.senseidb.indexing.activity.UpdateBatch;
 
@@ -20,6 +21,8 @@ public abstract class ActivityPrimitiveValues implements ActivityValues {
 
   protected volatile UpdateBatch<AtomicFieldUpdate> updateBatch;
   private ActivityConfig activityConfig;
+  private ActivityWriteAheadLog writeAheadLog;
+  private int writeAheadLogFieldId;
 
   public ActivityPrimitiveValues() {
     super();
@@ -32,6 +35,19 @@ public abstract class ActivityPrimitiveValues implements ActivityValues {
   @Override
   public abstract void init(int count);
 
+  /**
+   * Adds the change to the batch and then to the log, so a change logged before a checkpoint is
+   * always persisted by it.
+   * @return true if the batch needs to be flushed
+   */
+  protected boolean addFieldUpdate(AtomicFieldUpdate update) {
+    boolean needToFlush = updateBatch.addFieldUpdate(update);
+    if (writeAheadLog != null) {
+      writeAheadLog.append(writeAheadLogFieldId, update);
+    }
+    return needToFlush;
+  }
+
   @Override
   public Runnable prepareFlush() {
     if (activityFieldStore == null) {
@@ -96,12 +112,13 @@ public abstract class ActivityPrimitiveValues implements ActivityValues {
       ActivityPersistenceFactory activityPersistenceFactory, Class<?> type, String fieldName,
       int count) {
     ActivityPrimitiveValues values = null;
+    boolean offHeap = activityPersistenceFactory.getActivityConfig().isOffHeapColumns();
     if (type == int.class) {
-      values = new ActivityIntValues();
+      values = offHeap ? new OffHeapActivityIntValues() : new ActivityIntValues();
     } else if (type == float.class || type == double.class) {
-      values = new ActivityFloatValues();
+      values = offHeap ? new OffHeapActivityFloatValues() : new ActivityFloatValues();
     } else if (type == long.class) {
-      values = new ActivityLongValues();
+      values = offHeap ? new OffHeapActivityLongValues() : new ActivityLongValues();
     } else throw new UnsupportedOperationException("Class " + type + " is not supported");
     ActivityPrimitivesStorage primitivesStorage = activityPersistenceFactory
         .getActivivityPrimitivesStorage(fieldName);
@@ -110,6 +127,11 @@ public abstract class ActivityPrimitiveValues implements ActivityValues {
     values.activityConfig = activityPersistenceFactory.getActivityConfig();
     values.updateBatch = new UpdateBatch<AtomicFieldUpdate>(
         activityPersistenceFactory.getActivityConfig());
+    values.writeAheadLog = activityPersistenceFactory.getWriteAheadLog();
+    if (values.writeAheadLog != null) {
+      values.writeAheadLogFieldId = values.writeAheadLog.register(fieldName,
+        values.getFieldSizeInBytes());
+    }
 
     if (primitivesStorage != null) {
       primitivesStorage.initActivityDataFromFile(values, count);
@@ -0,0 +1,67 @@
+package com.senseidb.indexing.activity.primitives;
+
+public class OffHeapActivityFloatValues extends ActivityFloatValues {
+  private volatile OffHeapColumn column;
+
+  @Override
+  public void init(int capacity) {
+    column = new OffHeapColumn(4, Float.floatToRawIntBits(-Float.MAX_VALUE), capacity);
+  }
+
+  @Override
+  public float getFloatValue(int index) {
+    return column.getFloat(index);
+  }
+
+  @Override
+  protected void setFloatValue(int index, float value) {
+    column.putFloat(index, value);
+  }
+
+  @Override
+  protected boolean hasCapacity(int index) {
+    return column != null && column.capacity() - index >= 2;
+  }
+
+  @Override
+  public synchronized void ensureCapacity(int index) {
+    if (column == null) {
+      init(50000);
+    }
+    column.ensureCapacity(index + 2);
+  }
+
+  public long getSizeInBytes() {
+    return column.sizeInBytes();
+  }
+
+  /**
+   * @return a copy of the values up to the capacity of the column, changing it does not change
+   *         the values
+   */
+  @Override
+  public float[] getFieldValues() {
+    OffHeapColumn current = column;
+    if (current == null) {
+      return null;
+    }
+    float[] fieldValues = new float[current.capacity()];
+    for (int i = 0; i < fieldValues.length; i++) {
+      fieldValues[i] = current.getFloat(i);
+    }
+    return fieldValues;
+  }
+
+  /**
+   * Replaces the values with a copy of the given ones.
+   */
+  @Override
+  public synchronized void setFieldValues(float[] fieldValues) {
+    OffHeapColumn newColumn = new OffHeapColumn(4, Float.floatToRawIntBits(-Float.MAX_VALUE),
+        fieldValues.length);
+    for (int i = 0; i < fieldValues.length; i++) {
+      newColumn.putFloat(i, fieldValues[i]);
+    }
+    column = newColumn;
+  }
+}
@@ -0,0 +1,69 @@
+package com.senseidb.indexing.activity.primitives;
+
+/**
+ * Keeps the values in direct memory instead of a java array, see {@link OffHeapColumn}.
+ */
+public class OffHeapActivityIntValues extends ActivityIntValues {
+  private volatile OffHeapColumn column;
+
+  @Override
+  public void init(int capacity) {
+    column = new OffHeapColumn(4, Integer.MIN_VALUE, capacity);
+  }
+
+  @Override
+  public int getIntValue(int index) {
+    return column.getInt(index);
+  }
+
+  @Override
+  protected void setIntValue(int index, int value) {
+    column.putInt(index, value);
+  }
+
+  @Override
+  protected boolean hasCapacity(int index) {
+    return column != null && column.capacity() - index >= 2;
+  }
+
+  @Override
+  public synchronized void ensureCapacity(int index) {
+    if (column == null) {
+      init(50000);
+    }
+    column.ensureCapacity(index + 2);
+  }
+
+  public long getSizeInBytes() {
+    return column.sizeInBytes();
+  }
+
+  /**
+   * @return a copy of the values up to the capacity of the column, changing it does not change
+   *         the values
+   */
+  @Override
+  public int[] getFieldValues() {
+    OffHeapColumn current = column;
+    if (current == null) {
+      return null;
+    }
+    int[] fieldValues = new int[current.capacity()];
+    for (int i = 0; i < fieldValues.length; i++) {
+      fieldValues[i] = current.getInt(i);
+    }
+    return fieldValues;
+  }
+
+  /**
+   * Replaces the values with a copy of the given ones.
+   */
+  @Override
+  public synchronized void setFieldValues(int[] fieldValues) {
+    OffHeapColumn newColumn = new OffHeapColumn(4, Integer.MIN_VALUE, fieldValues.length);
+    for (int i = 0; i < fieldValues.length; i++) {
+      newColumn.putInt(i, fieldValues[i]);
+    }
+    column = newColumn;
+  }
+}
@@ -0,0 +1,66 @@
+package com.senseidb.indexing.activity.primitives;
+
+public class OffHeapActivityLongValues extends ActivityLongValues {
+  private volatile OffHeapColumn column;
+
+  @Override
+  public void init(int capacity) {
+    column = new OffHeapColumn(8, Long.MIN_VALUE, capacity);
+  }
+
+  @Override
+  public long getLongValue(int index) {
+    return column.getLong(index);
+  }
+
+  @Override
+  protected void setLongValue(int index, long value) {
+    column.putLong(index, value);
+  }
+
+  @Override
+  protected boolean hasCapacity(int index) {
+    return column != null && column.capacity() - index >= 2;
+  }
+
+  @Override
+  public synchronized void ensureCapacity(int index) {
+    if (column == null) {
+      init(50000);
+    }
+    column.ensureCapacity(index + 2);
+  }
+
+  public long getSizeInBytes() {
+    return column.sizeInBytes();
+  }
+
+  /**
+   * @return a copy of the values up to the capacity of the column, changing it does not change
+   *         the values
+   */
+  @Override
+  public long[] getFieldValues() {
+    OffHeapColumn current = column;
+    if (current == null) {
+      return null;
+    }
+    long[] fieldValues = new long[current.capacity()];
+    for (int i = 0; i < fieldValues.length; i++) {
+      fieldValues[i] = current.getLong(i);
+    }
+    return fieldValues;
+  }
+
+  /**
+   * Replaces the values with a copy of the given ones.
+   */
+  @Override
+  public synchronized void setFieldValues(long[] fieldValues) {
+    OffHeapColumn newColumn = new OffHeapColumn(8, Long.MIN_VALUE, fieldValues.length);
+    for (int i = 0; i < fieldValues.length; i++) {
+      newColumn.putLong(i, fieldValues[i]);
+    }
+    column = newColumn;
+  }
+}
@@ -0,0 +1,98 @@
+package com.senseidb.indexing.activity.primitives;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed width values kept outside of the java heap, in chunks of direct memory. The column grows
+ * by appending chunks, existing chunks never move, so growing copies nothing and readers holding
+ * an index below the capacity never see a stale array.
+ */
+public class OffHeapColumn {
+  static final int CHUNK_SHIFT = 16;
+  static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private final int width;
+  private final long emptyValue;
+  private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+  /**
+   * @param width the size of a value in bytes, 4 or 8
+   * @param emptyValue the bits new values are initialized with
+   */
+  public OffHeapColumn(int width, long emptyValue, int capacity) {
+    if (width != 4 && width != 8) {
+      throw new IllegalArgumentException("Only 4 and 8 bytes values are supported: " + width);
+    }
+    this.width = width;
+    this.emptyValue = emptyValue;
+    ensureCapacity(capacity);
+  }
+
+  public int capacity() {
+    return chunks.length << CHUNK_SHIFT;
+  }
+
+  /**
+   * Makes the values below the given capacity addressable.
+   */
+  public synchronized void ensureCapacity(int capacity) {
+    ByteBuffer[] current = chunks;
+    int needed = (int) (((long) capacity + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+    if (needed <= current.length) {
+      return;
+    }
+    ByteBuffer[] newChunks = new ByteBuffer[needed];
+    System.arraycopy(current, 0, newChunks, 0, current.length);
+    for (int i = current.length; i < needed; i++) {
+      newChunks[i] = newChunk();
+    }
+    chunks = newChunks;
+  }
+
+  private ByteBuffer newChunk() {
+    ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE * width).order(ByteOrder.nativeOrder());
+    if (width == 4) {
+      for (int i = 0; i < CHUNK_SIZE; i++) {
+        chunk.putInt(i << 2, (int) emptyValue);
+      }
+    } else {
+      for (int i = 0; i < CHUNK_SIZE; i++) {
+        chunk.putLong(i << 3, emptyValue);
+      }
+    }
+    return chunk;
+  }
+
+  public int getInt(int index) {
+    return chunks[index >>> CHUNK_SHIFT].getInt((index & CHUNK_MASK) << 2);
+  }
+
+  public void putInt(int index, int value) {
+    chunks[index >>> CHUNK_SHIFT].putInt((index & CHUNK_MASK) << 2, value);
+  }
+
+  public float getFloat(int index) {
+    return chunks[index >>> CHUNK_SHIFT].getFloat((index & CHUNK_MASK) << 2);
+  }
+
+  public void putFloat(int index, float value) {
+    chunks[index >>> CHUNK_SHIFT].putFloat((index & CHUNK_MASK) << 2, value);
+  }
+
+  public long getLong(int index) {
+    return chunks[index >>> CHUNK_SHIFT].getLong((index & CHUNK_MASK) << 3);
+  }
+
+  public void putLong(int index, long value) {
+    chunks[index >>> CHUNK_SHIFT].putLong((index & CHUNK_MASK) << 3, value);
+  }
+
+  /**
+   * @return the number of bytes of direct memory held by the column
+   */
+  public long sizeInBytes() {
+    return (long) chunks.length * CHUNK_SIZE * width;
+  }
+}
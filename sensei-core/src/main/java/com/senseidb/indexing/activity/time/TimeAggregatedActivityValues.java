@@ -32,7 +32,7 @@ import com.senseidb.indexing.activity.primitives.ActivityPrimitiveValues;
  * Basically this class is a composite, containing intActivityValue for each aggregate period specified in the config plus a default non time trimmed  values
  * Each of  underlying activityIntValues will be persisting themselves to the disk.<br>
  * When the TimeAggregatedActivityValues is constructed from file, it will init all the aggregated activity int values from the disk.
- * And it will try to estimate timeHits - {@link TimeHitsHolder}
+ * And it will load the persisted timeHits - {@link TimeHitsHolder}, estimating the ones that don't match the aggregated values
  *
  */
 public class TimeAggregatedActivityValues implements ActivityValues {
@@ -41,6 +41,8 @@ public class TimeAggregatedActivityValues implements ActivityValues {
   protected IntValueHolder[] intActivityValues;
   protected TimeHitsHolder timeActivities;
   public volatile int maxIndex;
+  private static final long TIME_HITS_FLUSH_INTERVAL = 5 * 60 * 1000L;
+  private volatile long lastTimeHitsFlush;
   private final AggregatesMetadata aggregatesMetadata;
   private AggregatesUpdateJob aggregatesUpdateJob;
   protected ActivityIntValues defaultIntValues;
@@ -67,44 +69,130 @@ public class TimeAggregatedActivityValues implements ActivityValues {
 
   }
 
-  protected synchronized static void initTimeHits(TimeHitsHolder timeActivities,
+  protected static void initTimeHits(TimeHitsHolder timeActivities,
       IntValueHolder[] intActivityValues, int count, int lastUpdatedTime) {
+    initTimeHits(timeActivities, intActivityValues, count, lastUpdatedTime, null);
+  }
+
+  /**
+   * Loads the time hits, that were persisted together with the aggregated values. The time hits of
+   * a document are kept only if they still add up to its aggregated values, otherwise they are
+   * estimated from the aggregated values
+   * @param persistedTimeHits the times, indexes and values of the persisted time hits, sorted by time, might be null
+   */
+  protected synchronized static void initTimeHits(TimeHitsHolder timeActivities,
+      IntValueHolder[] intActivityValues, int count, int lastUpdatedTime, int[][] persistedTimeHits) {
+    int[] aggregateTimes = new int[intActivityValues.length];
+    for (int j = 0; j < intActivityValues.length; j++) {
+      aggregateTimes[j] = intActivityValues[j].timeInMinutes;
+    }
+    // the positions of the persisted time hits, grouped by document
+    int[] offsets = new int[count + 1];
+    int[] positions = new int[0];
+    if (persistedTimeHits != null) {
+      int[] persistedIndexes = persistedTimeHits[1];
+      for (int i = 0; i < persistedIndexes.length; i++) {
+        if (persistedIndexes[i] >= 0 && persistedIndexes[i] < count) {
+          offsets[persistedIndexes[i] + 1]++;
+        }
+      }
+      for (int index = 0; index < count; index++) {
+        offsets[index + 1] += offsets[index];
+      }
+      positions = new int[offsets[count]];
+      int[] nextPositions = Arrays.copyOf(offsets, count);
+      for (int i = 0; i < persistedIndexes.length; i++) {
+        if (persistedIndexes[i] >= 0 && persistedIndexes[i] < count) {
+          positions[nextPositions[persistedIndexes[i]]++] = i;
+        }
+      }
+    }
+    IntContainer times = new IntContainer(count);
+    IntContainer indexes = new IntContainer(count);
+    IntContainer activities = new IntContainer(count);
     for (int index = 0; index < count; index++) {
-      int activitiesCount = 0;
-      for (int j = 0; j < intActivityValues.length; j++) {
-        int value = intActivityValues[j].activityIntValues.getIntValue(index);
-        if (value == Integer.MIN_VALUE) {
-          activitiesCount = 0;
-          break;
+      if (offsets[index] < offsets[index + 1]
+          && matchesAggregates(persistedTimeHits, positions, offsets[index], offsets[index + 1],
+            intActivityValues, index, lastUpdatedTime)) {
+        for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+          int time = persistedTimeHits[0][positions[i]];
+          if (time > lastUpdatedTime - aggregateTimes[0]) {
+            times.add(time);
+            activities.add(persistedTimeHits[2][positions[i]]);
+          }
         }
-        activitiesCount += value;
+      } else {
+        estimateTimeHits(times, activities, intActivityValues, index, lastUpdatedTime);
+      }
+      while (indexes.getSize() < times.getSize()) {
+        indexes.add(index);
       }
-      if (activitiesCount == 0) {
-        continue;
+    }
+    // sort the time hits by time, keeping the order of the time hits of a document
+    int size = times.getSize();
+    long[] keys = new long[size];
+    for (int i = 0; i < size; i++) {
+      keys[i] = ((long) times.get(i) << 32) | i;
+    }
+    Arrays.sort(keys);
+    int[] sortedTimes = new int[size];
+    int[] sortedIndexes = new int[size];
+    int[] sortedActivities = new int[size];
+    for (int i = 0; i < size; i++) {
+      int position = (int) keys[i];
+      sortedTimes[i] = times.get(position);
+      sortedIndexes[i] = indexes.get(position);
+      sortedActivities[i] = activities.get(position);
+    }
+    timeActivities.ensureCapacity(count);
+    timeActivities.load(sortedTimes, sortedIndexes, sortedActivities, size, aggregateTimes,
+      lastUpdatedTime);
+  }
+
+  private static boolean matchesAggregates(int[][] persistedTimeHits, int[] positions, int from,
+      int to, IntValueHolder[] intActivityValues, int index, int lastUpdatedTime) {
+    for (int j = 0; j < intActivityValues.length; j++) {
+      int value = intActivityValues[j].activityIntValues.getIntValue(index);
+      if (value == Integer.MIN_VALUE) {
+        return false;
       }
-      int length = Math.min(activitiesCount, intActivityValues[0].timeInMinutes);
-      IntContainer times = new IntContainer(length);
-      IntContainer activities = new IntContainer(length);
-      for (int j = 0; j < intActivityValues.length - 1; j++) {
-        int value = intActivityValues[j].activityIntValues.getIntValue(index);
-        int time = intActivityValues[j].timeInMinutes;
-        if (value == Integer.MIN_VALUE) {
-          activitiesCount = 0;
-          break;
+      int minTime = lastUpdatedTime - intActivityValues[j].timeInMinutes;
+      for (int i = from; i < to; i++) {
+        if (persistedTimeHits[0][positions[i]] > minTime) {
+          value -= persistedTimeHits[2][positions[i]];
         }
-        activitiesCount += value;
-        fillTimeHits(times, activities,
-          value - intActivityValues[j + 1].activityIntValues.getIntValue(index), lastUpdatedTime
-              - time + 1, time - intActivityValues[j + 1].timeInMinutes);
       }
-      fillTimeHits(times, activities,
-        intActivityValues[intActivityValues.length - 1].activityIntValues.getIntValue(index),
-        lastUpdatedTime - intActivityValues[intActivityValues.length - 1].timeInMinutes + 1,
-        intActivityValues[intActivityValues.length - 1].timeInMinutes);
-      timeActivities.activities[index] = activities;
-      timeActivities.times[index] = times;
+      if (value != 0) {
+        return false;
+      }
     }
+    return true;
+  }
 
+  private static void estimateTimeHits(IntContainer times, IntContainer activities,
+      IntValueHolder[] intActivityValues, int index, int lastUpdatedTime) {
+    int activitiesCount = 0;
+    for (int j = 0; j < intActivityValues.length; j++) {
+      int value = intActivityValues[j].activityIntValues.getIntValue(index);
+      if (value == Integer.MIN_VALUE) {
+        return;
+      }
+      activitiesCount += value;
+    }
+    if (activitiesCount == 0) {
+      return;
+    }
+    for (int j = 0; j < intActivityValues.length - 1; j++) {
+      int value = intActivityValues[j].activityIntValues.getIntValue(index);
+      int time = intActivityValues[j].timeInMinutes;
+      fillTimeHits(times, activities,
+        value - intActivityValues[j + 1].activityIntValues.getIntValue(index), lastUpdatedTime
+            - time + 1, time - intActivityValues[j + 1].timeInMinutes);
+    }
+    fillTimeHits(times, activities,
+      intActivityValues[intActivityValues.length - 1].activityIntValues.getIntValue(index),
+      lastUpdatedTime - intActivityValues[intActivityValues.length - 1].timeInMinutes + 1,
+      intActivityValues[intActivityValues.length - 1].timeInMinutes);
   }
 
   private static void fillTimeHits(IntContainer times, IntContainer activities, int activityCount,
@@ -157,7 +245,7 @@ public class TimeAggregatedActivityValues implements ActivityValues {
   public void init(int capacity) {
     timeActivities = new TimeHitsHolder(capacity);
     initTimeHits(timeActivities, intActivityValues, capacity,
-      aggregatesMetadata.getLastUpdatedTime());
+      aggregatesMetadata.getLastUpdatedTime(), aggregatesMetadata.readTimeHits());
     aggregatesUpdateJob = new AggregatesUpdateJob(this, aggregatesMetadata);
     aggregatesUpdateJob.start();
   }
@@ -166,7 +254,7 @@ public class TimeAggregatedActivityValues implements ActivityValues {
   public boolean update(int index, Object value) {
     boolean needToFlush = false;
     if (maxIndex < index) {
-      maxIndex = index;
+      updateMaxIndex(index);
     }
     int valueInt = getIntValue(value);
     String valueStr = valueInt > 0 ? "+=" + valueInt : "-=" + (-valueInt);
@@ -174,21 +262,7 @@ public class TimeAggregatedActivityValues implements ActivityValues {
     synchronized (defaultIntValues) {
       needToFlush = needToFlush | defaultIntValues.update(index, value);
     }
-    timeActivities.ensureCapacity(index);
-    synchronized (timeActivities.getLock(index)) {
-      if (!timeActivities.isSet(index)) {
-        timeActivities.setActivities(index, new IntContainer(1));
-        timeActivities.setTime(index, new IntContainer(1));
-      }
-      if (timeActivities.getTimes(index).getSize() > 0
-          && timeActivities.getTimes(index).peekLast() == currentTime) {
-        timeActivities.getActivities(index).add(
-          timeActivities.getActivities(index).removeLast() + valueInt);
-      } else {
-        timeActivities.getTimes(index).add(currentTime);
-        timeActivities.getActivities(index).add(valueInt);
-      }
-    }
+    timeActivities.add(index, currentTime, valueInt);
     for (IntValueHolder intValueHolder : intActivityValues) {
       synchronized (intValueHolder.activityIntValues) {
         needToFlush = needToFlush | intValueHolder.activityIntValues.update(index, valueStr);
@@ -197,6 +271,21 @@ public class TimeAggregatedActivityValues implements ActivityValues {
     return needToFlush;
   }
 
+  private synchronized void updateMaxIndex(int index) {
+    if (maxIndex < index) {
+      maxIndex = index;
+    }
+  }
+
+  @Override
+  public void ensureCapacity(int index) {
+    defaultIntValues.ensureCapacity(index);
+    for (IntValueHolder intValueHolder : intActivityValues) {
+      intValueHolder.activityIntValues.ensureCapacity(index);
+    }
+    timeActivities.ensureCapacity(index);
+  }
+
   private int getIntValue(Object value) {
     int valueInt = 0;
     if (value instanceof Number) {
@@ -217,6 +306,8 @@ public class TimeAggregatedActivityValues implements ActivityValues {
 
   @Override
   public void delete(int index) {
+    // the time hits go first, so that the AggregatesUpdateJob doesn't expire them from the deleted values
+    timeActivities.reset(index);
     synchronized (defaultIntValues) {
       defaultIntValues.delete(index);
     }
@@ -225,9 +316,6 @@ public class TimeAggregatedActivityValues implements ActivityValues {
         intValueHolder.activityIntValues.delete(index);
       }
     }
-    synchronized (timeActivities.getLock(index)) {
-      timeActivities.reset(index);
-    }
   }
 
   @Override
@@ -237,6 +325,17 @@ public class TimeAggregatedActivityValues implements ActivityValues {
     for (IntValueHolder intValueHolder : intActivityValues) {
       flushes.add(intValueHolder.activityIntValues.prepareFlush());
     }
+    if (System.currentTimeMillis() - lastTimeHitsFlush >= TIME_HITS_FLUSH_INTERVAL) {
+      lastTimeHitsFlush = System.currentTimeMillis();
+      // called under the lock of the composite values, the ring is copied by the flush
+      final TimeHitsHolder.Snapshot timeHits = timeActivities.detach();
+      flushes.add(new Runnable() {
+        @Override
+        public void run() {
+          aggregatesMetadata.writeTimeHits(timeHits.toColumns());
+        }
+      });
+    }
     return new Runnable() {
       @Override
       public void run() {
@@ -266,6 +365,7 @@ public class TimeAggregatedActivityValues implements ActivityValues {
   public void close() {
     defaultIntValues.close();
     aggregatesUpdateJob.stop();
+    aggregatesMetadata.writeTimeHits(timeActivities.snapshot());
     for (IntValueHolder intValueHolder : intActivityValues) {
       intValueHolder.activityIntValues.close();
     }
@@ -301,74 +401,6 @@ public class TimeAggregatedActivityValues implements ActivityValues {
     }
   }
 
-  /**
-   * Contains the time and values of all the relevant updates, that came to the system in the past. The value will be deleted when the
-   * <pre>
-   * {@code
-   * longestTimeAgregate = max(valuesMap.keySet);
-   * update.time < Clock.getCurrentTimeInMinutes - longestTimeAgregate;
-   *}</pre>
-   */
-  public static class TimeHitsHolder {
-    private IntContainer[] times;
-    private IntContainer[] activities;
-
-    public TimeHitsHolder(int capacity) {
-      times = new IntContainer[capacity];
-      activities = new IntContainer[capacity];
-    }
-
-    public IntContainer getTimes(int index) {
-      return times[index];
-    }
-
-    public IntContainer getActivities(int index) {
-      return activities[index];
-    }
-
-    public boolean isSet(int index) {
-      return activities[index] != null;
-    }
-
-    public void reset(int index) {
-      if (activities.length <= index) {
-        return;
-      }
-      activities[index] = null;
-      times[index] = null;
-    }
-
-    public void setTime(int index, IntContainer time) {
-      ensureCapacity(index);
-      times[index] = time;
-    }
-
-    public void setActivities(int index, IntContainer activity) {
-      ensureCapacity(index);
-      activities[index] = activity;
-    }
-
-    public Object getLock(int index) {
-      return activities[index] != null ? activities[index] : this;
-    }
-
-    public void ensureCapacity(int currentArraySize) {
-      if (times == null || times.length == 0) {
-        times = new IntContainer[50000];
-        activities = new IntContainer[50000];
-      }
-      if (times.length - currentArraySize < 2) {
-        int newSize = times.length < 10000000 ? times.length * 2 : (int) (times.length * 1.5);
-        IntContainer[] newFieldValues = new IntContainer[newSize];
-        System.arraycopy(times, 0, newFieldValues, 0, times.length);
-        times = newFieldValues;
-        newFieldValues = new IntContainer[newSize];
-        System.arraycopy(activities, 0, newFieldValues, 0, activities.length);
-        activities = newFieldValues;
-      }
-    }
-  }
-
   public Map<String, ActivityIntValues> getValuesMap() {
     return valuesMap;
   }
@@ -0,0 +1,305 @@
+package com.senseidb.indexing.activity.time;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Contains the time and values of all the relevant updates, that came to the system in the past.
+ * The updates of all the documents share one ring buffer, ordered by time and stored column by
+ * column, so a document only costs a generation and the position of its last update.
+ *
+ * Every time aggregate has a cursor in the ring, the first update that is still counted in it.
+ * Expiring an update for an aggregate just moves its cursor, and the ring drops the updates the
+ * longest aggregate no longer counts:
+ * <pre>
+ * {@code
+ * longestTimeAgregate = max(valuesMap.keySet);
+ * update.time <= Clock.getCurrentTimeInMinutes - longestTimeAgregate;
+ *}</pre>
+ * Deleting a document bumps its generation, the updates of older generations are skipped.
+ *
+ * A snapshot shares the columns and the generations of the ring, they are copied by the first
+ * change after it, so the flush only holds the locks long enough to swap them.
+ */
+public class TimeHitsHolder {
+  private static final int INITIAL_RING_CAPACITY = 1024;
+
+  private int[] times;
+  private int[] indexes;
+  private int[] values;
+  private int[] generations;
+  private int mask;
+  private long head = 0;
+  private long tail = 0;
+  private long[] cursors = new long[0];
+
+  private int[] docGenerations;
+  private long[] lastPositions;
+  // whether a snapshot still reads the columns or the generations
+  private boolean ringShared = false;
+  private boolean generationsShared = false;
+
+  public TimeHitsHolder(int capacity) {
+    docGenerations = new int[Math.max(capacity, 1)];
+    lastPositions = new long[docGenerations.length];
+    Arrays.fill(lastPositions, -1L);
+    allocateRing(INITIAL_RING_CAPACITY);
+  }
+
+  private void allocateRing(int capacity) {
+    times = new int[capacity];
+    indexes = new int[capacity];
+    values = new int[capacity];
+    generations = new int[capacity];
+    mask = capacity - 1;
+    ringShared = false;
+  }
+
+  private void unshareRing() {
+    if (ringShared) {
+      times = times.clone();
+      indexes = indexes.clone();
+      values = values.clone();
+      generations = generations.clone();
+      ringShared = false;
+    }
+  }
+
+  /**
+   * Loads updates sorted by time.
+   * @param aggregateTimes the time aggregates in minutes, the longest first
+   * @param lastUpdatedTime the last time the aggregates were updated at
+   */
+  synchronized void load(int[] updateTimes, int[] updateIndexes, int[] updateValues, int size,
+      int[] aggregateTimes, int lastUpdatedTime) {
+    int capacity = INITIAL_RING_CAPACITY;
+    while (capacity < size) {
+      capacity <<= 1;
+    }
+    allocateRing(capacity);
+    System.arraycopy(updateTimes, 0, times, 0, size);
+    System.arraycopy(updateIndexes, 0, indexes, 0, size);
+    System.arraycopy(updateValues, 0, values, 0, size);
+    for (int i = 0; i < size; i++) {
+      generations[i] = docGenerations[indexes[i]];
+    }
+    head = 0;
+    tail = size;
+    cursors = new long[aggregateTimes.length];
+    for (int k = 0; k < aggregateTimes.length; k++) {
+      // the updates at or before lastUpdatedTime - time were subtracted already
+      long cursor = 0;
+      while (cursor < size && times[(int) cursor] <= lastUpdatedTime - aggregateTimes[k]) {
+        cursor++;
+      }
+      cursors[k] = cursor;
+    }
+    if (cursors.length > 0) {
+      head = cursors[0];
+    }
+  }
+
+  public synchronized void add(int index, int time, int value) {
+    ensureCapacity(index);
+    long last = lastPositions[index];
+    // the shortest aggregate has the last cursor
+    if (last >= (cursors.length > 0 ? cursors[cursors.length - 1] : head)) {
+      int slot = (int) (last & mask);
+      // merge the updates of the same minute, they are not expired for any aggregate yet
+      if (times[slot] == time && generations[slot] == docGenerations[index]) {
+        unshareRing();
+        values[slot] += value;
+        return;
+      }
+    }
+    if (tail - head == times.length) {
+      growRing();
+    } else {
+      unshareRing();
+    }
+    int slot = (int) (tail & mask);
+    times[slot] = time;
+    indexes[slot] = index;
+    values[slot] = value;
+    generations[slot] = docGenerations[index];
+    lastPositions[index] = tail;
+    tail++;
+  }
+
+  private void growRing() {
+    int[] oldTimes = times;
+    int[] oldIndexes = indexes;
+    int[] oldValues = values;
+    int[] oldGenerations = generations;
+    int oldMask = mask;
+    allocateRing(times.length << 1);
+    for (long position = head; position < tail; position++) {
+      int oldSlot = (int) (position & oldMask);
+      int slot = (int) (position & mask);
+      times[slot] = oldTimes[oldSlot];
+      indexes[slot] = oldIndexes[oldSlot];
+      values[slot] = oldValues[oldSlot];
+      generations[slot] = oldGenerations[oldSlot];
+    }
+  }
+
+  /**
+   * Moves the cursor of the aggregate over the updates at or before the given time.
+   * @param expired collects the sum of the expired updates by document
+   * @return the number of updates the cursor moved over
+   */
+  synchronized int expire(int aggregate, int maxTime, int limit, Int2IntOpenHashMap expired) {
+    long cursor = cursors[aggregate];
+    int count = 0;
+    while (count < limit && cursor < tail) {
+      int slot = (int) (cursor & mask);
+      if (times[slot] > maxTime) {
+        break;
+      }
+      int index = indexes[slot];
+      if (generations[slot] == docGenerations[index]) {
+        expired.put(index, expired.get(index) + values[slot]);
+      }
+      cursor++;
+      count++;
+    }
+    cursors[aggregate] = cursor;
+    if (aggregate == 0) {
+      // the longest aggregate expires the updates last
+      head = cursor;
+    }
+    return count;
+  }
+
+  /**
+   * Forgets the updates of the document.
+   */
+  public synchronized void reset(int index) {
+    if (docGenerations.length <= index) {
+      return;
+    }
+    if (generationsShared) {
+      docGenerations = docGenerations.clone();
+      generationsShared = false;
+    }
+    docGenerations[index]++;
+    lastPositions[index] = -1L;
+  }
+
+  public synchronized void ensureCapacity(int index) {
+    if (docGenerations.length - index >= 2) {
+      return;
+    }
+    int newSize = docGenerations.length;
+    while (newSize - index < 2) {
+      newSize = newSize < 10000000 ? newSize * 2 : (int) (newSize * 1.5);
+    }
+    docGenerations = Arrays.copyOf(docGenerations, newSize);
+    generationsShared = false;
+    int oldSize = lastPositions.length;
+    lastPositions = Arrays.copyOf(lastPositions, newSize);
+    Arrays.fill(lastPositions, oldSize, newSize, -1L);
+  }
+
+  /**
+   * @return the number of updates in the ring, including the ones of deleted documents
+   */
+  public synchronized int size() {
+    return (int) (tail - head);
+  }
+
+  /**
+   * @return the times of the current updates of the document
+   */
+  public synchronized int[] getTimes(int index) {
+    return collect(index, times);
+  }
+
+  /**
+   * @return the values of the current updates of the document
+   */
+  public synchronized int[] getActivities(int index) {
+    return collect(index, values);
+  }
+
+  private int[] collect(int index, int[] column) {
+    int[] ret = new int[0];
+    if (docGenerations.length <= index) {
+      return ret;
+    }
+    for (long position = head; position < tail; position++) {
+      int slot = (int) (position & mask);
+      if (indexes[slot] == index && generations[slot] == docGenerations[index]) {
+        ret = Arrays.copyOf(ret, ret.length + 1);
+        ret[ret.length - 1] = column[slot];
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return the current updates, the ring is copied by the next change instead of now
+   */
+  synchronized Snapshot detach() {
+    ringShared = true;
+    generationsShared = true;
+    return new Snapshot(times, indexes, values, generations, mask, head, tail, docGenerations);
+  }
+
+  /**
+   * @return the current updates as times, indexes and values columns
+   */
+  int[][] snapshot() {
+    return detach().toColumns();
+  }
+
+  /**
+   * The updates of the ring at the time it was detached.
+   */
+  static class Snapshot {
+    private final int[] times;
+    private final int[] indexes;
+    private final int[] values;
+    private final int[] generations;
+    private final int mask;
+    private final long head;
+    private final long tail;
+    private final int[] docGenerations;
+
+    private Snapshot(int[] times, int[] indexes, int[] values, int[] generations, int mask,
+        long head, long tail, int[] docGenerations) {
+      this.times = times;
+      this.indexes = indexes;
+      this.values = values;
+      this.generations = generations;
+      this.mask = mask;
+      this.head = head;
+      this.tail = tail;
+      this.docGenerations = docGenerations;
+    }
+
+    /**
+     * @return the updates of the documents that were not deleted, as times, indexes and values
+     *         columns
+     */
+    int[][] toColumns() {
+      int size = 0;
+      int[][] ret = new int[3][(int) (tail - head)];
+      for (long position = head; position < tail; position++) {
+        int slot = (int) (position & mask);
+        if (generations[slot] != docGenerations[indexes[slot]]) {
+          continue;
+        }
+        ret[0][size] = times[slot];
+        ret[1][size] = indexes[slot];
+        ret[2][size] = values[slot];
+        size++;
+      }
+      for (int i = 0; i < ret.length; i++) {
+        ret[i] = Arrays.copyOf(ret[i], size);
+      }
+      return ret;
+    }
+  }
+}
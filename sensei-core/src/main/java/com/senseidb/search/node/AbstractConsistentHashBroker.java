@@ -33,6 +33,7 @@ import com.senseidb.svc.api.SenseiException;
 import com.twitter.finagle.Service;
 import com.twitter.util.Duration;
 import com.twitter.util.Future;
+import com.twitter.util.FutureCancelledException;
 import com.twitter.util.FutureEventListener;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Meter;
@@ -54,12 +55,35 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
   protected final ZuSerializer<REQUEST, RESULT> _serializer;
   private int _finagleThreadNumber = 20;
 
+  /**
+   * When hedging is enabled a node response that is later than the given percentile of that
+   * node's recent latencies is duplicated to other replicas of its partitions, and the first
+   * complete answer wins. The budget caps hedged requests to a fraction of all node requests.
+   */
+  private boolean _hedgeEnabled = false;
+  private double _hedgePercentile = 95;
+  private long _hedgeMinDelay = 10;
+  private HedgeBudget _hedgeBudget;
+  protected final ReplicaLatencyTracker _latencyTracker = new ReplicaLatencyTracker(128, 20);
+
+  public static final String ROUTING_CONSISTENT_HASH = "consistentHash";
+  public static final String ROUTING_LEAST_LOADED = "leastLoaded";
+  /**
+   * With least loaded routing, requests without a route param pick for every partition the
+   * cheaper of two random replicas, scored by EWMA latency, outstanding requests and error rate.
+   * Requests with a route param keep their consistent hash affinity.
+   */
+  private boolean _leastLoadedRouting = false;
+
   private static Timer ScatterTimer = null;
   private static Timer GatherTimer = null;
   private static Timer TotalTimer = null;
   private static Meter SearchCounter = null;
   private static Meter ErrorMeter = null;
   private static Meter EmptyMeter = null;
+  private static Meter HedgeMeter = null;
+  private static Meter HedgeWinMeter = null;
+  private static Meter HedgeRejectMeter = null;
 
   protected ZuFinagleServiceDecorator<REQUEST, RESULT> serviceDecorator;
   private final RoutingAlgorithm<Service<REQUEST, RESULT>> router;
@@ -89,6 +113,18 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
       MetricName emptyMetricName = new MetricName(MetricsConstants.Domain, "meter", "empty-meter",
           "broker");
       EmptyMeter = Metrics.newMeter(emptyMetricName, "null-hits", TimeUnit.SECONDS);
+
+      MetricName hedgeMetricName = new MetricName(MetricsConstants.Domain, "meter",
+          "hedged-requests", "broker");
+      HedgeMeter = Metrics.newMeter(hedgeMetricName, "requests", TimeUnit.SECONDS);
+
+      MetricName hedgeWinMetricName = new MetricName(MetricsConstants.Domain, "meter",
+          "hedge-wins", "broker");
+      HedgeWinMeter = Metrics.newMeter(hedgeWinMetricName, "requests", TimeUnit.SECONDS);
+
+      MetricName hedgeRejectMetricName = new MetricName(MetricsConstants.Domain, "meter",
+          "hedge-budget-exhausted", "broker");
+      HedgeRejectMeter = Metrics.newMeter(hedgeRejectMetricName, "requests", TimeUnit.SECONDS);
     } catch (Exception e) {
       logger.error(e.getMessage(), e);
     }
@@ -112,6 +148,13 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
     } else {
       _timeout = senseiConf.getLong(SenseiConfParams.SERVER_BROKER_TIMEOUT, 8000);
       _finagleThreadNumber = senseiConf.getInt(SenseiConfParams.SERVER_BROKER_FINAGLE_THREAD, 20);
+      _leastLoadedRouting = ROUTING_LEAST_LOADED.equals(senseiConf.getString(
+        SenseiConfParams.SERVER_BROKER_ROUTING, ROUTING_CONSISTENT_HASH));
+      _hedgeEnabled = senseiConf.getBoolean(SenseiConfParams.SERVER_BROKER_HEDGE_ENABLED, false);
+      _hedgePercentile = senseiConf.getDouble(SenseiConfParams.SERVER_BROKER_HEDGE_PERCENTILE, 95);
+      _hedgeMinDelay = senseiConf.getLong(SenseiConfParams.SERVER_BROKER_HEDGE_MIN_DELAY, 10);
+      _hedgeBudget = new HedgeBudget(senseiConf.getDouble(
+        SenseiConfParams.SERVER_BROKER_HEDGE_BUDGET, 0.05));
     }
     serviceDecorator = new ZuFinagleServiceDecorator<REQUEST, RESULT>(proxy, Duration.apply(
       _timeout, TimeUnit.MILLISECONDS), _finagleThreadNumber);
@@ -229,13 +272,26 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
 
   @SuppressWarnings("unchecked")
   protected List<RESULT> doCall(REQUEST req) {
-    Set<Integer> shards = router.getShards();
+    Set<Integer> shards = getShards();
+    if (req.getPartitions() != null && isRoutedToPartitions(req)) {
+      shards = new HashSet<Integer>(shards);
+      shards.retainAll(req.getPartitions());
+    }
 
     Map<Service<REQUEST, RESULT>, REQUEST> serviceToRequest = new HashMap<Service<REQUEST, RESULT>, REQUEST>();
 
     byte[] routeBytes = getRouteParam(req).getBytes();
+    // the second choice of the power of two choices, both keys are shared by all partitions so
+    // partitions living on the same nodes still tend to go out in one request
+    byte[] otherRouteBytes = null;
+    if (_leastLoadedRouting && !((SenseiRequest) req).hasRouteParam()) {
+      otherRouteBytes = getRouteParam(req).getBytes();
+    }
     for (Integer shard : shards) {
-      Service<REQUEST, RESULT> service = router.route(routeBytes, shard);
+      Service<REQUEST, RESULT> service = route(routeBytes, shard);
+      if (otherRouteBytes != null) {
+        service = chooseReplica(service, route(otherRouteBytes, shard));
+      }
       if (service == null) {
         logger.warn("router returned null as a destination service");
         continue;
@@ -252,7 +308,52 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
       requestToNode.getPartitions().add(shard);
     }
 
-    return executeRequestsInParallel(serviceToRequest, _timeout);
+    long timeout = getTimeout(req);
+    if (_hedgeEnabled) {
+      return executeHedgedRequests(serviceToRequest, timeout);
+    }
+    return executeRequestsInParallel(serviceToRequest, timeout);
+  }
+
+  /**
+   * @return true if the request is only sent to the partitions set on it. By default the
+   *         partitions of a request are ignored and every partition is searched.
+   */
+  protected boolean isRoutedToPartitions(REQUEST req) {
+    return false;
+  }
+
+  /**
+   * @return the time the nodes have to answer the request
+   */
+  protected long getTimeout(REQUEST req) {
+    return _timeout;
+  }
+
+  private Service<REQUEST, RESULT> chooseReplica(Service<REQUEST, RESULT> first,
+      Service<REQUEST, RESULT> second) {
+    if (first == null || first == second) {
+      return second == null ? first : second;
+    }
+    if (second == null) {
+      return first;
+    }
+    if (_latencyTracker.getCost(getServiceAddress(second)) < _latencyTracker
+        .getCost(getServiceAddress(first))) {
+      return second;
+    }
+    return first;
+  }
+
+  protected Set<Integer> getShards() {
+    return router.getShards();
+  }
+
+  /**
+   * @return the replica of the partition the route key hashes to, or null if no node holds it
+   */
+  protected Service<REQUEST, RESULT> route(byte[] routeBytes, int shard) {
+    return router.route(routeBytes, shard);
   }
 
   protected abstract String getMessageType();
@@ -270,19 +371,24 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
     final Map<Service<REQUEST, RESULT>, Long> latencies = new HashMap<Service<REQUEST, RESULT>, Long>();
     for (final Entry<Service<REQUEST, RESULT>, REQUEST> entry : serviceToRequest.entrySet()) {
       latencies.put(entry.getKey(), (long) -1);
+      final InetSocketAddress address = getServiceAddress(entry.getKey());
+      _latencyTracker.start(address);
       futures.add(entry.getKey().apply(entry.getValue())
           .addEventListener(new FutureEventListener<RESULT>() {
 
             @Override
             public void onFailure(Throwable t) {
-              logger.error("Failed to get response from " + getServiceAddress(entry.getKey()), t);
+              _latencyTracker.recordFailure(address);
+              logger.error("Failed to get response from " + address, t);
             }
 
             @Override
             public void onSuccess(RESULT result) {
+              long latency = System.currentTimeMillis() - start;
+              _latencyTracker.record(address, latency);
               synchronized (results) {
                 results.add(result);
-                latencies.put(entry.getKey(), System.currentTimeMillis() - start);
+                latencies.put(entry.getKey(), latency);
               }
             }
           }));
@@ -309,6 +415,260 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
     return results;
   }
 
+  /**
+   * Same as {@link #executeRequestsInParallel(Map, long)}, but a node request that is late
+   * compared to the node's recent latencies, or that failed, is sent again to other replicas of
+   * its partitions. Whichever of the two answers completely first is used.
+   */
+  protected List<RESULT> executeHedgedRequests(
+      final Map<Service<REQUEST, RESULT>, REQUEST> serviceToRequest, long timeout) {
+    final long start = System.currentTimeMillis();
+    final long deadline = start + timeout;
+    final Object lock = new Object();
+    List<HedgedCall> calls = new ArrayList<HedgedCall>(serviceToRequest.size());
+    synchronized (lock) {
+      for (Entry<Service<REQUEST, RESULT>, REQUEST> entry : serviceToRequest.entrySet()) {
+        _hedgeBudget.onRequest();
+        HedgedCall call = new HedgedCall(lock, entry.getKey(), entry.getValue());
+        calls.add(call);
+        call.sendPrimary();
+      }
+
+      while (true) {
+        long now = System.currentTimeMillis();
+        long wakeup = deadline;
+        boolean pending = false;
+        for (HedgedCall call : calls) {
+          if (call.isDone()) {
+            continue;
+          }
+          pending = true;
+          if (!call._hedged) {
+            long hedgeAt = call._primaryFailed ? now : call._hedgeAt;
+            if (hedgeAt <= now) {
+              call.sendHedge();
+            } else {
+              wakeup = Math.min(wakeup, hedgeAt);
+            }
+          }
+        }
+        if (!pending || now >= deadline) {
+          break;
+        }
+        try {
+          lock.wait(Math.max(1, wakeup - now));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+
+      List<RESULT> results = new ArrayList<RESULT>();
+      StringBuilder latencyLog = new StringBuilder();
+      for (HedgedCall call : calls) {
+        if (call._results == null) {
+          logger.error("Missed result from " + getServiceAddress(call._primary));
+          continue;
+        }
+        results.addAll(call._results);
+        latencyLog.append(call._winner).append(':').append(call._latency).append("ms;");
+      }
+      logger.info(String.format(
+        "Getting responses from %d nodes took %dms, nodes latency distribution: %s",
+        results.size(), (System.currentTimeMillis() - start), latencyLog));
+      return results;
+    }
+  }
+
+  protected Service<REQUEST, RESULT> routeToOtherReplica(int shard,
+      Service<REQUEST, RESULT> primary) {
+    for (int i = 0; i < 4; ++i) {
+      Service<REQUEST, RESULT> service = route(RandomStringUtils.random(4).getBytes(), shard);
+      if (service != null && service != primary) {
+        return service;
+      }
+    }
+    return null;
+  }
+
+  private static void cancel(Future<?> future) {
+    if (future != null) {
+      future.raise(new FutureCancelledException());
+    }
+  }
+
+  /**
+   * A node request and its optional hedge. Once one of them answered, the other one is cancelled.
+   * All fields are guarded by the lock shared by the calls of one broker request.
+   */
+  private class HedgedCall {
+    private final Object _lock;
+    private final Service<REQUEST, RESULT> _primary;
+    private final REQUEST _request;
+    private long _start;
+    private long _hedgeAt = Long.MAX_VALUE;
+    private boolean _primaryFailed = false;
+    private boolean _hedged = false;
+    private int _hedgesPending = 0;
+    private boolean _hedgeFailed = false;
+    private final List<RESULT> _hedgeResults = new ArrayList<RESULT>();
+    private Future<RESULT> _primaryFuture;
+    private final List<Future<RESULT>> _hedgeFutures = new ArrayList<Future<RESULT>>();
+    private List<RESULT> _results = null;
+    private String _winner;
+    private long _latency;
+
+    HedgedCall(Object lock, Service<REQUEST, RESULT> primary, REQUEST request) {
+      _lock = lock;
+      _primary = primary;
+      _request = request;
+    }
+
+    boolean isDone() {
+      return _results != null
+          || (_primaryFailed && _hedged && (_hedgesPending == 0 || _hedgeFailed));
+    }
+
+    void sendPrimary() {
+      _start = System.currentTimeMillis();
+      final InetSocketAddress address = getServiceAddress(_primary);
+      long percentile = _latencyTracker.getPercentile(address, _hedgePercentile);
+      if (percentile >= 0) {
+        _hedgeAt = _start + Math.max(_hedgeMinDelay, percentile);
+      }
+      _latencyTracker.start(address);
+      _primaryFuture = _primary.apply(_request);
+      _primaryFuture.addEventListener(new FutureEventListener<RESULT>() {
+        @Override
+        public void onFailure(Throwable t) {
+          synchronized (_lock) {
+            if (_results != null) {
+              // the hedge answered first and this request was cancelled
+              _latencyTracker.cancel(address);
+              return;
+            }
+            _primaryFailed = true;
+            _lock.notifyAll();
+          }
+          _latencyTracker.recordFailure(address);
+          logger.error("Failed to get response from " + address, t);
+        }
+
+        @Override
+        public void onSuccess(RESULT result) {
+          long latency = System.currentTimeMillis() - _start;
+          _latencyTracker.record(address, latency);
+          synchronized (_lock) {
+            if (_results == null) {
+              _results = new ArrayList<RESULT>(1);
+              _results.add(result);
+              _winner = String.valueOf(address);
+              _latency = latency;
+              for (Future<RESULT> hedge : _hedgeFutures) {
+                cancel(hedge);
+              }
+            }
+            _lock.notifyAll();
+          }
+        }
+      });
+    }
+
+    @SuppressWarnings("unchecked")
+    void sendHedge() {
+      _hedged = true;
+      Map<Service<REQUEST, RESULT>, REQUEST> hedgeRequests = new HashMap<Service<REQUEST, RESULT>, REQUEST>();
+      for (Integer shard : _request.getPartitions()) {
+        Service<REQUEST, RESULT> service = routeToOtherReplica(shard, _primary);
+        if (service == null) {
+          // no other replica holds this partition, nothing to gain from hedging
+          return;
+        }
+        REQUEST hedgeRequest = hedgeRequests.get(service);
+        if (hedgeRequest == null) {
+          hedgeRequest = (REQUEST) (((SenseiRequest) _request).clone());
+          hedgeRequest.setPartitions(new HashSet<Integer>());
+          hedgeRequests.put(service, hedgeRequest);
+        }
+        hedgeRequest.getPartitions().add(shard);
+      }
+      if (!_hedgeBudget.tryAcquire(hedgeRequests.size())) {
+        HedgeRejectMeter.mark();
+        return;
+      }
+      HedgeMeter.mark(hedgeRequests.size());
+      _hedgesPending = hedgeRequests.size();
+      final long hedgeStart = System.currentTimeMillis();
+      for (Entry<Service<REQUEST, RESULT>, REQUEST> entry : hedgeRequests.entrySet()) {
+        final InetSocketAddress address = getServiceAddress(entry.getKey());
+        _latencyTracker.start(address);
+        Future<RESULT> future = entry.getKey().apply(entry.getValue());
+        _hedgeFutures.add(future);
+        future.addEventListener(new FutureEventListener<RESULT>() {
+          @Override
+          public void onFailure(Throwable t) {
+            synchronized (_lock) {
+              if (_results != null && _results != _hedgeResults) {
+                // the primary answered first and this request was cancelled
+                _latencyTracker.cancel(address);
+                return;
+              }
+              _hedgeFailed = true;
+              _lock.notifyAll();
+            }
+            _latencyTracker.recordFailure(address);
+            logger.error("Failed to get hedged response from " + address, t);
+          }
+
+          @Override
+          public void onSuccess(RESULT result) {
+            long now = System.currentTimeMillis();
+            _latencyTracker.record(address, now - hedgeStart);
+            synchronized (_lock) {
+              _hedgeResults.add(result);
+              if (--_hedgesPending == 0 && !_hedgeFailed && _results == null) {
+                _results = _hedgeResults;
+                _winner = "hedge(" + getServiceAddress(_primary) + ")";
+                _latency = now - _start;
+                HedgeWinMeter.mark();
+                cancel(_primaryFuture);
+              }
+              _lock.notifyAll();
+            }
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Token bucket that earns a fraction of a token for every node request and spends one for
+   * every hedged request.
+   */
+  static class HedgeBudget {
+    private final double _ratio;
+    private final double _maxTokens;
+    private double _tokens;
+
+    HedgeBudget(double ratio) {
+      _ratio = ratio;
+      _maxTokens = Math.max(1, ratio * 1000);
+      _tokens = _maxTokens;
+    }
+
+    synchronized void onRequest() {
+      _tokens = Math.min(_maxTokens, _tokens + _ratio);
+    }
+
+    synchronized boolean tryAcquire(int permits) {
+      if (_tokens < permits) {
+        return false;
+      }
+      _tokens -= permits;
+      return true;
+    }
+  }
+
   protected static Set<InetSocketAddress> getNodesAddresses(
       Map<Integer, List<InetSocketAddress>> clusterView) {
     Set<InetSocketAddress> nodes = new HashSet<InetSocketAddress>();
@@ -0,0 +1,169 @@
+package com.senseidb.search.node;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps per replica response statistics: a sliding window of the most recent latencies, so the
+ * broker can tell when a response is late compared to how that replica usually behaves, and an
+ * EWMA of latency and error rate together with the number of outstanding requests, which are
+ * used to score replicas for load aware routing.
+ */
+public class ReplicaLatencyTracker {
+  private static final double LATENCY_DECAY = 0.1;
+  private static final double ERROR_DECAY = 0.05;
+
+  private final int _windowSize;
+  private final int _minSamples;
+  private final ConcurrentMap<InetSocketAddress, ReplicaStats> _stats = new ConcurrentHashMap<InetSocketAddress, ReplicaStats>();
+
+  public ReplicaLatencyTracker(int windowSize, int minSamples) {
+    _windowSize = windowSize;
+    _minSamples = Math.min(minSamples, windowSize);
+  }
+
+  private ReplicaStats getStats(InetSocketAddress replica) {
+    ReplicaStats stats = _stats.get(replica);
+    if (stats == null) {
+      stats = new ReplicaStats(_windowSize);
+      ReplicaStats existing = _stats.putIfAbsent(replica, stats);
+      if (existing != null) {
+        stats = existing;
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Called when a request is sent to the replica. Every call must be followed by either
+   * {@link #record(InetSocketAddress, long)}, {@link #recordFailure(InetSocketAddress)} or
+   * {@link #cancel(InetSocketAddress)}.
+   */
+  public void start(InetSocketAddress replica) {
+    if (replica != null) {
+      getStats(replica).start();
+    }
+  }
+
+  public void record(InetSocketAddress replica, long latency) {
+    if (replica != null) {
+      getStats(replica).success(latency);
+    }
+  }
+
+  public void recordFailure(InetSocketAddress replica) {
+    if (replica != null) {
+      getStats(replica).failure();
+    }
+  }
+
+  /**
+   * Called when a request to the replica was abandoned, it is not counted as a failure.
+   */
+  public void cancel(InetSocketAddress replica) {
+    if (replica != null) {
+      getStats(replica).cancel();
+    }
+  }
+
+  /**
+   * @return the given percentile (0 to 100) of the recent latencies of the replica, or -1 if
+   *         there are not enough samples yet
+   */
+  public long getPercentile(InetSocketAddress replica, double percentile) {
+    if (replica == null) {
+      return -1;
+    }
+    ReplicaStats stats = _stats.get(replica);
+    if (stats == null) {
+      return -1;
+    }
+    return stats.percentile(percentile, _minSamples);
+  }
+
+  /**
+   * @return the expected cost of sending one more request to the replica, lower is better.
+   *         Replicas without statistics cost 0, so they get traffic and are measured.
+   */
+  public double getCost(InetSocketAddress replica) {
+    if (replica == null) {
+      return Double.MAX_VALUE;
+    }
+    ReplicaStats stats = _stats.get(replica);
+    if (stats == null) {
+      return 0;
+    }
+    return stats.cost();
+  }
+
+  /**
+   * Drops the statistics of a replica that left the cluster.
+   */
+  public void remove(InetSocketAddress replica) {
+    _stats.remove(replica);
+  }
+
+  private static class ReplicaStats {
+    private final long[] _samples;
+    private int _count = 0;
+    private int _next = 0;
+    private double _ewmaLatency = -1;
+    private double _errorRate = 0;
+    private int _outstanding = 0;
+
+    ReplicaStats(int size) {
+      _samples = new long[size];
+    }
+
+    synchronized void start() {
+      ++_outstanding;
+    }
+
+    private void finish() {
+      if (_outstanding > 0) {
+        --_outstanding;
+      }
+    }
+
+    synchronized void success(long latency) {
+      finish();
+      _samples[_next] = latency;
+      _next = (_next + 1) % _samples.length;
+      if (_count < _samples.length) {
+        ++_count;
+      }
+      _ewmaLatency = _ewmaLatency < 0 ? latency : _ewmaLatency + LATENCY_DECAY
+          * (latency - _ewmaLatency);
+      _errorRate -= ERROR_DECAY * _errorRate;
+    }
+
+    synchronized void cancel() {
+      finish();
+    }
+
+    synchronized void failure() {
+      finish();
+      _errorRate += ERROR_DECAY * (1 - _errorRate);
+    }
+
+    synchronized double cost() {
+      double latency = _ewmaLatency < 0 ? 0 : _ewmaLatency;
+      return (latency + 1) * (_outstanding + 1) / Math.max(0.05, 1 - _errorRate);
+    }
+
+    long percentile(double percentile, int minSamples) {
+      long[] sorted;
+      synchronized (this) {
+        if (_count == 0 || _count < minSamples) {
+          return -1;
+        }
+        sorted = Arrays.copyOf(_samples, _count);
+      }
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+      return sorted[Math.min(Math.max(index, 0), sorted.length - 1)];
+    }
+  }
+}
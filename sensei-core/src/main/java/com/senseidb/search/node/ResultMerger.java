@@ -452,7 +452,7 @@ public class ResultMerger {
     }
   }
 
-  private static class MappedFacetAccessible implements FacetAccessible, Serializable {
+  public static class MappedFacetAccessible implements FacetAccessible, Serializable {
 
     /**
      *
@@ -543,6 +543,19 @@ public class ResultMerger {
     return "";
   }
 
+  public static boolean isNumHitsLowerBound(Collection<SenseiResult> results) {
+    for (SenseiResult res : results) {
+      if (res.isNumHitsLowerBound()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public static Comparator<SenseiHit> getHitComparator(SortField[] sortFields) {
+    return new SenseiHitComparator(sortFields);
+  }
+
   public static boolean hasSortCollector(Collection<SenseiResult> results) {
     for (SenseiResult res : results) {
       if (res.getSortCollector() != null && res.getSortCollector().contextList != null) {
@@ -585,7 +598,7 @@ public class ResultMerger {
     final boolean hasSortCollector = hasSortCollector(results);
 
     // Extract the hits from the results
-    List<Iterator<SenseiHit>> hitLists = flattenHits(results);
+    SenseiHit[][] hitLists = SortedHitsMerger.extractHits(results);
 
     List<FacetAccessible>[] groupAccessibles = extractFacetAccessible(results);
 
@@ -607,16 +620,14 @@ public class ResultMerger {
 
     SenseiHit[] hits;
     if (req.getGroupBy() == null || req.getGroupBy().length == 0) {
-      List<SenseiHit> mergedList = ListMerger.mergeLists(req.getOffset(), req.getCount(),
-        hitLists.toArray(new Iterator[hitLists.size()]), comparator);
-      hits = mergedList.toArray(new SenseiHit[mergedList.size()]);
+      hits = SortedHitsMerger.merge(hitLists, req.getOffset(), req.getCount(), comparator);
     } else {
       int[] rawGroupValueType = new int[req.getGroupBy().length]; // 0: unknown, 1: normal, 2:
                                                                   // long[]
 
       PrimitiveLongArrayWrapper primitiveLongArrayWrapperTmp = new PrimitiveLongArrayWrapper(null);
 
-      Iterator<SenseiHit> mergedIter = ListMerger.mergeLists(hitLists, comparator);
+      Iterator<SenseiHit> mergedIter = new SortedHitsMerger(hitLists, comparator);
 
       List<SenseiHit> hitsList = null;
       if (!hasSortCollector) {
@@ -720,6 +731,7 @@ public class ResultMerger {
     SenseiResult merged = new SenseiResult();
     merged.setHits(hits);
     merged.setNumHitsLong(numHits);
+    merged.setNumHitsLowerBound(isNumHitsLowerBound(results));
     merged.setNumGroupsLong(numGroups);
     merged.setTotalDocsLong(totalDocs);
     merged.addAll(mergedFacetMap);
@@ -741,6 +753,58 @@ public class ResultMerger {
     return merged;
   }
 
+  /**
+   * Merges the results of segment groups that were searched in parallel within one partition.
+   * Unlike {@link #merge(SenseiRequest, Collection, boolean)}, facets are kept as lazy
+   * {@link CombinedFacetAccessible}s so the partition result can still be combined with other
+   * partitions on the node. Group-by requests are not supported here.
+   */
+  @SuppressWarnings("unchecked")
+  public static SenseiResult mergeSegmentGroups(final SenseiRequest req, List<SenseiResult> results) {
+    long start = System.currentTimeMillis();
+    Comparator<SenseiHit> comparator = new SenseiHitComparator(req.getSort());
+    SenseiHit[] hits = SortedHitsMerger.merge(SortedHitsMerger.extractHits(results),
+      req.getOffset(), req.getCount(), comparator);
+
+    Map<String, List<FacetAccessible>> facetAccessibles = new HashMap<String, List<FacetAccessible>>();
+    for (SenseiResult res : results) {
+      Map<String, FacetAccessible> facetMap = res.getFacetMap();
+      if (facetMap == null) {
+        continue;
+      }
+      for (Map.Entry<String, FacetAccessible> entry : facetMap.entrySet()) {
+        List<FacetAccessible> list = facetAccessibles.get(entry.getKey());
+        if (list == null) {
+          list = new ArrayList<FacetAccessible>(results.size());
+          facetAccessibles.put(entry.getKey(), list);
+        }
+        list.add(entry.getValue());
+      }
+    }
+    Map<String, FacetAccessible> mergedFacetMap = new HashMap<String, FacetAccessible>();
+    for (Entry<String, List<FacetAccessible>> entry : facetAccessibles.entrySet()) {
+      List<FacetAccessible> list = entry.getValue();
+      if (list.size() == 1) {
+        mergedFacetMap.put(entry.getKey(), list.get(0));
+      } else {
+        mergedFacetMap.put(entry.getKey(),
+          new CombinedFacetAccessible(req.getFacetSpec(entry.getKey()), list));
+      }
+    }
+
+    SenseiResult merged = new SenseiResult();
+    merged.setHits(hits);
+    merged.setNumHitsLong(getNumHits(results));
+    merged.setNumHitsLowerBound(isNumHitsLowerBound(results));
+    merged.setNumGroupsLong(getNumGroups(results));
+    merged.setTotalDocsLong(getTotalDocs(results));
+    merged.addAll(mergedFacetMap);
+    merged.setParsedQuery(findParsedQuery(results));
+    merged.setTid(req.getTid());
+    merged.setTime(findLongestTime(results) + System.currentTimeMillis() - start);
+    return merged;
+  }
+
   private static boolean checkDuplicate(SenseiHit hit, Set<Object>[] distinctSets,
       String[] distinct, Object[] distinctValues, int[] distinctValueType,
       PrimitiveLongArrayWrapper primitiveLongArrayWrapperTmp) {
@@ -1008,6 +1072,8 @@ public class ResultMerger {
       } else {
         if (offsetLeft > 0) --offsetLeft;
         else if (hitsList.size() < req.getCount()) hitsList.add(hit);
+        // once the page is full only the groups already on it need their counts
+        else continue;
 
         if (rawGroupValueType[0] == 2) groupHitMaps[hit.getGroupPosition()].put(
           new PrimitiveLongArrayWrapper(primitiveLongArrayWrapperTmp.data), hit);
@@ -1,6 +1,11 @@
 package com.senseidb.search.node;
 
 import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -14,13 +19,20 @@ import zu.core.cluster.ZuCluster;
 import zu.core.cluster.ZuClusterEventListener;
 
 import com.browseengine.bobo.api.BrowseHit.SerializableField;
+import com.browseengine.bobo.api.BrowseSelection;
 import com.browseengine.bobo.api.FacetSpec;
+import com.senseidb.conf.SenseiConfParams;
+import com.senseidb.conf.SenseiFacetHandlerBuilder;
+import com.senseidb.gateway.SenseiGateway;
 import com.senseidb.indexing.DefaultJsonSchemaInterpreter;
+import com.senseidb.search.node.broker.BrokerResultCache;
 import com.senseidb.search.req.ErrorType;
 import com.senseidb.search.req.SenseiError;
 import com.senseidb.search.req.SenseiHit;
 import com.senseidb.search.req.SenseiRequest;
 import com.senseidb.search.req.SenseiResult;
+import com.senseidb.svc.api.SenseiException;
+import com.senseidb.svc.impl.BinarySenseiSerializer;
 import com.senseidb.svc.impl.CoreSenseiServiceImpl;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
@@ -39,12 +51,177 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
   private static Counter numberOfNodesInTheCluster = Metrics.newCounter(new MetricName(
       SenseiBroker.class, "numberOfNodesInTheCluster"));
   private volatile boolean disconnected;
+  private final BrokerResultCache _resultCache;
+  private final boolean _twoPhaseFetch;
+  // the share of the timeout the query phase may use, the fetch phase gets the rest
+  private final double _queryShare;
+  // the requests of the two phase fetch that are being sent
+  private final Map<SenseiRequest, FetchPhase> _phases = Collections
+      .synchronizedMap(new IdentityHashMap<SenseiRequest, FetchPhase>());
 
   public SenseiBroker(ZuCluster clusterClient, Configuration senseiConf) {
-    super(clusterClient, CoreSenseiServiceImpl.JAVA_SERIALIZER, senseiConf);
+    super(clusterClient, CoreSenseiServiceImpl.buildSerializer(senseiConf), senseiConf);
+    int cacheSize = senseiConf.getInt(SenseiConfParams.SERVER_BROKER_CACHE_MAX_ENTRIES, 0);
+    if (cacheSize > 0) {
+      _resultCache = new BrokerResultCache(cacheSize, senseiConf.getLong(
+        SenseiConfParams.SERVER_BROKER_CACHE_MAX_BYTES, 64L * 1024 * 1024), senseiConf.getLong(
+        SenseiConfParams.SERVER_BROKER_CACHE_MAX_STALENESS, 60000L),
+          SenseiGateway.DEFAULT_VERSION_COMPARATOR);
+    } else {
+      _resultCache = null;
+    }
+    _twoPhaseFetch = senseiConf.getBoolean(SenseiConfParams.SERVER_BROKER_TWO_PHASE_FETCH, false);
+    _queryShare = senseiConf.getDouble(SenseiConfParams.SERVER_BROKER_TWO_PHASE_FETCH_QUERY_SHARE,
+      0.75);
     clusterClient.addClusterEventListener(this);
   }
 
+  /**
+   * Sets the comparator used to tell which of two index versions reported by the nodes is newer.
+   */
+  public void setVersionComparator(Comparator<String> versionComparator) {
+    if (_resultCache != null) {
+      _resultCache.setVersionComparator(versionComparator);
+    }
+  }
+
+  @Override
+  public SenseiResult browse(SenseiRequest req) throws SenseiException {
+    String cacheKey = _resultCache == null ? null : BrokerResultCache.getCacheKey(req);
+    if (cacheKey == null) {
+      return doTwoPhaseBrowse(req);
+    }
+    long start = System.currentTimeMillis();
+    SenseiResult result = _resultCache.get(cacheKey);
+    if (result != null) {
+      result.setTid(req.getTid());
+      result.setTime(System.currentTimeMillis() - start);
+      return result;
+    }
+    result = doTwoPhaseBrowse(req);
+    // a node that did not answer in time leaves its partitions out without an error
+    Set<Integer> partitions = req.getPartitions() != null ? req.getPartitions() : getShards();
+    if (result.getPartitionVersions() != null
+        && result.getPartitionVersions().keySet().containsAll(partitions)) {
+      _resultCache.put(cacheKey, result);
+    }
+    return result;
+  }
+
+  /**
+   * With the two phase fetch the nodes first return the hits without the stored fields, then the
+   * stored fields and the source data are fetched by uid only for the hits of the merged page, and
+   * only from the partitions of the nodes that returned them. Both phases have to be done within
+   * the timeout of the broker, the query phase may use a share of it.
+   */
+  private SenseiResult doTwoPhaseBrowse(SenseiRequest req) throws SenseiException {
+    String[] groupBy = req.getGroupBy();
+    if (!_twoPhaseFetch || !req.isFetchStoredFields() || req.getCount() <= 0
+        || (groupBy != null && groupBy.length > 0)) {
+      return super.browse(req);
+    }
+    long start = System.currentTimeMillis();
+    long deadline = start + _timeout;
+    SenseiRequest queryRequest = req.clone();
+    queryRequest.setFetchStoredFields(false);
+    Map<Long, Set<Integer>> hitPartitions = new HashMap<Long, Set<Integer>>();
+    _phases.put(queryRequest, new FetchPhase(start + (long) (_timeout * _queryShare), false,
+        hitPartitions));
+    SenseiResult result;
+    try {
+      result = super.browse(queryRequest);
+    } finally {
+      _phases.remove(queryRequest);
+    }
+    SenseiHit[] hits = result.getSenseiHits();
+    if (hits == null || hits.length == 0) {
+      return result;
+    }
+    if (System.currentTimeMillis() >= deadline) {
+      result.addError(new SenseiError("The stored fields were not fetched within " + _timeout
+          + "ms", ErrorType.BrokerTimeout));
+      return result;
+    }
+
+    SenseiRequest fetchRequest = buildFetchRequest(req, hits, hitPartitions);
+    _phases.put(fetchRequest, new FetchPhase(deadline, true, null));
+    SenseiResult fetched;
+    try {
+      fetched = super.browse(fetchRequest);
+    } finally {
+      _phases.remove(fetchRequest);
+    }
+    mergeStoredFields(hits, fetched.getSenseiHits());
+    result.getErrors().addAll(fetched.getErrors());
+    result.setTime(result.getTime() + fetched.getTime());
+    return result;
+  }
+
+  /**
+   * @return the request for the stored fields of the hits, sent to the partitions of the nodes that
+   *         returned them, or to all the partitions if any of them is not known
+   */
+  static SenseiRequest buildFetchRequest(SenseiRequest req, SenseiHit[] hits,
+      Map<Long, Set<Integer>> hitPartitions) {
+    String[] uids = new String[hits.length];
+    Set<Integer> partitions = new HashSet<Integer>();
+    for (int i = 0; i < hits.length; i++) {
+      uids[i] = String.valueOf(hits[i].getUID());
+      Set<Integer> owners = hitPartitions.get(hits[i].getUID());
+      if (owners == null) {
+        partitions = null;
+      } else if (partitions != null) {
+        partitions.addAll(owners);
+      }
+    }
+    SenseiRequest fetchRequest = new SenseiRequest();
+    fetchRequest.setFetchStoredFields(true);
+    fetchRequest.setCount(hits.length);
+    if (req.hasRouteParam()) {
+      fetchRequest.setRouteParam(req.getRouteParam());
+    }
+    fetchRequest.setPartitions(partitions);
+    BrowseSelection uidSelection = new BrowseSelection(SenseiFacetHandlerBuilder.UID_FACET_NAME);
+    uidSelection.setValues(uids);
+    fetchRequest.addSelection(uidSelection);
+    return fetchRequest;
+  }
+
+  /**
+   * Copies the stored fields and the source data of the fetched hits to the hits with the same uid.
+   */
+  static void mergeStoredFields(SenseiHit[] hits, SenseiHit[] fetchedHits) {
+    Map<Long, SenseiHit> fetchedByUid = new HashMap<Long, SenseiHit>();
+    if (fetchedHits != null) {
+      for (SenseiHit hit : fetchedHits) {
+        fetchedByUid.put(hit.getUID(), hit);
+      }
+    }
+    for (SenseiHit hit : hits) {
+      SenseiHit fetchedHit = fetchedByUid.get(hit.getUID());
+      if (fetchedHit != null) {
+        hit.setStoredFields(fetchedHit.getStoredFields());
+        hit.setStoredValue(fetchedHit.getStoredValue());
+        hit.setSrcData(fetchedHit.getSrcData());
+      }
+    }
+  }
+
+  @Override
+  protected boolean isRoutedToPartitions(SenseiRequest req) {
+    FetchPhase phase = _phases.get(req);
+    return phase != null && phase.routedToPartitions;
+  }
+
+  @Override
+  protected long getTimeout(SenseiRequest req) {
+    FetchPhase phase = _phases.get(req);
+    if (phase == null) {
+      return super.getTimeout(req);
+    }
+    return Math.max(0, phase.deadline - System.currentTimeMillis());
+  }
+
   public static void recoverSrcData(SenseiResult res, SenseiHit[] hits, boolean isFetchStoredFields) {
     if (hits != null) {
       for (SenseiHit hit : hits) {
@@ -81,8 +258,32 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
 
   @Override
   public SenseiResult mergeResults(SenseiRequest request, List<SenseiResult> resultList) {
+    FetchPhase phase = _phases.get(request);
+    Map<Long, Set<Integer>> hitPartitions = phase == null ? null : phase.hitPartitions;
+    if (hitPartitions != null) {
+      for (SenseiResult nodeResult : resultList) {
+        SenseiHit[] nodeHits = nodeResult.getSenseiHits();
+        if (nodeHits == null || nodeResult.getPartitionVersions() == null) {
+          continue;
+        }
+        for (SenseiHit hit : nodeHits) {
+          hitPartitions.put(hit.getUID(), nodeResult.getPartitionVersions().keySet());
+        }
+      }
+    }
     SenseiResult res = ResultMerger.merge(request, resultList, false);
 
+    Map<Integer, String> partitionVersions = new HashMap<Integer, String>();
+    for (SenseiResult nodeResult : resultList) {
+      if (nodeResult.getPartitionVersions() != null) {
+        partitionVersions.putAll(nodeResult.getPartitionVersions());
+      }
+    }
+    res.setPartitionVersions(partitionVersions);
+    if (_resultCache != null) {
+      _resultCache.updateVersions(partitionVersions);
+    }
+
     if (request.isFetchStoredFields()) {
       long start = System.currentTimeMillis();
       recoverSrcData(res, res.getSenseiHits(), request.isFetchStoredFields());
@@ -98,7 +299,10 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
   }
 
   @Override
-  public SenseiRequest customizeRequest(SenseiRequest request) { // Rewrite offset and count.
+  public SenseiRequest customizeRequest(SenseiRequest request) {
+    request.setResultVersion(BinarySenseiSerializer.VERSION);
+
+    // Rewrite offset and count.
     request.setCount(request.getOffset() + request.getCount());
     request.setOffset(0);
 
@@ -163,6 +367,26 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
 
   @Override
   public void nodesRemoved(Set<InetSocketAddress> nodesRemoved) {
+    for (InetSocketAddress node : nodesRemoved) {
+      _latencyTracker.remove(node);
+    }
+  }
+
+  /**
+   * A request of the two phase fetch.
+   */
+  private static class FetchPhase {
+    final long deadline;
+    // only the partitions of the request are searched
+    final boolean routedToPartitions;
+    // the partitions of the nodes that returned the hits of the query phase, by uid
+    final Map<Long, Set<Integer>> hitPartitions;
+
+    FetchPhase(long deadline, boolean routedToPartitions, Map<Long, Set<Integer>> hitPartitions) {
+      this.deadline = deadline;
+      this.routedToPartitions = routedToPartitions;
+      this.hitPartitions = hitPartitions;
+    }
   }
 
 }
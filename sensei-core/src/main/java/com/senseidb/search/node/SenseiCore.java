@@ -195,6 +195,14 @@ public class SenseiCore {
     return readerFactory;
   }
 
+  /**
+   * @return the version of the data indexed so far by the partition, null if unknown
+   */
+  public String getIndexVersion(int partition) {
+    Zoie<BoboSegmentReader, ?> zoieSystem = _readerFactoryMap.get(partition);
+    return zoieSystem == null ? null : zoieSystem.getVersion();
+  }
+
   public SenseiQueryBuilderFactory getQueryBuilderFactory() {
     return _queryBuilderFactory;
   }
@@ -56,6 +56,8 @@ public class SenseiServer {
   private final ZuTransportService transportService;
   private final ZuFinagleServer server;
   private final ZuCluster cluster;
+  private AbstractSenseiCoreService<SenseiRequest, SenseiResult> _coreSenseiService;
+  private AbstractSenseiCoreService<SenseiRequest, SenseiSystemInfo> _sysSenseiCoreService;
 
   @SuppressWarnings({ "unchecked", "rawtypes" })
   public SenseiServer(SenseiCore senseiCore, SenseiPluginRegistry pluginRegistry,
@@ -104,6 +106,12 @@ public class SenseiServer {
         server.leaveCluster(cluster);
         server.shutdown();
         cluster.shutdown();
+        if (_coreSenseiService != null) {
+          _coreSenseiService.shutdown();
+        }
+        if (_sysSenseiCoreService != null) {
+          _sysSenseiCoreService.shutdown();
+        }
       } catch (Exception e) {
         logger.warn(e.getMessage());
       }
@@ -117,14 +125,12 @@ public class SenseiServer {
     _core.start();
     logger.info("Cluster Id: " + cluster.getClusterId());
 
-    AbstractSenseiCoreService<SenseiRequest, SenseiResult> coreSenseiService = new CoreSenseiServiceImpl(
-        _core, _senseiConf);
-    AbstractSenseiCoreService<SenseiRequest, SenseiSystemInfo> sysSenseiCoreService = new SysSenseiCoreServiceImpl(
-        _core, _senseiConf);
+    _coreSenseiService = new CoreSenseiServiceImpl(_core, _senseiConf);
+    _sysSenseiCoreService = new SysSenseiCoreServiceImpl(_core, _senseiConf);
     SenseiCoreServiceMessageHandler<SenseiRequest, SenseiResult> senseiMsgHandler = new SenseiCoreServiceMessageHandler<SenseiRequest, SenseiResult>(
-        coreSenseiService);
+        _coreSenseiService);
     SenseiCoreServiceMessageHandler<SenseiRequest, SenseiSystemInfo> senseiSysMsgHandler = new SenseiCoreServiceMessageHandler<SenseiRequest, SenseiSystemInfo>(
-        sysSenseiCoreService);
+        _sysSenseiCoreService);
 
     transportService.registerHandler(senseiMsgHandler);
     transportService.registerHandler(senseiSysMsgHandler);
@@ -226,6 +232,10 @@ public class SenseiServer {
     return _available;
   }
 
+  public SenseiCore getCore() {
+    return _core;
+  }
+
   public static void main(String[] args) throws Exception {
     if (args.length < 1) {
       System.out.println(help());
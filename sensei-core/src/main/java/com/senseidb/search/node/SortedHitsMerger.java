@@ -0,0 +1,128 @@
+package com.senseidb.search.node;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiResult;
+
+/**
+ * Streaming k-way merge over hit arrays that are already sorted by the request comparator, such
+ * as the hits returned by every partition. A binary heap keeps one cursor per array, so every
+ * merged hit costs O(log k) comparisons and no allocation, and the merge stops as soon as the
+ * caller stops asking for hits.
+ */
+public class SortedHitsMerger implements Iterator<SenseiHit> {
+  private final SenseiHit[][] _lists;
+  private final int[] _cursors;
+  // indexes of the non exhausted lists, ordered by their current hit
+  private final int[] _heap;
+  private int _size = 0;
+  private final Comparator<SenseiHit> _comparator;
+
+  public SortedHitsMerger(SenseiHit[][] lists, Comparator<SenseiHit> comparator) {
+    _lists = lists;
+    _comparator = comparator;
+    _cursors = new int[lists.length];
+    _heap = new int[lists.length];
+    for (int i = 0; i < lists.length; ++i) {
+      if (lists[i] != null && lists[i].length > 0) {
+        _heap[_size++] = i;
+      }
+    }
+    for (int i = (_size >>> 1) - 1; i >= 0; --i) {
+      siftDown(i);
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return _size > 0;
+  }
+
+  @Override
+  public SenseiHit next() {
+    if (_size == 0) {
+      throw new NoSuchElementException();
+    }
+    int list = _heap[0];
+    SenseiHit hit = _lists[list][_cursors[list]++];
+    if (_cursors[list] == _lists[list].length) {
+      _heap[0] = _heap[--_size];
+    }
+    if (_size > 0) {
+      siftDown(0);
+    }
+    return hit;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  private void siftDown(int pos) {
+    int list = _heap[pos];
+    int half = _size >>> 1;
+    while (pos < half) {
+      int child = (pos << 1) + 1;
+      int right = child + 1;
+      if (right < _size && less(_heap[right], _heap[child])) {
+        child = right;
+      }
+      if (!less(_heap[child], list)) {
+        break;
+      }
+      _heap[pos] = _heap[child];
+      pos = child;
+    }
+    _heap[pos] = list;
+  }
+
+  private boolean less(int list1, int list2) {
+    int cmp = _comparator.compare(_lists[list1][_cursors[list1]], _lists[list2][_cursors[list2]]);
+    if (cmp != 0) {
+      return cmp < 0;
+    }
+    // keep the merge stable between lists
+    return list1 < list2;
+  }
+
+  /**
+   * Merges the sorted lists and returns the hits from offset to offset + count, without
+   * materializing the hits before offset.
+   */
+  public static SenseiHit[] merge(SenseiHit[][] lists, int offset, int count,
+      Comparator<SenseiHit> comparator) {
+    long total = 0;
+    for (SenseiHit[] list : lists) {
+      if (list != null) {
+        total += list.length;
+      }
+    }
+    int len = (int) Math.max(0, Math.min(count, total - offset));
+    SenseiHit[] hits = new SenseiHit[len];
+    if (len == 0) {
+      return hits;
+    }
+    SortedHitsMerger merger = new SortedHitsMerger(lists, comparator);
+    for (int i = 0; i < offset; ++i) {
+      merger.next();
+    }
+    for (int i = 0; i < len; ++i) {
+      hits[i] = merger.next();
+    }
+    return hits;
+  }
+
+  public static SenseiHit[][] extractHits(Collection<SenseiResult> results) {
+    SenseiHit[][] lists = new SenseiHit[results.size()][];
+    int i = 0;
+    for (SenseiResult res : results) {
+      lists[i++] = res.getSenseiHits();
+    }
+    return lists;
+  }
+}
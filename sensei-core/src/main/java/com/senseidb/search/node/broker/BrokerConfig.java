@@ -83,6 +83,9 @@ public class BrokerConfig {
   public AbstractConsistentHashBroker<SenseiRequest, SenseiSystemInfo> buildSysSenseiBroker(
       Comparator<String> versionComparator) {
     senseiSysBroker = new SenseiSysBroker(clusterClient, versionComparator, senseiConf);
+    if (senseiBroker != null) {
+      senseiBroker.setVersionComparator(versionComparator);
+    }
     return senseiSysBroker;
   }
 
@@ -0,0 +1,255 @@
+package com.senseidb.search.node.broker;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.browseengine.bobo.api.FacetAccessible;
+import com.senseidb.metrics.MetricsConstants;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * LRU cache of merged broker results, keyed on a canonical form of the request.
+ *
+ * An entry remembers the index version of every partition it was computed from. Nodes report
+ * their versions with every result, and an entry is dropped as soon as any node reported a newer
+ * version for one of its partitions. Entries older than the max staleness are dropped in any
+ * case, which bounds staleness for partitions that receive no uncached traffic.
+ */
+public class BrokerResultCache {
+  private static Meter HitMeter = null;
+  private static Meter MissMeter = null;
+  private static Meter EvictionMeter = null;
+  private static Meter InvalidationMeter = null;
+  static {
+    HitMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter", "cache-hits",
+        "broker"), "requests", TimeUnit.SECONDS);
+    MissMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter", "cache-misses",
+        "broker"), "requests", TimeUnit.SECONDS);
+    EvictionMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter",
+        "cache-evictions", "broker"), "entries", TimeUnit.SECONDS);
+    InvalidationMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter",
+        "cache-invalidations", "broker"), "entries", TimeUnit.SECONDS);
+  }
+
+  private final int _maxEntries;
+  private final long _maxBytes;
+  private final long _maxStaleness;
+  private volatile Comparator<String> _versionComparator;
+  private final Map<Integer, String> _latestVersions = new ConcurrentHashMap<Integer, String>();
+  private final LinkedHashMap<String, CacheEntry> _entries = new LinkedHashMap<String, CacheEntry>(
+      16, 0.75f, true);
+  private long _bytes = 0;
+
+  public BrokerResultCache(int maxEntries, long maxBytes, long maxStaleness,
+      Comparator<String> versionComparator) {
+    _maxEntries = maxEntries;
+    _maxBytes = maxBytes;
+    _maxStaleness = maxStaleness;
+    _versionComparator = versionComparator;
+
+    Metrics.newGauge(new MetricName(MetricsConstants.Domain, "gauge", "cache-bytes", "broker"),
+      new Gauge<Long>() {
+        @Override
+        public Long value() {
+          synchronized (BrokerResultCache.this) {
+            return _bytes;
+          }
+        }
+      });
+    Metrics.newGauge(new MetricName(MetricsConstants.Domain, "gauge", "cache-entries", "broker"),
+      new Gauge<Integer>() {
+        @Override
+        public Integer value() {
+          synchronized (BrokerResultCache.this) {
+            return _entries.size();
+          }
+        }
+      });
+    Metrics.newGauge(new MetricName(MetricsConstants.Domain, "gauge", "cache-hit-ratio", "broker"),
+      new Gauge<Double>() {
+        @Override
+        public Double value() {
+          long hits = HitMeter.count();
+          long total = hits + MissMeter.count();
+          return total == 0 ? 0 : (double) hits / total;
+        }
+      });
+  }
+
+  public void setVersionComparator(Comparator<String> versionComparator) {
+    _versionComparator = versionComparator;
+  }
+
+  /**
+   * @return the cache key of the request, or null if the request can not be cached
+   */
+  public static String getCacheKey(SenseiRequest req) {
+    String key = req.toCacheKey();
+    if (key == null) {
+      return null;
+    }
+    Set<Integer> partitions = req.getPartitions();
+    return key + "\npartitions=" + (partitions == null ? null : new TreeSet<Integer>(partitions));
+  }
+
+  /**
+   * Records the index versions reported by a node.
+   */
+  public void updateVersions(Map<Integer, String> partitionVersions) {
+    if (partitionVersions == null) {
+      return;
+    }
+    for (Entry<Integer, String> entry : partitionVersions.entrySet()) {
+      String version = entry.getValue();
+      if (version == null) {
+        continue;
+      }
+      // a lagging replica must not move the latest version back
+      synchronized (_latestVersions) {
+        String latest = _latestVersions.get(entry.getKey());
+        if (latest == null || _versionComparator.compare(latest, version) < 0) {
+          _latestVersions.put(entry.getKey(), version);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return a copy of the cached result, or null if there is no valid entry for the key
+   */
+  public SenseiResult get(String key) {
+    CacheEntry entry;
+    synchronized (this) {
+      entry = _entries.get(key);
+      if (entry != null && !isValid(entry)) {
+        _entries.remove(key);
+        _bytes -= entry.size;
+        InvalidationMeter.mark();
+        entry = null;
+      }
+    }
+    if (entry == null) {
+      MissMeter.mark();
+      return null;
+    }
+    HitMeter.mark();
+    return entry.result.copy();
+  }
+
+  public void put(String key, SenseiResult result) {
+    if (result.getErrors() != null && !result.getErrors().isEmpty()) {
+      return;
+    }
+    CacheEntry entry = new CacheEntry(result.copy(), System.currentTimeMillis());
+    if (!isValid(entry) || entry.size > _maxBytes) {
+      // computed from versions that are already outdated or too big to be worth it
+      return;
+    }
+    synchronized (this) {
+      CacheEntry old = _entries.put(key, entry);
+      if (old != null) {
+        _bytes -= old.size;
+      }
+      _bytes += entry.size;
+      Iterator<CacheEntry> iter = _entries.values().iterator();
+      while ((_entries.size() > _maxEntries || _bytes > _maxBytes) && iter.hasNext()) {
+        CacheEntry eldest = iter.next();
+        iter.remove();
+        _bytes -= eldest.size;
+        EvictionMeter.mark();
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    _entries.clear();
+    _bytes = 0;
+  }
+
+  private boolean isValid(CacheEntry entry) {
+    if (System.currentTimeMillis() - entry.createTime > _maxStaleness) {
+      return false;
+    }
+    Map<Integer, String> versions = entry.result.getPartitionVersions();
+    if (versions == null) {
+      return true;
+    }
+    for (Entry<Integer, String> version : versions.entrySet()) {
+      String latest = _latestVersions.get(version.getKey());
+      if (latest != null
+          && (version.getValue() == null || _versionComparator.compare(latest, version.getValue()) > 0)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Rough heap footprint of a result, dominated by the hits.
+   */
+  static long estimateSize(SenseiResult result) {
+    long size = 256;
+    for (SenseiHit hit : result.getSenseiHits()) {
+      size += estimateSize(hit);
+    }
+    if (result.getFacetMap() != null) {
+      for (Entry<String, FacetAccessible> entry : result.getFacetMap().entrySet()) {
+        size += 64 + 2 * entry.getKey().length();
+        size += 64 * entry.getValue().getFacets().size();
+      }
+    }
+    return size;
+  }
+
+  private static long estimateSize(SenseiHit hit) {
+    long size = 128;
+    if (hit.getSrcData() != null) {
+      size += 2 * hit.getSrcData().length();
+    }
+    if (hit.getStoredValue() != null) {
+      size += hit.getStoredValue().length;
+    }
+    if (hit.getFieldValues() != null) {
+      for (Entry<String, String[]> entry : hit.getFieldValues().entrySet()) {
+        size += 48;
+        if (entry.getValue() != null) {
+          for (String value : entry.getValue()) {
+            size += value == null ? 8 : 48 + 2 * value.length();
+          }
+        }
+      }
+    }
+    if (hit.getRawFieldValues() != null) {
+      size += 64 * hit.getRawFieldValues().size();
+    }
+    for (SenseiHit groupHit : hit.getSenseiGroupHits()) {
+      size += estimateSize(groupHit);
+    }
+    return size;
+  }
+
+  private static class CacheEntry {
+    final SenseiResult result;
+    final long createTime;
+    final long size;
+
+    CacheEntry(SenseiResult result, long createTime) {
+      this.result = result;
+      this.createTime = createTime;
+      this.size = estimateSize(result);
+    }
+  }
+}
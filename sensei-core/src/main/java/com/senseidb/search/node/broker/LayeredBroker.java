@@ -1,26 +1,89 @@
 package com.senseidb.search.node.broker;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.util.NamedThreadFactory;
 
 import com.senseidb.conf.SenseiConfParams;
 import com.senseidb.plugin.SenseiPlugin;
 import com.senseidb.plugin.SenseiPluginRegistry;
 import com.senseidb.search.node.Broker;
 import com.senseidb.search.node.ResultMerger;
-import com.senseidb.search.node.SenseiBroker;
+import com.senseidb.search.req.ErrorType;
+import com.senseidb.search.req.SenseiError;
+import com.senseidb.search.req.SenseiHit;
 import com.senseidb.search.req.SenseiRequest;
 import com.senseidb.search.req.SenseiResult;
 import com.senseidb.svc.api.SenseiException;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
 
+/**
+ * Queries the clusters concurrently, all of them have to answer within the same deadline. When the
+ * clusters have priorities, the next cluster is only needed if the current one does not have
+ * enough hits. It is queried ahead, if the current cluster had fewer hits for the same query
+ * recently. The clusters that do not answer in time are reported as errors of the result.
+ */
 public class LayeredBroker implements SenseiPlugin, Broker<SenseiRequest, SenseiResult> {
+  private final static Logger logger = Logger.getLogger(LayeredBroker.class);
   private static final String CLUSTERS = "clusters";
+  private static final String TIMEOUT = "timeout";
+  private static final String THREADS = "threads";
+  private static final String QUEUE_SIZE = "queueSize";
+  private static final String HIT_ESTIMATES_SIZE = "hitEstimates.maxEntries";
+  private static final String HIT_ESTIMATES_TTL = "hitEstimates.ttl";
+  private static final Counter usedPrefetches = Metrics.newCounter(new MetricName(
+      LayeredBroker.class, "usedPrefetches"));
+  private static final Counter wastedPrefetches = Metrics.newCounter(new MetricName(
+      LayeredBroker.class, "wastedPrefetches"));
+  private static final Counter timedOutClusters = Metrics.newCounter(new MetricName(
+      LayeredBroker.class, "timedOutClusters"));
+  private static final Counter rejectedClusters = Metrics.newCounter(new MetricName(
+      LayeredBroker.class, "rejectedClusters"));
   private List<String> clusters = new ArrayList<String>();
   private Map<String, CompoundBrokerConfig> clusterBrokerConfig = new HashMap<String, CompoundBrokerConfig>();
-  private Map<String, SenseiBroker> brokers = new HashMap<String, SenseiBroker>();
+  private Map<String, Broker<SenseiRequest, SenseiResult>> brokers =
+      new HashMap<String, Broker<SenseiRequest, SenseiResult>>();
   private LayeredClusterPruner federatedPruner;
+  private HitEstimates hitEstimates;
+  private long timeout;
+  private int threads;
+  private int queueSize;
+  private ThreadPoolExecutor executor;
+
+  public LayeredBroker() {
+  }
+
+  /**
+   * Queries the given brokers, for the tests.
+   */
+  LayeredBroker(List<String> clusters,
+      Map<String, ? extends Broker<SenseiRequest, SenseiResult>> brokers,
+      LayeredClusterPruner pruner, long timeout, int threads, int queueSize) {
+    this.clusters.addAll(clusters);
+    this.brokers.putAll(brokers);
+    this.federatedPruner = pruner;
+    this.timeout = timeout;
+    this.threads = threads;
+    this.queueSize = queueSize;
+    hitEstimates = new HitEstimates(10000, 60000);
+    executor = createExecutor(threads, queueSize);
+  }
 
   @Override
   public void init(Map<String, String> config, SenseiPluginRegistry pluginRegistry) {
@@ -33,6 +96,13 @@ public class LayeredBroker implements SenseiPlugin, Broker<SenseiRequest, Sensei
     if (federatedPruner == null) {
       federatedPruner = new AllClustersPruner();
     }
+    String timeoutConfig = config.get(TIMEOUT);
+    timeout = timeoutConfig != null ? Long.parseLong(timeoutConfig.trim()) : pluginRegistry
+        .getConfiguration().getLong(SenseiConfParams.SERVER_BROKER_TIMEOUT, 8000);
+    threads = getInt(config, THREADS, Runtime.getRuntime().availableProcessors() * 2);
+    queueSize = getInt(config, QUEUE_SIZE, 1000);
+    hitEstimates = new HitEstimates(getInt(config, HIT_ESTIMATES_SIZE, 10000), getInt(config,
+      HIT_ESTIMATES_TTL, 60000));
     for (String cluster : clustersConfig.split(",")) {
       String trimmed = cluster.trim();
       if (trimmed.length() > 0) {
@@ -43,6 +113,19 @@ public class LayeredBroker implements SenseiPlugin, Broker<SenseiRequest, Sensei
     }
   }
 
+  private static int getInt(Map<String, String> config, String key, int defaultValue) {
+    String value = config.get(key);
+    return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+  }
+
+  private static ThreadPoolExecutor createExecutor(int threads, int queueSize) {
+    ThreadPoolExecutor ret = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("layered-broker"),
+        new ThreadPoolExecutor.AbortPolicy());
+    ret.allowCoreThreadTimeOut(true);
+    return ret;
+  }
+
   @Override
   public void start() {
     for (String cluster : clusters) {
@@ -50,11 +133,14 @@ public class LayeredBroker implements SenseiPlugin, Broker<SenseiRequest, Sensei
       brokerConfig.init(null);
       brokers.put(cluster, brokerConfig.buildSenseiBroker());
     }
-
+    executor = createExecutor(threads, queueSize);
   }
 
   @Override
   public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
     for (CompoundBrokerConfig brokerConfig : clusterBrokerConfig.values()) {
       brokerConfig.getSenseiBroker().shutdown();
       brokerConfig.shutdown();
@@ -62,7 +148,7 @@ public class LayeredBroker implements SenseiPlugin, Broker<SenseiRequest, Sensei
   }
 
   public void warmUp() {
-    for (SenseiBroker broker : brokers.values()) {
+    for (Broker<SenseiRequest, SenseiResult> broker : brokers.values()) {
       try {
         broker.browse(new SenseiRequest());
       } catch (SenseiException e) {
@@ -78,37 +164,203 @@ public class LayeredBroker implements SenseiPlugin, Broker<SenseiRequest, Sensei
     if (count == 0) {
       return new SenseiResult();
     }
-
+    long deadline = System.currentTimeMillis() + timeout;
     List<SenseiResult> results = new ArrayList<SenseiResult>();
+    List<SenseiError> errors = new ArrayList<SenseiError>();
     if (!federatedPruner.clusterPrioritiesEqual(req)) {
-      for (String cluster : prunedClusters) {
-        if (count <= 0) {
+      String estimateKey = req.getGroupBy() == null || req.getGroupBy().length == 0 ? HitEstimates
+          .getKey(req) : null;
+      TierRequest tier = prunedClusters.isEmpty() ? null : submit(prunedClusters.get(0), req,
+        offset, count, false, errors);
+      for (int i = 0; i < prunedClusters.size(); i++) {
+        String cluster = prunedClusters.get(i);
+        TierRequest next = null;
+        if (estimateKey != null && i + 1 < prunedClusters.size()
+            && hitEstimates.isLikelyInsufficient(cluster, estimateKey, offset + count)) {
+          // any window of the next tier lies within its first offset + count hits
+          next = submit(prunedClusters.get(i + 1), req, 0, offset + count, true, errors);
+        }
+        SenseiResult currentResult = await(tier, cluster, deadline, errors);
+        if (currentResult == null) {
+          cancel(next);
           break;
         }
-        SenseiRequest request = req.clone();
-        request.setCount(count);
-        request.setOffset(offset);
-        SenseiResult currentResult = brokers.get(cluster).browse(request);
         int numHits = currentResult.getNumHits();
+        if (estimateKey != null) {
+          hitEstimates.put(cluster, estimateKey, numHits);
+        }
         if (offset >= numHits) {
           offset -= numHits;
-          continue;
         } else {
           numHits -= offset;
           offset = 0;
           count -= numHits;
           results.add(currentResult);
         }
+        if (count <= 0 || i + 1 == prunedClusters.size()) {
+          if (next != null) {
+            wastedPrefetches.inc();
+          }
+          cancel(next);
+          break;
+        }
+        if (next != null) {
+          usedPrefetches.inc();
+          next.offset = offset;
+          next.count = count;
+          tier = next;
+        } else {
+          tier = submit(prunedClusters.get(i + 1), req, offset, count, false, errors);
+        }
       }
     } else {
+      List<TierRequest> requests = new ArrayList<TierRequest>(prunedClusters.size());
       for (String cluster : prunedClusters) {
-        SenseiRequest request = req.clone();
-        SenseiResult currentResult = brokers.get(cluster).browse(request);
-        results.add(currentResult);
+        requests.add(submit(cluster, req, req.getOffset(), req.getCount(), false, errors));
+      }
+      for (int i = 0; i < prunedClusters.size(); i++) {
+        SenseiResult currentResult = await(requests.get(i), prunedClusters.get(i), deadline,
+          errors);
+        if (currentResult != null) {
+          results.add(currentResult);
+        }
       }
     }
     SenseiResult res = ResultMerger.merge(req, results, false);
+    res.getErrors().addAll(errors);
     return res;
   }
 
+  /**
+   * @return the request of the cluster, or null if the executor rejected it. A rejected prefetch is
+   *         not an error, the cluster is queried again once it is needed.
+   */
+  private TierRequest submit(String cluster, SenseiRequest req, int offset, int count,
+      boolean prefetched, List<SenseiError> errors) {
+    final Broker<SenseiRequest, SenseiResult> broker = brokers.get(cluster);
+    final SenseiRequest request = req.clone();
+    request.setOffset(offset);
+    request.setCount(count);
+    TierRequest ret = new TierRequest();
+    try {
+      ret.future = executor.submit(new Callable<SenseiResult>() {
+        @Override
+        public SenseiResult call() throws Exception {
+          return broker.browse(request);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      if (!prefetched) {
+        rejectedClusters.inc();
+        logger.error("Layered broker queue is full, rejecting cluster " + cluster + " call.");
+        errors.add(new SenseiError("Layered broker queue is full, cluster " + cluster
+            + " was not queried", ErrorType.ExecutionRejected));
+      }
+      return null;
+    }
+    ret.offset = offset;
+    ret.count = count;
+    ret.prefetched = prefetched;
+    return ret;
+  }
+
+  /**
+   * @return the result of the cluster, or null if the cluster was not queried or did not answer
+   *         before the deadline
+   */
+  private SenseiResult await(TierRequest tier, String cluster, long deadline,
+      List<SenseiError> errors) throws SenseiException {
+    if (tier == null) {
+      return null;
+    }
+    SenseiResult ret;
+    try {
+      ret = tier.future.get(Math.max(0, deadline - System.currentTimeMillis()),
+        TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      tier.future.cancel(true);
+      timedOutClusters.inc();
+      logger.warn("Cluster " + cluster + " did not respond within " + timeout + "ms");
+      errors.add(new SenseiError("Cluster " + cluster + " did not respond within " + timeout
+          + "ms", ErrorType.BrokerTimeout));
+      return null;
+    } catch (InterruptedException e) {
+      tier.future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new SenseiException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SenseiException) {
+        throw (SenseiException) e.getCause();
+      }
+      throw new SenseiException(e.getCause());
+    }
+    if (tier.prefetched) {
+      // the prefetched result starts at the first hit, cut the window the tier was asked for
+      SenseiHit[] hits = ret.getSenseiHits();
+      int from = Math.min(tier.offset, hits.length);
+      int to = Math.min(tier.offset + tier.count, hits.length);
+      ret.setHits(Arrays.copyOfRange(hits, from, to));
+    }
+    return ret;
+  }
+
+  private static void cancel(TierRequest tier) {
+    if (tier != null) {
+      tier.future.cancel(true);
+    }
+  }
+
+  private static class TierRequest {
+    Future<SenseiResult> future;
+    int offset;
+    int count;
+    boolean prefetched;
+  }
+
+  /**
+   * The number of hits the clusters had for the recent queries, an estimate is kept for a query
+   * regardless of its page and expires after the time to live.
+   */
+  static class HitEstimates {
+    private final Map<String, long[]> _estimates;
+    private final long _ttl;
+
+    HitEstimates(final int maxEntries, long ttl) {
+      _ttl = ttl;
+      _estimates = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+          return size() > maxEntries;
+        }
+      };
+    }
+
+    /**
+     * @return the key of the query of the request, or null if the request has no canonical form
+     */
+    static String getKey(SenseiRequest req) {
+      SenseiRequest query = req.clone();
+      query.setOffset(0);
+      query.setCount(0);
+      return BrokerResultCache.getCacheKey(query);
+    }
+
+    synchronized void put(String cluster, String key, int numHits) {
+      _estimates.put(cluster + "\n" + key, new long[] { numHits, System.currentTimeMillis() });
+    }
+
+    synchronized boolean isLikelyInsufficient(String cluster, String key, int hits) {
+      long[] estimate = _estimates.get(cluster + "\n" + key);
+      if (estimate == null) {
+        return false;
+      }
+      if (System.currentTimeMillis() - estimate[1] > _ttl) {
+        _estimates.remove(cluster + "\n" + key);
+        return false;
+      }
+      return estimate[0] < hits;
+    }
+  }
 }
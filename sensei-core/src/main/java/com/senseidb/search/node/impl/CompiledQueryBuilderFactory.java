@@ -0,0 +1,143 @@
+package com.senseidb.search.node.impl;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.senseidb.search.node.SenseiQueryBuilder;
+import com.senseidb.search.node.SenseiQueryBuilderFactory;
+import com.senseidb.search.query.CustomQueryConstructor;
+import com.senseidb.search.query.filters.CustomFilterConstructor;
+import com.senseidb.search.req.SenseiQuery;
+import com.senseidb.util.JSONUtil.FastJSONObject;
+
+/**
+ * Holds the query and the filter of one request, built once and shared by all the partitions and
+ * the segment groups the request is searched on, instead of parsing the request again for each of
+ * them. The weights, scorers and doc id sets are created for every reader, so the searches can
+ * share the queries and filters that keep no state of their own while searching: the scoring
+ * functions of the score augmented queries and the matching strategies of the flexible queries
+ * are copied for every scorer. The custom queries and filters are classes of the users that may
+ * keep state, the requests that have any are built per partition like before. Any other query is
+ * built by the underlying factory.
+ */
+public class CompiledQueryBuilderFactory implements SenseiQueryBuilderFactory {
+  private static final Logger logger = Logger.getLogger(CompiledQueryBuilderFactory.class);
+
+  // the types of the queries and filters that may not be shared
+  private static final Set<String> UNSHARED_TYPES = new HashSet<String>(Arrays.asList(
+    CustomQueryConstructor.QUERY_TYPE, CustomFilterConstructor.FILTER_TYPE));
+
+  private final SenseiQueryBuilderFactory _factory;
+  private final SenseiQuery _query;
+  private final SenseiQueryBuilder _compiled;
+
+  private CompiledQueryBuilderFactory(SenseiQueryBuilderFactory factory, SenseiQuery query,
+      SenseiQueryBuilder compiled) {
+    _factory = factory;
+    _query = query;
+    _compiled = compiled;
+  }
+
+  /**
+   * @return the factory with the query built, or the underlying factory if the query can't be
+   *         shared or built, so that every partition reports the error as before
+   */
+  public static SenseiQueryBuilderFactory compile(SenseiQueryBuilderFactory factory,
+      SenseiQuery query) {
+    if (!isShareable(query)) {
+      return factory;
+    }
+    try {
+      SenseiQueryBuilder builder = factory.getQueryBuilder(query);
+      SenseiQueryBuilder compiled = null;
+      if (builder != null) {
+        compiled = new CompiledQueryBuilder(builder.buildQuery(), builder.buildFilter());
+      }
+      return new CompiledQueryBuilderFactory(factory, query, compiled);
+    } catch (Exception e) {
+      if (logger.isDebugEnabled()) {
+        logger.debug("Could not compile the query, it is built per partition: " + e.getMessage());
+      }
+      return factory;
+    }
+  }
+
+  /**
+   * @return false if the JSON query has a query or a filter of a type that may not be shared, the
+   *         queries that are not JSON are parsed by the Lucene query parser and can be shared
+   */
+  static boolean isShareable(SenseiQuery query) {
+    if (query == null) {
+      return true;
+    }
+    String text = query.toString();
+    if (text == null || !text.trim().startsWith("{")) {
+      return true;
+    }
+    try {
+      return !hasType(new FastJSONObject(text));
+    } catch (JSONException e) {
+      // the partitions report it
+      return false;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static boolean hasType(Object json) throws JSONException {
+    if (json instanceof JSONObject) {
+      JSONObject obj = (JSONObject) json;
+      Iterator<String> keys = obj.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        if (UNSHARED_TYPES.contains(key) || hasType(obj.get(key))) {
+          return true;
+        }
+      }
+    } else if (json instanceof JSONArray) {
+      JSONArray array = (JSONArray) json;
+      for (int i = 0; i < array.length(); ++i) {
+        if (hasType(array.get(i))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public SenseiQueryBuilder getQueryBuilder(SenseiQuery query) throws Exception {
+    if (query == _query) {
+      return _compiled;
+    }
+    return _factory.getQueryBuilder(query);
+  }
+
+  private static class CompiledQueryBuilder implements SenseiQueryBuilder {
+    private final Query _query;
+    private final Filter _filter;
+
+    public CompiledQueryBuilder(Query query, Filter filter) {
+      _query = query;
+      _filter = filter;
+    }
+
+    @Override
+    public Query buildQuery() {
+      return _query;
+    }
+
+    @Override
+    public Filter buildFilter() {
+      return _filter;
+    }
+  }
+}
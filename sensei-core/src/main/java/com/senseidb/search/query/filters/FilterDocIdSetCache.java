@@ -0,0 +1,415 @@
+package com.senseidb.search.query.filters;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.SortedVIntList;
+
+import proj.zoie.api.ZoieSegmentReader;
+
+import com.browseengine.bobo.api.BoboSegmentReader;
+import com.browseengine.bobo.facets.data.FacetDataCache;
+import com.senseidb.metrics.MetricsConstants;
+import com.senseidb.util.JSONUtil;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Cache of the doc id sets of the filters, per segment. The entries are keyed on the canonical
+ * JSON of the filter and the core of the segment, the segments never change once written and the
+ * deleted docs are removed from the cached sets on every search, the same way Lucene's
+ * CachingWrapperFilter does.
+ *
+ * A filter is only cached once it was used by enough requests, the one off filters are never
+ * copied into a bit set. The memory of the cache is bounded, the entries are evicted by their
+ * number of uses per byte (GreedyDual-Size-Frequency), so that a big rarely used set goes before a
+ * small hot one, and all the entries of a segment are dropped when its core is closed.
+ *
+ * Only the filters on the fields without a facet handler, or with a facet handler that loads a
+ * {@link FacetDataCache}, are cached. The runtime facet handlers depend on the request and the
+ * activity facets are updated in place.
+ */
+public class FilterDocIdSetCache {
+  private static final Logger logger = Logger.getLogger(FilterDocIdSetCache.class);
+
+  // how many distinct filters are counted to decide which are worth caching
+  private static final int MAX_COUNTED_FILTERS = 10000;
+  // the estimated memory of an entry besides its doc id set
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private static Meter HitMeter = null;
+  private static Meter MissMeter = null;
+  private static Meter EvictionMeter = null;
+  static {
+    HitMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter",
+        "filter-cache-hits", "node"), "requests", TimeUnit.SECONDS);
+    MissMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter",
+        "filter-cache-misses", "node"), "requests", TimeUnit.SECONDS);
+    EvictionMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter",
+        "filter-cache-evictions", "node"), "entries", TimeUnit.SECONDS);
+    Metrics.newGauge(new MetricName(MetricsConstants.Domain, "gauge", "filter-cache-hit-ratio",
+        "node"), new Gauge<Double>() {
+      @Override
+      public Double value() {
+        long hits = HitMeter.count();
+        long total = hits + MissMeter.count();
+        return total == 0 ? 0 : (double) hits / total;
+      }
+    });
+    Metrics.newGauge(new MetricName(MetricsConstants.Domain, "gauge", "filter-cache-bytes",
+        "node"), new Gauge<Long>() {
+      @Override
+      public Long value() {
+        FilterDocIdSetCache cache = instance;
+        return cache == null ? 0L : cache.getBytes();
+      }
+    });
+    Metrics.newGauge(new MetricName(MetricsConstants.Domain, "gauge", "filter-cache-entries",
+        "node"), new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        FilterDocIdSetCache cache = instance;
+        return cache == null ? 0 : cache.size();
+      }
+    });
+  }
+
+  private static volatile FilterDocIdSetCache instance = null;
+
+  /**
+   * @return the cache of the node, or null if the filters are not cached
+   */
+  public static FilterDocIdSetCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Called once when the node is built. The cached sets are kept if the cache is configured again
+   * with the same settings, by another node of the same JVM for instance.
+   *
+   * @param maxBytes the memory of the cached sets, 0 disables the cache
+   * @param minUses the number of requests that must use a filter before it is cached
+   */
+  public static synchronized void configure(long maxBytes, int minUses) {
+    FilterDocIdSetCache current = instance;
+    if (current != null && current._maxBytes == maxBytes && current._minUses == minUses) {
+      return;
+    }
+    instance = maxBytes > 0 ? new FilterDocIdSetCache(maxBytes, minUses) : null;
+  }
+
+  /**
+   * @return the filter that caches the doc id sets of the given one in the cache of the node, or
+   *         the filter itself if the cache is disabled
+   */
+  public static Filter cache(String type, Object json, String field, Filter filter)
+      throws Exception {
+    FilterDocIdSetCache cache = instance;
+    if (cache == null || filter == null) {
+      return filter;
+    }
+    String key = type + ":" + JSONUtil.toCanonicalString(json);
+    cache.recordUse(key);
+    return new CachingFilter(cache, key, field, filter);
+  }
+
+  private final long _maxBytes;
+  private final int _minUses;
+  private final Map<Object, Map<String, Entry>> _segments = new HashMap<Object, Map<String, Entry>>();
+  private final TreeSet<Entry> _evictionOrder = new TreeSet<Entry>(new Comparator<Entry>() {
+    @Override
+    public int compare(Entry e1, Entry e2) {
+      if (e1.priority != e2.priority) {
+        return e1.priority < e2.priority ? -1 : 1;
+      }
+      return e1.seq < e2.seq ? -1 : (e1.seq == e2.seq ? 0 : 1);
+    }
+  });
+  // the cores whose readers will tell the cache they were closed
+  private final Set<Object> _listenedCores = new HashSet<Object>();
+  private final LinkedHashMap<String, int[]> _uses;
+  private long _bytes = 0;
+  private long _seq = 0;
+  // the priority of the last evicted entry, the entries that are not used again age as it grows
+  private double _clock = 0;
+
+  public FilterDocIdSetCache(long maxBytes, int minUses) {
+    _maxBytes = maxBytes;
+    _minUses = minUses;
+    _uses = new LinkedHashMap<String, int[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+        return size() > MAX_COUNTED_FILTERS;
+      }
+    };
+  }
+
+  synchronized void recordUse(String key) {
+    int[] uses = _uses.get(key);
+    if (uses == null) {
+      _uses.put(key, new int[] { 1 });
+    } else {
+      ++uses[0];
+    }
+  }
+
+  private synchronized int getUses(String key) {
+    int[] uses = _uses.get(key);
+    return uses == null ? 0 : uses[0];
+  }
+
+  synchronized DocIdSet get(Object coreKey, String key) {
+    Map<String, Entry> entries = _segments.get(coreKey);
+    Entry entry = entries == null ? null : entries.get(key);
+    if (entry == null) {
+      MissMeter.mark();
+      return null;
+    }
+    HitMeter.mark();
+    _evictionOrder.remove(entry);
+    ++entry.frequency;
+    entry.priority = priority(entry.frequency, entry.bytes);
+    _evictionOrder.add(entry);
+    return entry.docIdSet;
+  }
+
+  synchronized void put(Object coreKey, String key, DocIdSet docIdSet, long bytes) {
+    bytes += ENTRY_OVERHEAD + key.length() * 2;
+    if (bytes > _maxBytes) {
+      return;
+    }
+    Map<String, Entry> entries = _segments.get(coreKey);
+    if (entries != null && entries.containsKey(key)) {
+      // another search put it first
+      return;
+    }
+    while (_bytes + bytes > _maxBytes && !_evictionOrder.isEmpty()) {
+      Entry evicted = _evictionOrder.pollFirst();
+      _clock = evicted.priority;
+      remove(evicted);
+      EvictionMeter.mark();
+    }
+    // the evictions may have dropped the map of the segment
+    entries = _segments.get(coreKey);
+    if (entries == null) {
+      entries = new HashMap<String, Entry>();
+      _segments.put(coreKey, entries);
+    }
+    Entry entry = new Entry(coreKey, key, docIdSet, bytes, Math.max(getUses(key), 1), ++_seq);
+    entry.priority = priority(entry.frequency, bytes);
+    entries.put(key, entry);
+    _evictionOrder.add(entry);
+    _bytes += bytes;
+  }
+
+  /**
+   * Drops the entries of the segment once its core is closed. Zoie wraps the unchanged segments
+   * in new readers on every reopen and closes the old ones, so the listener goes on the segment
+   * reader under the wrappers, whose core outlives them.
+   */
+  synchronized void listen(AtomicReader reader, final Object coreKey) {
+    if (!_segments.containsKey(coreKey) || !_listenedCores.add(coreKey)) {
+      return;
+    }
+    SegmentReader segmentReader = getSegmentReader(reader);
+    if (segmentReader != null) {
+      segmentReader.addCoreClosedListener(new SegmentReader.CoreClosedListener() {
+        @Override
+        public void onClose(SegmentReader owner) {
+          invalidate(coreKey);
+        }
+      });
+    } else {
+      reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+        @Override
+        public void onClose(IndexReader closed) {
+          invalidate(coreKey);
+        }
+      });
+    }
+  }
+
+  /**
+   * @return the segment reader wrapped by the bobo and zoie readers, or null if there is none
+   */
+  static SegmentReader getSegmentReader(IndexReader reader) {
+    while (!(reader instanceof SegmentReader)) {
+      if (reader instanceof BoboSegmentReader) {
+        reader = ((BoboSegmentReader) reader).getInnerReader();
+      } else if (reader instanceof ZoieSegmentReader) {
+        reader = ((ZoieSegmentReader<?>) reader).getInnerReader();
+      } else {
+        return null;
+      }
+    }
+    return (SegmentReader) reader;
+  }
+
+  /**
+   * Drops the entries of the segment
+   */
+  public synchronized void invalidate(Object coreKey) {
+    _listenedCores.remove(coreKey);
+    Map<String, Entry> entries = _segments.remove(coreKey);
+    if (entries == null) {
+      return;
+    }
+    for (Entry entry : entries.values()) {
+      _evictionOrder.remove(entry);
+      _bytes -= entry.bytes;
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("dropped " + entries.size() + " cached filters of a closed segment");
+    }
+  }
+
+  private void remove(Entry entry) {
+    Map<String, Entry> entries = _segments.get(entry.coreKey);
+    if (entries != null) {
+      entries.remove(entry.key);
+      if (entries.isEmpty()) {
+        _segments.remove(entry.coreKey);
+      }
+    }
+    _bytes -= entry.bytes;
+  }
+
+  private double priority(int frequency, long bytes) {
+    return _clock + (double) frequency / bytes;
+  }
+
+  public synchronized long getBytes() {
+    return _bytes;
+  }
+
+  public synchronized int size() {
+    return _evictionOrder.size();
+  }
+
+  boolean isWorthCaching(String key) {
+    return getUses(key) >= _minUses;
+  }
+
+  /**
+   * @return whether the doc id sets of the filters on the field are the same for every search on
+   *         the segment
+   */
+  static boolean isCacheable(AtomicReader reader, String field) {
+    if (!(reader instanceof BoboSegmentReader)) {
+      return false;
+    }
+    BoboSegmentReader boboReader = (BoboSegmentReader) reader;
+    if (field == null || boboReader.getRuntimeFacetHandlerFactoryMap().containsKey(field)) {
+      return false;
+    }
+    return boboReader.getFacetHandler(field) == null
+        || boboReader.getFacetData(field) instanceof FacetDataCache;
+  }
+
+  /**
+   * @return the bit set of the docs, or their sorted list if there are few of them
+   */
+  static DocIdSet toCacheable(DocIdSet docIdSet, int maxDoc) throws IOException {
+    DocIdSetIterator iter = docIdSet == null ? null : docIdSet.iterator();
+    if (iter == null) {
+      return DocIdSet.EMPTY_DOCIDSET;
+    }
+    FixedBitSet bits = new FixedBitSet(maxDoc);
+    bits.or(iter);
+    // a doc costs at most 5 bytes in the list, 1 or 2 when they are close
+    if (bits.cardinality() * 32L < maxDoc) {
+      return new SortedVIntList(bits.iterator());
+    }
+    return bits;
+  }
+
+  static long bytes(DocIdSet docIdSet) {
+    if (docIdSet instanceof FixedBitSet) {
+      return ((FixedBitSet) docIdSet).getBits().length * 8L;
+    }
+    if (docIdSet instanceof SortedVIntList) {
+      return ((SortedVIntList) docIdSet).getByteSize();
+    }
+    return 0;
+  }
+
+  private static class Entry {
+    final Object coreKey;
+    final String key;
+    final DocIdSet docIdSet;
+    final long bytes;
+    final long seq;
+    int frequency;
+    double priority;
+
+    Entry(Object coreKey, String key, DocIdSet docIdSet, long bytes, int frequency, long seq) {
+      this.coreKey = coreKey;
+      this.key = key;
+      this.docIdSet = docIdSet;
+      this.bytes = bytes;
+      this.frequency = frequency;
+      this.seq = seq;
+    }
+  }
+
+  static class CachingFilter extends Filter {
+    private final FilterDocIdSetCache _cache;
+    private final String _key;
+    private final String _field;
+    private final Filter _filter;
+
+    CachingFilter(FilterDocIdSetCache cache, String key, String field, Filter filter) {
+      _cache = cache;
+      _key = key;
+      _field = field;
+      _filter = filter;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+      AtomicReader reader = context.reader();
+      if (!isCacheable(reader, _field)) {
+        return _filter.getDocIdSet(context, acceptDocs);
+      }
+      Object coreKey = reader.getCoreCacheKey();
+      DocIdSet docIdSet = _cache.get(coreKey, _key);
+      if (docIdSet == null) {
+        if (!_cache.isWorthCaching(_key)) {
+          return _filter.getDocIdSet(context, acceptDocs);
+        }
+        // the deleted docs change, they are left out only when the set is used
+        docIdSet = toCacheable(_filter.getDocIdSet(context, null), reader.maxDoc());
+        _cache.put(coreKey, _key, docIdSet, bytes(docIdSet));
+        _cache.listen(reader, coreKey);
+      }
+      return BitsFilteredDocIdSet.wrap(docIdSet, acceptDocs);
+    }
+
+    @Override
+    public String toString() {
+      return _filter.toString();
+    }
+  }
+}
@@ -43,7 +43,7 @@ public class PathFilterConstructor extends FilterConstructor {
       strict = false;
     }
 
-    return new Filter() {
+    return FilterDocIdSetCache.cache(FILTER_TYPE, json, field, new Filter() {
       @Override
       public DocIdSet getDocIdSet(AtomicReaderContext context, final Bits acceptDocs) throws IOException {
         if (context.reader() instanceof BoboSegmentReader) {
@@ -73,6 +73,6 @@ public class PathFilterConstructor extends FilterConstructor {
         throw new UnsupportedOperationException("Path filter is not supported for your field: "
             + field);
       }
-    };
+    });
   }
 }
@@ -77,7 +77,7 @@ public class RangeFilterConstructor extends FilterConstructor {
       include_upper = jsonObj.optBoolean(INCLUDE_UPPER_PARAM, true);
     }
 
-    return new Filter() {
+    return FilterDocIdSetCache.cache(FILTER_TYPE, json, field, new Filter() {
       @SuppressWarnings("rawtypes")
       @Override
       public DocIdSet getDocIdSet(final AtomicReaderContext context, final Bits acceptDocs) throws IOException {
@@ -197,6 +197,6 @@ public class RangeFilterConstructor extends FilterConstructor {
         return TermRangeFilter.newStringRange(field, fromPadded, toPadded, include_lower,
           include_upper).getDocIdSet(context, acceptDocs);
       }
-    };
+    });
   }
 }
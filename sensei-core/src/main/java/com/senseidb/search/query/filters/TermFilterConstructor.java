@@ -33,7 +33,8 @@ public class TermFilterConstructor extends FilterConstructor {
       text = String.valueOf(obj);
     }
 
-    return new SenseiTermFilter(field, new String[] { text }, null, false, noOptimize);
+    return FilterDocIdSetCache.cache(FILTER_TYPE, json, field, new SenseiTermFilter(field,
+        new String[] { text }, null, false, noOptimize));
   }
 
 }
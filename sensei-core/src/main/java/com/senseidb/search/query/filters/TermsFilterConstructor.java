@@ -30,7 +30,8 @@ public class TermsFilterConstructor extends FilterConstructor {
     if (obj instanceof JSONArray) {
       JSONArray jsonArray = (JSONArray) obj;
       String[] vals = RequestConverter.getStrings(jsonArray);
-      return new SenseiTermFilter(field, vals, null, false, noOptimize);
+      return FilterDocIdSetCache.cache(FILTER_TYPE, json, field, new SenseiTermFilter(field,
+        vals, null, false, noOptimize));
     } else if (obj instanceof JSONObject) {
       JSONObject jsonObj = (JSONObject) obj;
       String[] vals = RequestConverter.getStrings(jsonObj, VALUES_PARAM);
@@ -41,7 +42,8 @@ public class TermsFilterConstructor extends FilterConstructor {
       if (!OR_PARAM.equals(op)) {
         isAnd = true;
       }
-      return new SenseiTermFilter(field, vals, notVals, isAnd, noOptimize);
+      return FilterDocIdSetCache.cache(FILTER_TYPE, json, field, new SenseiTermFilter(field,
+        vals, notVals, isAnd, noOptimize));
     } else {
       throw new IllegalArgumentException("invalid term value specified: " + json);
     }
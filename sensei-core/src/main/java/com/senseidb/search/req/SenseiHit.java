@@ -40,4 +40,37 @@ public class SenseiHit extends BrowseHit {
   public byte[] getStoredValue() {
     return _storedValue;
   }
+
+  /**
+   * @return a copy of the hit and of its group hits, the field values, stored fields and term
+   *         vectors are shared and must be treated as read only
+   */
+  public SenseiHit copy() {
+    SenseiHit copy = new SenseiHit();
+    copy.setUID(_uid);
+    copy.setSrcData(_srcData);
+    copy.setStoredValue(_storedValue);
+    copy.setDocid(getDocid());
+    copy.setScore(getScore());
+    copy.setGroupHitsCount(getGroupHitsCount());
+    copy.setGroupPosition(getGroupPosition());
+    copy.setGroupField(getGroupField());
+    copy.setGroupValue(getGroupValue());
+    copy.setRawGroupValue(getRawGroupValue());
+    copy.setFieldValues(getFieldValues());
+    copy.setRawFieldValues(getRawFieldValues());
+    copy.setComparable(getComparable());
+    copy.setStoredFields(getStoredFields());
+    copy.setExplanation(getExplanation());
+    copy.setTermVectorMap(getTermVectorMap());
+    if (getGroupHits() != null) {
+      SenseiHit[] groupHits = getSenseiGroupHits();
+      SenseiHit[] groupHitsCopy = new SenseiHit[groupHits.length];
+      for (int i = 0; i < groupHits.length; ++i) {
+        groupHitsCopy[i] = groupHits[i].copy();
+      }
+      copy.setGroupHits(groupHitsCopy);
+    }
+    return copy;
+  }
 }
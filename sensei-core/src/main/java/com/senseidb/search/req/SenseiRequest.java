@@ -2,6 +2,7 @@ package com.senseidb.search.req;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -10,6 +11,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.lucene.search.SortField;
 import org.json.JSONObject;
@@ -57,6 +60,8 @@ public class SenseiRequest implements AbstractSenseiRequest, Cloneable {
   private SenseiMapReduce<?, ?> mapReduceFunction;
   private List<SenseiError> errors;
   private Set<String> _storedFieldsToFetch;
+  // the newest result format version the broker reads, 0 for the brokers that do not send it
+  private int _resultVersion;
 
   public SenseiRequest() {
     _facetInitParamMap = new HashMap<String, FacetHandlerInitializerParam>();
@@ -131,6 +136,18 @@ public class SenseiRequest implements AbstractSenseiRequest, Cloneable {
     _routeParam = routeParam;
   }
 
+  /**
+   * @return the newest result format version the broker of the request reads, the nodes leave out
+   *         the parts of the result the broker can't read
+   */
+  public int getResultVersion() {
+    return _resultVersion;
+  }
+
+  public void setResultVersion(int resultVersion) {
+    _resultVersion = resultVersion;
+  }
+
   @Override
   public String getRouteParam() {
     if (_routeParam != null) return _routeParam;
@@ -138,6 +155,14 @@ public class SenseiRequest implements AbstractSenseiRequest, Cloneable {
     return String.valueOf(_rand.nextInt());
   }
 
+  /**
+   * @return true if the caller set a route param, {@link #getRouteParam()} makes up a random one
+   *         otherwise
+   */
+  public boolean hasRouteParam() {
+    return _routeParam != null;
+  }
+
   public void setGroupBy(String[] groupBy) {
     _groupByMulti = groupBy;
     if (_groupByMulti != null && _groupByMulti.length != 0) _groupBy = _groupByMulti[0];
@@ -471,6 +496,92 @@ public class SenseiRequest implements AbstractSenseiRequest, Cloneable {
     return buf.toString();
   }
 
+  /**
+   * @return a canonical form of everything that determines the result of the request except its
+   *         partitions, or null if the request has no canonical form
+   */
+  public String toCacheKey() {
+    if (getMapReduceFunction() != null) {
+      // map reduce functions are arbitrary objects without a canonical form
+      return null;
+    }
+    StringBuilder buf = new StringBuilder();
+    buf.append("q=").append(getQuery() == null ? "" : getQuery().toString());
+    buf.append("\npage=").append(getOffset()).append(',').append(getCount());
+    buf.append("\nsort=");
+    for (SortField sortField : getSort()) {
+      buf.append(sortField).append(';');
+    }
+    TreeMap<String, BrowseSelection> selections = new TreeMap<String, BrowseSelection>();
+    for (BrowseSelection sel : getSelections()) {
+      selections.put(sel.getFieldName(), sel);
+    }
+    for (BrowseSelection sel : selections.values()) {
+      buf.append("\nsel=").append(sel.getFieldName()).append(':')
+          .append(sel.getSelectionOperation()).append(':')
+          .append(Arrays.toString(sel.getValues())).append(':')
+          .append(Arrays.toString(sel.getNotValues())).append(':')
+          .append(new TreeMap<Object, Object>(sel.getSelectionProperties()));
+    }
+    if (getFacetSpecs() != null) {
+      for (Entry<String, FacetSpec> entry : new TreeMap<String, FacetSpec>(getFacetSpecs()).entrySet()) {
+        FacetSpec spec = entry.getValue();
+        buf.append("\nfacet=").append(entry.getKey());
+        if (spec != null) {
+          buf.append(':').append(spec.getMaxCount()).append(':').append(spec.getMinHitCount())
+              .append(':').append(spec.getOrderBy()).append(':')
+              .append(spec.isExpandSelection());
+          if (spec.getCustomComparatorFactory() != null) {
+            buf.append(':').append(spec.getCustomComparatorFactory().getClass().getName());
+          }
+        }
+      }
+    }
+    if (getFacetHandlerInitParamMap() != null) {
+      for (Entry<String, FacetHandlerInitializerParam> entry : new TreeMap<String, FacetHandlerInitializerParam>(
+          getFacetHandlerInitParamMap()).entrySet()) {
+        FacetHandlerInitializerParam param = entry.getValue();
+        buf.append("\ninit=").append(entry.getKey());
+        for (String name : new TreeSet<String>(param.getBooleanParamNames())) {
+          buf.append(":b.").append(name).append('=')
+              .append(Arrays.toString(param.getBooleanParam(name)));
+        }
+        for (String name : new TreeSet<String>(param.getIntParamNames())) {
+          buf.append(":i.").append(name).append('=')
+              .append(Arrays.toString(param.getIntParam(name)));
+        }
+        for (String name : new TreeSet<String>(param.getLongParamNames())) {
+          buf.append(":l.").append(name).append('=')
+              .append(Arrays.toString(param.getLongParam(name)));
+        }
+        for (String name : new TreeSet<String>(param.getDoubleParamNames())) {
+          buf.append(":d.").append(name).append('=')
+              .append(Arrays.toString(param.getDoubleParam(name)));
+        }
+        for (String name : new TreeSet<String>(param.getStringParamNames())) {
+          buf.append(":s.").append(name).append('=').append(param.getStringParam(name));
+        }
+        for (String name : new TreeSet<String>(param.getByteArrayParamNames())) {
+          buf.append(":y.").append(name).append('=')
+              .append(Arrays.toString(param.getByteArrayParam(name)));
+        }
+      }
+    }
+    buf.append("\ngroup=").append(Arrays.toString(getGroupBy())).append(':')
+        .append(getMaxPerGroup());
+    buf.append("\ndistinct=").append(Arrays.toString(getDistinct()));
+    buf.append("\nselect=").append(getSelectList());
+    buf.append("\nfetch=").append(isFetchStoredFields()).append(':')
+        .append(sorted(getStoredFieldsToFetch())).append(':')
+        .append(sorted(getTermVectorsToFetch()));
+    buf.append("\nexplain=").append(isShowExplanation());
+    return buf.toString();
+  }
+
+  private static <T> TreeSet<T> sorted(Collection<T> values) {
+    return values == null ? null : new TreeSet<T>(values);
+  }
+
   @Override
   public SenseiRequest clone() {
     SenseiRequest clone = new SenseiRequest();
@@ -496,7 +607,7 @@ public class SenseiRequest implements AbstractSenseiRequest, Cloneable {
     clone.setFacetHandlerInitParamMap(this.getFacetHandlerInitParamMap());
     clone.setPartitions(this.getPartitions());
     clone.setShowExplanation(this.isShowExplanation());
-    clone.setRouteParam(this.getRouteParam());
+    clone.setRouteParam(_routeParam);
     clone.setGroupBy(this.getGroupBy());
     clone.setDistinct(this.getDistinct());
     clone.setMaxPerGroup(this.getMaxPerGroup());
@@ -506,6 +617,7 @@ public class SenseiRequest implements AbstractSenseiRequest, Cloneable {
       clone.setSelectList(new ArrayList<String>(this.getSelectList()));
     }
     clone.setMapReduceFunction(this.getMapReduceFunction());
+    clone.setResultVersion(this.getResultVersion());
 
     return clone;
   }
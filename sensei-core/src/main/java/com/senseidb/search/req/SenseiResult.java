@@ -21,6 +21,8 @@ public class SenseiResult extends BrowseResult implements AbstractSenseiResult {
   long numberOfDocsLong = 0;
   long numberOfHitsLong = 0;
   long numberOfGroupsLong = 0;
+  private boolean numHitsLowerBound = false;
+  private Map<Integer, String> partitionVersions;
   private List<SenseiError> errors;
 
   public SenseiHit[] getSenseiHits() {
@@ -178,6 +180,68 @@ public class SenseiResult extends BrowseResult implements AbstractSenseiResult {
     this.numberOfGroupsLong = numberGroupsLong;
   }
 
+  /**
+   * @return true if some segments were skipped by early termination, so the number of hits is
+   *         only a lower bound of the real number
+   */
+  public boolean isNumHitsLowerBound() {
+    return numHitsLowerBound;
+  }
+
+  public void setNumHitsLowerBound(boolean numHitsLowerBound) {
+    this.numHitsLowerBound = numHitsLowerBound;
+  }
+
+  /**
+   * @return the index version of every partition the result was computed from, null if the
+   *         nodes did not report them
+   */
+  public Map<Integer, String> getPartitionVersions() {
+    return partitionVersions;
+  }
+
+  public void setPartitionVersions(Map<Integer, String> partitionVersions) {
+    this.partitionVersions = partitionVersions;
+  }
+
+  /**
+   * Copies the counts, hits, facets and map reduce result of this result, without errors, sort
+   * collector and group accessibles. Hits and facets are shared and must be treated as read only.
+   */
+  public SenseiResult shallowCopy() {
+    SenseiResult copy = new SenseiResult();
+    copy.setTid(getTid());
+    copy.setTime(getTime());
+    copy.setNumHitsLong(getNumHitsLong());
+    copy.setNumGroupsLong(getNumGroupsLong());
+    copy.setTotalDocsLong(getTotalDocsLong());
+    copy.setNumHitsLowerBound(isNumHitsLowerBound());
+    copy.setParsedQuery(getParsedQuery());
+    copy.setHits(getSenseiHits());
+    if (getFacetMap() != null) {
+      copy.addAll(getFacetMap());
+    }
+    copy.setMapReduceResult(getMapReduceResult());
+    copy.setPartitionVersions(getPartitionVersions());
+    return copy;
+  }
+
+  /**
+   * Copies the result like {@link #shallowCopy()}, with copies of the hits. Merges change the hits
+   * they are given, the group hit counts for instance, so a result that is kept and handed out
+   * again has to be copied this way.
+   */
+  public SenseiResult copy() {
+    SenseiResult copy = shallowCopy();
+    SenseiHit[] hits = getSenseiHits();
+    SenseiHit[] hitsCopy = new SenseiHit[hits.length];
+    for (int i = 0; i < hits.length; ++i) {
+      hitsCopy[i] = hits[i].copy();
+    }
+    copy.setHits(hitsCopy);
+    return copy;
+  }
+
   @Override
   public void addError(SenseiError error) {
     if (errors == null) errors = new ArrayList<SenseiError>();
@@ -0,0 +1,104 @@
+package com.senseidb.search.req.mapred.functions;
+
+import java.io.Serializable;
+
+/**
+ * HyperLogLog cardinality sketch. The size of the sketch only depends on the precision, 2^precision
+ * registers of a byte, and the standard error of the estimate is about 1.04 / sqrt(2^precision).
+ * Sketches of the same precision are merged by taking the max of every register.
+ */
+public class HyperLogLog implements Serializable {
+  private static final long serialVersionUID = 1L;
+  public static final int MIN_PRECISION = 4;
+  public static final int MAX_PRECISION = 16;
+
+  private final int precision;
+  private final byte[] registers;
+
+  public HyperLogLog(int precision) {
+    if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+      throw new IllegalArgumentException("The precision should be between " + MIN_PRECISION
+          + " and " + MAX_PRECISION + ", but was " + precision);
+    }
+    this.precision = precision;
+    registers = new byte[1 << precision];
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  public void offerHash(long hash) {
+    int index = (int) (hash >>> (64 - precision));
+    // the guard bit bounds the rank, when all the remaining bits are zeros
+    long rest = (hash << precision) | (1L << (precision - 1));
+    byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+    if (registers[index] < rank) {
+      registers[index] = rank;
+    }
+  }
+
+  public void offer(String value) {
+    offerHash(hash(value));
+  }
+
+  public void merge(HyperLogLog other) {
+    if (other.precision != precision) {
+      throw new IllegalArgumentException("Can't merge the sketches of different precisions - "
+          + precision + " and " + other.precision);
+    }
+    for (int i = 0; i < registers.length; i++) {
+      if (registers[i] < other.registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  public long cardinality() {
+    int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    double estimate = alpha(m) * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // linear counting is more precise for the small cardinalities
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  private static double alpha(int m) {
+    switch (m) {
+    case 16:
+      return 0.673;
+    case 32:
+      return 0.697;
+    case 64:
+      return 0.709;
+    default:
+      return 0.7213 / (1 + 1.079 / m);
+    }
+  }
+
+  /**
+   * 64 bit FNV-1a of the chars, followed by the murmur3 finalizer to spread the bits
+   */
+  public static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -8,6 +8,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.json.JSONArray;
+import org.json.JSONObject;
 
 import com.senseidb.search.req.mapred.SingleFieldAccessor;
 import com.senseidb.util.JSONUtil;
@@ -48,12 +49,13 @@ public class AggregateFunctionFactory {
     return ret;
   }
 
-  public static class SumGroupedValue implements GroupedValue {
+  public static class SumGroupedValue implements BoundedGroupedValue {
     /**
      *
      */
     private static final long serialVersionUID = 1L;
     long sum = 0;
+    long error = 0;
 
     @Override
     public int compareTo(GroupedValue o) {
@@ -66,6 +68,22 @@ public class AggregateFunctionFactory {
     @Override
     public void merge(GroupedValue anotherValue) {
       sum += ((SumGroupedValue) anotherValue).sum;
+      error += ((SumGroupedValue) anotherValue).error;
+    }
+
+    @Override
+    public long getValue() {
+      return sum;
+    }
+
+    @Override
+    public long getError() {
+      return error;
+    }
+
+    @Override
+    public void addError(long error) {
+      this.error += error;
     }
 
   }
@@ -91,7 +109,12 @@ public class AggregateFunctionFactory {
         JSONArray ret = new JSONUtil.FastJSONArray();
         for (String key : AggregateFunctionFactory.sort(reduceResult)) {
           SumGroupedValue value = reduceResult.get(key);
-          ret.put(new JSONUtil.FastJSONObject().put("sum", value.sum).put("group", key));
+          JSONObject group = new JSONUtil.FastJSONObject().put("sum", value.sum).put("group",
+            key);
+          if (value.error > 0) {
+            group.put("error", value.error);
+          }
+          ret.put(group);
         }
         return ret;
       } catch (Exception e) {
@@ -101,12 +124,13 @@ public class AggregateFunctionFactory {
 
   }
 
-  public static class CountGroupedValue implements GroupedValue {
+  public static class CountGroupedValue implements BoundedGroupedValue {
     /**
      *
      */
     private static final long serialVersionUID = 1L;
     long count = 0;
+    long error = 0;
 
     @Override
     public int compareTo(GroupedValue o) {
@@ -119,6 +143,22 @@ public class AggregateFunctionFactory {
     @Override
     public void merge(GroupedValue anotherValue) {
       count += ((CountGroupedValue) anotherValue).count;
+      error += ((CountGroupedValue) anotherValue).error;
+    }
+
+    @Override
+    public long getValue() {
+      return count;
+    }
+
+    @Override
+    public long getError() {
+      return error;
+    }
+
+    @Override
+    public void addError(long error) {
+      this.error += error;
     }
 
     @Override
@@ -149,7 +189,12 @@ public class AggregateFunctionFactory {
         JSONArray ret = new JSONUtil.FastJSONArray();
         for (String key : AggregateFunctionFactory.sort(reduceResult)) {
           CountGroupedValue value = reduceResult.get(key);
-          ret.put(new JSONUtil.FastJSONObject().put("count", value.count).put("group", key));
+          JSONObject group = new JSONUtil.FastJSONObject().put("count", value.count).put("group",
+            key);
+          if (value.error > 0) {
+            group.put("error", value.error);
+          }
+          ret.put(group);
         }
         return ret;
       } catch (Exception e) {
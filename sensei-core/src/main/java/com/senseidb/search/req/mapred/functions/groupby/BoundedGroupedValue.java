@@ -0,0 +1,14 @@
+package com.senseidb.search.req.mapred.functions.groupby;
+
+/**
+ * Grouped value, that only grows when merged, so a group dropped from a partial result can be
+ * accounted for. The value is a lower bound of the group's total, the value plus the error is an
+ * upper bound.
+ */
+interface BoundedGroupedValue extends GroupedValue {
+  long getValue();
+
+  long getError();
+
+  void addError(long error);
+}
@@ -0,0 +1,160 @@
+package com.senseidb.search.req.mapred.functions.groupby;
+
+import com.senseidb.search.req.mapred.SingleFieldAccessor;
+import com.senseidb.search.req.mapred.functions.groupby.AggregateFunctionFactory.AvgAggregationFunction;
+import com.senseidb.search.req.mapred.functions.groupby.AggregateFunctionFactory.AvgGroupedValue;
+import com.senseidb.search.req.mapred.functions.groupby.AggregateFunctionFactory.CountAggregationFunction;
+import com.senseidb.search.req.mapred.functions.groupby.AggregateFunctionFactory.CountGroupedValue;
+import com.senseidb.search.req.mapred.functions.groupby.AggregateFunctionFactory.MaxAggregationFunction;
+import com.senseidb.search.req.mapred.functions.groupby.AggregateFunctionFactory.MaxGroupedValue;
+import com.senseidb.search.req.mapred.functions.groupby.AggregateFunctionFactory.MinAggregationFunction;
+import com.senseidb.search.req.mapred.functions.groupby.AggregateFunctionFactory.MinGroupedValue;
+import com.senseidb.search.req.mapred.functions.groupby.AggregateFunctionFactory.SumAggregationFunction;
+import com.senseidb.search.req.mapred.functions.groupby.AggregateFunctionFactory.SumGroupedValue;
+
+/**
+ * Aggregates the groups into primitive arrays indexed by the group number, so that the documents
+ * are aggregated without a hash lookup or an allocation. Only the non empty groups become
+ * {@link GroupedValue}s at the end.
+ */
+abstract class DenseGroupAggregator {
+  protected final int[] counts;
+
+  protected DenseGroupAggregator(int size) {
+    counts = new int[size];
+  }
+
+  /**
+   * @return the aggregator for the function, or null if the function is not one of the built in
+   *         ones
+   */
+  public static DenseGroupAggregator valueOf(AggregateFunction<?> function, int size) {
+    if (function instanceof CountAggregationFunction) {
+      return new CountAggregator(size);
+    }
+    if (function instanceof SumAggregationFunction) {
+      return new SumAggregator(size);
+    }
+    if (function instanceof AvgAggregationFunction) {
+      return new AvgAggregator(size);
+    }
+    if (function instanceof MaxAggregationFunction) {
+      return new MaxAggregator(size, true);
+    }
+    if (function instanceof MinAggregationFunction) {
+      return new MaxAggregator(size, false);
+    }
+    return null;
+  }
+
+  public abstract void aggregate(int group, SingleFieldAccessor accessor, int docId);
+
+  public boolean isEmpty(int group) {
+    return counts[group] == 0;
+  }
+
+  public abstract GroupedValue getGroupedValue(int group);
+
+  private static class CountAggregator extends DenseGroupAggregator {
+    public CountAggregator(int size) {
+      super(size);
+    }
+
+    @Override
+    public void aggregate(int group, SingleFieldAccessor accessor, int docId) {
+      counts[group]++;
+    }
+
+    @Override
+    public GroupedValue getGroupedValue(int group) {
+      CountGroupedValue ret = new CountGroupedValue();
+      ret.count = counts[group];
+      return ret;
+    }
+  }
+
+  private static class SumAggregator extends DenseGroupAggregator {
+    private final long[] sums;
+
+    public SumAggregator(int size) {
+      super(size);
+      sums = new long[size];
+    }
+
+    @Override
+    public void aggregate(int group, SingleFieldAccessor accessor, int docId) {
+      counts[group]++;
+      sums[group] += accessor.getLong(docId);
+    }
+
+    @Override
+    public GroupedValue getGroupedValue(int group) {
+      SumGroupedValue ret = new SumGroupedValue();
+      ret.sum = sums[group];
+      return ret;
+    }
+  }
+
+  private static class AvgAggregator extends DenseGroupAggregator {
+    private final double[] sums;
+
+    public AvgAggregator(int size) {
+      super(size);
+      sums = new double[size];
+    }
+
+    @Override
+    public void aggregate(int group, SingleFieldAccessor accessor, int docId) {
+      counts[group]++;
+      sums[group] += accessor.getDouble(docId);
+    }
+
+    @Override
+    public GroupedValue getGroupedValue(int group) {
+      AvgGroupedValue ret = new AvgGroupedValue();
+      ret.avg = sums[group] / counts[group];
+      ret.count = counts[group];
+      return ret;
+    }
+  }
+
+  /**
+   * Keeps the first document of the group with the extreme value, like the merge of the grouped
+   * values does
+   */
+  private static class MaxAggregator extends DenseGroupAggregator {
+    private final boolean max;
+    private final double[] values;
+    private final int[] docIds;
+
+    public MaxAggregator(int size, boolean max) {
+      super(size);
+      this.max = max;
+      values = new double[size];
+      docIds = new int[size];
+    }
+
+    @Override
+    public void aggregate(int group, SingleFieldAccessor accessor, int docId) {
+      double value = accessor.getDouble(docId);
+      if (counts[group]++ == 0 || (max ? value > values[group] : value < values[group])) {
+        values[group] = value;
+        docIds[group] = docId;
+      }
+    }
+
+    @Override
+    public GroupedValue getGroupedValue(int group) {
+      if (max) {
+        MaxGroupedValue ret = new MaxGroupedValue();
+        ret.max = values[group];
+        ret.uid = docIds[group];
+        return ret;
+      }
+      MinGroupedValue ret = new MinGroupedValue();
+      ret.min = values[group];
+      ret.uid = docIds[group];
+      return ret;
+    }
+  }
+}
@@ -41,6 +41,9 @@ class MapResult implements Serializable {
   public Long2ObjectOpenHashMap<GroupedValue> results;
   public TermValueList<?>[] dictionaries;
   public BoboSegmentReader indexReader;
+  public boolean trimmed;
+  public boolean bounded = true;
+  public long missingBound;
 
   @Override
   public String toString() {
@@ -58,12 +61,14 @@ public class GroupByMapReduceJob implements
    */
   private static final long serialVersionUID = 1L;
   public static final int TRIM_SIZE = 200;
+  public static final int DEFAULT_DENSE_THRESHOLD = 1 << 16;
   private String[] columns;
   private String metric;
   private String function;
   @SuppressWarnings("rawtypes")
   private AggregateFunction aggregateFunction;
   private int top = 10;
+  private int denseThreshold = DEFAULT_DENSE_THRESHOLD;
 
   @Override
   public void init(JSONObject params) {
@@ -74,6 +79,7 @@ public class GroupByMapReduceJob implements
       JSONArray columnsJson = params.getJSONArray("columns");
       columns = new String[columnsJson.length()];
       top = params.optInt("top", 10);
+      denseThreshold = params.optInt("denseThreshold", DEFAULT_DENSE_THRESHOLD);
       for (int i = 0; i < columnsJson.length(); i++) {
         columns[i] = columnsJson.getString(i);
       }
@@ -108,6 +114,19 @@ public class GroupByMapReduceJob implements
     if (totalBitSet > 64) {
       throw new IllegalArgumentException("Too many columns for an efficient group by");
     }
+    long groupCount = 1;
+    for (int i = 0; i < columns.length && groupCount <= denseThreshold; i++) {
+      groupCount *= dictionaries[i].size();
+    }
+    if (groupCount <= denseThreshold && groupCount <= Math.max(docIdCount, 1024)) {
+      DenseGroupAggregator aggregator = DenseGroupAggregator.valueOf(aggregateFunction,
+        (int) groupCount);
+      if (aggregator != null) {
+        aggregateDense(aggregator, docIds, docIdCount, dictionaries, orders, numBits,
+          singleFieldAccessor, mapResult);
+        return mapResult;
+      }
+    }
     for (int i = 0; i < docIdCount; i++) {
       long key = getKey(dictionaries, orders, numBits, docIds.get(i));
 
@@ -120,12 +139,63 @@ public class GroupByMapReduceJob implements
           aggregateFunction.produceSingleValue(singleFieldAccessor, docIds.get(i)));
       }
     }
+    trimMapResult(mapResult);
+    return mapResult;
+  }
 
+  /**
+   * The error bounds are only tracked, if every partial group value is a non negative
+   * {@link BoundedGroupedValue}, so that the values can only grow when merged
+   */
+  private void trimMapResult(MapResult mapResult) {
+    for (GroupedValue value : mapResult.results.values()) {
+      if (!(value instanceof BoundedGroupedValue) || ((BoundedGroupedValue) value).getValue() < 0) {
+        mapResult.bounded = false;
+        break;
+      }
+    }
     if (mapResult.results.size() > Math.max(TRIM_SIZE, top) * 20) {
-      trimToSize(mapResult.results, Math.max(TRIM_SIZE, top) * 5);
+      long removedBound = trimToSize(mapResult.results, Math.max(TRIM_SIZE, top) * 5);
+      if (removedBound >= 0) {
+        mapResult.trimmed = true;
+        mapResult.missingBound = Math.max(mapResult.missingBound, removedBound);
+      }
     }
+  }
 
-    return mapResult;
+  /**
+   * The group number combines the dictionary ids of the columns, the first column is the most
+   * significant. The non empty groups are put into the map result by their packed keys, as the
+   * hash based aggregation does
+   */
+  private void aggregateDense(DenseGroupAggregator aggregator, IntArray docIds, int docIdCount,
+      TermValueList<?>[] dictionaries, SingleFieldAccessor[] orders, int[] numBits,
+      SingleFieldAccessor singleFieldAccessor, MapResult mapResult) {
+    for (int i = 0; i < docIdCount; i++) {
+      int docId = docIds.get(i);
+      int group = 0;
+      for (int j = 0; j < orders.length; j++) {
+        group = group * dictionaries[j].size() + orders[j].getDictionaryId(docId);
+      }
+      aggregator.aggregate(group, singleFieldAccessor, docId);
+    }
+    int[] dictionaryIds = new int[orders.length];
+    for (int group = 0; group < aggregator.counts.length; group++) {
+      if (aggregator.isEmpty(group)) {
+        continue;
+      }
+      int rest = group;
+      for (int j = orders.length - 1; j >= 0; j--) {
+        dictionaryIds[j] = rest % dictionaries[j].size();
+        rest /= dictionaries[j].size();
+      }
+      long key = 0L;
+      for (int j = 0; j < orders.length; j++) {
+        key = (key << numBits[j]) | dictionaryIds[j];
+      }
+      mapResult.results.put(key, aggregator.getGroupedValue(group));
+    }
+    trimMapResult(mapResult);
   }
 
   private long getKey(TermValueList<?>[] dictionaries, SingleFieldAccessor[] orders, int[] numBits,
@@ -184,33 +254,37 @@ public class GroupByMapReduceJob implements
         return Collections.emptyList();
       }
       if (mapResults.size() == 1) {
-        HashMap<String, GroupedValue> ret = convert((MapResult) mapResults.get(0));
+        GroupedResult ret = convert((MapResult) mapResults.get(0));
         return java.util.Arrays.asList((Serializable) ret);
       }
       HashMap<BoboSegmentReader, MapResult> results = new HashMap<BoboSegmentReader, MapResult>();
       for (int i = 0; i < mapResults.size(); i++) {
         MapResult current = (MapResult) mapResults.get(i);
         if (results.get(current.indexReader) != null) {
-
-          Long2ObjectOpenHashMap<GroupedValue> currentMergedResults = results
-              .get(current.indexReader).results;
+          MapResult merged = results.get(current.indexReader);
+          Long2ObjectOpenHashMap<GroupedValue> currentMergedResults = merged.results;
 
           Long2ObjectOpenHashMap<GroupedValue> currentResultsToMerge = current.results;
+          addMissingErrors(currentMergedResults, currentResultsToMerge, current.missingBound);
           for (long key : currentResultsToMerge.keySet()) {
             GroupedValue groupedValue = currentMergedResults.get(key);
             if (groupedValue != null) {
               groupedValue.merge(currentResultsToMerge.get(key));
             } else {
+              addError(currentResultsToMerge.get(key), merged.missingBound);
               currentMergedResults.put(key, currentResultsToMerge.get(key));
             }
           }
+          merged.trimmed |= current.trimmed;
+          merged.bounded &= current.bounded;
+          merged.missingBound += current.missingBound;
           // .putAll(currentResultsToMerge);
           trimToSize(currentResultsToMerge, Math.max(TRIM_SIZE, top));
         } else {
           results.put(current.indexReader, current);
         }
       }
-      HashMap<String, GroupedValue> ret = null;
+      GroupedResult ret = null;
       for (BoboSegmentReader key : results.keySet()) {
         if (ret == null) {
           ret = convert(results.get(key));
@@ -226,20 +300,23 @@ public class GroupByMapReduceJob implements
       return Collections.emptyList();
     }
     if (mapResults.size() == 1) {
-      HashMap<String, GroupedValue> ret = (HashMap<String, GroupedValue>) mapResults.get(0);
+      GroupedResult ret = toGroupedResult(mapResults.get(0));
       return java.util.Arrays.asList((Serializable) ret);
     }
-    HashMap<String, GroupedValue> firstMap = (HashMap<String, GroupedValue>) mapResults.get(0);
+    GroupedResult firstMap = toGroupedResult(mapResults.get(0));
     for (int i = 1; i < mapResults.size(); i++) {
-      merge(firstMap, (HashMap<String, GroupedValue>) mapResults.get(i));
+      merge(firstMap, toGroupedResult(mapResults.get(i)));
     }
-    trimToSize(firstMap, Math.max(TRIM_SIZE, top));
+    trim(firstMap, Math.max(TRIM_SIZE, top));
     return java.util.Arrays.asList((Serializable) firstMap);
 
   }
 
-  private HashMap<String, GroupedValue> convert(MapResult mapResult) {
-    HashMap<String, GroupedValue> ret = new HashMap<String, GroupedValue>(mapResult.results.size());
+  private GroupedResult convert(MapResult mapResult) {
+    GroupedResult ret = new GroupedResult(mapResult.results.size());
+    ret.trimmed = mapResult.trimmed;
+    ret.bounded = mapResult.bounded;
+    ret.missingBound = mapResult.missingBound;
     String[] temp = new String[mapResult.dictionaries.length];
     int[] numBits = new int[columns.length];
     for (int i = 0; i < columns.length; i++) {
@@ -251,33 +328,117 @@ public class GroupByMapReduceJob implements
     return ret;
   }
 
-  private void merge(HashMap<String, GroupedValue> firstMap, HashMap<String, GroupedValue> secondMap) {
+  /**
+   * A group, that is missing from one of the results, might have had up to the missing bound of
+   * that result, which is added to the group's error
+   */
+  private void merge(GroupedResult firstMap, GroupedResult secondMap) {
+    addMissingErrors(firstMap, secondMap, secondMap.missingBound);
     for (Map.Entry<String, GroupedValue> entry : secondMap.entrySet()) {
       GroupedValue groupedValue = firstMap.get(entry.getKey());
       if (groupedValue != null) {
         groupedValue.merge(entry.getValue());
       } else {
+        addError(entry.getValue(), firstMap.missingBound);
         firstMap.put(entry.getKey(), entry.getValue());
       }
     }
+    firstMap.trimmed |= secondMap.trimmed;
+    firstMap.bounded &= secondMap.bounded;
+    firstMap.missingBound += secondMap.missingBound;
+  }
+
+  private static <K> void addMissingErrors(Map<K, GroupedValue> map, Map<K, GroupedValue> other,
+      long otherMissingBound) {
+    if (otherMissingBound <= 0) {
+      return;
+    }
+    for (Map.Entry<K, GroupedValue> entry : map.entrySet()) {
+      if (!other.containsKey(entry.getKey())) {
+        addError(entry.getValue(), otherMissingBound);
+      }
+    }
+  }
+
+  private static void addError(GroupedValue value, long error) {
+    if (error > 0 && value instanceof BoundedGroupedValue) {
+      ((BoundedGroupedValue) value).addError(error);
+    }
+  }
+
+  private static long getUpperBound(Object value) {
+    if (value instanceof BoundedGroupedValue) {
+      return ((BoundedGroupedValue) value).getValue() + ((BoundedGroupedValue) value).getError();
+    }
+    return 0;
+  }
+
+  private static void trim(GroupedResult result, int count) {
+    long removedBound = trimToSize(result, count);
+    if (removedBound >= 0) {
+      result.trimmed = true;
+      result.missingBound = Math.max(result.missingBound, removedBound);
+    }
+  }
 
+  /**
+   * The results of the nodes, that don't track the error bounds, are treated as trimmed
+   */
+  @SuppressWarnings("unchecked")
+  private static GroupedResult toGroupedResult(Serializable result) {
+    if (result instanceof GroupedResult) {
+      return (GroupedResult) result;
+    }
+    HashMap<String, GroupedValue> map = (HashMap<String, GroupedValue>) result;
+    GroupedResult ret = new GroupedResult(map.size());
+    ret.putAll(map);
+    ret.trimmed = true;
+    ret.bounded = false;
+    return ret;
   }
 
+  /**
+   * Replaces the grouped results in the map results, and in the lists and maps they hold, with
+   * plain maps of the groups. The brokers that read results older than
+   * {@link com.senseidb.svc.impl.BinarySenseiSerializer#VERSION_3} don't have the
+   * {@link GroupedResult} class, they treat the plain maps as trimmed without error bounds.
+   */
   @SuppressWarnings({ "unchecked", "rawtypes" })
+  public static void removeGroupedResults(List mapResults) {
+    if (mapResults == null) {
+      return;
+    }
+    for (int i = 0; i < mapResults.size(); i++) {
+      Object result = mapResults.get(i);
+      if (result instanceof GroupedResult) {
+        mapResults.set(i, new HashMap<String, GroupedValue>((GroupedResult) result));
+      } else if (result instanceof List) {
+        removeGroupedResults((List) result);
+      } else if (result instanceof Map) {
+        for (Map.Entry entry : ((Map<?, ?>) result).entrySet()) {
+          if (entry.getValue() instanceof GroupedResult) {
+            entry.setValue(new HashMap<String, GroupedValue>((GroupedResult) entry.getValue()));
+          } else if (entry.getValue() instanceof List) {
+            removeGroupedResults((List) entry.getValue());
+          }
+        }
+      }
+    }
+  }
+
   @Override
-  public HashMap<String, GroupedValue> reduce(List<Serializable> combineResultsRaw) {
-    List<HashMap<String, GroupedValue>> combineResults = (List) combineResultsRaw;
+  public HashMap<String, GroupedValue> reduce(List<Serializable> combineResults) {
     if (combineResults.size() == 0) {
       return null;
     }
     if (combineResults.size() == 1) {
-      return combineResults.get(0);
+      return toGroupedResult(combineResults.get(0));
     }
-    HashMap<String, GroupedValue> firstMap = combineResults.get(0);
+    GroupedResult firstMap = toGroupedResult(combineResults.get(0));
     for (int i = 1; i < combineResults.size(); i++) {
-      merge(firstMap, combineResults.get(i));
+      merge(firstMap, toGroupedResult(combineResults.get(i)));
     }
-    trimToSize(firstMap, TRIM_SIZE);
+    trim(firstMap, TRIM_SIZE);
     return firstMap;
   }
 
@@ -286,16 +447,17 @@ public class GroupByMapReduceJob implements
    *
    * @param map
    * @param count
+   * @return the largest upper bound of the removed groups, or -1 if nothing was removed
    */
   @SuppressWarnings({ "rawtypes", "unchecked" })
-  private static void trimToSize(Map<String, ? extends Comparable> map, int count) {
+  private static long trimToSize(Map<String, ? extends Comparable> map, int count) {
 
     if (map.size() < count) {
-      return;
+      return -1;
     }
     double trimRatio = ((double) count) / map.size() * 2;
     if (trimRatio >= 1.0D) {
-      return;
+      return -1;
     }
     int queueSize = (int) (map.size() / Math.log(map.size()) / 4);
     PriorityQueue<Comparable> queue = new PriorityQueue<Comparable>(queueSize);
@@ -326,13 +488,16 @@ public class GroupByMapReduceJob implements
       }
     }
     if (newMinimumValue == null) {
-      return;
+      return -1;
     }
     Iterator<? extends Comparable> iterator = map.values().iterator();
     int numToRemove = map.size() - count;
     counter = 0;
+    long removedBound = -1;
     while (iterator.hasNext()) {
-      if (iterator.next().compareTo(newMinimumValue) <= 0) {
+      Comparable value = iterator.next();
+      if (value.compareTo(newMinimumValue) <= 0) {
+        removedBound = Math.max(removedBound, getUpperBound(value));
         counter++;
         iterator.remove();
         if (counter >= numToRemove) {
@@ -340,17 +505,18 @@ public class GroupByMapReduceJob implements
         }
       }
     }
+    return removedBound;
   }
 
   @SuppressWarnings({ "rawtypes", "unchecked" })
-  private static void trimToSize(Long2ObjectMap<? extends Comparable> map, int count) {
+  private static long trimToSize(Long2ObjectMap<? extends Comparable> map, int count) {
 
     if (map.size() < count) {
-      return;
+      return -1;
     }
     double trimRatio = ((double) count) / map.size() * 2;
     if (trimRatio >= 1.0D) {
-      return;
+      return -1;
     }
     int queueSize = (int) (map.size() / Math.log(map.size()) / 4);
     PriorityQueue<Comparable> queue = new PriorityQueue<Comparable>(queueSize);
@@ -381,13 +547,16 @@ public class GroupByMapReduceJob implements
       }
     }
     if (newMinimumValue == null) {
-      return;
+      return -1;
     }
     Iterator<? extends Comparable> iterator = map.values().iterator();
     int numToRemove = map.size() - count;
     counter = 0;
+    long removedBound = -1;
     while (iterator.hasNext()) {
-      if (iterator.next().compareTo(newMinimumValue) <= 0) {
+      Comparable value = iterator.next();
+      if (value.compareTo(newMinimumValue) <= 0) {
+        removedBound = Math.max(removedBound, getUpperBound(value));
         counter++;
         iterator.remove();
         if (counter >= numToRemove) {
@@ -395,6 +564,33 @@ public class GroupByMapReduceJob implements
         }
       }
     }
+    return removedBound;
+  }
+
+  /**
+   * The top groups are guaranteed to be the right ones, if the smallest of them is not less than
+   * the upper bound of any other group, including the ones trimmed away
+   */
+  private void putAccuracy(JSONObject json, GroupedResult result) throws JSONException {
+    json.put("exact", result.isExact());
+    if (result.isExact()) {
+      json.put("topGuaranteed", true);
+      return;
+    }
+    if (!result.isBounded()) {
+      json.put("topGuaranteed", false);
+      return;
+    }
+    List<String> keys = AggregateFunctionFactory.sort(result);
+    int count = Math.min(top, keys.size());
+    long othersUpperBound = result.getMissingBound();
+    for (int i = count; i < keys.size(); i++) {
+      othersUpperBound = Math.max(othersUpperBound, getUpperBound(result.get(keys.get(i))));
+    }
+    boolean guaranteed = count == 0
+        || ((BoundedGroupedValue) result.get(keys.get(count - 1))).getValue() >= othersUpperBound;
+    json.put("topGuaranteed", guaranteed);
+    json.put("missingBound", result.getMissingBound());
   }
 
   @SuppressWarnings("unchecked")
@@ -413,7 +609,12 @@ public class GroupByMapReduceJob implements
           }
           jsonArrResult = newArr;
         }
-        return new JSONUtil.FastJSONObject().put("grouped", jsonArrResult).put("column", metric);
+        JSONObject ret = new JSONUtil.FastJSONObject().put("grouped", jsonArrResult).put(
+          "column", metric);
+        if (reduceResult instanceof GroupedResult) {
+          putAccuracy(ret, (GroupedResult) reduceResult);
+        }
+        return ret;
       } else {
         return new JSONUtil.FastJSONObject().put("grouped", result).put("column", metric);
       }
@@ -0,0 +1,34 @@
+package com.senseidb.search.req.mapred.functions.groupby;
+
+import java.util.HashMap;
+
+/**
+ * Partial or final group by result. If groups were trimmed from it, the missing bound is the
+ * largest value a group that is not in the result might have. It is only tracked for the
+ * {@link BoundedGroupedValue}s, and as long as no partial group value was negative.
+ */
+public class GroupedResult extends HashMap<String, GroupedValue> {
+  private static final long serialVersionUID = 1L;
+  boolean trimmed;
+  boolean bounded = true;
+  long missingBound;
+
+  public GroupedResult(int initialCapacity) {
+    super(initialCapacity);
+  }
+
+  /**
+   * @return true if no group was trimmed from any partial result
+   */
+  public boolean isExact() {
+    return !trimmed;
+  }
+
+  public boolean isBounded() {
+    return bounded;
+  }
+
+  public long getMissingBound() {
+    return missingBound;
+  }
+}
@@ -8,6 +8,7 @@ import com.senseidb.search.req.mapred.functions.AvgMapReduce;
 import com.senseidb.search.req.mapred.functions.CompositeMapReduce;
 import com.senseidb.search.req.mapred.functions.CountMapReduce;
 import com.senseidb.search.req.mapred.functions.DistinctCountMapReduce;
+import com.senseidb.search.req.mapred.functions.HyperLogLogDistinctCountMapReduce;
 import com.senseidb.search.req.mapred.functions.MaxMapReduce;
 import com.senseidb.search.req.mapred.functions.MinMapReduce;
 import com.senseidb.search.req.mapred.functions.SumMapReduce;
@@ -26,6 +27,7 @@ public class MapReduceRegistry {
     keyToFunction.put("sensei.max", MaxMapReduce.class);
     keyToFunction.put("sensei.distinctCount", DistinctCountMapReduce.class);
     keyToFunction.put("sensei.distinctCountHashSet", DistinctCountMapReduce.class);
+    keyToFunction.put("sensei.distinctCountHLL", HyperLogLogDistinctCountMapReduce.class);
     keyToFunction.put("sensei.min", MinMapReduce.class);
     keyToFunction.put("sensei.avg", AvgMapReduce.class);
     keyToFunction.put("sensei.groupBy", GroupByMapReduceJob.class);
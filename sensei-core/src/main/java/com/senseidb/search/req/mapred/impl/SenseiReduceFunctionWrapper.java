@@ -21,9 +21,21 @@ public class SenseiReduceFunctionWrapper {
    * @param results
    * @return
    */
-  @SuppressWarnings({ "unchecked", "rawtypes" })
   public static MapReduceResult combine(SenseiMapReduce<?, ?> mapReduceFunction,
       List<MapReduceResult> results) {
+    return combine(mapReduceFunction, results, CombinerStage.nodeLevel);
+  }
+
+  /**
+   * Combine callback for the given stage
+   * @param mapReduceFunction
+   * @param results
+   * @param stage
+   * @return
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public static MapReduceResult combine(SenseiMapReduce<?, ?> mapReduceFunction,
+      List<MapReduceResult> results, CombinerStage stage) {
     MapReduceResult ret = null;
     if (results.isEmpty()) {
       return null;
@@ -32,8 +44,7 @@ public class SenseiReduceFunctionWrapper {
     for (int i = 1; i < results.size(); i++) {
       ret.getMapResults().addAll(results.get(i).getMapResults());
     }
-    ret.setMapResults(new ArrayList(mapReduceFunction.combine(ret.getMapResults(),
-      CombinerStage.nodeLevel)));
+    ret.setMapResults(new ArrayList(mapReduceFunction.combine(ret.getMapResults(), stage)));
     return ret;
   }
 
@@ -14,6 +14,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -30,6 +31,8 @@ import zu.core.cluster.ZuCluster;
 
 import com.browseengine.bobo.api.BrowseSelection;
 import com.senseidb.bql.parsers.BQLCompiler;
+import com.senseidb.bql.parsers.BQLStatementCache;
+import com.senseidb.bql.parsers.PreparedBQLStatement;
 import com.senseidb.conf.SenseiConfParams;
 import com.senseidb.conf.SenseiFacetHandlerBuilder;
 import com.senseidb.search.node.AbstractConsistentHashBroker;
@@ -58,6 +61,7 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
 
   public static final String BQL_STMT = "bql";
   public static final String BQL_EXTRA_FILTER = "bql_extra_filter";
+  public static final String BQL_PARAMS = "bql_params";
   public static final String TOTAL_DOCS = "totaldocs";
   private static final long serialVersionUID = 1L;
 
@@ -70,11 +74,13 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
   private AbstractConsistentHashBroker<SenseiRequest, SenseiSystemInfo> _senseiSysBroker = null;
   private Map<String, String[]> _facetInfoMap = new HashMap<String, String[]>();
   private BQLCompiler _compiler = null;
+  private BQLStatementCache _bqlCache = null;
   private LayeredBroker federatedBroker;
 
   private final Timer _statTimer;
   private RequestPostProcessor postProcessor;
   private BrokerConfig _brokerConfig;
+  private boolean _gzipResponses = false;
 
   private ZuCluster zuCluster = null;
 
@@ -90,6 +96,7 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
   public void init(ServletConfig config) throws ServletException {
     super.init(config);
     _brokerConfig = new BrokerConfig(senseiConf);
+    _gzipResponses = senseiConf.getBoolean(SenseiConfParams.SERVER_BROKER_GZIP, false);
     _brokerConfig.init(zuCluster);
     postProcessor = pluginRegistry.getBeanByFullPrefix(
       SenseiConfParams.SENSEI_REQUEST_POSTPROCESSOR, RequestPostProcessor.class);
@@ -111,6 +118,8 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
         _facetInfoMap = sysInfo != null && sysInfo.getFacetInfos() != null ? extractFacetInfo(sysInfo)
             : new HashMap<String, String[]>();
         _compiler = new BQLCompiler(_facetInfoMap);
+        _bqlCache = new BQLStatementCache(_compiler, senseiConf.getInt(
+          SenseiConfParams.SERVER_BROKER_BQL_CACHE_MAX_ENTRIES, 1000));
         break;
       } catch (Exception e) {
         logger.info("Hit exception trying to get sysinfo", e);
@@ -152,7 +161,7 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
 
           if (sysInfo != null && sysInfo.getFacetInfos() != null) {
             _facetInfoMap = extractFacetInfo(sysInfo);
-            _compiler.setFacetInfoMap(_facetInfoMap);
+            _bqlCache.setFacetInfoMap(_facetInfoMap);
           }
         } catch (Exception e) {
           logger.info("Hit exception trying to get sysinfo", e);
@@ -323,7 +332,18 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
       } else {
         requestContext.query = "json=" + requestContext.content;
       }
-      requestContext.compiledJson = _compiler.compile(requestContext.bqlStmt);
+      JSONArray bqlParams = requestContext.jsonObj.optJSONArray(BQL_PARAMS);
+      if (bqlParams == null) {
+        requestContext.compiledJson = _bqlCache.compile(requestContext.bqlStmt);
+      } else {
+        requestContext.compiledJson = bindPreparedStatement(requestContext, bqlParams);
+        requestContext.templatesJson = requestContext.compiledJson
+            .optJSONObject(JsonTemplateProcessor.TEMPLATE_MAPPING_PARAM);
+      }
+    } catch (IllegalArgumentException e) {
+      logger.error("BQL binding error: " + e.getMessage() + ", BQL: " + requestContext.bqlStmt);
+      writeEmptyResponse(req, resp, new SenseiError(e.getMessage(), ErrorType.BQLParsingError));
+      return false;
     } catch (ParseCancellationException e) {
       String errMsg = _compiler.getErrorMessage(e);
       if (errMsg == null) {
@@ -340,7 +360,7 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
     if (extraFilter.length() > 0) {
       String bql2 = "SELECT * WHERE " + extraFilter;
       try {
-        predObj = _compiler.compile(bql2);
+        predObj = _bqlCache.compile(bql2);
       } catch (ParseCancellationException e) {
         String errMsg = _compiler.getErrorMessage(e);
         if (errMsg == null) {
@@ -408,11 +428,47 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
       SenseiRequest senseiReq, SenseiResult res) throws Exception {
     long start = System.currentTimeMillis();
     OutputStream ostream = resp.getOutputStream();
+    GZIPOutputStream gzipStream = null;
+    if (_gzipResponses && acceptsGzip(req)) {
+      resp.setHeader("Content-Encoding", "gzip");
+      resp.setHeader("Vary", "Accept-Encoding");
+      ostream = gzipStream = new GZIPOutputStream(ostream, 8192);
+    }
     convertResult(req, senseiReq, res, ostream);
+    if (gzipStream != null) {
+      gzipStream.finish();
+    }
     ostream.flush();
     queryLogger.info("sendResponse took " + (System.currentTimeMillis() - start) + "ms");
   }
 
+  /**
+   * Binds the positional parameters and the template mapping of the request to the statement
+   * compiled with its <code>?</code> placeholders
+   */
+  private JSONObject bindPreparedStatement(RequestContext requestContext, JSONArray bqlParams)
+      throws JSONException {
+    PreparedBQLStatement statement = _bqlCache.prepare(requestContext.bqlStmt);
+    Object[] values = new Object[bqlParams.length()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = bqlParams.get(i);
+    }
+    Map<String, Object> namedValues = new HashMap<String, Object>();
+    if (requestContext.templatesJson != null) {
+      Iterator<?> keys = requestContext.templatesJson.keys();
+      while (keys.hasNext()) {
+        String key = (String) keys.next();
+        namedValues.put(key, requestContext.templatesJson.get(key));
+      }
+    }
+    return statement.bind(namedValues, values);
+  }
+
+  private static boolean acceptsGzip(HttpServletRequest req) {
+    String acceptEncoding = req.getHeader("Accept-Encoding");
+    return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+  }
+
   private void handleStoreGetRequest(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException {
     long time = System.currentTimeMillis();
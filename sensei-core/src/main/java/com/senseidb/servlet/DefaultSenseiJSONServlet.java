@@ -27,6 +27,7 @@ import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_TE
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_UID;
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_NUMGROUPS;
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_NUMHITS;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_NUMHITS_LOWER_BOUND;
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_PARSEDQUERY;
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_SELECT_LIST;
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_TID;
@@ -46,6 +47,10 @@ import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_SYSINFO_NUMDO
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_SYSINFO_SCHEMA;
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_SYSINFO_VERSION;
 
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -56,6 +61,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.log4j.Logger;
@@ -73,6 +80,7 @@ import com.browseengine.bobo.api.BrowseSelection;
 import com.browseengine.bobo.api.FacetAccessible;
 import com.browseengine.bobo.api.FacetSpec;
 import com.browseengine.bobo.api.FacetSpec.FacetSortSpec;
+import com.senseidb.conf.SenseiConfParams;
 import com.senseidb.conf.SenseiFacetHandlerBuilder;
 import com.senseidb.search.req.SenseiError;
 import com.senseidb.search.req.SenseiHit;
@@ -93,6 +101,14 @@ public class DefaultSenseiJSONServlet extends AbstractSenseiRestServlet {
 
   private static Logger logger = Logger.getLogger(DefaultSenseiJSONServlet.class);
 
+  private boolean _streaming = true;
+
+  @Override
+  public void init(ServletConfig config) throws ServletException {
+    super.init(config);
+    _streaming = senseiConf.getBoolean(SenseiConfParams.SERVER_BROKER_JSON_STREAMING, true);
+  }
+
   public static JSONObject convertExpl(SerializableExplanation expl) throws JSONException {
     JSONObject jsonObject = null;
     if (expl != null) {
@@ -124,57 +140,59 @@ public class DefaultSenseiJSONServlet extends AbstractSenseiRestServlet {
 
       for (Entry<String, FacetAccessible> entry : entrySet) {
         String fieldname = entry.getKey();
+        resMap.put(fieldname, convertFacets(fieldname, entry.getValue(), req));
+      }
+    }
+    return resMap;
+  }
 
-        BrowseSelection sel = req.getSelection(fieldname);
-        HashSet<String> selectedVals = new HashSet<String>();
-        if (sel != null) {
-          String[] vals = sel.getValues();
-          if (vals != null && vals.length > 0) {
-            selectedVals.addAll(Arrays.asList(vals));
-          }
-        }
-
-        FacetAccessible facetAccessible = entry.getValue();
-        List<BrowseFacet> facetList = facetAccessible.getFacets();
+  static ArrayList<JSONObject> convertFacets(String fieldname, FacetAccessible facetAccessible,
+      SenseiRequest req) throws JSONException {
+    BrowseSelection sel = req.getSelection(fieldname);
+    HashSet<String> selectedVals = new HashSet<String>();
+    if (sel != null) {
+      String[] vals = sel.getValues();
+      if (vals != null && vals.length > 0) {
+        selectedVals.addAll(Arrays.asList(vals));
+      }
+    }
 
-        ArrayList<JSONObject> facets = new ArrayList<JSONObject>();
+    List<BrowseFacet> facetList = facetAccessible.getFacets();
 
-        for (BrowseFacet f : facetList) {
-          String fval = f.getValue();
-          if (fval != null && fval.length() > 0) {
-            JSONObject fv = new FastJSONObject();
-            fv.put(PARAM_RESULT_FACET_INFO_COUNT, f.getFacetValueHitCount());
-            fv.put(PARAM_RESULT_FACET_INFO_VALUE, fval);
-            fv.put(PARAM_RESULT_FACET_INFO_SELECTED, selectedVals.remove(fval));
-            facets.add(fv);
-          }
-        }
+    ArrayList<JSONObject> facets = new ArrayList<JSONObject>();
 
-        if (selectedVals.size() > 0) {
-          // selected vals did not make it in top n
-          for (String selectedVal : selectedVals) {
-            if (selectedVal != null && selectedVal.length() > 0) {
-              BrowseFacet selectedFacetVal = facetAccessible.getFacet(selectedVal);
-              JSONObject fv = new FastJSONObject();
-              fv.put(PARAM_RESULT_FACET_INFO_COUNT,
-                selectedFacetVal == null ? 0 : selectedFacetVal.getFacetValueHitCount());
-              String fval = selectedFacetVal == null ? selectedVal : selectedFacetVal.getValue();
-              fv.put(PARAM_RESULT_FACET_INFO_VALUE, fval);
-              fv.put(PARAM_RESULT_FACET_INFO_SELECTED, true);
-              facets.add(fv);
-            }
-          }
+    for (BrowseFacet f : facetList) {
+      String fval = f.getValue();
+      if (fval != null && fval.length() > 0) {
+        JSONObject fv = new FastJSONObject();
+        fv.put(PARAM_RESULT_FACET_INFO_COUNT, f.getFacetValueHitCount());
+        fv.put(PARAM_RESULT_FACET_INFO_VALUE, fval);
+        fv.put(PARAM_RESULT_FACET_INFO_SELECTED, selectedVals.remove(fval));
+        facets.add(fv);
+      }
+    }
 
-          // we need to sort it
-          FacetSpec fspec = req.getFacetSpec(fieldname);
-          assert fspec != null;
-          sortFacets(fieldname, facets, fspec);
+    if (selectedVals.size() > 0) {
+      // selected vals did not make it in top n
+      for (String selectedVal : selectedVals) {
+        if (selectedVal != null && selectedVal.length() > 0) {
+          BrowseFacet selectedFacetVal = facetAccessible.getFacet(selectedVal);
+          JSONObject fv = new FastJSONObject();
+          fv.put(PARAM_RESULT_FACET_INFO_COUNT,
+            selectedFacetVal == null ? 0 : selectedFacetVal.getFacetValueHitCount());
+          String fval = selectedFacetVal == null ? selectedVal : selectedFacetVal.getValue();
+          fv.put(PARAM_RESULT_FACET_INFO_VALUE, fval);
+          fv.put(PARAM_RESULT_FACET_INFO_SELECTED, true);
+          facets.add(fv);
         }
-
-        resMap.put(fieldname, facets);
       }
+
+      // we need to sort it
+      FacetSpec fspec = req.getFacetSpec(fieldname);
+      assert fspec != null;
+      sortFacets(fieldname, facets, fspec);
     }
-    return resMap;
+    return facets;
   }
 
   private static void sortFacets(String fieldName, ArrayList<JSONObject> facets, FacetSpec fspec) {
@@ -224,6 +242,30 @@ public class DefaultSenseiJSONServlet extends AbstractSenseiRestServlet {
     return supportJsonp(httpReq, buildJSONResultString(req, res));
   }
 
+  /**
+   * Streams the result to the response unless the streaming is turned off with
+   * {@link SenseiConfParams#SERVER_BROKER_JSON_STREAMING}
+   */
+  @Override
+  protected void convertResult(HttpServletRequest httpReq, SenseiRequest req, SenseiResult res,
+      OutputStream ostream) throws Exception {
+    if (!_streaming) {
+      super.convertResult(httpReq, req, res, ostream);
+      return;
+    }
+    Writer writer = new BufferedWriter(new OutputStreamWriter(ostream, "UTF-8"), 8192);
+    String callback = httpReq.getParameter("callback");
+    if (callback != null) {
+      writer.write(callback);
+      writer.write('(');
+    }
+    new SenseiJSONResultWriter(writer).write(req, res);
+    if (callback != null) {
+      writer.write(");");
+    }
+    writer.flush();
+  }
+
   private String supportJsonp(HttpServletRequest httpReq, String jsonString) {
     String callback = httpReq.getParameter("callback");
     if (callback != null) {
@@ -362,6 +404,9 @@ public class DefaultSenseiJSONServlet extends AbstractSenseiRestServlet {
     jsonObj.put(PARAM_RESULT_TID, res.getTid());
     jsonObj.put(PARAM_RESULT_TOTALDOCS, res.getTotalDocsLong());
     jsonObj.put(PARAM_RESULT_NUMHITS, res.getNumHitsLong());
+    if (res.isNumHitsLowerBound()) {
+      jsonObj.put(PARAM_RESULT_NUMHITS_LOWER_BOUND, true);
+    }
     jsonObj.put(PARAM_RESULT_NUMGROUPS, res.getNumGroupsLong());
     jsonObj.put(PARAM_RESULT_PARSEDQUERY, res.getParsedQuery());
     addErrors(jsonObj, res);
@@ -0,0 +1,334 @@
+package com.senseidb.servlet;
+
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_ERRORS;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_ERROR_CODE;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_ERROR_MESSAGE;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_ERROR_TYPE;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_FACETS;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_FACET_INFO_COUNT;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_FACET_INFO_SELECTED;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_FACET_INFO_VALUE;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HITS;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HITS_EXPL_DESC;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HITS_EXPL_DETAILS;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HITS_EXPL_VALUE;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_DOCID;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_EXPLANATION;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_GROUPFIELD;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_GROUPHITS;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_GROUPHITSCOUNT;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_GROUPVALUE;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_SCORE;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_SRC_DATA;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_STORED_FIELDS;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_STORED_FIELDS_NAME;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_STORED_FIELDS_VALUE;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_TERMVECTORS;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_UID;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_NUMGROUPS;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_NUMHITS;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_NUMHITS_LOWER_BOUND;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_PARSEDQUERY;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_SELECT_LIST;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_TID;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_TIME;
+import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_TOTALDOCS;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+import proj.zoie.api.indexing.AbstractZoieIndexable;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.BrowseHit.BoboTerm;
+import com.browseengine.bobo.api.BrowseHit.SerializableExplanation;
+import com.browseengine.bobo.api.BrowseHit.SerializableField;
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.FacetAccessible;
+import com.senseidb.conf.SenseiFacetHandlerBuilder;
+import com.senseidb.search.req.SenseiError;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+import com.senseidb.util.JSONStreamWriter;
+
+/**
+ * Writes the same JSON as {@link DefaultSenseiJSONServlet#buildJSONResult} straight to the
+ * response, so that the hits and the facets are never held in memory as a JSON document and as its
+ * string at the same time. Only the order of the keys differs, the DOM version keeps them in a hash
+ * map.
+ */
+public class SenseiJSONResultWriter {
+  private static final String PARAM_RESULT_MAP_REDUCE = "mapReduceResult";
+
+  private final JSONStreamWriter _writer;
+
+  public SenseiJSONResultWriter(Writer writer) {
+    _writer = new JSONStreamWriter(writer);
+  }
+
+  public void write(SenseiRequest req, SenseiResult res) throws Exception {
+    _writer.beginObject();
+    _writer.name(PARAM_RESULT_TID).value(res.getTid());
+    _writer.name(PARAM_RESULT_TOTALDOCS).value(res.getTotalDocsLong());
+    _writer.name(PARAM_RESULT_NUMHITS).value(res.getNumHitsLong());
+    if (res.isNumHitsLowerBound()) {
+      _writer.name(PARAM_RESULT_NUMHITS_LOWER_BOUND).value(true);
+    }
+    _writer.name(PARAM_RESULT_NUMGROUPS).value(res.getNumGroupsLong());
+    writeField(PARAM_RESULT_PARSEDQUERY, res.getParsedQuery());
+    writeErrors(res.getErrors());
+    _writer.name(PARAM_RESULT_HITS);
+    writeHits(req, res.getSenseiHits());
+
+    List<String> selectList = req.getSelectList();
+    if (selectList != null) {
+      _writer.name(PARAM_RESULT_SELECT_LIST).beginArray();
+      for (String col : selectList) {
+        _writer.value(col);
+      }
+      _writer.endArray();
+    }
+
+    _writer.name(PARAM_RESULT_TIME).value(res.getTime());
+    _writer.name(PARAM_RESULT_FACETS);
+    writeFacets(req, res.getFacetMap());
+    if (req.getMapReduceFunction() != null && res.getMapReduceResult() != null) {
+      @SuppressWarnings("unchecked")
+      JSONObject mapReduceResult = req.getMapReduceFunction().render(
+        res.getMapReduceResult().getReduceResult());
+      if (mapReduceResult != null) {
+        _writer.name(PARAM_RESULT_MAP_REDUCE).rawValue(mapReduceResult.toString());
+      }
+    }
+    _writer.endObject();
+    _writer.flush();
+  }
+
+  private void writeErrors(List<SenseiError> errors) throws IOException {
+    _writer.name(PARAM_RESULT_ERRORS).beginArray();
+    for (SenseiError error : errors) {
+      _writer.beginObject();
+      writeField(PARAM_RESULT_ERROR_MESSAGE, error.getMessage());
+      _writer.name(PARAM_RESULT_ERROR_TYPE).value(error.getErrorType().name());
+      _writer.name(PARAM_RESULT_ERROR_CODE).value(error.getErrorCode());
+      _writer.endObject();
+    }
+    _writer.endArray();
+    _writer.name(PARAM_RESULT_ERROR_CODE).value(
+      errors.size() > 0 ? errors.get(0).getErrorCode() : 0);
+  }
+
+  private void writeHits(SenseiRequest req, SenseiHit[] hits) throws IOException {
+    Set<String> selectSet = req.getSelectSet();
+    _writer.beginArray();
+    for (SenseiHit hit : hits) {
+      _writer.beginObject();
+      if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_UID)) {
+        _writer.name(PARAM_RESULT_HIT_UID).value(hit.getUID());
+      }
+      if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_DOCID)) {
+        _writer.name(PARAM_RESULT_HIT_DOCID).value(hit.getDocid());
+      }
+      if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_SCORE)) {
+        _writer.name(PARAM_RESULT_HIT_SCORE).value(hit.getScore());
+      }
+      if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_GROUPFIELD)) {
+        writeField(PARAM_RESULT_HIT_GROUPFIELD, hit.getGroupField());
+      }
+      if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_GROUPVALUE)) {
+        writeField(PARAM_RESULT_HIT_GROUPVALUE, hit.getGroupValue());
+      }
+      if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_GROUPHITSCOUNT)) {
+        _writer.name(PARAM_RESULT_HIT_GROUPHITSCOUNT).value(hit.getGroupHitsCount());
+      }
+      if (hit.getGroupHits() != null && hit.getGroupHits().length > 0) {
+        _writer.name(PARAM_RESULT_HIT_GROUPHITS);
+        writeHits(req, hit.getSenseiGroupHits());
+      }
+      // a null source is left out whether it was selected or not
+      writeField(PARAM_RESULT_HIT_SRC_DATA, hit.getSrcData());
+      writeFieldValues(hit.getFieldValues(), selectSet);
+      writeStoredFields(req, hit.getStoredFields(), selectSet);
+
+      Map<String, List<BoboTerm>> tvMap = hit.getTermVectorMap();
+      if (tvMap != null && tvMap.size() > 0
+          && (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_TERMVECTORS))) {
+        _writer.name(PARAM_RESULT_HIT_TERMVECTORS);
+        writeTermVectors(tvMap);
+      }
+
+      SerializableExplanation expl = hit.getExplanation();
+      if (expl != null
+          && (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_EXPLANATION))) {
+        _writer.name(PARAM_RESULT_HIT_EXPLANATION);
+        writeExplanation(expl);
+      }
+      _writer.endObject();
+    }
+    _writer.endArray();
+  }
+
+  private void writeFieldValues(Map<String, String[]> fieldMap, Set<String> selectSet)
+      throws IOException {
+    if (fieldMap == null) {
+      return;
+    }
+    for (Entry<String, String[]> entry : fieldMap.entrySet()) {
+      String key = entry.getKey();
+      if (key.equals(PARAM_RESULT_HIT_UID)
+          || key.equals(SenseiFacetHandlerBuilder.SUM_GROUP_BY_FACET_NAME)) {
+        continue;
+      }
+      if (selectSet != null && !selectSet.contains(key)) {
+        continue;
+      }
+      _writer.name(key).beginArray();
+      String[] vals = entry.getValue();
+      if (vals != null) {
+        for (String val : vals) {
+          _writer.value(val);
+        }
+      }
+      _writer.endArray();
+    }
+  }
+
+  private void writeStoredFields(SenseiRequest req, List<SerializableField> fields,
+      Set<String> selectSet) throws IOException {
+    if (fields == null
+        || (selectSet != null && !selectSet.contains(PARAM_RESULT_HIT_STORED_FIELDS))) {
+      return;
+    }
+    Set<String> storedFieldsToFetch = req.getStoredFieldsToFetch();
+    _writer.name(PARAM_RESULT_HIT_STORED_FIELDS).beginArray();
+    for (SerializableField field : fields) {
+      if (storedFieldsToFetch != null && !storedFieldsToFetch.contains(field.name())) {
+        continue;
+      }
+      // DOCUMENT_STORE_FIELD is already set to _srcdata
+      if (field.name().equals(AbstractZoieIndexable.DOCUMENT_STORE_FIELD)) {
+        continue;
+      }
+      _writer.beginObject();
+      _writer.name(PARAM_RESULT_HIT_STORED_FIELDS_NAME).value(field.name());
+      writeField(PARAM_RESULT_HIT_STORED_FIELDS_VALUE, field.stringValue());
+      _writer.endObject();
+    }
+    _writer.endArray();
+  }
+
+  private void writeTermVectors(Map<String, List<BoboTerm>> tvMap) throws IOException {
+    _writer.beginObject();
+    for (Entry<String, List<BoboTerm>> entry : tvMap.entrySet()) {
+      _writer.name(entry.getKey()).beginArray();
+      for (BoboTerm boboTerm : entry.getValue()) {
+        _writer.beginObject();
+        writeField("term", boboTerm.term);
+        writeField("freq", boboTerm.freq);
+        writeField("positions", boboTerm.positions);
+        writeField("startOffsets", boboTerm.startOffsets);
+        writeField("endOffsets", boboTerm.endOffsets);
+        _writer.endObject();
+      }
+      _writer.endArray();
+    }
+    _writer.endObject();
+  }
+
+  /**
+   * Leaves out the null value, like putting it to the JSONObject does
+   */
+  private void writeField(String name, Object value) throws IOException {
+    if (value != null) {
+      _writer.name(name);
+      writeObject(value);
+    }
+  }
+
+  private void writeExplanation(SerializableExplanation expl) throws IOException {
+    _writer.beginObject();
+    _writer.name(PARAM_RESULT_HITS_EXPL_VALUE).value(expl.getValue());
+    String descr = expl.getDescription();
+    _writer.name(PARAM_RESULT_HITS_EXPL_DESC).value(descr == null ? "" : descr);
+    SerializableExplanation[] details = expl.getDetails();
+    if (details != null) {
+      _writer.name(PARAM_RESULT_HITS_EXPL_DETAILS).beginArray();
+      for (SerializableExplanation detail : details) {
+        if (detail != null) {
+          writeExplanation(detail);
+        }
+      }
+      _writer.endArray();
+    }
+    _writer.endObject();
+  }
+
+  private void writeFacets(SenseiRequest req, Map<String, FacetAccessible> facetValueMap)
+      throws Exception {
+    _writer.beginObject();
+    if (facetValueMap != null) {
+      for (Entry<String, FacetAccessible> entry : facetValueMap.entrySet()) {
+        String fieldname = entry.getKey();
+        _writer.name(fieldname).beginArray();
+        BrowseSelection sel = req.getSelection(fieldname);
+        if (sel != null && sel.getValues() != null && sel.getValues().length > 0) {
+          // the selected values may have to be added and the facets sorted again, that is left to
+          // the DOM version as it's only the facets of the selected fields
+          for (JSONObject facet : DefaultSenseiJSONServlet.convertFacets(fieldname,
+            entry.getValue(), req)) {
+            _writer.rawValue(facet.toString());
+          }
+        } else {
+          for (BrowseFacet facet : entry.getValue().getFacets()) {
+            String fval = facet.getValue();
+            if (fval != null && fval.length() > 0) {
+              _writer.beginObject();
+              _writer.name(PARAM_RESULT_FACET_INFO_COUNT).value(facet.getFacetValueHitCount());
+              _writer.name(PARAM_RESULT_FACET_INFO_VALUE).value(fval);
+              _writer.name(PARAM_RESULT_FACET_INFO_SELECTED).value(false);
+              _writer.endObject();
+            }
+          }
+        }
+        _writer.endArray();
+      }
+    }
+    _writer.endObject();
+  }
+
+  private void writeObject(Object value) throws IOException {
+    if (value == null) {
+      _writer.value((String) null);
+    } else if (value instanceof String) {
+      _writer.value((String) value);
+    } else if (value instanceof Double || value instanceof Float) {
+      _writer.value(((Number) value).doubleValue());
+    } else if (value instanceof Number) {
+      _writer.value(((Number) value).longValue());
+    } else if (value instanceof Boolean) {
+      _writer.value(((Boolean) value).booleanValue());
+    } else if (value instanceof Iterable) {
+      _writer.beginArray();
+      for (Object item : (Iterable<?>) value) {
+        writeObject(item);
+      }
+      _writer.endArray();
+    } else if (value.getClass().isArray()) {
+      _writer.beginArray();
+      for (int i = 0; i < Array.getLength(value); i++) {
+        writeObject(Array.get(value, i));
+      }
+      _writer.endArray();
+    } else {
+      _writer.value(String.valueOf(value));
+    }
+  }
+}
@@ -7,11 +7,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -34,6 +35,7 @@ import com.senseidb.search.req.ErrorType;
 import com.senseidb.search.req.SenseiError;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.Timer;
@@ -45,6 +47,8 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
   private static Timer SearchTimer = null;
   private static Timer MergeTimer = null;
   private static Meter SearchCounter = null;
+  private static Meter RejectionMeter = null;
+  private static Timer QueueWaitTimer = null;
   static {
     // register jmx monitoring for timers
     try {
@@ -65,6 +69,14 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
           "search-count", "node");
       SearchCounter = Metrics.newMeter(searchCounterMetricName, "requets", TimeUnit.SECONDS);
 
+      MetricName rejectionMetricName = new MetricName(MetricsConstants.Domain, "meter",
+          "search-rejections", "node");
+      RejectionMeter = Metrics.newMeter(rejectionMetricName, "rejections", TimeUnit.SECONDS);
+
+      MetricName queueWaitMetricName = new MetricName(MetricsConstants.Domain, "timer",
+          "search-queue-wait-time", "node");
+      QueueWaitTimer = Metrics.newTimer(queueWaitMetricName, TimeUnit.MILLISECONDS,
+        TimeUnit.SECONDS);
     } catch (Exception e) {
       logger.error(e.getMessage(), e);
     }
@@ -74,15 +86,46 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
   protected final SenseiCore _core;
 
   private final NamedThreadFactory threadFactory = new NamedThreadFactory("parallel-searcher");
-  private final ExecutorService _executorService = Executors.newCachedThreadPool(threadFactory);
+  /**
+   * Partition searches run on a bounded pool with a bounded admission queue. When both are full
+   * the partition call is rejected, so the node sheds load instead of piling up threads.
+   */
+  private final ThreadPoolExecutor _executorService;
 
   private final Map<Integer, Timer> partitionTimerMetricMap = new HashMap<Integer, Timer>();
   protected final Map<Integer, Counter> partitionCalls = new HashMap<Integer, Counter>();
+  /**
+   * Partition results of recent requests, null if disabled.
+   */
+  private final PartitionResultCache<Res> _partitionCache;
 
   public AbstractSenseiCoreService(SenseiCore core, Configuration conf) {
     _core = core;
     _timeout = conf.getLong(SenseiConfParams.SENSEI_NODE_PARTITION_TIMEOUT, _timeout);
+    int threads = conf.getInt(SenseiConfParams.SENSEI_NODE_SEARCH_THREADS, Runtime.getRuntime()
+        .availableProcessors() * 2);
+    int queueSize = conf.getInt(SenseiConfParams.SENSEI_NODE_SEARCH_QUEUE_SIZE, 1000);
+    _executorService = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), threadFactory,
+        new ThreadPoolExecutor.AbortPolicy());
+    _executorService.allowCoreThreadTimeOut(true);
+    int partitionCacheSize = conf.getInt(SenseiConfParams.SENSEI_NODE_PARTITION_CACHE_MAX_ENTRIES,
+      0);
+    _partitionCache = partitionCacheSize > 0 ? new PartitionResultCache<Res>(partitionCacheSize)
+        : null;
     initCounters();
+    initQueueDepthGauge();
+  }
+
+  private void initQueueDepthGauge() {
+    MetricName queueDepthMetricName = new MetricName(MetricsConstants.Domain, "gauge",
+        "search-queue-depth", getClass().getSimpleName() + "-node" + _core.getNodeId());
+    Metrics.newGauge(queueDepthMetricName, new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return _executorService.getQueue().size();
+      }
+    });
   }
 
   private Timer buildTimer(int partition) {
@@ -103,6 +146,7 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
   @SuppressWarnings("unchecked")
   public Res execute(final Req senseiReq) {
     final long executeStart = System.currentTimeMillis();
+    final long deadline = executeStart + _timeout;
     SearchCounter.mark();
     Set<Integer> partitions = senseiReq == null ? null : senseiReq.getPartitions();
     if (partitions == null) {
@@ -125,17 +169,21 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
         final ArrayList<Res> resultList = new ArrayList<Res>(partitions.size());
         Future<Res>[] futures = new Future[partitions.size()];
         final Integer[] partitionArray = partitions.toArray(new Integer[] {});
+        // the request is parsed once and the result is shared by all the partitions
+        final SenseiQueryBuilderFactory queryBuilderFactory = getQueryBuilderFactory(senseiReq);
         for (int i = 0; i < partitionArray.length; ++i) {
           final int partition = partitionArray[i];
           final IndexReaderFactory<BoboSegmentReader> readerFactory = _core
               .getIndexReaderFactory(partition);
 
           // Search simultaneously.
+          final long submitTime = System.currentTimeMillis();
           try {
             futures[i] = _executorService.submit(new Callable<Res>() {
               @Override
               public Res call() throws Exception {
                 final long start = System.currentTimeMillis();
+                QueueWaitTimer.update(start - submitTime, TimeUnit.MILLISECONDS);
                 Timer timer = getTimer(partition);
 
                 Res res = timer.time(new Callable<Res>() {
@@ -143,8 +191,8 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
                   @Override
                   public Res call() throws Exception {
                     incrementCallCounter(partition);
-                    return handleRequest(senseiReq, readerFactory, _core.getQueryBuilderFactory(),
-                      indexReaderCache);
+                    return handleRequest(senseiReq, partition, readerFactory,
+                      queryBuilderFactory, indexReaderCache, deadline);
                   }
                 });
 
@@ -153,20 +201,33 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
                 return res;
               }
             });
+          } catch (RejectedExecutionException e) {
+            RejectionMeter.mark();
+            logger.error("Search queue is full, rejecting partition " + partition + " call.");
+            senseiReq.addError(new SenseiError("search queue is full",
+                ErrorType.ExecutionRejected));
           } catch (Exception e) {
             senseiReq.addError(new SenseiError(e.getMessage(), ErrorType.BoboExecutionError));
             logger.error(e.getMessage(), e);
           }
         }
 
-        long startTime = System.currentTimeMillis();
         for (int i = 0; i < futures.length; ++i) {
+          if (futures[i] == null) {
+            // the partition call was never admitted, the error is already recorded
+            Res res = getEmptyResultInstance(null);
+            res.setTime(-1);
+            resultList.add(res);
+            continue;
+          }
           long now = System.currentTimeMillis();
           try {
-            Res res = futures[i].get(_timeout - (now - startTime), TimeUnit.MILLISECONDS);
+            Res res = futures[i].get(Math.max(deadline - now, 0), TimeUnit.MILLISECONDS);
             resultList.add(res);
           } catch (Exception e) {
-            if (e instanceof TimeoutException) {
+            if (e instanceof TimeoutException || e.getCause() instanceof TimeoutException) {
+              // do not let a queued call occupy a search thread after we gave up on it
+              futures[i].cancel(false);
               logger.error("Getting partition " + partitionArray[i] + " result is timeout.");
               senseiReq.addError(new SenseiError(e.getMessage(), ErrorType.ExecutionTimeout));
             } else {
@@ -231,10 +292,12 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
 
   private final Res handleRequest(
       final Req senseiReq,
+      final int partition,
       final IndexReaderFactory<BoboSegmentReader> readerFactory,
       final SenseiQueryBuilderFactory queryBuilderFactory,
-      Map<IndexReaderFactory<BoboSegmentReader>, List<ZoieMultiReader<BoboSegmentReader>>> indexReadersToCleanUp)
-      throws Exception {
+      Map<IndexReaderFactory<BoboSegmentReader>, List<ZoieMultiReader<BoboSegmentReader>>> indexReadersToCleanUp,
+      long deadline) throws Exception {
+    checkDeadline(deadline);
     List<ZoieMultiReader<BoboSegmentReader>> readerList = null;
     readerList = GetReaderTimer.time(new Callable<List<ZoieMultiReader<BoboSegmentReader>>>() {
       @Override
@@ -254,17 +317,84 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
     }
     final List<BoboSegmentReader> boboReaders = ZoieMultiReader.extractDecoratedReaders(readerList);
 
-    return SearchTimer.time(new Callable<Res>() {
+    String cacheKey = _partitionCache == null ? null : getPartitionCacheKey(senseiReq);
+    long generation = 0;
+    if (cacheKey != null) {
+      generation = _partitionCache.getGeneration(partition, _core.getIndexVersion(partition),
+        readerList);
+      Res cached = _partitionCache.get(cacheKey, partition, generation);
+      if (cached != null) {
+        return copyPartitionResult(senseiReq, cached);
+      }
+    }
+
+    checkDeadline(deadline);
+    Res res = SearchTimer.time(new Callable<Res>() {
       @Override
       public Res call() throws Exception {
-        return handlePartitionedRequest(senseiReq, boboReaders, queryBuilderFactory);
+        return handlePartitionedRequest(senseiReq, boboReaders, queryBuilderFactory, deadline);
       }
     });
+    if (cacheKey != null) {
+      Res copy = copyPartitionResult(senseiReq, res);
+      if (copy != null) {
+        _partitionCache.put(cacheKey, partition, generation, copy);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @return the key partition results of the request are cached under, or null if they must
+   *         not be cached
+   */
+  protected String getPartitionCacheKey(Req req) {
+    return null;
+  }
+
+  /**
+   * Copies a partition result into or out of the partition cache. The merge step is free to
+   * modify the results it is given, so cached results are never handed out directly.
+   *
+   * @return the copy, or null if the result can not be cached
+   */
+  protected Res copyPartitionResult(Req req, Res res) {
+    return null;
+  }
+
+  private static void checkDeadline(long deadline) throws TimeoutException {
+    if (System.currentTimeMillis() >= deadline) {
+      throw new TimeoutException("request deadline passed before the partition was searched");
+    }
+  }
+
+  /**
+   * @return the factory of the queries of the request, shared by all of its partitions. The
+   *         queries it builds must not be modified by the searches
+   */
+  protected SenseiQueryBuilderFactory getQueryBuilderFactory(Req r) {
+    return _core.getQueryBuilderFactory();
   }
 
   public abstract Res handlePartitionedRequest(Req r, final List<BoboSegmentReader> readerList,
       SenseiQueryBuilderFactory queryBuilderFactory) throws Exception;
 
+  /**
+   * @param deadline the time in milliseconds the partition result is due by, the services that
+   *          wait on other threads must not wait past it
+   */
+  public Res handlePartitionedRequest(Req r, final List<BoboSegmentReader> readerList,
+      SenseiQueryBuilderFactory queryBuilderFactory, long deadline) throws Exception {
+    return handlePartitionedRequest(r, readerList, queryBuilderFactory);
+  }
+
+  /**
+   * Stops the search threads, the requests being searched are left to finish
+   */
+  public void shutdown() {
+    _executorService.shutdown();
+  }
+
   public abstract Res mergePartitionedResults(Req r, List<Res> reqList);
 
   public abstract Res getEmptyResultInstance(Throwable error);
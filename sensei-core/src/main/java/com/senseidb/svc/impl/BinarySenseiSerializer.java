@@ -0,0 +1,751 @@
+package com.senseidb.svc.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import zu.finagle.serialize.JOSSSerializer;
+import zu.finagle.serialize.ZuSerializer;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.BrowseHit.BoboTerm;
+import com.browseengine.bobo.api.BrowseHit.SerializableExplanation;
+import com.browseengine.bobo.api.BrowseHit.SerializableField;
+import com.browseengine.bobo.api.FacetAccessible;
+import com.browseengine.bobo.mapred.MapReduceResult;
+import com.senseidb.search.node.ResultMerger.MappedFacetAccessible;
+import com.senseidb.search.req.ErrorType;
+import com.senseidb.search.req.SenseiError;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+
+/**
+ * Compact binary encoding of {@link SenseiResult} for the broker to node transport.
+ *
+ * Doc ids, uids and counts are written as varints, field names, facet values and other
+ * strings are dictionary encoded per message, and the payload can optionally be deflated. Rarely
+ * used parts of a hit (stored fields, explanations, term vectors) and the map reduce result fall
+ * back to Java serialization. Requests are small and carry arbitrary map reduce functions, so
+ * they stay Java serialized.
+ *
+ * Every message starts with a magic byte, the format version and a flags byte. Messages that
+ * start with the Java serialization header are decoded with Java serialization, so a broker can
+ * read results from nodes that were not switched to this format yet. A result is written in the
+ * oldest version that can hold it, so the brokers that were not upgraded yet can read it as long
+ * as they are not sent the newer parts.
+ */
+public class BinarySenseiSerializer implements ZuSerializer<SenseiRequest, SenseiResult> {
+  static final byte MAGIC = (byte) 0xB5;
+  static final byte VERSION_1 = 1;
+  /**
+   * Adds the partition index versions, the nodes only report them to the brokers that ask for
+   * results of this version.
+   */
+  public static final byte VERSION_2 = 2;
+  /**
+   * Adds the group by results with error bounds to the Java serialized map reduce result, the
+   * nodes only send them to the brokers that ask for results of this version. The layout is the
+   * one of version 2, so it is never written.
+   */
+  public static final byte VERSION_3 = 3;
+  /**
+   * The newest version this serializer reads.
+   */
+  public static final byte VERSION = VERSION_3;
+  private static final byte FLAG_COMPRESSED = 1;
+  private static final int HEADER_SIZE = 3;
+
+  private static final int HIT_GROUP = 1;
+  private static final int HIT_FIELD_VALUES = 1 << 1;
+  private static final int HIT_RAW_FIELD_VALUES = 1 << 2;
+  private static final int HIT_SRC_DATA = 1 << 3;
+  private static final int HIT_STORED_VALUE = 1 << 4;
+  private static final int HIT_COMPARABLE = 1 << 5;
+  private static final int HIT_STORED_FIELDS = 1 << 6;
+  private static final int HIT_EXPLANATION = 1 << 7;
+  private static final int HIT_TERM_VECTORS = 1 << 8;
+  private static final int HIT_RAW_GROUP_VALUE = 1 << 9;
+  private static final int HIT_GROUP_HITS = 1 << 10;
+
+  private static final byte TYPE_NULL = 0;
+  private static final byte TYPE_STRING = 1;
+  private static final byte TYPE_INT = 2;
+  private static final byte TYPE_LONG = 3;
+  private static final byte TYPE_FLOAT = 4;
+  private static final byte TYPE_DOUBLE = 5;
+  private static final byte TYPE_LONG_ARRAY = 6;
+  private static final byte TYPE_BOOLEAN = 7;
+  private static final byte TYPE_SHORT = 8;
+  private static final byte TYPE_OBJECT = 9;
+
+  private final JOSSSerializer<SenseiRequest, SenseiResult> _javaSerializer = new JOSSSerializer<SenseiRequest, SenseiResult>();
+  private final boolean _compress;
+
+  public BinarySenseiSerializer(boolean compress) {
+    _compress = compress;
+  }
+
+  @Override
+  public ByteBuffer serializeRequest(SenseiRequest request) {
+    return _javaSerializer.serializeRequest(request);
+  }
+
+  @Override
+  public SenseiRequest deserializeRequest(ByteBuffer buffer) {
+    return _javaSerializer.deserializeRequest(buffer);
+  }
+
+  @Override
+  public ByteBuffer serializeResponse(SenseiResult result) {
+    byte version = result.getPartitionVersions() != null ? VERSION_2 : VERSION_1;
+    Output out = new Output(1024);
+    out.skip(HEADER_SIZE);
+    writeResult(out, result, version);
+    byte flags = 0;
+    if (_compress) {
+      out = deflate(out);
+      flags |= FLAG_COMPRESSED;
+    }
+    out.buf[0] = MAGIC;
+    out.buf[1] = version;
+    out.buf[2] = flags;
+    return ByteBuffer.wrap(out.buf, 0, out.size);
+  }
+
+  @Override
+  public SenseiResult deserializeResponse(ByteBuffer buffer) {
+    if (buffer.remaining() >= 2 && buffer.get(buffer.position()) == (byte) 0xAC
+        && buffer.get(buffer.position() + 1) == (byte) 0xED) {
+      // a node still sending Java serialized results
+      return _javaSerializer.deserializeResponse(buffer);
+    }
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    if (bytes.length < HEADER_SIZE || bytes[0] != MAGIC) {
+      throw new IllegalStateException("Not a binary encoded sensei result");
+    }
+    if (bytes[1] > VERSION) {
+      throw new IllegalStateException("Unsupported sensei result format version " + bytes[1]);
+    }
+    Input in;
+    if ((bytes[2] & FLAG_COMPRESSED) != 0) {
+      in = new Input(inflate(bytes, HEADER_SIZE), 0, bytes[1]);
+    } else {
+      in = new Input(bytes, HEADER_SIZE, bytes[1]);
+    }
+    return readResult(in);
+  }
+
+  private static Output deflate(Output out) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(out.buf, HEADER_SIZE, out.size - HEADER_SIZE);
+      deflater.finish();
+      Output compressed = new Output(Math.max(64, (out.size - HEADER_SIZE) / 2));
+      compressed.skip(HEADER_SIZE);
+      while (!deflater.finished()) {
+        compressed.ensureCapacity(4096);
+        compressed.size += deflater.deflate(compressed.buf, compressed.size, compressed.buf.length
+            - compressed.size);
+      }
+      return compressed;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] bytes, int offset) {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(bytes, offset, bytes.length - offset);
+      Output out = new Output(bytes.length * 4);
+      while (!inflater.finished()) {
+        out.ensureCapacity(4096);
+        int len = inflater.inflate(out.buf, out.size, out.buf.length - out.size);
+        if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalStateException("Truncated sensei result");
+        }
+        out.size += len;
+      }
+      byte[] ret = new byte[out.size];
+      System.arraycopy(out.buf, 0, ret, 0, out.size);
+      return ret;
+    } catch (DataFormatException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static void writeResult(Output out, SenseiResult result, byte version) {
+    out.writeVarLong(result.getTid());
+    out.writeVarLong(result.getTime());
+    out.writeVarLong(result.getNumHitsLong());
+    out.writeVarLong(result.getNumGroupsLong());
+    out.writeVarLong(result.getTotalDocsLong());
+    out.writeBoolean(result.isNumHitsLowerBound());
+    out.writeString(result.getParsedQuery());
+
+    List<SenseiError> errors = result.getErrors();
+    out.writeVarInt(errors.size());
+    for (SenseiError error : errors) {
+      out.writeString(error.getMessage());
+      out.writeDictString(error.getErrorType().name());
+      out.writeVarInt(error.getErrorCode());
+    }
+
+    SenseiHit[] hits = result.getSenseiHits();
+    out.writeVarInt(hits.length);
+    for (SenseiHit hit : hits) {
+      writeHit(out, hit);
+    }
+
+    Map<String, FacetAccessible> facetMap = result.getFacetMap();
+    out.writeVarInt(facetMap == null ? 0 : facetMap.size());
+    if (facetMap != null) {
+      for (Entry<String, FacetAccessible> entry : facetMap.entrySet()) {
+        out.writeDictString(entry.getKey());
+        List<BrowseFacet> facets = entry.getValue().getFacets();
+        out.writeVarInt(facets.size());
+        for (BrowseFacet facet : facets) {
+          if (facet == null) {
+            out.writeVarInt(0);
+          } else {
+            out.writeVarInt(facet.getFacetValueHitCount() + 1);
+            out.writeDictString(facet.getValue());
+          }
+        }
+      }
+    }
+
+    out.writeObject(result.getMapReduceResult());
+
+    if (version >= VERSION_2) {
+      Map<Integer, String> partitionVersions = result.getPartitionVersions();
+      out.writeVarInt(partitionVersions == null ? 0 : partitionVersions.size() + 1);
+      if (partitionVersions != null) {
+        for (Entry<Integer, String> entry : partitionVersions.entrySet()) {
+          out.writeVarInt(entry.getKey());
+          out.writeString(entry.getValue());
+        }
+      }
+    }
+  }
+
+  private static SenseiResult readResult(Input in) {
+    SenseiResult result = new SenseiResult();
+    result.setTid(in.readVarLong());
+    result.setTime(in.readVarLong());
+    result.setNumHitsLong(in.readVarLong());
+    result.setNumGroupsLong(in.readVarLong());
+    result.setTotalDocsLong(in.readVarLong());
+    result.setNumHitsLowerBound(in.readBoolean());
+    result.setParsedQuery(in.readString());
+
+    int numErrors = in.readVarInt();
+    for (int i = 0; i < numErrors; ++i) {
+      String message = in.readString();
+      ErrorType errorType = readErrorType(in.readDictString());
+      result.addError(new SenseiError(message, errorType, in.readVarInt()));
+    }
+
+    SenseiHit[] hits = new SenseiHit[in.readVarInt()];
+    for (int i = 0; i < hits.length; ++i) {
+      hits[i] = readHit(in);
+    }
+    result.setHits(hits);
+
+    int numFacetFields = in.readVarInt();
+    Map<String, FacetAccessible> facetMap = new HashMap<String, FacetAccessible>(numFacetFields * 2);
+    for (int i = 0; i < numFacetFields; ++i) {
+      String name = in.readDictString();
+      BrowseFacet[] facets = new BrowseFacet[in.readVarInt()];
+      for (int j = 0; j < facets.length; ++j) {
+        int count = in.readVarInt();
+        if (count > 0) {
+          facets[j] = new BrowseFacet(in.readDictString(), count - 1);
+        }
+      }
+      facetMap.put(name, new MappedFacetAccessible(facets));
+    }
+    result.addAll(facetMap);
+
+    result.setMapReduceResult((MapReduceResult) in.readObject());
+
+    if (in.version >= VERSION_2) {
+      int numPartitions = in.readVarInt();
+      if (numPartitions > 0) {
+        Map<Integer, String> partitionVersions = new HashMap<Integer, String>(numPartitions * 2);
+        for (int i = 1; i < numPartitions; ++i) {
+          int partition = in.readVarInt();
+          partitionVersions.put(partition, in.readString());
+        }
+        result.setPartitionVersions(partitionVersions);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the error type of the name, {@link ErrorType#UnknownError} for the types added by newer
+   *         nodes. The error code is kept as it was sent
+   */
+  private static ErrorType readErrorType(String name) {
+    try {
+      return ErrorType.valueOf(name);
+    } catch (IllegalArgumentException e) {
+      return ErrorType.UnknownError;
+    }
+  }
+
+  private static void writeHit(Output out, SenseiHit hit) {
+    Map<String, String[]> fieldValues = hit.getFieldValues();
+    Map<String, Object[]> rawFieldValues = hit.getRawFieldValues();
+    String srcData = hit.getSrcData();
+    int mask = 0;
+    if (hit.getGroupField() != null || hit.getGroupValue() != null) mask |= HIT_GROUP;
+    if (fieldValues != null) mask |= HIT_FIELD_VALUES;
+    if (rawFieldValues != null) mask |= HIT_RAW_FIELD_VALUES;
+    if (!"".equals(srcData)) mask |= HIT_SRC_DATA;
+    if (hit.getStoredValue() != null) mask |= HIT_STORED_VALUE;
+    if (hit.getComparable() != null) mask |= HIT_COMPARABLE;
+    if (hit.getStoredFields() != null) mask |= HIT_STORED_FIELDS;
+    if (hit.getExplanation() != null) mask |= HIT_EXPLANATION;
+    if (hit.getTermVectorMap() != null) mask |= HIT_TERM_VECTORS;
+    if (hit.getRawGroupValue() != null) mask |= HIT_RAW_GROUP_VALUE;
+    if (hit.getGroupHits() != null) mask |= HIT_GROUP_HITS;
+
+    out.writeVarInt(mask);
+    out.writeVarLong(hit.getUID());
+    out.writeVarInt(hit.getDocid());
+    out.writeFloat(hit.getScore());
+    out.writeVarInt(hit.getGroupHitsCount());
+    out.writeVarInt(hit.getGroupPosition());
+    if ((mask & HIT_GROUP) != 0) {
+      out.writeDictString(hit.getGroupField());
+      out.writeDictString(hit.getGroupValue());
+    }
+    if ((mask & HIT_FIELD_VALUES) != 0) {
+      out.writeVarInt(fieldValues.size());
+      for (Entry<String, String[]> entry : fieldValues.entrySet()) {
+        out.writeDictString(entry.getKey());
+        String[] values = entry.getValue();
+        out.writeVarInt(values == null ? 0 : values.length + 1);
+        if (values != null) {
+          for (String value : values) {
+            out.writeDictString(value);
+          }
+        }
+      }
+    }
+    if ((mask & HIT_RAW_FIELD_VALUES) != 0) {
+      out.writeVarInt(rawFieldValues.size());
+      for (Entry<String, Object[]> entry : rawFieldValues.entrySet()) {
+        out.writeDictString(entry.getKey());
+        Object[] values = entry.getValue();
+        out.writeVarInt(values == null ? 0 : values.length + 1);
+        if (values != null) {
+          for (Object value : values) {
+            out.writeValue(value);
+          }
+        }
+      }
+    }
+    if ((mask & HIT_SRC_DATA) != 0) out.writeString(srcData);
+    if ((mask & HIT_STORED_VALUE) != 0) out.writeBytes(hit.getStoredValue());
+    if ((mask & HIT_COMPARABLE) != 0) out.writeValue(hit.getComparable());
+    if ((mask & HIT_STORED_FIELDS) != 0) out.writeObject(new ArrayList<SerializableField>(
+        hit.getStoredFields()));
+    if ((mask & HIT_EXPLANATION) != 0) out.writeObject(hit.getExplanation());
+    if ((mask & HIT_TERM_VECTORS) != 0) out.writeObject(new HashMap<String, List<BoboTerm>>(
+        hit.getTermVectorMap()));
+    if ((mask & HIT_RAW_GROUP_VALUE) != 0) out.writeValue(hit.getRawGroupValue());
+    if ((mask & HIT_GROUP_HITS) != 0) {
+      SenseiHit[] groupHits = hit.getSenseiGroupHits();
+      out.writeVarInt(groupHits.length);
+      for (SenseiHit groupHit : groupHits) {
+        writeHit(out, groupHit);
+      }
+    }
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static SenseiHit readHit(Input in) {
+    SenseiHit hit = new SenseiHit();
+    int mask = in.readVarInt();
+    hit.setUID(in.readVarLong());
+    hit.setDocid(in.readVarInt());
+    hit.setScore(in.readFloat());
+    hit.setGroupHitsCount(in.readVarInt());
+    hit.setGroupPosition(in.readVarInt());
+    if ((mask & HIT_GROUP) != 0) {
+      hit.setGroupField(in.readDictString());
+      hit.setGroupValue(in.readDictString());
+    }
+    if ((mask & HIT_FIELD_VALUES) != 0) {
+      int size = in.readVarInt();
+      Map<String, String[]> fieldValues = new HashMap<String, String[]>(size * 2);
+      for (int i = 0; i < size; ++i) {
+        String name = in.readDictString();
+        int len = in.readVarInt();
+        String[] values = null;
+        if (len > 0) {
+          values = new String[len - 1];
+          for (int j = 0; j < values.length; ++j) {
+            values[j] = in.readDictString();
+          }
+        }
+        fieldValues.put(name, values);
+      }
+      hit.setFieldValues(fieldValues);
+    }
+    if ((mask & HIT_RAW_FIELD_VALUES) != 0) {
+      int size = in.readVarInt();
+      Map<String, Object[]> rawFieldValues = new HashMap<String, Object[]>(size * 2);
+      for (int i = 0; i < size; ++i) {
+        String name = in.readDictString();
+        int len = in.readVarInt();
+        Object[] values = null;
+        if (len > 0) {
+          values = new Object[len - 1];
+          for (int j = 0; j < values.length; ++j) {
+            values[j] = in.readValue();
+          }
+        }
+        rawFieldValues.put(name, values);
+      }
+      hit.setRawFieldValues(rawFieldValues);
+    }
+    if ((mask & HIT_SRC_DATA) != 0) hit.setSrcData(in.readString());
+    if ((mask & HIT_STORED_VALUE) != 0) hit.setStoredValue(in.readBytes());
+    if ((mask & HIT_COMPARABLE) != 0) hit.setComparable((Comparable) in.readValue());
+    if ((mask & HIT_STORED_FIELDS) != 0) hit.setStoredFields((List<SerializableField>) in
+        .readObject());
+    if ((mask & HIT_EXPLANATION) != 0) hit.setExplanation((SerializableExplanation) in
+        .readObject());
+    if ((mask & HIT_TERM_VECTORS) != 0) hit.setTermVectorMap((Map<String, List<BoboTerm>>) in
+        .readObject());
+    if ((mask & HIT_RAW_GROUP_VALUE) != 0) hit.setRawGroupValue(in.readValue());
+    if ((mask & HIT_GROUP_HITS) != 0) {
+      SenseiHit[] groupHits = new SenseiHit[in.readVarInt()];
+      for (int i = 0; i < groupHits.length; ++i) {
+        groupHits[i] = readHit(in);
+      }
+      hit.setGroupHits(groupHits);
+    }
+    return hit;
+  }
+
+  private static final class Output {
+    byte[] buf;
+    int size = 0;
+    private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+    Output(int capacity) {
+      buf = new byte[capacity];
+    }
+
+    void ensureCapacity(int extra) {
+      if (size + extra > buf.length) {
+        byte[] newBuf = new byte[Math.max(buf.length << 1, size + extra)];
+        System.arraycopy(buf, 0, newBuf, 0, size);
+        buf = newBuf;
+      }
+    }
+
+    void skip(int len) {
+      ensureCapacity(len);
+      size += len;
+    }
+
+    void writeByte(int b) {
+      ensureCapacity(1);
+      buf[size++] = (byte) b;
+    }
+
+    void writeBoolean(boolean b) {
+      writeByte(b ? 1 : 0);
+    }
+
+    void writeVarInt(int value) {
+      writeVarLong(value);
+    }
+
+    void writeVarLong(long value) {
+      // zig zag, so small negative values stay small
+      long v = (value << 1) ^ (value >> 63);
+      ensureCapacity(10);
+      while ((v & ~0x7FL) != 0) {
+        buf[size++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      buf[size++] = (byte) v;
+    }
+
+    void writeFloat(float value) {
+      writeFixedInt(Float.floatToIntBits(value));
+    }
+
+    void writeFixedInt(int v) {
+      ensureCapacity(4);
+      buf[size++] = (byte) (v >>> 24);
+      buf[size++] = (byte) (v >>> 16);
+      buf[size++] = (byte) (v >>> 8);
+      buf[size++] = (byte) v;
+    }
+
+    void writeFixedLong(long v) {
+      writeFixedInt((int) (v >>> 32));
+      writeFixedInt((int) v);
+    }
+
+    void writeBytes(byte[] bytes) {
+      if (bytes == null) {
+        writeVarInt(0);
+        return;
+      }
+      writeVarInt(bytes.length + 1);
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, buf, size, bytes.length);
+      size += bytes.length;
+    }
+
+    void writeString(String s) {
+      writeBytes(s == null ? null : toUtf8(s));
+    }
+
+    /**
+     * 0 stands for null, 1 for a new string that follows and n > 1 for the string with id n - 2.
+     */
+    void writeDictString(String s) {
+      if (s == null) {
+        writeVarInt(0);
+        return;
+      }
+      Integer id = dictionary.get(s);
+      if (id != null) {
+        writeVarInt(id + 2);
+      } else {
+        dictionary.put(s, dictionary.size());
+        writeVarInt(1);
+        writeString(s);
+      }
+    }
+
+    void writeValue(Object value) {
+      if (value == null) {
+        writeByte(TYPE_NULL);
+      } else if (value instanceof String) {
+        writeByte(TYPE_STRING);
+        writeDictString((String) value);
+      } else if (value instanceof Integer) {
+        writeByte(TYPE_INT);
+        writeVarInt((Integer) value);
+      } else if (value instanceof Long) {
+        writeByte(TYPE_LONG);
+        writeVarLong((Long) value);
+      } else if (value instanceof Float) {
+        writeByte(TYPE_FLOAT);
+        writeFloat((Float) value);
+      } else if (value instanceof Double) {
+        writeByte(TYPE_DOUBLE);
+        writeFixedLong(Double.doubleToLongBits((Double) value));
+      } else if (value instanceof long[]) {
+        writeByte(TYPE_LONG_ARRAY);
+        long[] array = (long[]) value;
+        writeVarInt(array.length);
+        for (long l : array) {
+          writeVarLong(l);
+        }
+      } else if (value instanceof Boolean) {
+        writeByte(TYPE_BOOLEAN);
+        writeBoolean((Boolean) value);
+      } else if (value instanceof Short) {
+        writeByte(TYPE_SHORT);
+        writeVarInt((Short) value);
+      } else {
+        writeByte(TYPE_OBJECT);
+        writeObject(value);
+      }
+    }
+
+    void writeObject(Object value) {
+      if (value == null) {
+        writeBytes(null);
+        return;
+      }
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(value);
+        oos.close();
+        writeBytes(bytes.toByteArray());
+      } catch (IOException e) {
+        throw new IllegalStateException("Can not serialize " + value.getClass(), e);
+      }
+    }
+  }
+
+  private static final class Input {
+    private final byte[] buf;
+    private int pos;
+    private final byte version;
+    private final List<String> dictionary = new ArrayList<String>();
+
+    Input(byte[] buf, int pos, byte version) {
+      this.buf = buf;
+      this.pos = pos;
+      this.version = version;
+    }
+
+    byte readByte() {
+      return buf[pos++];
+    }
+
+    boolean readBoolean() {
+      return readByte() != 0;
+    }
+
+    int readVarInt() {
+      return (int) readVarLong();
+    }
+
+    long readVarLong() {
+      long v = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = buf[pos++];
+        v |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return (v >>> 1) ^ -(v & 1);
+    }
+
+    int readFixedInt() {
+      return ((buf[pos++] & 0xFF) << 24) | ((buf[pos++] & 0xFF) << 16)
+          | ((buf[pos++] & 0xFF) << 8) | (buf[pos++] & 0xFF);
+    }
+
+    long readFixedLong() {
+      return ((long) readFixedInt() << 32) | (readFixedInt() & 0xFFFFFFFFL);
+    }
+
+    float readFloat() {
+      return Float.intBitsToFloat(readFixedInt());
+    }
+
+    byte[] readBytes() {
+      int len = readVarInt();
+      if (len == 0) {
+        return null;
+      }
+      byte[] bytes = new byte[len - 1];
+      System.arraycopy(buf, pos, bytes, 0, bytes.length);
+      pos += bytes.length;
+      return bytes;
+    }
+
+    String readString() {
+      int len = readVarInt();
+      if (len == 0) {
+        return null;
+      }
+      String s = fromUtf8(buf, pos, len - 1);
+      pos += len - 1;
+      return s;
+    }
+
+    String readDictString() {
+      int ref = readVarInt();
+      if (ref == 0) {
+        return null;
+      }
+      if (ref == 1) {
+        String s = readString();
+        dictionary.add(s);
+        return s;
+      }
+      return dictionary.get(ref - 2);
+    }
+
+    Object readValue() {
+      byte type = readByte();
+      switch (type) {
+      case TYPE_NULL:
+        return null;
+      case TYPE_STRING:
+        return readDictString();
+      case TYPE_INT:
+        return readVarInt();
+      case TYPE_LONG:
+        return readVarLong();
+      case TYPE_FLOAT:
+        return readFloat();
+      case TYPE_DOUBLE:
+        return Double.longBitsToDouble(readFixedLong());
+      case TYPE_LONG_ARRAY:
+        long[] array = new long[readVarInt()];
+        for (int i = 0; i < array.length; ++i) {
+          array[i] = readVarLong();
+        }
+        return array;
+      case TYPE_BOOLEAN:
+        return readBoolean();
+      case TYPE_SHORT:
+        return (short) readVarInt();
+      case TYPE_OBJECT:
+        return readObject();
+      default:
+        throw new IllegalStateException("Unknown value type " + type);
+      }
+    }
+
+    Serializable readObject() {
+      byte[] bytes = readBytes();
+      if (bytes == null) {
+        return null;
+      }
+      try {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+          return (Serializable) ois.readObject();
+        } finally {
+          ois.close();
+        }
+      } catch (Exception e) {
+        throw new IllegalStateException("Can not deserialize object", e);
+      }
+    }
+  }
+
+  private static byte[] toUtf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String fromUtf8(byte[] bytes, int offset, int len) {
+    try {
+      return new String(bytes, offset, len, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -6,17 +6,24 @@ import com.browseengine.bobo.api.BrowseHit;
 import com.browseengine.bobo.api.BrowseRequest;
 import com.browseengine.bobo.api.BrowseResult;
 import com.browseengine.bobo.api.MultiBoboBrowser;
+import com.browseengine.bobo.facets.data.FacetDataCache;
 import com.browseengine.bobo.sort.SortCollector;
+import com.senseidb.conf.SenseiConfParams;
 import com.senseidb.indexing.SenseiIndexPruner;
 import com.senseidb.indexing.SenseiIndexPruner.IndexReaderSelector;
 import com.senseidb.metrics.MetricsConstants;
 import com.senseidb.search.node.ResultMerger;
 import com.senseidb.search.node.SenseiCore;
 import com.senseidb.search.node.SenseiQueryBuilderFactory;
+import com.senseidb.search.node.SortedHitsMerger;
+import com.senseidb.search.node.impl.CompiledQueryBuilderFactory;
 import com.senseidb.search.req.SenseiHit;
 import com.senseidb.search.req.SenseiRequest;
 import com.senseidb.search.req.SenseiResult;
+import com.senseidb.search.req.mapred.CombinerStage;
+import com.senseidb.search.req.mapred.functions.groupby.GroupByMapReduceJob;
 import com.senseidb.search.req.mapred.impl.SenseiMapFunctionWrapper;
+import com.senseidb.search.req.mapred.impl.SenseiReduceFunctionWrapper;
 import com.senseidb.util.RequestConverter;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.MetricName;
@@ -24,16 +31,28 @@ import com.yammer.metrics.core.Timer;
 import org.apache.commons.configuration.Configuration;
 import org.apache.log4j.Logger;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.NamedThreadFactory;
 import zu.finagle.serialize.JOSSSerializer;
 import zu.finagle.serialize.ZuSerializer;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.senseidb.servlet.SenseiSearchServletParams.PARAM_RESULT_HIT_UID;
@@ -46,18 +65,69 @@ public class CoreSenseiServiceImpl extends AbstractSenseiCoreService<SenseiReque
   private static final Logger logger = Logger.getLogger(CoreSenseiServiceImpl.class);
 
   private static Timer timerMetric = null;
+  private static Timer queryCompileTimer = null;
   static {
     // register prune time metric
     try {
       MetricName metricName = new MetricName(MetricsConstants.Domain, "timer", "prune", "node");
       timerMetric = Metrics.newTimer(metricName, TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+      metricName = new MetricName(MetricsConstants.Domain, "timer", "query-compile-time", "node");
+      queryCompileTimer = Metrics.newTimer(metricName, TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
     } catch (Exception e) {
       logger.error(e.getMessage(), e);
     }
   }
 
+  /**
+   * Number of segment groups a single partition search is split into, 0 or 1 disables the
+   * intra-partition parallel search.
+   */
+  private final int _segmentParallelism;
+  private final int _parallelMinSegments;
+  private final long _parallelMinDocs;
+  private final ExecutorService _segmentExecutor;
+  /**
+   * Sort fields for which segments are ordered and skipped by their min/max values.
+   */
+  private final Set<String> _earlyTerminationFields;
+  private final ZuSerializer<SenseiRequest, SenseiResult> _serializer;
+
   public CoreSenseiServiceImpl(SenseiCore core, Configuration conf) {
     super(core, conf);
+    _segmentParallelism = conf.getInt(SenseiConfParams.SENSEI_NODE_SEGMENT_PARALLELISM, 0);
+    _parallelMinSegments = conf.getInt(SenseiConfParams.SENSEI_NODE_SEGMENT_PARALLEL_MIN_SEGMENTS,
+      4);
+    _parallelMinDocs = conf.getLong(SenseiConfParams.SENSEI_NODE_SEGMENT_PARALLEL_MIN_DOCS,
+      1000000L);
+    // segment groups run on their own pool, a partition task waiting on them must never compete
+    // with other partition tasks for the same threads
+    _segmentExecutor = _segmentParallelism > 1 ? Executors.newFixedThreadPool(Runtime.getRuntime()
+        .availableProcessors(), new NamedThreadFactory("segment-searcher")) : null;
+    _earlyTerminationFields = new HashSet<String>(Arrays.asList(conf
+        .getStringArray(SenseiConfParams.SENSEI_NODE_EARLY_TERMINATION_SORT_FIELDS)));
+    _serializer = buildSerializer(conf);
+  }
+
+  /**
+   * Builds the broker to node serializer configured for the cluster: "java" (the default),
+   * "binary" or the class name of a ZuSerializer with a default constructor. The binary
+   * serializer also reads Java serialized results, so brokers should be switched before nodes.
+   */
+  @SuppressWarnings("unchecked")
+  public static ZuSerializer<SenseiRequest, SenseiResult> buildSerializer(Configuration conf) {
+    String serializer = conf.getString(SenseiConfParams.SENSEI_CLUSTER_SERIALIZER, "java");
+    if ("java".equals(serializer)) {
+      return JAVA_SERIALIZER;
+    }
+    if ("binary".equals(serializer)) {
+      return new BinarySenseiSerializer(conf.getBoolean(
+        SenseiConfParams.SENSEI_CLUSTER_SERIALIZER_COMPRESS, false));
+    }
+    try {
+      return (ZuSerializer<SenseiRequest, SenseiResult>) Class.forName(serializer).newInstance();
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Can not create serializer " + serializer, e);
+    }
   }
 
   private SenseiResult browse(SenseiRequest senseiRequest, MultiBoboBrowser browser,
@@ -154,9 +224,24 @@ public class CoreSenseiServiceImpl extends AbstractSenseiCoreService<SenseiReque
   }
 
   @Override
-  public SenseiResult handlePartitionedRequest(final SenseiRequest request,
-      final List<BoboSegmentReader> readerList, SenseiQueryBuilderFactory queryBuilderFactory)
+  public void shutdown() {
+    super.shutdown();
+    if (_segmentExecutor != null) {
+      _segmentExecutor.shutdown();
+    }
+  }
+
+  @Override
+  public SenseiResult handlePartitionedRequest(SenseiRequest request,
+      List<BoboSegmentReader> readerList, SenseiQueryBuilderFactory queryBuilderFactory)
       throws Exception {
+    return handlePartitionedRequest(request, readerList, queryBuilderFactory, Long.MAX_VALUE);
+  }
+
+  @Override
+  public SenseiResult handlePartitionedRequest(final SenseiRequest request,
+      final List<BoboSegmentReader> readerList, SenseiQueryBuilderFactory queryBuilderFactory,
+      long deadline) throws Exception {
     MultiBoboBrowser browser = null;
 
     try {
@@ -186,6 +271,20 @@ public class CoreSenseiServiceImpl extends AbstractSenseiCoreService<SenseiReque
             });
 
         pruner.sort(validatedSegmentReaders);
+        if (useEarlyTermination(request)) {
+          SenseiResult res = earlyTerminationSearch(request, validatedSegmentReaders,
+            queryBuilderFactory);
+          int totalDocs = res.getTotalDocs() + skipDocs.get();
+          res.setTotalDocs(totalDocs);
+          return res;
+        }
+        if (useSegmentParallelSearch(request, validatedSegmentReaders)) {
+          SenseiResult res = parallelSegmentSearch(request, validatedSegmentReaders,
+            queryBuilderFactory, deadline);
+          int totalDocs = res.getTotalDocs() + skipDocs.get();
+          res.setTotalDocs(totalDocs);
+          return res;
+        }
         browser = new MultiBoboBrowser(validatedSegmentReaders);
         browser.setSimilarity(_core.getZoieFactory().getZoieConfig().getSimilarity());
         BrowseRequest breq = RequestConverter.convert(request, queryBuilderFactory);
@@ -216,6 +315,423 @@ public class CoreSenseiServiceImpl extends AbstractSenseiCoreService<SenseiReque
     }
   }
 
+  private boolean useEarlyTermination(SenseiRequest request) {
+    if (_earlyTerminationFields.isEmpty()) {
+      return false;
+    }
+    SortField[] sort = request.getSort();
+    if (sort.length != 1 || sort[0].getField() == null
+        || !_earlyTerminationFields.contains(sort[0].getField())) {
+      return false;
+    }
+    // skipped segments would be missing from facet counts, groups and map reduce results
+    if ((request.getFacetSpecs() != null && request.getFacetSpecs().size() > 0)
+        || (request.getGroupBy() != null && request.getGroupBy().length > 0)
+        || request.getMapReduceFunction() != null) {
+      return false;
+    }
+    // the sort value of the hits is needed to compute the threshold
+    Set<String> selectSet = request.getSelectSet();
+    return selectSet == null || selectSet.size() == 0 || selectSet.contains(sort[0].getField());
+  }
+
+  /**
+   * Browses the segments one by one, starting from the segment with the best value of the sort
+   * field. Once the page is full and its last hit beats the best value of the next segment, the
+   * remaining segments can not contribute to the page and are skipped. The number of hits of such
+   * a result is only a lower bound.
+   */
+  private SenseiResult earlyTerminationSearch(SenseiRequest request,
+      List<BoboSegmentReader> segmentReaders, SenseiQueryBuilderFactory queryBuilderFactory)
+      throws Exception {
+    SortField sortField = request.getSort()[0];
+    String field = sortField.getField();
+    boolean reverse = sortField.getReverse();
+    List<SegmentBound> bounds = new ArrayList<SegmentBound>(segmentReaders.size());
+    // the docids of the hits are numbered in the order of the segments, like the browser does
+    int docBase = 0;
+    for (BoboSegmentReader segmentReader : segmentReaders) {
+      bounds.add(new SegmentBound(segmentReader, docBase, field, reverse));
+      docBase += segmentReader.maxDoc();
+    }
+    Collections.sort(bounds, new SegmentBoundComparator(reverse));
+
+    int topHits = request.getOffset() + request.getCount();
+    // ties are broken by docid, the docids have to be those of the partition before merging
+    Comparator<SenseiHit> comparator = ResultMerger.getHitComparator(request.getSort());
+    SenseiHit[] top = new SenseiHit[0];
+    long numHits = 0;
+    long totalDocs = 0;
+    boolean skipped = false;
+    String parsedQuery = null;
+    for (SegmentBound bound : bounds) {
+      BoboSegmentReader segmentReader = bound.reader;
+      if (!skipped && topHits > 0 && top.length >= topHits
+          && bound.isBeatenBy(top[topHits - 1].getRawField(field), reverse)) {
+        skipped = true;
+      }
+      if (skipped) {
+        totalDocs += segmentReader.numDocs();
+        continue;
+      }
+      SenseiResult segmentResult = browseSegmentGroup(request,
+        Collections.singletonList(segmentReader), queryBuilderFactory, topHits);
+      SortCollector sortCollector = segmentResult.getSortCollector();
+      if (sortCollector != null) {
+        sortCollector.close();
+      }
+      SenseiHit[] segmentHits = segmentResult.getSenseiHits();
+      for (SenseiHit hit : segmentHits) {
+        hit.setDocid(hit.getDocid() + bound.docBase);
+      }
+      top = SortedHitsMerger.merge(new SenseiHit[][] { top, segmentHits }, 0, topHits, comparator);
+      numHits += segmentResult.getNumHitsLong();
+      totalDocs += segmentResult.getTotalDocsLong();
+      if (parsedQuery == null) {
+        parsedQuery = segmentResult.getParsedQuery();
+      }
+    }
+
+    SenseiResult result = new SenseiResult();
+    int from = Math.min(request.getOffset(), top.length);
+    result.setHits(Arrays.copyOfRange(top, from, top.length));
+    result.setNumHitsLong(numHits);
+    result.setNumHitsLowerBound(skipped);
+    result.setTotalDocsLong(totalDocs);
+    result.setParsedQuery(parsedQuery != null ? parsedQuery : "*:*");
+    result.setTid(request.getTid());
+    return result;
+  }
+
+  /**
+   * The best value of the sort field a segment can produce, derived from its facet data.
+   */
+  private static final class SegmentBound {
+    final BoboSegmentReader reader;
+    final int docBase;
+    /**
+     * The segment may contain docs that sort before any value, nothing can be skipped.
+     */
+    final boolean unbounded;
+    /**
+     * The best value in the segment, null if no doc of the segment has a value.
+     */
+    @SuppressWarnings("rawtypes")
+    final Comparable value;
+
+    @SuppressWarnings("rawtypes")
+    SegmentBound(BoboSegmentReader reader, int docBase, String field, boolean reverse) {
+      this.reader = reader;
+      this.docBase = docBase;
+      Object facetData = reader.getFacetData(field);
+      if (!(facetData instanceof FacetDataCache)) {
+        unbounded = true;
+        value = null;
+        return;
+      }
+      FacetDataCache<?> dataCache = (FacetDataCache<?>) facetData;
+      int size = dataCache.valArray.size();
+      // position 0 of the value list holds the docs without a value, they sort first
+      boolean hasMissing = dataCache.freqs.length > 0 && dataCache.freqs[0] > 0;
+      unbounded = !reverse && hasMissing;
+      if (size <= 1) {
+        value = null;
+      } else {
+        value = (Comparable) dataCache.valArray.getRawValue(reverse ? size - 1 : 1);
+      }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    boolean isBeatenBy(Object threshold, boolean reverse) {
+      if (unbounded || threshold == null) {
+        return false;
+      }
+      if (value == null) {
+        return true;
+      }
+      int cmp = ((Comparable) threshold).compareTo(value);
+      return reverse ? cmp > 0 : cmp < 0;
+    }
+  }
+
+  private static final class SegmentBoundComparator implements Comparator<SegmentBound> {
+    private final boolean reverse;
+
+    SegmentBoundComparator(boolean reverse) {
+      this.reverse = reverse;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public int compare(SegmentBound b1, SegmentBound b2) {
+      if (b1.unbounded != b2.unbounded) {
+        return b1.unbounded ? -1 : 1;
+      }
+      if (b1.value == null || b2.value == null) {
+        if (b1.value == b2.value) {
+          return 0;
+        }
+        return b1.value == null ? 1 : -1;
+      }
+      int cmp = b1.value.compareTo(b2.value);
+      return reverse ? -cmp : cmp;
+    }
+  }
+
+  private boolean useSegmentParallelSearch(SenseiRequest request,
+      List<BoboSegmentReader> segmentReaders) {
+    if (_segmentExecutor == null || segmentReaders.size() < _parallelMinSegments) {
+      return false;
+    }
+    // grouped hits are merged through the sort collectors, which only work on a single browser
+    if (request.getGroupBy() != null && request.getGroupBy().length > 0) {
+      return false;
+    }
+    long numDocs = 0;
+    for (BoboSegmentReader segmentReader : segmentReaders) {
+      numDocs += segmentReader.numDocs();
+    }
+    return numDocs >= _parallelMinDocs;
+  }
+
+  /**
+   * Splits the segments into groups of roughly equal doc count, browses every group on its own
+   * thread and merges the per-group top hits, facet counts and map reduce partial results. The
+   * hits get the doc ids the sequential search would give them, so the ties between equally sorted
+   * hits are broken in the same order.
+   */
+  private SenseiResult parallelSegmentSearch(final SenseiRequest request,
+      List<BoboSegmentReader> segmentReaders, final SenseiQueryBuilderFactory queryBuilderFactory,
+      long deadline) throws Exception {
+    int numGroups = Math.min(_segmentParallelism, segmentReaders.size());
+    final List<List<BoboSegmentReader>> groups = new ArrayList<List<BoboSegmentReader>>(numGroups);
+    // the doc id of the first doc of every segment of a group in the sequential search
+    List<List<Integer>> groupDocBases = new ArrayList<List<Integer>>(numGroups);
+    long[] groupDocs = new long[numGroups];
+    for (int i = 0; i < numGroups; ++i) {
+      groups.add(new ArrayList<BoboSegmentReader>());
+      groupDocBases.add(new ArrayList<Integer>());
+    }
+    int docBase = 0;
+    for (BoboSegmentReader segmentReader : segmentReaders) {
+      int smallest = 0;
+      for (int i = 1; i < numGroups; ++i) {
+        if (groupDocs[i] < groupDocs[smallest]) {
+          smallest = i;
+        }
+      }
+      groups.get(smallest).add(segmentReader);
+      groupDocBases.get(smallest).add(docBase);
+      groupDocs[smallest] += segmentReader.numDocs();
+      docBase += segmentReader.maxDoc();
+    }
+
+    // each group has to return the full page, the offset is applied when the groups are merged
+    final int topHits = request.getOffset() + request.getCount();
+    @SuppressWarnings("unchecked")
+    Future<SenseiResult>[] futures = new Future[numGroups];
+    for (int i = 1; i < numGroups; ++i) {
+      final List<BoboSegmentReader> group = groups.get(i);
+      futures[i] = _segmentExecutor.submit(new Callable<SenseiResult>() {
+        @Override
+        public SenseiResult call() throws Exception {
+          return browseSegmentGroup(request, group, queryBuilderFactory, topHits);
+        }
+      });
+    }
+
+    List<SenseiResult> results = new ArrayList<SenseiResult>(numGroups);
+    try {
+      for (int i = 0; i < numGroups; ++i) {
+        SenseiResult groupResult;
+        if (i == 0) {
+          groupResult = browseSegmentGroup(request, groups.get(0), queryBuilderFactory, topHits);
+        } else {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            throw new TimeoutException("request deadline passed while the segments were searched");
+          }
+          groupResult = futures[i].get(remaining, TimeUnit.MILLISECONDS);
+        }
+        results.add(groupResult);
+        // doc ids break ties between equally sorted hits, they must not depend on the grouping
+        int[] groupStarts = docStarts(groups.get(i));
+        for (SenseiHit hit : groupResult.getSenseiHits()) {
+          hit.setDocid(toPartitionDocid(hit.getDocid(), groupStarts, groupDocBases.get(i)));
+        }
+      }
+    } catch (Exception e) {
+      for (Future<SenseiResult> future : futures) {
+        if (future != null && !future.cancel(true) && future.isDone()) {
+          try {
+            closeSortCollector(future.get());
+          } catch (Exception ignored) {
+            // the group failed, it has nothing to close
+          }
+        }
+      }
+      for (SenseiResult res : results) {
+        closeSortCollector(res);
+      }
+      throw e;
+    }
+
+    try {
+      SenseiResult merged = ResultMerger.mergeSegmentGroups(request, results);
+      if (request.getMapReduceFunction() != null) {
+        merged.setMapReduceResult(SenseiReduceFunctionWrapper.combine(
+          request.getMapReduceFunction(),
+          SenseiReduceFunctionWrapper.extractMapReduceResults(results), CombinerStage.partitionLevel));
+      }
+      return merged;
+    } finally {
+      for (SenseiResult res : results) {
+        closeSortCollector(res);
+      }
+    }
+  }
+
+  private static void closeSortCollector(SenseiResult res) {
+    SortCollector sortCollector = res == null ? null : res.getSortCollector();
+    if (sortCollector != null) {
+      sortCollector.close();
+    }
+  }
+
+  /**
+   * @return the doc id of the first doc of every segment in the browser of the segments
+   */
+  private static int[] docStarts(List<BoboSegmentReader> segmentReaders) {
+    int[] starts = new int[segmentReaders.size()];
+    int start = 0;
+    for (int i = 0; i < starts.length; ++i) {
+      starts[i] = start;
+      start += segmentReaders.get(i).maxDoc();
+    }
+    return starts;
+  }
+
+  /**
+   * @return the doc id in the sequential search of the partition of a doc found by the browser of
+   *         a group of its segments
+   */
+  static int toPartitionDocid(int docid, int[] groupStarts, List<Integer> docBases) {
+    // the last segment starting at or before the doc, the empty segments start where the next one
+    // does
+    int segment = groupStarts.length - 1;
+    while (segment > 0 && groupStarts[segment] > docid) {
+      --segment;
+    }
+    return docid - groupStarts[segment] + docBases.get(segment);
+  }
+
+  private SenseiResult browseSegmentGroup(SenseiRequest request,
+      List<BoboSegmentReader> segmentReaders, SenseiQueryBuilderFactory queryBuilderFactory,
+      int topHits) throws Exception {
+    MultiBoboBrowser browser = new MultiBoboBrowser(segmentReaders);
+    try {
+      browser.setSimilarity(_core.getZoieFactory().getZoieConfig().getSimilarity());
+      BrowseRequest breq = RequestConverter.convert(request, queryBuilderFactory);
+      breq.setOffset(0);
+      breq.setCount(topHits);
+      if (request.getMapReduceFunction() != null) {
+        SenseiMapFunctionWrapper mapWrapper = new SenseiMapFunctionWrapper(
+            request.getMapReduceFunction(), _core.getSystemInfo().getFacetInfos(),
+            _core.getFieldAccessorFactory());
+        breq.setMapReduceWrapper(mapWrapper);
+      }
+      return browse(request, browser, breq);
+    } finally {
+      try {
+        browser.close();
+      } catch (IOException ioe) {
+        logger.error(ioe.getMessage(), ioe);
+      }
+    }
+  }
+
+  @Override
+  public SenseiResult execute(SenseiRequest senseiReq) {
+    SenseiResult result;
+    if (senseiReq.getResultVersion() < BinarySenseiSerializer.VERSION_2) {
+      // the broker can't read the partition versions
+      result = super.execute(senseiReq);
+    } else {
+      result = executeWithPartitionVersions(senseiReq);
+    }
+    if (senseiReq.getResultVersion() < BinarySenseiSerializer.VERSION_3
+        && result.getMapReduceResult() != null) {
+      // the broker can't read the group by error bounds
+      GroupByMapReduceJob.removeGroupedResults(result.getMapReduceResult().getMapResults());
+    }
+    return result;
+  }
+
+  private SenseiResult executeWithPartitionVersions(SenseiRequest senseiReq) {
+    // read the versions before searching, so a result is never labeled newer than its data
+    Map<Integer, String> partitionVersions = new HashMap<Integer, String>();
+    if (senseiReq.getPartitions() != null) {
+      for (int partition : senseiReq.getPartitions()) {
+        partitionVersions.put(partition, _core.getIndexVersion(partition));
+      }
+    } else if (_core.getPartitions() != null) {
+      for (int partition : _core.getPartitions()) {
+        partitionVersions.put(partition, _core.getIndexVersion(partition));
+      }
+    }
+    SenseiResult result = super.execute(senseiReq);
+    result.setPartitionVersions(partitionVersions);
+    return result;
+  }
+
+  /**
+   * The query and the filter are built once for all the partitions and the segment groups of the
+   * request, unless they may keep state while searching, see {@link CompiledQueryBuilderFactory}
+   */
+  @Override
+  protected SenseiQueryBuilderFactory getQueryBuilderFactory(final SenseiRequest req) {
+    final SenseiQueryBuilderFactory factory = super.getQueryBuilderFactory(req);
+    if (req == null || factory == null) {
+      return factory;
+    }
+    try {
+      return queryCompileTimer.time(new Callable<SenseiQueryBuilderFactory>() {
+        @Override
+        public SenseiQueryBuilderFactory call() throws Exception {
+          return CompiledQueryBuilderFactory.compile(factory, req.getQuery());
+        }
+      });
+    } catch (Exception e) {
+      return factory;
+    }
+  }
+
+  /**
+   * Only requests without facets, group by and map reduce are cached per partition. The key does
+   * hold their specs, but their partition results can not be copied: facets are counted lazily by
+   * accessibles bound to the readers, which the merge step iterates over all values and closes,
+   * and group by results carry the sort collectors of the readers.
+   */
+  @Override
+  protected String getPartitionCacheKey(SenseiRequest req) {
+    if ((req.getFacetSpecs() != null && req.getFacetSpecs().size() > 0)
+        || (req.getGroupBy() != null && req.getGroupBy().length > 0)) {
+      return null;
+    }
+    return req.toCacheKey();
+  }
+
+  @Override
+  protected SenseiResult copyPartitionResult(SenseiRequest req, SenseiResult res) {
+    if (res.getErrors() != null && !res.getErrors().isEmpty()) {
+      return null;
+    }
+    // the merge step sets the group fields and counts of the hits it is given
+    SenseiResult copy = res.copy();
+    copy.setTid(req.getTid());
+    return copy;
+  }
+
   @Override
   public SenseiResult mergePartitionedResults(SenseiRequest r, List<SenseiResult> resultList) {
     try {
@@ -244,6 +760,6 @@ public class CoreSenseiServiceImpl extends AbstractSenseiCoreService<SenseiReque
 
   @Override
   public ZuSerializer<SenseiRequest, SenseiResult> getSerializer() {
-    return JAVA_SERIALIZER;
+    return _serializer;
   }
 }
@@ -62,6 +62,7 @@ public class LocalQueryOnlySenseiServiceImpl implements SenseiService {
 
   @Override
   public void shutdown() {
+    _coreService.shutdown();
     _core.shutdown();
   }
 
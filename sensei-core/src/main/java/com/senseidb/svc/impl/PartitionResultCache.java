@@ -0,0 +1,184 @@
+package com.senseidb.svc.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.senseidb.metrics.MetricsConstants;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * LRU cache of partition results, keyed by the canonical request and the partition.
+ *
+ * Every partition has a generation, which is bumped whenever the index version or the set of
+ * readers Zoie hands out for the partition changes. An entry is only served while the generation
+ * it was computed with is current, so partitions without new segments or updates answer from the
+ * cache and any reader refresh invalidates their entries.
+ *
+ * Only results that do not depend on the readers once searched can be kept, see
+ * {@link AbstractSenseiCoreService#getPartitionCacheKey}. Requests with facets, group by or map
+ * reduce are always searched.
+ */
+public class PartitionResultCache<Res> {
+  private static Meter HitMeter = null;
+  private static Meter MissMeter = null;
+  static {
+    HitMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter",
+        "partition-cache-hits", "node"), "requests", TimeUnit.SECONDS);
+    MissMeter = Metrics.newMeter(new MetricName(MetricsConstants.Domain, "meter",
+        "partition-cache-misses", "node"), "requests", TimeUnit.SECONDS);
+  }
+
+  private final Map<Integer, Generation> _generations = new ConcurrentHashMap<Integer, Generation>();
+  private final LinkedHashMap<CacheKey, CacheEntry<Res>> _entries;
+
+  public PartitionResultCache(final int maxEntries) {
+    _entries = new LinkedHashMap<CacheKey, CacheEntry<Res>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry<Res>> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @return the current generation of the partition, given the index version and the readers
+   *         just obtained for it
+   */
+  public long getGeneration(int partition, String version, List<?> readers) {
+    Generation generation = _generations.get(partition);
+    if (generation == null) {
+      synchronized (_generations) {
+        generation = _generations.get(partition);
+        if (generation == null) {
+          generation = new Generation();
+          _generations.put(partition, generation);
+        }
+      }
+    }
+    long oldValue = generation.value;
+    long value = generation.update(version, readers);
+    if (value != oldValue) {
+      invalidate(partition);
+    }
+    return value;
+  }
+
+  public Res get(String key, int partition, long generation) {
+    CacheEntry<Res> entry;
+    synchronized (_entries) {
+      entry = _entries.get(new CacheKey(key, partition));
+    }
+    if (entry == null || entry.generation != generation) {
+      MissMeter.mark();
+      return null;
+    }
+    HitMeter.mark();
+    return entry.result;
+  }
+
+  public void put(String key, int partition, long generation, Res result) {
+    Generation current = _generations.get(partition);
+    if (current == null || current.value != generation) {
+      // the readers were refreshed while this result was computed
+      return;
+    }
+    synchronized (_entries) {
+      _entries.put(new CacheKey(key, partition), new CacheEntry<Res>(result, generation));
+    }
+  }
+
+  private void invalidate(int partition) {
+    synchronized (_entries) {
+      Iterator<CacheKey> iter = _entries.keySet().iterator();
+      while (iter.hasNext()) {
+        if (iter.next().partition == partition) {
+          iter.remove();
+        }
+      }
+    }
+  }
+
+  public int size() {
+    synchronized (_entries) {
+      return _entries.size();
+    }
+  }
+
+  /**
+   * Readers are only weakly referenced, the cache must not keep retired readers alive.
+   */
+  private static class Generation {
+    volatile long value = 0;
+    private String _version;
+    private WeakReference<?>[] _readers = new WeakReference<?>[0];
+
+    synchronized long update(String version, List<?> readers) {
+      if (!sameReaders(readers) || (version == null ? _version != null : !version.equals(_version))) {
+        _version = version;
+        WeakReference<?>[] refs = new WeakReference<?>[readers == null ? 0 : readers.size()];
+        for (int i = 0; i < refs.length; ++i) {
+          refs[i] = new WeakReference<Object>(readers.get(i));
+        }
+        _readers = refs;
+        ++value;
+      }
+      return value;
+    }
+
+    private boolean sameReaders(List<?> readers) {
+      int size = readers == null ? 0 : readers.size();
+      if (size != _readers.length) {
+        return false;
+      }
+      for (int i = 0; i < size; ++i) {
+        if (_readers[i].get() != readers.get(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static class CacheKey {
+    final String key;
+    final int partition;
+
+    CacheKey(String key, int partition) {
+      this.key = key;
+      this.partition = partition;
+    }
+
+    @Override
+    public int hashCode() {
+      return key.hashCode() * 31 + partition;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey other = (CacheKey) obj;
+      return partition == other.partition && key.equals(other.key);
+    }
+  }
+
+  private static class CacheEntry<Res> {
+    final Res result;
+    final long generation;
+
+    CacheEntry(Res result, long generation) {
+      this.result = result;
+      this.generation = generation;
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package com.senseidb.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes JSON text straight to a {@link Writer}, without building the document in memory first.
+ * The caller is responsible for the nesting of the objects and the arrays, the writer only takes
+ * care of the separators and of the escaping. Numbers are written the way fastjson writes them, a
+ * double without a fraction loses the ".0" and a non finite double becomes null.
+ */
+public class JSONStreamWriter {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final Writer _writer;
+  // whether the object or the array at the depth already has an element
+  private boolean[] _hasElements = new boolean[16];
+  private int _depth = 0;
+  private boolean _afterName = false;
+
+  public JSONStreamWriter(Writer writer) {
+    _writer = writer;
+  }
+
+  public JSONStreamWriter beginObject() throws IOException {
+    beforeValue();
+    _writer.write('{');
+    push();
+    return this;
+  }
+
+  public JSONStreamWriter endObject() throws IOException {
+    _depth--;
+    _writer.write('}');
+    return this;
+  }
+
+  public JSONStreamWriter beginArray() throws IOException {
+    beforeValue();
+    _writer.write('[');
+    push();
+    return this;
+  }
+
+  public JSONStreamWriter endArray() throws IOException {
+    _depth--;
+    _writer.write(']');
+    return this;
+  }
+
+  public JSONStreamWriter name(String name) throws IOException {
+    beforeValue();
+    writeString(name);
+    _writer.write(':');
+    _afterName = true;
+    return this;
+  }
+
+  public JSONStreamWriter value(String value) throws IOException {
+    beforeValue();
+    if (value == null) {
+      _writer.write("null");
+    } else {
+      writeString(value);
+    }
+    return this;
+  }
+
+  public JSONStreamWriter value(long value) throws IOException {
+    beforeValue();
+    _writer.write(Long.toString(value));
+    return this;
+  }
+
+  public JSONStreamWriter value(double value) throws IOException {
+    beforeValue();
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      _writer.write("null");
+      return this;
+    }
+    String text = Double.toString(value);
+    if (text.endsWith(".0")) {
+      _writer.write(text, 0, text.length() - 2);
+    } else {
+      _writer.write(text);
+    }
+    return this;
+  }
+
+  public JSONStreamWriter value(boolean value) throws IOException {
+    beforeValue();
+    _writer.write(value ? "true" : "false");
+    return this;
+  }
+
+  /**
+   * Writes the already serialized JSON text as the next value
+   */
+  public JSONStreamWriter rawValue(String json) throws IOException {
+    beforeValue();
+    _writer.write(json);
+    return this;
+  }
+
+  public void flush() throws IOException {
+    _writer.flush();
+  }
+
+  private void push() {
+    if (++_depth == _hasElements.length) {
+      boolean[] hasElements = new boolean[_hasElements.length * 2];
+      System.arraycopy(_hasElements, 0, hasElements, 0, _hasElements.length);
+      _hasElements = hasElements;
+    }
+    _hasElements[_depth] = false;
+  }
+
+  private void beforeValue() throws IOException {
+    if (_afterName) {
+      _afterName = false;
+      return;
+    }
+    if (_hasElements[_depth]) {
+      _writer.write(',');
+    } else {
+      _hasElements[_depth] = true;
+    }
+  }
+
+  private void writeString(String value) throws IOException {
+    _writer.write('"');
+    int start = 0;
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c >= ' ' && c != '"' && c != '\\') {
+        continue;
+      }
+      // the run of the characters that don't need the escaping is written at once
+      if (i > start) {
+        _writer.write(value, start, i - start);
+      }
+      start = i + 1;
+      switch (c) {
+      case '"':
+        _writer.write("\\\"");
+        break;
+      case '\\':
+        _writer.write("\\\\");
+        break;
+      case '\b':
+        _writer.write("\\b");
+        break;
+      case '\f':
+        _writer.write("\\f");
+        break;
+      case '\n':
+        _writer.write("\\n");
+        break;
+      case '\r':
+        _writer.write("\\r");
+        break;
+      case '\t':
+        _writer.write("\\t");
+        break;
+      default:
+        _writer.write("\\u00");
+        _writer.write(HEX[c >> 4]);
+        _writer.write(HEX[c & 0xf]);
+      }
+    }
+    if (length > start) {
+      _writer.write(value, start, length - start);
+    }
+    _writer.write('"');
+  }
+}
@@ -5,6 +5,7 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 import org.json.JSONArray;
@@ -828,6 +829,107 @@ public class JSONUtil {
     }
   }
 
+  /**
+   * @return the JSON text of the value with the keys of every object sorted, that is the same for
+   *         the values that are equal whatever the order their keys were put in
+   */
+  public static String toCanonicalString(Object value) throws JSONException {
+    StringBuilder buf = new StringBuilder();
+    appendCanonical(value, buf);
+    return buf.toString();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void appendCanonical(Object value, StringBuilder buf) throws JSONException {
+    if (value instanceof JSONObject || value instanceof Map) {
+      TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+      if (value instanceof JSONObject) {
+        JSONObject json = (JSONObject) value;
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+          String key = keys.next();
+          sorted.put(key, json.get(key));
+        }
+      } else {
+        for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+          sorted.put(TypeUtils.castToString(entry.getKey()), entry.getValue());
+        }
+      }
+      buf.append('{');
+      boolean first = true;
+      for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+        if (!first) {
+          buf.append(',');
+        }
+        first = false;
+        buf.append(JSON.toJSONString(entry.getKey())).append(':');
+        appendCanonical(entry.getValue(), buf);
+      }
+      buf.append('}');
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      buf.append('[');
+      for (int i = 0; i < array.length(); ++i) {
+        if (i > 0) {
+          buf.append(',');
+        }
+        appendCanonical(array.get(i), buf);
+      }
+      buf.append(']');
+    } else if (value instanceof List) {
+      buf.append('[');
+      boolean first = true;
+      for (Object item : (List<Object>) value) {
+        if (!first) {
+          buf.append(',');
+        }
+        first = false;
+        appendCanonical(item, buf);
+      }
+      buf.append(']');
+    } else if (value == null || value == JSONObject.NULL) {
+      buf.append("null");
+    } else {
+      buf.append(JSON.toJSONString(value));
+    }
+  }
+
+  /**
+   * @return a copy of the JSON object that doesn't share any object or array with it
+   */
+  public static JSONObject deepCopy(JSONObject json) {
+    if (json instanceof FastJSONObject) {
+      return new FastJSONObject(
+          (com.alibaba.fastjson.JSONObject) deepCopy(((FastJSONObject) json).getInnerJSONObject()));
+    }
+    try {
+      return new FastJSONObject(json.toString());
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object deepCopy(Object value) {
+    if (value instanceof Map) {
+      Map<Object, Object> map = (Map<Object, Object>) value;
+      com.alibaba.fastjson.JSONObject ret = new com.alibaba.fastjson.JSONObject(map.size());
+      for (Map.Entry<Object, Object> entry : map.entrySet()) {
+        ret.put(TypeUtils.castToString(entry.getKey()), deepCopy(entry.getValue()));
+      }
+      return ret;
+    }
+    if (value instanceof List) {
+      List<Object> list = (List<Object>) value;
+      com.alibaba.fastjson.JSONArray ret = new com.alibaba.fastjson.JSONArray(list.size());
+      for (Object item : list) {
+        ret.add(deepCopy(item));
+      }
+      return ret;
+    }
+    return value;
+  }
+
   public static boolean optBooleanValue(com.alibaba.fastjson.JSONObject json, String key)
       throws com.alibaba.fastjson.JSONException {
     return optBooleanValue(json, key, false);
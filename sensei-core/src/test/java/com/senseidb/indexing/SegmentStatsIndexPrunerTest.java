@@ -0,0 +1,238 @@
+package com.senseidb.indexing;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.browseengine.bobo.api.BoboSegmentReader;
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.BrowseSelection.ValueOperation;
+import com.browseengine.bobo.facets.FacetHandler;
+import com.browseengine.bobo.facets.RuntimeFacetHandlerFactory;
+import com.browseengine.bobo.facets.data.FacetDataCache;
+import com.browseengine.bobo.facets.impl.MultiValueFacetHandler;
+import com.browseengine.bobo.facets.impl.RangeFacetHandler;
+import com.browseengine.bobo.facets.impl.SimpleFacetHandler;
+import com.senseidb.search.req.SenseiRequest;
+
+public class SegmentStatsIndexPrunerTest extends Assert {
+  private static final DecimalFormat INT_FORMAT = new DecimalFormat(
+      DefaultSenseiInterpreter.DEFAULT_FORMAT_STRING_MAP.get(MetaType.Integer));
+  private static final DecimalFormat FLOAT_FORMAT = new DecimalFormat(
+      DefaultSenseiInterpreter.DEFAULT_FORMAT_STRING_MAP.get(MetaType.Float));
+
+  private static DirectoryReader directoryReader;
+  // red and blue cars with tags, a price of 5 to 10 and a weight of 1.5 to 2.5
+  private static BoboSegmentReader cars;
+  // green bikes without tags, price or weight
+  private static BoboSegmentReader bikes;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    RAMDirectory dir = new RAMDirectory();
+    IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, new WhitespaceAnalyzer(
+        Version.LUCENE_43));
+    config.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+    IndexWriter writer = new IndexWriter(dir, config);
+    for (int i = 0; i <= 5; ++i) {
+      Document doc = new Document();
+      doc.add(new StringField("color", i % 2 == 0 ? "red" : "blue", Field.Store.NO));
+      doc.add(new StringField("tags", "fast", Field.Store.NO));
+      if (i < 3) {
+        doc.add(new StringField("tags", "cheap", Field.Store.NO));
+      }
+      doc.add(new StringField("price", INT_FORMAT.format(5 + i), Field.Store.NO));
+      doc.add(new StringField("weight", FLOAT_FORMAT.format(1.5 + i * 0.2), Field.Store.NO));
+      doc.add(new StringField("year", INT_FORMAT.format(2010 + i), Field.Store.NO));
+      writer.addDocument(doc);
+    }
+    // one segment per commit
+    writer.commit();
+    for (int i = 0; i < 3; ++i) {
+      Document doc = new Document();
+      doc.add(new StringField("color", "green", Field.Store.NO));
+      writer.addDocument(doc);
+    }
+    writer.close();
+
+    directoryReader = DirectoryReader.open(dir);
+    List<AtomicReaderContext> leaves = directoryReader.leaves();
+    assertEquals(2, leaves.size());
+    cars = createSegment(leaves.get(0));
+    bikes = createSegment(leaves.get(1));
+  }
+
+  private static BoboSegmentReader createSegment(AtomicReaderContext context) throws Exception {
+    List<FacetHandler<?>> handlers = new ArrayList<FacetHandler<?>>();
+    handlers.add(new SimpleFacetHandler("color"));
+    handlers.add(new MultiValueFacetHandler("tags"));
+    handlers.add(new RangeFacetHandler("price", DefaultSenseiInterpreter
+        .getTermListFactory(int.class), null));
+    handlers.add(new RangeFacetHandler("weight", DefaultSenseiInterpreter
+        .getTermListFactory(float.class), null));
+    handlers.add(new SimpleFacetHandler("year", DefaultSenseiInterpreter
+        .getTermListFactory(int.class)));
+    return BoboSegmentReader.getInstance(context.reader(), handlers,
+      Collections.<RuntimeFacetHandlerFactory<?, ?>> emptyList());
+  }
+
+  @AfterClass
+  public static void tearDown() throws Exception {
+    directoryReader.close();
+  }
+
+  private static BrowseSelection select(String field, String... values) {
+    BrowseSelection sel = new BrowseSelection(field);
+    for (String value : values) {
+      sel.addValue(value);
+    }
+    return sel;
+  }
+
+  private static boolean[] isSelected(SegmentStatsIndexPruner pruner,
+      BrowseSelection... selections) throws Exception {
+    SenseiRequest req = new SenseiRequest();
+    for (BrowseSelection sel : selections) {
+      req.addSelection(sel);
+    }
+    SenseiIndexPruner.IndexReaderSelector selector = pruner.getReaderSelector(req);
+    return new boolean[] { selector.isSelected(cars), selector.isSelected(bikes) };
+  }
+
+  private static void assertSelected(boolean carsSelected, boolean bikesSelected,
+      BrowseSelection... selections) throws Exception {
+    SegmentStatsIndexPruner pruner = new SegmentStatsIndexPruner();
+    pruner.init(new HashMap<String, String>(), null);
+    boolean[] selected = isSelected(pruner, selections);
+    String message = Arrays.toString(selections);
+    assertEquals(message, carsSelected, selected[0]);
+    assertEquals(message, bikesSelected, selected[1]);
+  }
+
+  @Test
+  public void testTermSelection() throws Exception {
+    assertSelected(true, true);
+    assertSelected(true, false, select("color", "red"));
+    assertSelected(false, true, select("color", "green"));
+    assertSelected(false, false, select("color", "yellow"));
+    // the selection values are or-ed by default
+    assertSelected(true, true, select("color", "blue", "green"));
+  }
+
+  @Test
+  public void testMultiValueSelection() throws Exception {
+    assertSelected(true, false, select("tags", "fast"));
+    assertSelected(true, false, select("tags", "slow", "cheap"));
+    assertSelected(false, false, select("tags", "slow"));
+
+    BrowseSelection and = select("tags", "fast", "cheap");
+    and.setSelectionOperation(ValueOperation.ValueOperationAnd);
+    assertSelected(true, false, and);
+    and = select("tags", "fast", "slow");
+    and.setSelectionOperation(ValueOperation.ValueOperationAnd);
+    assertSelected(false, false, and);
+  }
+
+  @Test
+  public void testNumericTermSelection() throws Exception {
+    // the values are found with or without the format of the facet
+    assertSelected(true, false, select("year", "2012"));
+    assertSelected(true, false, select("year", INT_FORMAT.format(2012)));
+    assertSelected(false, false, select("year", "2020"));
+    // values that are not numbers are left to the filter
+    assertSelected(true, true, select("year", "twenty"));
+  }
+
+  @Test
+  public void testRangeSelection() throws Exception {
+    assertSelected(true, false, select("price", "[6 TO 8]"));
+    assertSelected(true, false, select("price", "[0 TO 5]"));
+    assertSelected(true, false, select("price", "[10 TO 20]"));
+    assertSelected(false, false, select("price", "[11 TO 20]"));
+    assertSelected(false, false, select("price", "[0 TO 4]"));
+    assertSelected(true, false, select("price", "[" + INT_FORMAT.format(7) + " TO "
+        + INT_FORMAT.format(9) + "]"));
+    assertSelected(false, false, select("price", "[11 TO 20]", "[0 TO 4]"));
+    assertSelected(true, false, select("price", "[11 TO 20]", "[0 TO 5]"));
+
+    assertSelected(true, false, select("weight", "[2.5 TO *]"));
+    assertSelected(false, false, select("weight", "[2.6 TO *]"));
+    assertSelected(false, false, select("weight", "[* TO 1.4]"));
+  }
+
+  @Test
+  public void testOpenAndExclusiveRanges() throws Exception {
+    assertSelected(true, false, select("price", "[* TO *]"));
+    assertSelected(true, false, select("price", "[* TO 5]"));
+    assertSelected(false, false, select("price", "[* TO 4]"));
+    assertSelected(true, false, select("price", "[10 TO *]"));
+    assertSelected(false, false, select("price", "[11 TO *]"));
+    // the bounds are treated as inclusive, a segment is never skipped by mistake
+    assertSelected(true, false, select("price", "(10 TO 20)"));
+    assertSelected(true, false, select("price", "(0 TO 5)"));
+    assertSelected(false, false, select("price", "(11 TO 20)"));
+  }
+
+  @Test
+  public void testMissingValues() throws Exception {
+    // the bikes have nothing but the missing value slot of the facets
+    assertEquals(1, ((FacetDataCache<?>) bikes.getFacetData("price")).valArray.size());
+    assertEquals(1, ((FacetDataCache<?>) bikes.getFacetData("tags")).valArray.size());
+    assertSelected(false, false, select("price", "[* TO *]"));
+    assertSelected(false, false, select("tags", "fast"));
+    assertSelected(false, false, select("year", "2012"));
+  }
+
+  @Test
+  public void testNotSelection() throws Exception {
+    BrowseSelection not = new BrowseSelection("color");
+    not.addNotValue("red");
+    assertSelected(true, true, not);
+    not = new BrowseSelection("price");
+    not.addNotValue("[0 TO 100]");
+    assertSelected(true, true, not);
+  }
+
+  @Test
+  public void testSelectionCombinations() throws Exception {
+    // all the selections of a request have to match
+    assertSelected(true, false, select("color", "red"), select("price", "[6 TO 8]"));
+    assertSelected(false, false, select("color", "green"), select("price", "[6 TO 8]"));
+    assertSelected(false, true, select("color", "green"), select("unknown", "x"));
+  }
+
+  @Test
+  public void testConfiguredFacets() throws Exception {
+    SegmentStatsIndexPruner pruner = new SegmentStatsIndexPruner();
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("facets", "color, tags");
+    pruner.init(config, null);
+    boolean[] selected = isSelected(pruner, select("price", "[11 TO 20]"));
+    assertTrue(selected[0]);
+    assertTrue(selected[1]);
+    selected = isSelected(pruner, select("color", "green"));
+    assertFalse(selected[0]);
+    assertTrue(selected[1]);
+  }
+}
@@ -0,0 +1,59 @@
+package com.senseidb.indexing.activity;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.api.FacetSpec.FacetSortSpec;
+import com.senseidb.indexing.activity.facet.ActivityRangeFacetCountCollector;
+import com.senseidb.indexing.activity.primitives.ActivityFloatValues;
+import com.senseidb.indexing.activity.primitives.ActivityIntValues;
+
+public class ActivityRangeFacetCountCollectorTest extends Assert {
+  private static final List<String> RANGES = Arrays.asList("[* TO 9]", "[10 TO 99]",
+    "[100 TO *]");
+
+  @Test
+  public void test1CountsIntRanges() {
+    ActivityIntValues values = new ActivityIntValues(10);
+    int[] likes = { 0, 5, 10, 99, 100, 1000, Integer.MIN_VALUE, 7 };
+    System.arraycopy(likes, 0, values.fieldValues, 0, likes.length);
+    // the last document has no activity values
+    int[] indexes = { 0, 1, 2, 3, 4, 5, 6, 7, -1 };
+    FacetSpec facetSpec = new FacetSpec();
+    facetSpec.setOrderBy(FacetSortSpec.OrderHitsDesc);
+    ActivityRangeFacetCountCollector collector = ActivityRangeFacetCountCollector.valueOf(
+      "likes", values, indexes, RANGES, facetSpec);
+    collector.collectAll();
+    assertEquals(3, collector.getFacetHitsCount("[* TO 9]"));
+    assertEquals(2, collector.getFacetHitsCount("[10 TO 99]"));
+    assertEquals(2, collector.getFacet("[100 TO *]").getFacetValueHitCount());
+    List<BrowseFacet> facets = collector.getFacets();
+    assertEquals(3, facets.size());
+    assertEquals("[* TO 9]", facets.get(0).getValue());
+    assertEquals("[10 TO 99]", facets.get(1).getValue());
+  }
+
+  @Test
+  public void test2CountsFloatRangesOfCollectedDocs() {
+    ActivityFloatValues values = new ActivityFloatValues(10);
+    float[] reputation = { 0.5f, 9.5f, 10f, 150f };
+    System.arraycopy(reputation, 0, values.fieldValues, 0, reputation.length);
+    int[] indexes = { 0, 1, 2, 3 };
+    FacetSpec facetSpec = new FacetSpec();
+    facetSpec.setMinHitCount(1);
+    ActivityRangeFacetCountCollector collector = ActivityRangeFacetCountCollector.valueOf(
+      "reputation", values, indexes, RANGES, facetSpec);
+    collector.collect(2);
+    collector.collect(3);
+    assertEquals(0, collector.getFacetHitsCount("[* TO 9]"));
+    assertEquals(1, collector.getFacetHitsCount("[10 TO 99]"));
+    assertEquals(1, collector.getFacetHitsCount("[100 TO *]"));
+    assertEquals(2, collector.getFacets().size());
+  }
+}
@@ -0,0 +1,97 @@
+package com.senseidb.indexing.activity;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import proj.zoie.impl.indexing.ZoieConfig;
+
+import com.senseidb.indexing.activity.CompositeActivityManager.TimeAggregateInfo;
+import com.senseidb.test.SenseiStarter;
+
+public class ActivityWriteAheadLogTest extends TestCase {
+  private static final int UIDS = 1000;
+  private static final int DELETED_UIDS = 100;
+
+  @Override
+  public void setUp() {
+    SenseiStarter.rmrf(new File("sensei-test"));
+    new File(getDirPath()).mkdirs();
+  }
+
+  public static String getDirPath() {
+    return "sensei-test/writeAheadLog";
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File file = new File("sensei-test");
+    file.deleteOnExit();
+    SenseiStarter.rmrf(file);
+  }
+
+  private static CompositeActivityValues open() {
+    ActivityConfig activityConfig = new ActivityConfig();
+    activityConfig.setWriteAheadLog(true);
+    return CompositeActivityValues.createCompositeValues(
+      ActivityPersistenceFactory.getInstance(getDirPath(), activityConfig),
+      Arrays.asList(PurgeUnusedActivitiesJobTest.getLikesFieldDefinition()),
+      Collections.<TimeAggregateInfo> emptyList(), ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+  }
+
+  private static String version(int i) {
+    return String.format("%08d", i);
+  }
+
+  private static void assertReplayed(CompositeActivityValues compositeActivityValues) {
+    assertEquals(version(2 * UIDS), compositeActivityValues.getVersion());
+    assertEquals(UIDS - DELETED_UIDS, compositeActivityValues.uidToArrayIndex.size());
+    for (int uid = 0; uid < UIDS; uid++) {
+      if (uid < DELETED_UIDS) {
+        assertEquals(-1, compositeActivityValues.getIndexByUID(uid));
+      } else {
+        assertEquals(2, compositeActivityValues.getIntValueByUID(uid, "likes"));
+      }
+    }
+  }
+
+  public void test1ReplayAfterCrash() throws Exception {
+    CompositeActivityValues crashed = open();
+    Map<String, Object> increment = new HashMap<String, Object>();
+    increment.put("likes", "+=1");
+    for (int i = 0; i < 2 * UIDS; i++) {
+      crashed.update(i % UIDS, version(i + 1), increment);
+    }
+    for (int uid = 0; uid < DELETED_UIDS; uid++) {
+      crashed.delete(uid);
+    }
+    // nothing is flushed, the updates are only in the log
+    crashed.writeAheadLog.commit();
+
+    final CompositeActivityValues recovered = open();
+    assertReplayed(recovered);
+
+    // replaying the same log again changes nothing
+    recovered.writeAheadLog.close();
+    CompositeActivityValues replayedTwice = open();
+    assertReplayed(replayedTwice);
+
+    // a checkpoint deletes the replayed segments
+    replayedTwice.flush();
+    final File walDir = new File(getDirPath(), "wal");
+    Wait.until(10000L, "The log was not checkpointed", new Wait.Condition() {
+      @Override
+      public boolean evaluate() {
+        return walDir.list().length == 1;
+      }
+    });
+    replayedTwice.close();
+    CompositeActivityValues checkpointed = open();
+    assertReplayed(checkpointed);
+    checkpointed.close();
+    crashed.close();
+  }
+}
@@ -0,0 +1,182 @@
+package com.senseidb.indexing.activity;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import proj.zoie.impl.indexing.ZoieConfig;
+
+import com.senseidb.indexing.activity.CompositeActivityManager.TimeAggregateInfo;
+import com.senseidb.test.SenseiStarter;
+
+public class CompositeActivityValuesConcurrencyTest extends Assert {
+  private static final String VERSION = String.format("%08d", 1);
+  private static final int THREADS = 8;
+  private CompositeActivityValues compositeActivityValues;
+
+  @Before
+  public void setUp() {
+    SenseiStarter.rmrf(new File("sensei-test"));
+    new File(getDirPath()).mkdirs();
+  }
+
+  public static String getDirPath() {
+    return "sensei-test/concurrencyTest";
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (compositeActivityValues != null) {
+      compositeActivityValues.close();
+    }
+    File file = new File("sensei-test");
+    if (file.exists()) {
+      file.deleteOnExit();
+      SenseiStarter.rmrf(file);
+    }
+  }
+
+  private static CompositeActivityValues create(ActivityPersistenceFactory factory) {
+    return CompositeActivityValues.createCompositeValues(factory,
+      java.util.Arrays.asList(PurgeUnusedActivitiesJobTest.getLikesFieldDefinition()),
+      Collections.<TimeAggregateInfo> emptyList(), ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+  }
+
+  private static Map<String, Object> increment() {
+    Map<String, Object> ret = new HashMap<String, Object>();
+    ret.put("likes", "+=1");
+    return ret;
+  }
+
+  /**
+   * Runs the task on all the threads at once and rethrows the first failure.
+   */
+  private static void runConcurrently(final Task task) throws Throwable {
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[THREADS];
+    for (int i = 0; i < THREADS; i++) {
+      final int threadId = i;
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            task.run(threadId);
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+  }
+
+  private interface Task {
+    void run(int threadId) throws Exception;
+  }
+
+  @Test
+  public void test1ConcurrentUpdatesAreNotLost() throws Throwable {
+    compositeActivityValues = create(ActivityPersistenceFactory.getInMemoryInstance());
+    compositeActivityValues.init();
+    final int sharedUids = 1000;
+    final int rounds = 50;
+    // enough new uids per thread to grow the arrays while the shared uids are updated
+    final int ownUids = 20000;
+    runConcurrently(new Task() {
+      @Override
+      public void run(int threadId) {
+        Map<String, Object> update = increment();
+        for (int round = 0; round < rounds; round++) {
+          for (int uid = 0; uid < sharedUids; uid++) {
+            compositeActivityValues.update(uid, VERSION, update);
+          }
+          for (int i = round * ownUids / rounds; i < (round + 1) * ownUids / rounds; i++) {
+            compositeActivityValues.update(1000000L * (threadId + 1) + i, VERSION, update);
+          }
+        }
+      }
+    });
+    assertEquals(sharedUids + THREADS * ownUids, compositeActivityValues.uidToArrayIndex.size());
+    for (int uid = 0; uid < sharedUids; uid++) {
+      assertEquals(THREADS * rounds, compositeActivityValues.getIntValueByUID(uid, "likes"));
+    }
+    IntSet indexes = new IntOpenHashSet();
+    for (int threadId = 0; threadId < THREADS; threadId++) {
+      for (int i = 0; i < ownUids; i++) {
+        long uid = 1000000L * (threadId + 1) + i;
+        assertEquals(1, compositeActivityValues.getIntValueByUID(uid, "likes"));
+        assertTrue(indexes.add(compositeActivityValues.getIndexByUID(uid)));
+      }
+    }
+  }
+
+  @Test
+  public void test2DeletedIndexesAreRecycledOnce() throws Throwable {
+    compositeActivityValues = create(ActivityPersistenceFactory.getInstance(getDirPath()));
+    final int uidsPerThread = 5000;
+    runConcurrently(new Task() {
+      @Override
+      public void run(int threadId) {
+        Map<String, Object> update = increment();
+        for (int i = 0; i < uidsPerThread; i++) {
+          compositeActivityValues.update(1000000L * threadId + i, VERSION, update);
+        }
+        // delete every other uid
+        for (int i = 0; i < uidsPerThread; i += 2) {
+          compositeActivityValues.delete(1000000L * threadId + i);
+        }
+      }
+    });
+    compositeActivityValues.flush();
+    compositeActivityValues.syncWithPersistentVersion(VERSION);
+    Wait.until(10000L, "The deleted indexes were not reclaimed", new Wait.Condition() {
+      @Override
+      public boolean evaluate() {
+        return compositeActivityValues.deletedIndexes.size() == THREADS * uidsPerThread / 2;
+      }
+    });
+    final int indexSize = compositeActivityValues.indexSize.get();
+
+    // new uids reuse the deleted indexes
+    runConcurrently(new Task() {
+      @Override
+      public void run(int threadId) {
+        Map<String, Object> update = increment();
+        for (int i = 0; i < uidsPerThread / 2; i++) {
+          compositeActivityValues.update(100000000L + 1000000L * threadId + i, VERSION, update);
+        }
+      }
+    });
+    assertEquals(0, compositeActivityValues.deletedIndexes.size());
+    assertEquals(indexSize, compositeActivityValues.indexSize.get());
+    long[] uids = compositeActivityValues.uidToArrayIndex.keys();
+    assertEquals(THREADS * uidsPerThread, uids.length);
+    IntSet indexes = new IntOpenHashSet();
+    for (long uid : uids) {
+      assertTrue("Index shared by two uids",
+        indexes.add(compositeActivityValues.getIndexByUID(uid)));
+      assertEquals(1, compositeActivityValues.getIntValueByUID(uid, "likes"));
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package com.senseidb.indexing.activity;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import com.senseidb.indexing.activity.primitives.ActivityFloatValues;
+import com.senseidb.indexing.activity.primitives.ActivityIntValues;
+import com.senseidb.indexing.activity.primitives.ActivityLongValues;
+import com.senseidb.indexing.activity.primitives.ActivityPrimitiveValues;
+import com.senseidb.indexing.activity.primitives.OffHeapActivityFloatValues;
+import com.senseidb.indexing.activity.primitives.OffHeapActivityIntValues;
+import com.senseidb.indexing.activity.primitives.OffHeapActivityLongValues;
+import com.senseidb.indexing.activity.primitives.OffHeapColumn;
+import com.senseidb.test.SenseiStarter;
+
+public class OffHeapActivityValuesTest extends TestCase {
+  private static final int COUNT = 200000;
+
+  @Override
+  public void setUp() {
+    SenseiStarter.rmrf(new File("sensei-test"));
+    new File(getDirPath()).mkdirs();
+  }
+
+  public static String getDirPath() {
+    return "sensei-test/offHeap";
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File file = new File("sensei-test");
+    file.deleteOnExit();
+    SenseiStarter.rmrf(file);
+  }
+
+  private static ActivityPersistenceFactory getFactory() {
+    ActivityConfig activityConfig = new ActivityConfig();
+    activityConfig.setOffHeapColumns(true);
+    return ActivityPersistenceFactory.getInstance(getDirPath(), activityConfig);
+  }
+
+  public void test1ColumnGrowsWithoutMovingValues() {
+    OffHeapColumn column = new OffHeapColumn(4, Integer.MIN_VALUE, 10);
+    assertEquals(1 << 16, column.capacity());
+    column.putInt(5, 5);
+    column.ensureCapacity(3 * column.capacity() + 1);
+    assertEquals(4 << 16, column.capacity());
+    assertEquals(5, column.getInt(5));
+    assertEquals(Integer.MIN_VALUE, column.getInt(3 << 16));
+    assertEquals(4L * (4 << 16), column.sizeInBytes());
+  }
+
+  public void test2UpdateFlushAndReload() {
+    ActivityIntValues intValues = (ActivityIntValues) ActivityPrimitiveValues
+        .createActivityPrimitiveValues(getFactory(), int.class, "likes", 0);
+    ActivityLongValues longValues = (ActivityLongValues) ActivityPrimitiveValues
+        .createActivityPrimitiveValues(getFactory(), long.class, "modifiedDate", 0);
+    ActivityFloatValues floatValues = (ActivityFloatValues) ActivityPrimitiveValues
+        .createActivityPrimitiveValues(getFactory(), float.class, "reputation", 0);
+    assertTrue(intValues instanceof OffHeapActivityIntValues);
+    for (int i = 0; i < COUNT; i++) {
+      intValues.update(i, "+=1");
+      intValues.update(i, "+=" + i);
+      longValues.update(i, i * 1000000000L);
+      floatValues.update(i, "+=0.5");
+    }
+    assertEquals(Integer.MIN_VALUE, intValues.getIntValue(COUNT));
+    assertEquals(-Float.MAX_VALUE, floatValues.getFloatValue(COUNT));
+    intValues.delete(3);
+    intValues.prepareFlush().run();
+    longValues.prepareFlush().run();
+    floatValues.prepareFlush().run();
+    intValues.close();
+    longValues.close();
+    floatValues.close();
+
+    intValues = (ActivityIntValues) ActivityPrimitiveValues.createActivityPrimitiveValues(
+      getFactory(), int.class, "likes", COUNT);
+    longValues = (ActivityLongValues) ActivityPrimitiveValues.createActivityPrimitiveValues(
+      getFactory(), long.class, "modifiedDate", COUNT);
+    floatValues = (ActivityFloatValues) ActivityPrimitiveValues.createActivityPrimitiveValues(
+      getFactory(), float.class, "reputation", COUNT);
+    assertEquals(Integer.MIN_VALUE, intValues.getIntValue(3));
+    for (int i = 0; i < COUNT; i += 997) {
+      if (i != 3) {
+        assertEquals(i + 1, intValues.getIntValue(i));
+      }
+      assertEquals(i * 1000000000L, longValues.getLongValue(i));
+      assertEquals(0.5f, floatValues.getFloatValue(i));
+    }
+    intValues.close();
+    longValues.close();
+    floatValues.close();
+  }
+
+  public void test3FieldValuesAreCopied() {
+    ActivityIntValues intValues = (ActivityIntValues) ActivityPrimitiveValues
+        .createActivityPrimitiveValues(getFactory(), int.class, "likes", 0);
+    intValues.update(2, "+=3");
+    int[] values = intValues.getFieldValues();
+    assertEquals(1 << 16, intValues.getFieldValues().length);
+    assertEquals(3, values[2]);
+    assertEquals(Integer.MIN_VALUE, values[3]);
+    values[2] = 7;
+    assertEquals(3, intValues.getIntValue(2));
+    intValues.setFieldValues(values);
+    assertEquals(7, intValues.getIntValue(2));
+    values[2] = 9;
+    assertEquals(7, intValues.getIntValue(2));
+    intValues.close();
+
+    OffHeapActivityLongValues longValues = new OffHeapActivityLongValues();
+    longValues.setFieldValues(new long[] { 1L, 5000000000L });
+    assertEquals(5000000000L, longValues.getLongValue(1));
+    assertEquals(Long.MIN_VALUE, longValues.getFieldValues()[2]);
+
+    OffHeapActivityFloatValues floatValues = new OffHeapActivityFloatValues();
+    floatValues.setFieldValues(new float[] { 0.5f, 1.5f });
+    assertEquals(1.5f, floatValues.getFloatValue(1));
+    assertEquals(-Float.MAX_VALUE, floatValues.getFieldValues()[2]);
+  }
+}
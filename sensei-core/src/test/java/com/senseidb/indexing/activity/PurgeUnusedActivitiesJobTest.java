@@ -114,6 +114,49 @@ public class PurgeUnusedActivitiesJobTest extends TestCase {
     assertEquals(100000, compositeActivityValues.metadata.count);
   }
 
+  public void test2PurgeSuspectsAndSweepInChunks() throws Exception {
+    compositeActivityValues = CompositeActivityValues.createCompositeValues(
+      ActivityPersistenceFactory.getInstance(getDirPath()),
+      java.util.Arrays.asList(getLikesFieldDefinition()),
+      Collections.<TimeAggregateInfo> emptyList(), ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+    int valueCount = 1000;
+    for (int i = 0; i < valueCount; i++) {
+      compositeActivityValues.update(i, String.format("%08d", i),
+        ActivityPrimitiveValuesPersistenceTest.toMap(new JSONObject().put("likes", "+=1")));
+    }
+    compositeActivityValues.recentlyAddedUids.clear();
+    SenseiCore senseiCore = new SenseiCore(0, new int[] { 0 }, null, null, null,
+        new DefaultFieldAccessorFactory(), null) {
+      @SuppressWarnings("unchecked")
+      @Override
+      public IndexReaderFactory<BoboSegmentReader> getIndexReaderFactory(int partition) {
+        return zoie;
+      }
+    };
+    PurgeUnusedActivitiesJob purgeUnusedActivitiesJob = new PurgeUnusedActivitiesJob(
+        compositeActivityValues, senseiCore, 1000L * 1000, 1000L, 300);
+    purgeUnusedActivitiesJob.addSuspects(0, 1, 2, 105);
+    // the suspects wait for a tick
+    assertEquals(0, purgeUnusedActivitiesJob.purgeNextChunk());
+    assertEquals(4, purgeUnusedActivitiesJob.getBacklog());
+    assertEquals(3, purgeUnusedActivitiesJob.purgeNextChunk());
+    assertEquals(0, purgeUnusedActivitiesJob.getBacklog());
+    assertEquals(valueCount - 3, compositeActivityValues.uidToArrayIndex.size());
+
+    purgeUnusedActivitiesJob = new PurgeUnusedActivitiesJob(compositeActivityValues, senseiCore,
+        1L, 1L, 300);
+    Thread.sleep(10);
+    int purged = 0;
+    for (int i = 0; i < 4; i++) {
+      // every tick checks at most a chunk
+      int purgedInTick = purgeUnusedActivitiesJob.purgeNextChunk();
+      assertTrue(purgedInTick <= 300);
+      purged += purgedInTick;
+    }
+    assertEquals(valueCount - 5, purged);
+    assertEquals(2, compositeActivityValues.uidToArrayIndex.size());
+  }
+
   public static FieldDefinition getLikesFieldDefinition() {
 
     return getIntFieldDefinition("likes");
@@ -24,6 +24,13 @@ public class ActivityIntValuesSynchronizedDecorator extends ActivityIntValues {
     }
   }
 
+  @Override
+  public void ensureCapacity(int index) {
+    synchronized (SynchronizedActivityRangeFacetHandler.GLOBAL_ACTIVITY_TEST_LOCK) {
+      decorated.ensureCapacity(index);
+    }
+  }
+
   public void delete(int index) {
     synchronized (SynchronizedActivityRangeFacetHandler.GLOBAL_ACTIVITY_TEST_LOCK) {
       decorated.delete(index);
@@ -8,7 +8,6 @@ import org.junit.Test;
 
 import com.senseidb.indexing.activity.primitives.ActivityIntValues;
 import com.senseidb.indexing.activity.time.TimeAggregatedActivityValues.IntValueHolder;
-import com.senseidb.indexing.activity.time.TimeAggregatedActivityValues.TimeHitsHolder;
 
 public class TimeAggregatedActivityInitTest {
 
@@ -24,10 +23,10 @@ public class TimeAggregatedActivityInitTest {
     intValueHolders[1].activityIntValues.fieldValues[0] = 3;
     intValueHolders[2].activityIntValues.fieldValues[0] = 1;
     TimeAggregatedActivityValues.initTimeHits(timeHitsHolder, intValueHolders, 1, 10);
-    assertTrue(Arrays.equals(new int[] { 1, 1, 1, 1, 1, 0, 0, 0, 0 },
-      timeHitsHolder.getActivities(0).array));
-    assertTrue(Arrays.equals(new int[] { 1, 3, 6, 7, 10, 0, 0, 0, 0 },
-      timeHitsHolder.getTimes(0).array));
+    assertTrue(Arrays.equals(new int[] { 1, 1, 1, 1, 1 },
+      timeHitsHolder.getActivities(0)));
+    assertTrue(Arrays.equals(new int[] { 1, 3, 6, 7, 10 },
+      timeHitsHolder.getTimes(0)));
   }
 
   @Test
@@ -42,10 +41,10 @@ public class TimeAggregatedActivityInitTest {
     intValueHolders[1].activityIntValues.fieldValues[0] = 10;
     intValueHolders[2].activityIntValues.fieldValues[0] = 1;
     TimeAggregatedActivityValues.initTimeHits(timeHitsHolder, intValueHolders, 1, 10);
-    assertTrue(Arrays.equals(new int[] { 8, 8, 8, 8, 8, 3, 3, 3, 1, 0 },
-      timeHitsHolder.getActivities(0).array));
-    assertTrue(Arrays.equals(new int[] { 1, 2, 3, 4, 5, 6, 7, 8, 10, 0 },
-      timeHitsHolder.getTimes(0).array));
+    assertTrue(Arrays.equals(new int[] { 8, 8, 8, 8, 8, 3, 3, 3, 1 },
+      timeHitsHolder.getActivities(0)));
+    assertTrue(Arrays.equals(new int[] { 1, 2, 3, 4, 5, 6, 7, 8, 10 },
+      timeHitsHolder.getTimes(0)));
   }
 
   @Test
@@ -60,9 +59,29 @@ public class TimeAggregatedActivityInitTest {
     intValueHolders[1].activityIntValues.fieldValues[0] = 10;
     intValueHolders[2].activityIntValues.fieldValues[0] = 1;
     TimeAggregatedActivityValues.initTimeHits(timeHitsHolder, intValueHolders, 1, 10);
-    assertTrue(Arrays.toString(timeHitsHolder.getActivities(0).array),
-      Arrays.equals(new int[] { 1 }, timeHitsHolder.getActivities(0).array));
-    assertTrue(Arrays.toString(timeHitsHolder.getTimes(0).array),
-      Arrays.equals(new int[] { 10 }, timeHitsHolder.getTimes(0).array));
+    assertTrue(Arrays.toString(timeHitsHolder.getActivities(0)),
+      Arrays.equals(new int[] { 1 }, timeHitsHolder.getActivities(0)));
+    assertTrue(Arrays.toString(timeHitsHolder.getTimes(0)),
+      Arrays.equals(new int[] { 10 }, timeHitsHolder.getTimes(0)));
+  }
+
+  @Test
+  public void test4SnapshotIsNotChangedByLaterUpdates() {
+    TimeHitsHolder timeHitsHolder = new TimeHitsHolder(2);
+    timeHitsHolder.add(0, 1, 1);
+    timeHitsHolder.add(1, 1, 2);
+    TimeHitsHolder.Snapshot snapshot = timeHitsHolder.detach();
+    // merged into the update of the same minute, appended and deleted
+    timeHitsHolder.add(0, 1, 5);
+    timeHitsHolder.add(0, 2, 1);
+    timeHitsHolder.reset(1);
+    int[][] columns = snapshot.toColumns();
+    assertTrue(Arrays.equals(new int[] { 1, 1 }, columns[0]));
+    assertTrue(Arrays.equals(new int[] { 0, 1 }, columns[1]));
+    assertTrue(Arrays.equals(new int[] { 1, 2 }, columns[2]));
+    columns = timeHitsHolder.snapshot();
+    assertTrue(Arrays.equals(new int[] { 1, 2 }, columns[0]));
+    assertTrue(Arrays.equals(new int[] { 0, 0 }, columns[1]));
+    assertTrue(Arrays.equals(new int[] { 6, 1 }, columns[2]));
   }
 }
@@ -40,12 +40,12 @@ public class TimeAggregatedActivityValuesTest extends TestCase {
       timeAggregatedActivityValues.update(0, "1");
       timeAggregatedActivityValues.update(1, "1");
     }
-    assertTrue(Arrays.toString(timeAggregatedActivityValues.timeActivities.getActivities(0).array),
+    assertTrue(Arrays.toString(timeAggregatedActivityValues.timeActivities.getActivities(0)),
       Arrays.equals(new int[] { 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1 },
-        timeAggregatedActivityValues.timeActivities.getActivities(0).array));
-    assertTrue(Arrays.toString(timeAggregatedActivityValues.timeActivities.getTimes(0).array),
+        timeAggregatedActivityValues.timeActivities.getActivities(0)));
+    assertTrue(Arrays.toString(timeAggregatedActivityValues.timeActivities.getTimes(0)),
       Arrays.equals(new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 },
-        timeAggregatedActivityValues.timeActivities.getTimes(0).array));
+        timeAggregatedActivityValues.timeActivities.getTimes(0)));
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 11);
     Clock.setPredefinedTimeInMinutes(10);
     AggregatesUpdateJob aggregatesUpdateJob = new AggregatesUpdateJob(timeAggregatedActivityValues,
@@ -55,13 +55,13 @@ public class TimeAggregatedActivityValuesTest extends TestCase {
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 9);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("5m").fieldValues[0], 4);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0], 1);
-    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).getSize(), 9);
+    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).length, 9);
     Clock.setPredefinedTimeInMinutes(12);
     aggregatesUpdateJob.run();
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 8);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("5m").fieldValues[0], 3);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0], 0);
-    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).getSize(), 8);
+    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).length, 8);
     Clock.setPredefinedTimeInMinutes(25);
     aggregatesUpdateJob.run();
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 0);
@@ -81,12 +81,12 @@ public class TimeAggregatedActivityValuesTest extends TestCase {
       timeAggregatedActivityValues.update(0, "1");
       timeAggregatedActivityValues.update(1, "1");
     }
-    assertTrue(Arrays.toString(timeAggregatedActivityValues.timeActivities.getActivities(0).array),
+    assertTrue(Arrays.toString(timeAggregatedActivityValues.timeActivities.getActivities(0)),
       Arrays.equals(new int[] { 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1 },
-        timeAggregatedActivityValues.timeActivities.getActivities(0).array));
-    assertTrue(Arrays.toString(timeAggregatedActivityValues.timeActivities.getTimes(0).array),
+        timeAggregatedActivityValues.timeActivities.getActivities(0)));
+    assertTrue(Arrays.toString(timeAggregatedActivityValues.timeActivities.getTimes(0)),
       Arrays.equals(new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 },
-        timeAggregatedActivityValues.timeActivities.getTimes(0).array));
+        timeAggregatedActivityValues.timeActivities.getTimes(0)));
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 11);
     Clock.setPredefinedTimeInMinutes(10);
     AggregatesUpdateJob aggregatesUpdateJob = new AggregatesUpdateJob(timeAggregatedActivityValues,
@@ -96,13 +96,13 @@ public class TimeAggregatedActivityValuesTest extends TestCase {
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 9);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("5m").fieldValues[0], 4);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0], 1);
-    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).getSize(), 9);
+    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).length, 9);
     Clock.setPredefinedTimeInMinutes(12);
     aggregatesUpdateJob.run();
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 8);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("5m").fieldValues[0], 3);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0], 0);
-    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).getSize(), 8);
+    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).length, 8);
     Clock.setPredefinedTimeInMinutes(25);
     aggregatesUpdateJob.run();
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 0);
@@ -110,4 +110,35 @@ public class TimeAggregatedActivityValuesTest extends TestCase {
     assertEquals(timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0], 0);
 
   }
+
+  public void test3TimeHitsAreReloaded() {
+    Clock.setPredefinedTimeInMinutes(0);
+    timeAggregatedActivityValues = TimeAggregatedActivityValues.createTimeAggregatedValues("likes",
+      java.util.Arrays.asList("10m", "5m", "2m"), 0,
+      ActivityPersistenceFactory.getInstance(getDirPath()));
+    for (int i = 0; i < 11; i++) {
+      Clock.setPredefinedTimeInMinutes(i);
+      timeAggregatedActivityValues.update(0, "1");
+      timeAggregatedActivityValues.update(1, "2");
+    }
+    timeAggregatedActivityValues.delete(1);
+    timeAggregatedActivityValues.prepareFlush().run();
+    timeAggregatedActivityValues.close();
+
+    timeAggregatedActivityValues = TimeAggregatedActivityValues.createTimeAggregatedValues("likes",
+      java.util.Arrays.asList("10m", "5m", "2m"), 2,
+      ActivityPersistenceFactory.getInstance(getDirPath()));
+    // the estimation would have spread the updates differently
+    assertTrue(Arrays.toString(timeAggregatedActivityValues.timeActivities.getTimes(0)),
+      Arrays.equals(new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 },
+        timeAggregatedActivityValues.timeActivities.getTimes(0)));
+    assertEquals(0, timeAggregatedActivityValues.timeActivities.getTimes(1).length);
+    Clock.setPredefinedTimeInMinutes(11);
+    timeAggregatedActivityValues.getAggregatesUpdateJob().run();
+    assertEquals(9, timeAggregatedActivityValues.valuesMap.get("10m").getIntValue(0));
+    assertEquals(4, timeAggregatedActivityValues.valuesMap.get("5m").getIntValue(0));
+    assertEquals(1, timeAggregatedActivityValues.valuesMap.get("2m").getIntValue(0));
+    assertEquals(Integer.MIN_VALUE, timeAggregatedActivityValues.valuesMap.get("2m").getIntValue(1));
+    timeAggregatedActivityValues.close();
+  }
 }
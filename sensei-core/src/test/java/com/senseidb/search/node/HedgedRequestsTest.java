@@ -0,0 +1,224 @@
+package com.senseidb.search.node;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.easymock.classextension.EasyMock;
+import org.junit.Test;
+
+import zu.core.cluster.ZuCluster;
+
+import com.senseidb.conf.SenseiConfParams;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+import com.senseidb.svc.impl.CoreSenseiServiceImpl;
+import com.twitter.finagle.Service;
+import com.twitter.util.Future;
+import com.twitter.util.Promise;
+
+public class HedgedRequestsTest extends Assert {
+  private static final InetSocketAddress PRIMARY = InetSocketAddress.createUnresolved("primary",
+    1234);
+  private static final InetSocketAddress REPLICA = InetSocketAddress.createUnresolved("replica",
+    1234);
+
+  /**
+   * Answers with the result it is given, or never if it has none. Keeps the futures it returned.
+   */
+  private static class TestService extends Service<SenseiRequest, SenseiResult> {
+    private final SenseiResult _result;
+    private final List<Promise<SenseiResult>> futures = new ArrayList<Promise<SenseiResult>>();
+
+    TestService(SenseiResult result) {
+      _result = result;
+    }
+
+    @Override
+    public synchronized Future<SenseiResult> apply(SenseiRequest request) {
+      Promise<SenseiResult> future = new Promise<SenseiResult>();
+      futures.add(future);
+      if (_result != null) {
+        future.setValue(_result);
+      }
+      return future;
+    }
+
+    synchronized int getCalls() {
+      return futures.size();
+    }
+
+    synchronized boolean isCancelled(int i) {
+      return futures.get(i).isInterrupted().isDefined();
+    }
+  }
+
+  /**
+   * Sends the hedges of the primary to the replica.
+   */
+  private static class TestBroker extends
+      AbstractConsistentHashBroker<SenseiRequest, SenseiResult> {
+    private final Service<SenseiRequest, SenseiResult> _primary;
+    private final Service<SenseiRequest, SenseiResult> _replica;
+
+    TestBroker(Configuration conf, Service<SenseiRequest, SenseiResult> primary,
+        Service<SenseiRequest, SenseiResult> replica) {
+      super(createCluster(), CoreSenseiServiceImpl.buildSerializer(conf), conf);
+      _primary = primary;
+      _replica = replica;
+      // the primary usually answers within 10ms
+      for (int i = 0; i < 20; ++i) {
+        _latencyTracker.record(PRIMARY, 10);
+      }
+    }
+
+    private static ZuCluster createCluster() {
+      ZuCluster cluster = EasyMock.createNiceMock(ZuCluster.class);
+      EasyMock.replay(cluster);
+      return cluster;
+    }
+
+    List<SenseiResult> execute(long timeout) {
+      SenseiRequest req = new SenseiRequest();
+      req.setPartitions(new HashSet<Integer>(Arrays.asList(0)));
+      return executeHedgedRequests(Collections.singletonMap(_primary, req), timeout);
+    }
+
+    @Override
+    protected Service<SenseiRequest, SenseiResult> routeToOtherReplica(int shard,
+        Service<SenseiRequest, SenseiResult> primary) {
+      return _replica;
+    }
+
+    @Override
+    public InetSocketAddress getServiceAddress(Service<SenseiRequest, SenseiResult> service) {
+      return service == _primary ? PRIMARY : REPLICA;
+    }
+
+    @Override
+    public SenseiResult mergeResults(SenseiRequest request, List<SenseiResult> resultList) {
+      return ResultMerger.merge(request, resultList, false);
+    }
+
+    @Override
+    public SenseiResult getEmptyResultInstance() {
+      return new SenseiResult();
+    }
+
+    @Override
+    protected String getMessageType() {
+      return CoreSenseiServiceImpl.MESSAGE_TYPE_NAME;
+    }
+  }
+
+  private static Configuration createConf(double budget) {
+    Configuration conf = new BaseConfiguration();
+    conf.setProperty(SenseiConfParams.SERVER_BROKER_HEDGE_ENABLED, true);
+    conf.setProperty(SenseiConfParams.SERVER_BROKER_HEDGE_BUDGET, budget);
+    return conf;
+  }
+
+  @Test
+  public void testHedgeWinsAndThePrimaryIsCancelled() throws Exception {
+    TestService primary = new TestService(null);
+    SenseiResult replicaResult = new SenseiResult();
+    TestService replica = new TestService(replicaResult);
+    TestBroker broker = new TestBroker(createConf(0.05), primary, replica);
+    List<SenseiResult> results = broker.execute(2000);
+    assertEquals(1, results.size());
+    assertSame(replicaResult, results.get(0));
+    assertEquals(1, replica.getCalls());
+    assertTrue(primary.isCancelled(0));
+  }
+
+  @Test
+  public void testPrimaryWinsAndTheHedgeIsCancelled() throws Exception {
+    final SenseiResult primaryResult = new SenseiResult();
+    final TestService replica = new TestService(null);
+    // the primary answers late, once it was hedged
+    TestService primary = new TestService(null) {
+      @Override
+      public synchronized Future<SenseiResult> apply(SenseiRequest request) {
+        final Promise<SenseiResult> future = (Promise<SenseiResult>) super.apply(request);
+        new Thread() {
+          @Override
+          public void run() {
+            try {
+              while (replica.getCalls() == 0) {
+                Thread.sleep(5);
+              }
+            } catch (InterruptedException e) {
+              return;
+            }
+            future.setValue(primaryResult);
+          }
+        }.start();
+        return future;
+      }
+    };
+    TestBroker broker = new TestBroker(createConf(0.05), primary, replica);
+    List<SenseiResult> results = broker.execute(2000);
+    assertEquals(1, results.size());
+    assertSame(primaryResult, results.get(0));
+    assertEquals(1, replica.getCalls());
+    assertTrue(replica.isCancelled(0));
+    assertFalse(primary.isCancelled(0));
+  }
+
+  @Test
+  public void testNoHedgeOnceTheBudgetIsSpent() throws Exception {
+    TestService primary = new TestService(null);
+    TestService replica = new TestService(new SenseiResult());
+    // a budget of 0 allows a single hedge
+    TestBroker broker = new TestBroker(createConf(0), primary, replica);
+    assertEquals(1, broker.execute(500).size());
+    assertEquals(1, replica.getCalls());
+
+    List<SenseiResult> results = broker.execute(200);
+    assertTrue(results.isEmpty());
+    assertEquals(1, replica.getCalls());
+    assertFalse(primary.isCancelled(1));
+  }
+
+  @Test
+  public void testHedgeBudget() {
+    AbstractConsistentHashBroker.HedgeBudget budget =
+        new AbstractConsistentHashBroker.HedgeBudget(0.01);
+    // the budget starts full, with 10 tokens
+    assertTrue(budget.tryAcquire(10));
+    assertFalse(budget.tryAcquire(1));
+    for (int i = 0; i < 99; ++i) {
+      budget.onRequest();
+    }
+    assertFalse(budget.tryAcquire(1));
+    budget.onRequest();
+    budget.onRequest();
+    assertTrue(budget.tryAcquire(1));
+    assertFalse(budget.tryAcquire(1));
+
+    // the tokens do not pile up beyond the maximum
+    for (int i = 0; i < 100000; ++i) {
+      budget.onRequest();
+    }
+    assertTrue(budget.tryAcquire(10));
+    assertFalse(budget.tryAcquire(1));
+  }
+
+  @Test
+  public void testRemovedNodesAreForgotten() {
+    SenseiBroker broker = new SenseiBroker(TestBroker.createCluster(), new BaseConfiguration());
+    for (int i = 0; i < 20; ++i) {
+      broker._latencyTracker.record(PRIMARY, 10);
+    }
+    assertEquals(10, broker._latencyTracker.getPercentile(PRIMARY, 50));
+    broker.nodesRemoved(Collections.singleton(PRIMARY));
+    assertEquals(-1, broker._latencyTracker.getPercentile(PRIMARY, 50));
+  }
+}
@@ -0,0 +1,149 @@
+package com.senseidb.search.node;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.easymock.classextension.EasyMock;
+import org.junit.Test;
+
+import zu.core.cluster.ZuCluster;
+
+import com.senseidb.conf.SenseiConfParams;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+import com.senseidb.svc.impl.CoreSenseiServiceImpl;
+import com.twitter.finagle.Service;
+import com.twitter.util.Future;
+
+public class LeastLoadedRoutingTest extends Assert {
+  private static final InetSocketAddress SLOW = InetSocketAddress.createUnresolved("slow", 1234);
+  private static final InetSocketAddress FAST = InetSocketAddress.createUnresolved("fast", 1234);
+
+  private static class TestService extends Service<SenseiRequest, SenseiResult> {
+    private int _calls = 0;
+
+    @Override
+    public synchronized Future<SenseiResult> apply(SenseiRequest request) {
+      ++_calls;
+      return Future.value(new SenseiResult());
+    }
+
+    synchronized int getCalls() {
+      return _calls;
+    }
+  }
+
+  /**
+   * Holds a single partition on two replicas. The first route key of every request hashes to the
+   * slow replica and the second one to the fast replica.
+   */
+  private static class TestBroker extends
+      AbstractConsistentHashBroker<SenseiRequest, SenseiResult> {
+    private final TestService _slow = new TestService();
+    private final TestService _fast = new TestService();
+    private int _routes = 0;
+
+    TestBroker(Configuration conf) {
+      super(createCluster(), CoreSenseiServiceImpl.buildSerializer(conf), conf);
+      for (int i = 0; i < 20; ++i) {
+        _latencyTracker.record(SLOW, 100);
+        _latencyTracker.record(FAST, 10);
+      }
+    }
+
+    private static ZuCluster createCluster() {
+      ZuCluster cluster = EasyMock.createNiceMock(ZuCluster.class);
+      EasyMock.replay(cluster);
+      return cluster;
+    }
+
+    @Override
+    protected Set<Integer> getShards() {
+      return Collections.singleton(0);
+    }
+
+    @Override
+    protected Service<SenseiRequest, SenseiResult> route(byte[] routeBytes, int shard) {
+      return _routes++ % 2 == 0 ? _slow : _fast;
+    }
+
+    @Override
+    public InetSocketAddress getServiceAddress(Service<SenseiRequest, SenseiResult> service) {
+      return service == _slow ? SLOW : FAST;
+    }
+
+    @Override
+    public SenseiResult mergeResults(SenseiRequest request, List<SenseiResult> resultList) {
+      return ResultMerger.merge(request, resultList, false);
+    }
+
+    @Override
+    public SenseiResult getEmptyResultInstance() {
+      return new SenseiResult();
+    }
+
+    @Override
+    protected String getMessageType() {
+      return CoreSenseiServiceImpl.MESSAGE_TYPE_NAME;
+    }
+  }
+
+  private static Configuration createConf(String routing) {
+    Configuration conf = new BaseConfiguration();
+    conf.setProperty(SenseiConfParams.SERVER_BROKER_ROUTING, routing);
+    return conf;
+  }
+
+  @Test
+  public void testRequestsGoToTheFastestReplica() {
+    TestBroker broker = new TestBroker(
+        createConf(AbstractConsistentHashBroker.ROUTING_LEAST_LOADED));
+    for (int i = 0; i < 10; ++i) {
+      assertEquals(1, broker.doCall(new SenseiRequest()).size());
+    }
+    assertEquals(0, broker._slow.getCalls());
+    assertEquals(10, broker._fast.getCalls());
+  }
+
+  @Test
+  public void testRouteParamKeepsItsReplica() {
+    TestBroker broker = new TestBroker(
+        createConf(AbstractConsistentHashBroker.ROUTING_LEAST_LOADED));
+    for (int i = 0; i < 10; ++i) {
+      SenseiRequest req = new SenseiRequest();
+      req.setRouteParam("user" + i);
+      broker.doCall(req);
+      // only one route key per request
+      broker._routes = 0;
+    }
+    assertEquals(10, broker._slow.getCalls());
+    assertEquals(0, broker._fast.getCalls());
+  }
+
+  @Test
+  public void testConsistentHashIgnoresTheLoad() {
+    TestBroker broker = new TestBroker(
+        createConf(AbstractConsistentHashBroker.ROUTING_CONSISTENT_HASH));
+    for (int i = 0; i < 10; ++i) {
+      broker.doCall(new SenseiRequest());
+      broker._routes = 0;
+    }
+    assertEquals(10, broker._slow.getCalls());
+    assertEquals(0, broker._fast.getCalls());
+  }
+
+  @Test
+  public void testCloneKeepsAnUnsetRouteParam() {
+    SenseiRequest req = new SenseiRequest();
+    assertFalse(req.clone().hasRouteParam());
+    req.setRouteParam("user");
+    assertTrue(req.clone().hasRouteParam());
+    assertEquals("user", req.clone().getRouteParam());
+  }
+}
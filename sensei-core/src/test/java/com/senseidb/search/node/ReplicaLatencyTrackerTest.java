@@ -0,0 +1,73 @@
+package com.senseidb.search.node;
+
+import java.net.InetSocketAddress;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ReplicaLatencyTrackerTest extends Assert {
+  private final InetSocketAddress replica = InetSocketAddress.createUnresolved("node1", 1234);
+
+  @Test
+  public void testNotEnoughSamples() {
+    ReplicaLatencyTracker tracker = new ReplicaLatencyTracker(10, 5);
+    assertEquals(-1, tracker.getPercentile(replica, 95));
+    for (int i = 0; i < 4; ++i) {
+      tracker.record(replica, 10);
+    }
+    assertEquals(-1, tracker.getPercentile(replica, 95));
+    tracker.record(replica, 10);
+    assertEquals(10, tracker.getPercentile(replica, 95));
+  }
+
+  @Test
+  public void testPercentileOverSlidingWindow() {
+    ReplicaLatencyTracker tracker = new ReplicaLatencyTracker(100, 1);
+    for (int i = 1; i <= 100; ++i) {
+      tracker.record(replica, i);
+    }
+    assertEquals(50, tracker.getPercentile(replica, 50));
+    assertEquals(95, tracker.getPercentile(replica, 95));
+    assertEquals(100, tracker.getPercentile(replica, 100));
+    // the oldest samples fall out of the window
+    for (int i = 0; i < 100; ++i) {
+      tracker.record(replica, 1000);
+    }
+    assertEquals(1000, tracker.getPercentile(replica, 50));
+    tracker.remove(replica);
+    assertEquals(-1, tracker.getPercentile(replica, 50));
+  }
+
+  @Test
+  public void testCost() {
+    ReplicaLatencyTracker tracker = new ReplicaLatencyTracker(10, 1);
+    InetSocketAddress fast = InetSocketAddress.createUnresolved("fast", 1234);
+    InetSocketAddress slow = InetSocketAddress.createUnresolved("slow", 1234);
+    InetSocketAddress failing = InetSocketAddress.createUnresolved("failing", 1234);
+    assertEquals(0.0, tracker.getCost(fast));
+    for (int i = 0; i < 10; ++i) {
+      tracker.start(fast);
+      tracker.record(fast, 10);
+      tracker.start(slow);
+      tracker.record(slow, 100);
+      tracker.start(failing);
+      tracker.record(failing, 10);
+      tracker.start(failing);
+      tracker.recordFailure(failing);
+    }
+    assertTrue(tracker.getCost(fast) < tracker.getCost(slow));
+    assertTrue(tracker.getCost(fast) < tracker.getCost(failing));
+
+    // outstanding requests make a fast replica look busy
+    double idleCost = tracker.getCost(fast);
+    for (int i = 0; i < 20; ++i) {
+      tracker.start(fast);
+    }
+    assertTrue(tracker.getCost(fast) > tracker.getCost(slow));
+    for (int i = 0; i < 20; ++i) {
+      tracker.record(fast, 10);
+    }
+    assertEquals(idleCost, tracker.getCost(fast), 0.001);
+  }
+}
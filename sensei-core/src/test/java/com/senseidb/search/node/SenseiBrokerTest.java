@@ -0,0 +1,226 @@
+package com.senseidb.search.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.easymock.classextension.EasyMock;
+import org.junit.Test;
+
+import zu.core.cluster.ZuCluster;
+
+import com.browseengine.bobo.api.BrowseSelection;
+import com.senseidb.conf.SenseiConfParams;
+import com.senseidb.conf.SenseiFacetHandlerBuilder;
+import com.senseidb.search.req.ErrorType;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+
+public class SenseiBrokerTest extends Assert {
+
+  /**
+   * Answers from two nodes holding partition 0 and 1, instead of calling the nodes.
+   */
+  private static class TestBroker extends SenseiBroker {
+    private final long _queryDelay;
+    final List<SenseiRequest> requests = new ArrayList<SenseiRequest>();
+    final List<Long> timeouts = new ArrayList<Long>();
+    final List<Boolean> routed = new ArrayList<Boolean>();
+
+    TestBroker(Configuration conf, long queryDelay) {
+      super(createCluster(), conf);
+      _queryDelay = queryDelay;
+    }
+
+    private static ZuCluster createCluster() {
+      ZuCluster cluster = EasyMock.createNiceMock(ZuCluster.class);
+      EasyMock.replay(cluster);
+      return cluster;
+    }
+
+    @Override
+    protected List<SenseiResult> doCall(SenseiRequest req) {
+      requests.add(req);
+      timeouts.add(getTimeout(req));
+      routed.add(isRoutedToPartitions(req));
+      if (!req.isFetchStoredFields() && _queryDelay > 0) {
+        try {
+          Thread.sleep(_queryDelay);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      List<SenseiResult> results = new ArrayList<SenseiResult>();
+      results.add(createNodeResult(req, 0, 1, 3));
+      results.add(createNodeResult(req, 1, 2));
+      return results;
+    }
+  }
+
+  private static SenseiResult createNodeResult(SenseiRequest req, int partition, long... uids) {
+    Set<String> selectedUids = null;
+    for (BrowseSelection sel : req.getSelections()) {
+      if (SenseiFacetHandlerBuilder.UID_FACET_NAME.equals(sel.getFieldName())) {
+        selectedUids = new HashSet<String>(Arrays.asList(sel.getValues()));
+      }
+    }
+    List<SenseiHit> hits = new ArrayList<SenseiHit>();
+    for (long uid : uids) {
+      if (selectedUids != null && !selectedUids.contains(String.valueOf(uid))) {
+        continue;
+      }
+      SenseiHit hit = new SenseiHit();
+      hit.setUID(uid);
+      hit.setScore(10 - uid);
+      if (req.isFetchStoredFields()) {
+        hit.setStoredValue(("{\"id\":" + uid + "}").getBytes());
+      }
+      hits.add(hit);
+    }
+    SenseiResult result = new SenseiResult();
+    result.setHits(hits.toArray(new SenseiHit[hits.size()]));
+    result.setNumHitsLong(hits.size());
+    result.setPartitionVersions(Collections.singletonMap(partition, "1"));
+    return result;
+  }
+
+  private static Configuration createConf(long timeout) {
+    Configuration conf = new BaseConfiguration();
+    conf.setProperty(SenseiConfParams.SERVER_BROKER_TIMEOUT, timeout);
+    conf.setProperty(SenseiConfParams.SERVER_BROKER_TWO_PHASE_FETCH, true);
+    return conf;
+  }
+
+  private static SenseiRequest createRequest() {
+    SenseiRequest req = new SenseiRequest();
+    req.setCount(2);
+    req.setFetchStoredFields(true);
+    return req;
+  }
+
+  @Test
+  public void testTwoPhaseFetch() throws Exception {
+    TestBroker broker = new TestBroker(createConf(1000), 100);
+    try {
+      SenseiResult result = broker.browse(createRequest());
+      assertTrue(result.getErrors().toString(), result.getErrors().isEmpty());
+      SenseiHit[] hits = result.getSenseiHits();
+      assertEquals(2, hits.length);
+      assertEquals(1L, hits[0].getUID());
+      assertEquals(2L, hits[1].getUID());
+      assertEquals("{\"id\":1}", hits[0].getSrcData());
+      assertEquals("{\"id\":2}", hits[1].getSrcData());
+
+      assertEquals(2, broker.requests.size());
+      // the query phase returns the hits without the stored fields from every partition
+      SenseiRequest queryRequest = broker.requests.get(0);
+      assertFalse(queryRequest.isFetchStoredFields());
+      assertFalse(broker.routed.get(0));
+      // the fetch phase asks only for the hits of the page, from the partitions of their nodes
+      SenseiRequest fetchRequest = broker.requests.get(1);
+      assertTrue(fetchRequest.isFetchStoredFields());
+      assertTrue(broker.routed.get(1));
+      assertEquals(new HashSet<Integer>(Arrays.asList(0, 1)), fetchRequest.getPartitions());
+      assertEquals(new HashSet<String>(Arrays.asList("1", "2")), new HashSet<String>(
+          Arrays.asList(fetchRequest.getSelections()[0].getValues())));
+
+      // both phases share the timeout, the query phase gets three quarters of it
+      assertTrue(broker.timeouts.get(0) <= 750);
+      assertTrue(broker.timeouts.get(0) > 600);
+      assertTrue(broker.timeouts.get(1) <= 900);
+      assertTrue(broker.timeouts.get(1) > 0);
+    } finally {
+      broker.shutdown();
+    }
+  }
+
+  @Test
+  public void testSinglePhaseWithoutStoredFields() throws Exception {
+    TestBroker broker = new TestBroker(createConf(1000), 0);
+    try {
+      SenseiRequest req = createRequest();
+      req.setFetchStoredFields(false);
+      req.setPartitions(new HashSet<Integer>(Arrays.asList(0)));
+      broker.browse(req);
+      assertEquals(1, broker.requests.size());
+      // the partitions of a request are not used to route it
+      assertFalse(broker.routed.get(0));
+      assertEquals(1000L, broker.timeouts.get(0).longValue());
+    } finally {
+      broker.shutdown();
+    }
+  }
+
+  @Test
+  public void testFetchPhaseAfterTheDeadline() throws Exception {
+    TestBroker broker = new TestBroker(createConf(100), 150);
+    try {
+      SenseiResult result = broker.browse(createRequest());
+      assertEquals(1, broker.requests.size());
+      assertEquals(2, result.getSenseiHits().length);
+      assertNull(result.getSenseiHits()[0].getSrcData());
+      assertEquals(1, result.getErrors().size());
+      assertEquals(ErrorType.BrokerTimeout, result.getErrors().get(0).getErrorType());
+    } finally {
+      broker.shutdown();
+    }
+  }
+
+  @Test
+  public void testBuildFetchRequest() throws Exception {
+    SenseiHit[] hits = new SenseiHit[2];
+    for (int i = 0; i < hits.length; ++i) {
+      hits[i] = new SenseiHit();
+      hits[i].setUID(i + 1);
+    }
+    SenseiRequest req = createRequest();
+    req.setRouteParam("route");
+    Map<Long, Set<Integer>> hitPartitions = new HashMap<Long, Set<Integer>>();
+    hitPartitions.put(1L, new HashSet<Integer>(Arrays.asList(0, 2)));
+    hitPartitions.put(2L, new HashSet<Integer>(Arrays.asList(2)));
+    SenseiRequest fetchRequest = SenseiBroker.buildFetchRequest(req, hits, hitPartitions);
+    assertEquals(new HashSet<Integer>(Arrays.asList(0, 2)), fetchRequest.getPartitions());
+    assertEquals(2, fetchRequest.getCount());
+    assertEquals("route", fetchRequest.getRouteParam());
+    assertTrue(fetchRequest.isFetchStoredFields());
+
+    // a hit of an unknown partition is fetched from all the partitions
+    hitPartitions.remove(2L);
+    assertNull(SenseiBroker.buildFetchRequest(req, hits, hitPartitions).getPartitions());
+  }
+
+  @Test
+  public void testMergeStoredFields() throws Exception {
+    SenseiHit[] hits = new SenseiHit[3];
+    for (int i = 0; i < hits.length; ++i) {
+      hits[i] = new SenseiHit();
+      hits[i].setUID(i + 1);
+    }
+    SenseiHit fetched2 = new SenseiHit();
+    fetched2.setUID(2);
+    fetched2.setSrcData("{\"id\":2}");
+    fetched2.setStoredValue(new byte[] { 2 });
+    SenseiHit fetched1 = new SenseiHit();
+    fetched1.setUID(1);
+    fetched1.setSrcData("{\"id\":1}");
+    SenseiBroker.mergeStoredFields(hits, new SenseiHit[] { fetched2, fetched1 });
+    assertEquals("{\"id\":1}", hits[0].getSrcData());
+    assertEquals("{\"id\":2}", hits[1].getSrcData());
+    assertTrue(Arrays.equals(new byte[] { 2 }, hits[1].getStoredValue()));
+    // the hits that were not fetched are left as they are
+    assertNull(hits[2].getSrcData());
+
+    SenseiBroker.mergeStoredFields(hits, null);
+    assertEquals("{\"id\":1}", hits[0].getSrcData());
+  }
+}
@@ -0,0 +1,88 @@
+package com.senseidb.search.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.apache.lucene.search.SortField;
+import org.junit.Test;
+
+import com.senseidb.search.req.SenseiHit;
+
+public class SortedHitsMergerTest extends Assert {
+  private final Comparator<SenseiHit> comparator = ResultMerger
+      .getHitComparator(new SortField[] { SortField.FIELD_SCORE });
+
+  private static SenseiHit[][] createLists(int numLists, int hitsPerList, long seed) {
+    Random random = new Random(seed);
+    SenseiHit[][] lists = new SenseiHit[numLists][];
+    int docid = 0;
+    for (int i = 0; i < numLists; ++i) {
+      float[] scores = new float[hitsPerList];
+      for (int j = 0; j < hitsPerList; ++j) {
+        scores[j] = random.nextInt(1000);
+      }
+      Arrays.sort(scores);
+      lists[i] = new SenseiHit[hitsPerList];
+      for (int j = 0; j < hitsPerList; ++j) {
+        SenseiHit hit = new SenseiHit();
+        hit.setScore(scores[hitsPerList - j - 1]);
+        hit.setDocid(docid++);
+        hit.setUID(hit.getDocid());
+        lists[i][j] = hit;
+      }
+    }
+    return lists;
+  }
+
+  private static SenseiHit[] sortAll(SenseiHit[][] lists, Comparator<SenseiHit> comparator) {
+    List<SenseiHit> all = new ArrayList<SenseiHit>();
+    for (SenseiHit[] list : lists) {
+      all.addAll(Arrays.asList(list));
+    }
+    SenseiHit[] hits = all.toArray(new SenseiHit[all.size()]);
+    Arrays.sort(hits, comparator);
+    return hits;
+  }
+
+  @Test
+  public void testMergeMatchesFullSort() {
+    SenseiHit[][] lists = createLists(20, 100, 1);
+    SenseiHit[] expected = sortAll(lists, comparator);
+    SenseiHit[] hits = SortedHitsMerger.merge(lists, 0, expected.length, comparator);
+    assertEquals(expected.length, hits.length);
+    for (int i = 0; i < hits.length; ++i) {
+      assertSame(expected[i], hits[i]);
+    }
+  }
+
+  @Test
+  public void testOffsetAndCount() {
+    SenseiHit[][] lists = createLists(5, 10, 2);
+    SenseiHit[] expected = sortAll(lists, comparator);
+    SenseiHit[] hits = SortedHitsMerger.merge(lists, 15, 10, comparator);
+    assertEquals(10, hits.length);
+    for (int i = 0; i < hits.length; ++i) {
+      assertSame(expected[15 + i], hits[i]);
+    }
+    assertEquals(5, SortedHitsMerger.merge(lists, 45, 10, comparator).length);
+    assertEquals(0, SortedHitsMerger.merge(lists, 60, 10, comparator).length);
+  }
+
+  @Test
+  public void testEmptyAndNullLists() {
+    SenseiHit[][] lists = new SenseiHit[][] { new SenseiHit[0], null, createLists(1, 3, 3)[0] };
+    SortedHitsMerger merger = new SortedHitsMerger(lists, comparator);
+    int count = 0;
+    while (merger.hasNext()) {
+      merger.next();
+      ++count;
+    }
+    assertEquals(3, count);
+    assertEquals(0, SortedHitsMerger.merge(new SenseiHit[0][], 0, 10, comparator).length);
+  }
+}
@@ -0,0 +1,166 @@
+package com.senseidb.search.node.broker;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.FacetSpec;
+import com.senseidb.search.node.ResultMerger;
+import com.senseidb.search.req.ErrorType;
+import com.senseidb.search.req.SenseiError;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiJSONQuery;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+
+public class BrokerResultCacheTest extends Assert {
+  private static final Comparator<String> VERSION_COMPARATOR = new Comparator<String>() {
+    @Override
+    public int compare(String v1, String v2) {
+      return Long.valueOf(v1).compareTo(Long.valueOf(v2));
+    }
+  };
+
+  private static SenseiRequest createRequest(String... selectionFields) {
+    SenseiRequest req = new SenseiRequest();
+    req.setCount(10);
+    for (String field : selectionFields) {
+      BrowseSelection sel = new BrowseSelection(field);
+      sel.addValue("red");
+      req.addSelection(sel);
+    }
+    FacetSpec spec = new FacetSpec();
+    spec.setMaxCount(5);
+    req.setFacetSpec("color", spec);
+    return req;
+  }
+
+  private static SenseiResult createResult(String version0, String version1) {
+    SenseiResult result = new SenseiResult();
+    SenseiHit hit = new SenseiHit();
+    hit.setUID(1);
+    hit.setSrcData("{}");
+    result.setHits(new SenseiHit[] { hit });
+    result.setNumHitsLong(1);
+    Map<Integer, String> versions = new HashMap<Integer, String>();
+    versions.put(0, version0);
+    versions.put(1, version1);
+    result.setPartitionVersions(versions);
+    return result;
+  }
+
+  @Test
+  public void testCacheKey() {
+    assertEquals(BrokerResultCache.getCacheKey(createRequest("color", "make")),
+      BrokerResultCache.getCacheKey(createRequest("make", "color")));
+    assertFalse(BrokerResultCache.getCacheKey(createRequest("color")).equals(
+      BrokerResultCache.getCacheKey(createRequest("make"))));
+
+    SenseiRequest other = createRequest("color");
+    other.setQuery(new SenseiJSONQuery(new JSONObject()));
+    assertFalse(BrokerResultCache.getCacheKey(createRequest("color")).equals(
+      BrokerResultCache.getCacheKey(other)));
+
+    SenseiRequest page2 = createRequest("color");
+    page2.setOffset(10);
+    assertFalse(BrokerResultCache.getCacheKey(createRequest("color")).equals(
+      BrokerResultCache.getCacheKey(page2)));
+  }
+
+  private static SenseiResult createGroupedResult(float score, int groupHitsCount) {
+    SenseiResult result = createResult("1", "1");
+    SenseiHit hit = result.getSenseiHits()[0];
+    hit.setScore(score);
+    Map<String, Object[]> rawFieldValues = new HashMap<String, Object[]>();
+    rawFieldValues.put("color", new Object[] { "red" });
+    hit.setRawFieldValues(rawFieldValues);
+    hit.setGroupField("color");
+    hit.setGroupValue("red");
+    hit.setRawGroupValue("red");
+    hit.setGroupHitsCount(groupHitsCount);
+    hit.setGroupHits(new SenseiHit[] { hit.copy() });
+    return result;
+  }
+
+  @Test
+  public void testInvalidatedByNewerVersion() {
+    BrokerResultCache cache = new BrokerResultCache(10, 1024 * 1024, 60000, VERSION_COMPARATOR);
+    cache.updateVersions(createResult("5", "7").getPartitionVersions());
+    cache.put("q", createResult("5", "7"));
+    SenseiResult cached = cache.get("q");
+    assertNotNull(cached);
+    assertEquals(1, cached.getSenseiHits()[0].getUID());
+
+    // a lagging replica does not invalidate
+    cache.updateVersions(createResult("4", "7").getPartitionVersions());
+    assertNotNull(cache.get("q"));
+
+    cache.updateVersions(createResult("5", "8").getPartitionVersions());
+    assertNull(cache.get("q"));
+
+    // results computed from outdated versions are not cached
+    cache.put("q", createResult("5", "7"));
+    assertNull(cache.get("q"));
+  }
+
+  @Test
+  public void testMaxStaleness() throws Exception {
+    BrokerResultCache cache = new BrokerResultCache(10, 1024 * 1024, 20, VERSION_COMPARATOR);
+    cache.put("q", createResult("1", "1"));
+    assertNotNull(cache.get("q"));
+    Thread.sleep(50);
+    assertNull(cache.get("q"));
+  }
+
+  @Test
+  public void testEvictionAndErrors() {
+    BrokerResultCache cache = new BrokerResultCache(2, 1024 * 1024, 60000, VERSION_COMPARATOR);
+    cache.put("q1", createResult("1", "1"));
+    cache.put("q2", createResult("1", "1"));
+    assertNotNull(cache.get("q1"));
+    cache.put("q3", createResult("1", "1"));
+    // q2 is the least recently used
+    assertNull(cache.get("q2"));
+    assertNotNull(cache.get("q1"));
+    assertNotNull(cache.get("q3"));
+
+    SenseiResult failed = createResult("1", "1");
+    failed.addError(new SenseiError("timeout", ErrorType.ExecutionTimeout));
+    cache.put("q4", failed);
+    assertNull(cache.get("q4"));
+  }
+
+  @Test
+  public void testCachedResultIsCopied() {
+    BrokerResultCache cache = new BrokerResultCache(10, 1024 * 1024, 60000, VERSION_COMPARATOR);
+    cache.put("q", createResult("1", "1"));
+    cache.get("q").setTime(12345);
+    cache.get("q").addError(new SenseiError("added by a caller", ErrorType.BrokerGatherError));
+    assertTrue(cache.get("q").getTime() != 12345);
+    assertTrue(cache.get("q").getErrors().isEmpty());
+  }
+
+  @Test
+  public void testGroupCountsOfCachedResultsDoNotChange() {
+    BrokerResultCache cache = new BrokerResultCache(10, 1024 * 1024, 60000, VERSION_COMPARATOR);
+    cache.put("q", createGroupedResult(2, 3));
+    SenseiRequest req = new SenseiRequest();
+    req.setCount(10);
+    req.setGroupBy(new String[] { "color" });
+    for (int i = 0; i < 3; ++i) {
+      // the layered broker adds the group counts of the other clusters to the first hit of a group
+      SenseiResult merged = ResultMerger.merge(req,
+        Arrays.asList(cache.get("q"), createGroupedResult(1, 2)), false);
+      assertEquals(1, merged.getSenseiHits().length);
+      assertEquals(5, merged.getSenseiHits()[0].getGroupHitsCount());
+    }
+    assertEquals(3, cache.get("q").getSenseiHits()[0].getGroupHitsCount());
+  }
+}
@@ -0,0 +1,243 @@
+package com.senseidb.search.node.broker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.browseengine.bobo.api.BrowseSelection;
+import com.senseidb.search.node.Broker;
+import com.senseidb.search.req.ErrorType;
+import com.senseidb.search.req.SenseiError;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+import com.senseidb.svc.api.SenseiException;
+
+public class LayeredBrokerTest extends Assert {
+  private static final LayeredClusterPruner EQUAL_PRIORITIES = new AllClustersPruner() {
+    @Override
+    public boolean clusterPrioritiesEqual(SenseiRequest request) {
+      return true;
+    }
+  };
+
+  /**
+   * Answers with numHits hits, the hits of a cluster with a higher rank score higher.
+   */
+  private static class StubBroker implements Broker<SenseiRequest, SenseiResult> {
+    private final int _rank;
+    private final int _numHits;
+    private final long _delay;
+    private final CountDownLatch _barrier;
+    private final List<SenseiRequest> _requests = new ArrayList<SenseiRequest>();
+
+    StubBroker(int rank, int numHits, long delay, CountDownLatch barrier) {
+      _rank = rank;
+      _numHits = numHits;
+      _delay = delay;
+      _barrier = barrier;
+    }
+
+    @Override
+    public SenseiResult browse(SenseiRequest req) throws SenseiException {
+      synchronized (_requests) {
+        _requests.add(req);
+      }
+      try {
+        if (_barrier != null) {
+          _barrier.countDown();
+          if (!_barrier.await(5, TimeUnit.SECONDS)) {
+            throw new SenseiException("the other clusters were not queried concurrently");
+          }
+        }
+        Thread.sleep(_delay);
+      } catch (InterruptedException e) {
+        throw new SenseiException(e);
+      }
+      int from = Math.min(req.getOffset(), _numHits);
+      int to = Math.min(req.getOffset() + req.getCount(), _numHits);
+      SenseiHit[] hits = new SenseiHit[to - from];
+      for (int i = from; i < to; ++i) {
+        SenseiHit hit = new SenseiHit();
+        hit.setUID(_rank * 1000 + i);
+        hit.setScore(1000 * _rank - i);
+        hits[i - from] = hit;
+      }
+      SenseiResult result = new SenseiResult();
+      result.setHits(hits);
+      result.setNumHitsLong(_numHits);
+      return result;
+    }
+
+    List<SenseiRequest> getRequests() {
+      synchronized (_requests) {
+        return new ArrayList<SenseiRequest>(_requests);
+      }
+    }
+  }
+
+  private static LayeredBroker createBroker(LayeredClusterPruner pruner, long timeout,
+      int threads, int queueSize, StubBroker... stubs) {
+    List<String> clusters = new ArrayList<String>();
+    Map<String, StubBroker> brokers = new HashMap<String, StubBroker>();
+    for (int i = 0; i < stubs.length; ++i) {
+      clusters.add("cluster" + i);
+      brokers.put("cluster" + i, stubs[i]);
+    }
+    return new LayeredBroker(clusters, brokers, pruner, timeout, threads, queueSize);
+  }
+
+  private static SenseiRequest createRequest(int count, String color) {
+    SenseiRequest req = new SenseiRequest();
+    req.setCount(count);
+    BrowseSelection sel = new BrowseSelection("color");
+    sel.addValue(color);
+    req.addSelection(sel);
+    return req;
+  }
+
+  private static List<ErrorType> getErrorTypes(SenseiResult result) {
+    List<ErrorType> ret = new ArrayList<ErrorType>();
+    for (SenseiError error : result.getErrors()) {
+      ret.add(error.getErrorType());
+    }
+    return ret;
+  }
+
+  @Test
+  public void testNextTierFillsTheWindow() throws Exception {
+    StubBroker first = new StubBroker(2, 3, 0, null);
+    StubBroker second = new StubBroker(1, 10, 0, null);
+    StubBroker third = new StubBroker(0, 10, 0, null);
+    LayeredBroker broker = createBroker(new AllClustersPruner(), 1000, 4, 10, first, second,
+      third);
+    try {
+      SenseiResult result = broker.browse(createRequest(5, "red"));
+      assertEquals(5, result.getSenseiHits().length);
+      assertEquals(2000L, result.getSenseiHits()[0].getUID());
+      assertEquals(1001L, result.getSenseiHits()[4].getUID());
+      assertTrue(result.getErrors().isEmpty());
+      assertEquals(1, second.getRequests().size());
+      assertEquals(0, second.getRequests().get(0).getOffset());
+      assertEquals(2, second.getRequests().get(0).getCount());
+      // the second cluster filled the window
+      assertTrue(third.getRequests().isEmpty());
+    } finally {
+      broker.stop();
+    }
+  }
+
+  @Test
+  public void testPrefetchForTheSameQuery() throws Exception {
+    StubBroker first = new StubBroker(1, 3, 0, null);
+    StubBroker second = new StubBroker(0, 10, 0, null);
+    LayeredBroker broker = createBroker(new AllClustersPruner(), 1000, 4, 10, first, second);
+    try {
+      broker.browse(createRequest(5, "red"));
+      assertEquals(1, second.getRequests().size());
+
+      // the first cluster had too few hits for the query, the second one is queried ahead
+      SenseiResult result = broker.browse(createRequest(5, "red"));
+      assertEquals(2, second.getRequests().size());
+      assertEquals(0, second.getRequests().get(1).getOffset());
+      assertEquals(5, second.getRequests().get(1).getCount());
+      assertEquals(5, result.getSenseiHits().length);
+      assertEquals(1002L, result.getSenseiHits()[2].getUID());
+      assertEquals(1L, result.getSenseiHits()[4].getUID());
+
+      // the estimate of one query is not used for another one
+      broker.browse(createRequest(5, "blue"));
+      assertEquals(3, second.getRequests().size());
+      assertEquals(2, second.getRequests().get(2).getCount());
+    } finally {
+      broker.stop();
+    }
+  }
+
+  @Test
+  public void testHitEstimatesExpire() throws Exception {
+    LayeredBroker.HitEstimates estimates = new LayeredBroker.HitEstimates(1, 50);
+    String key = LayeredBroker.HitEstimates.getKey(createRequest(5, "red"));
+    assertEquals(key, LayeredBroker.HitEstimates.getKey(createRequest(10, "red")));
+    estimates.put("cluster0", key, 3);
+    assertTrue(estimates.isLikelyInsufficient("cluster0", key, 5));
+    assertFalse(estimates.isLikelyInsufficient("cluster0", key, 3));
+    assertFalse(estimates.isLikelyInsufficient("cluster1", key, 5));
+
+    // the oldest estimate is evicted
+    estimates.put("cluster1", key, 3);
+    assertFalse(estimates.isLikelyInsufficient("cluster0", key, 5));
+
+    Thread.sleep(100);
+    assertFalse(estimates.isLikelyInsufficient("cluster1", key, 5));
+  }
+
+  @Test
+  public void testEqualPrioritiesAreQueriedConcurrently() throws Exception {
+    CountDownLatch barrier = new CountDownLatch(3);
+    StubBroker[] stubs = new StubBroker[3];
+    for (int i = 0; i < stubs.length; ++i) {
+      stubs[i] = new StubBroker(i, 2, 0, barrier);
+    }
+    LayeredBroker broker = createBroker(EQUAL_PRIORITIES, 10000, 3, 10, stubs);
+    try {
+      SenseiResult result = broker.browse(createRequest(10, "red"));
+      assertTrue(result.getErrors().toString(), result.getErrors().isEmpty());
+      assertEquals(6, result.getNumHits());
+      assertEquals(6, result.getSenseiHits().length);
+    } finally {
+      broker.stop();
+    }
+  }
+
+  @Test
+  public void testTimedOutClusterIsReported() throws Exception {
+    StubBroker fast = new StubBroker(1, 2, 0, null);
+    StubBroker slow = new StubBroker(0, 2, 5000, null);
+    LayeredBroker broker = createBroker(EQUAL_PRIORITIES, 200, 4, 10, fast, slow);
+    try {
+      SenseiResult result = broker.browse(createRequest(10, "red"));
+      assertEquals(2, result.getSenseiHits().length);
+      assertEquals(Arrays.asList(ErrorType.BrokerTimeout), getErrorTypes(result));
+    } finally {
+      broker.stop();
+    }
+
+    broker = createBroker(new AllClustersPruner(), 200, 4, 10, slow, fast);
+    try {
+      SenseiResult result = broker.browse(createRequest(10, "red"));
+      assertEquals(0, result.getSenseiHits().length);
+      assertEquals(Arrays.asList(ErrorType.BrokerTimeout), getErrorTypes(result));
+      // the tiers after the one that timed out are not queried
+      assertTrue(fast.getRequests().isEmpty());
+    } finally {
+      broker.stop();
+    }
+  }
+
+  @Test
+  public void testRejectedClusterIsReported() throws Exception {
+    // one cluster runs, one waits in the queue and the last one is rejected
+    StubBroker[] stubs = new StubBroker[3];
+    for (int i = 0; i < stubs.length; ++i) {
+      stubs[i] = new StubBroker(i, 2, 100, null);
+    }
+    LayeredBroker broker = createBroker(EQUAL_PRIORITIES, 5000, 1, 1, stubs);
+    try {
+      SenseiResult result = broker.browse(createRequest(10, "red"));
+      assertEquals(4, result.getSenseiHits().length);
+      assertEquals(Arrays.asList(ErrorType.ExecutionRejected), getErrorTypes(result));
+      assertTrue(stubs[2].getRequests().isEmpty());
+    } finally {
+      broker.stop();
+    }
+  }
+}
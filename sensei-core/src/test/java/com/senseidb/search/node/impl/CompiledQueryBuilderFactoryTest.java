@@ -0,0 +1,211 @@
+package com.senseidb.search.node.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.browseengine.bobo.api.BoboSegmentReader;
+import com.browseengine.bobo.facets.FacetHandler;
+import com.browseengine.bobo.facets.RuntimeFacetHandlerFactory;
+import com.senseidb.extention.flexiblequery.FlexibleQuery;
+import com.senseidb.extention.flexiblequery.FlexibleQuery.FlexibleField;
+import com.senseidb.extention.flexiblequery.FlexibleScorer;
+import com.senseidb.search.node.SenseiQueryBuilder;
+import com.senseidb.search.node.SenseiQueryBuilderFactory;
+import com.senseidb.search.req.SenseiJSONQuery;
+import com.senseidb.search.req.SenseiQuery;
+
+public class CompiledQueryBuilderFactoryTest extends Assert {
+
+  private static class CountingFactory implements SenseiQueryBuilderFactory {
+    private final AtomicInteger _builds = new AtomicInteger();
+
+    @Override
+    public SenseiQueryBuilder getQueryBuilder(final SenseiQuery query) throws Exception {
+      return new SenseiQueryBuilder() {
+        @Override
+        public Query buildQuery() throws ParseException {
+          _builds.incrementAndGet();
+          if (query.toString().contains("error")) {
+            throw new ParseException("error");
+          }
+          return new TermQuery(new Term("color", "red"));
+        }
+
+        @Override
+        public Filter buildFilter() {
+          return null;
+        }
+      };
+    }
+  }
+
+  @Test
+  public void testQueryIsBuiltOnce() throws Exception {
+    CountingFactory factory = new CountingFactory();
+    SenseiQuery query = new SenseiJSONQuery(new JSONObject("{\"term\":{\"color\":\"red\"}}"));
+    SenseiQueryBuilderFactory compiled = CompiledQueryBuilderFactory.compile(factory, query);
+    assertEquals(1, factory._builds.get());
+
+    Query q = compiled.getQueryBuilder(query).buildQuery();
+    assertSame(q, compiled.getQueryBuilder(query).buildQuery());
+    assertNull(compiled.getQueryBuilder(query).buildFilter());
+    assertEquals(1, factory._builds.get());
+
+    // any other query is built by the underlying factory
+    compiled.getQueryBuilder(new SenseiJSONQuery(new JSONObject())).buildQuery();
+    assertEquals(2, factory._builds.get());
+  }
+
+  @Test
+  public void testQueryErrorsAreLeftToThePartitions() throws Exception {
+    CountingFactory factory = new CountingFactory();
+    SenseiQuery query = new SenseiJSONQuery(new JSONObject("{\"error\":true}"));
+    assertSame(factory, CompiledQueryBuilderFactory.compile(factory, query));
+  }
+
+  @Test
+  public void testCustomQueriesAreNotShared() throws Exception {
+    CountingFactory factory = new CountingFactory();
+    SenseiQuery query = new SenseiJSONQuery(new JSONObject(
+        "{\"query\":{\"custom\":{\"class\":\"com.senseidb.test.CustomQuery\"}}}"));
+    assertSame(factory, CompiledQueryBuilderFactory.compile(factory, query));
+    assertEquals(0, factory._builds.get());
+    query = new SenseiJSONQuery(new JSONObject(
+        "{\"filter\":{\"and\":[{\"term\":{\"color\":\"red\"}},{\"custom\":{}}]}}"));
+    assertSame(factory, CompiledQueryBuilderFactory.compile(factory, query));
+  }
+
+  private static FlexibleQuery createFlexibleQuery() throws Exception {
+    FlexibleField field = new FlexibleField();
+    field.field = "title";
+    List<FlexibleField> fields = new ArrayList<FlexibleField>();
+    fields.add(field);
+    return new FlexibleQuery(fields, "red fast car");
+  }
+
+  private static MultiReader createSegments() throws Exception {
+    RAMDirectory dir = new RAMDirectory();
+    IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, new WhitespaceAnalyzer(
+        Version.LUCENE_43));
+    config.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+    IndexWriter writer = new IndexWriter(dir, config);
+    String[] titles = { "red car", "fast red car", "blue car", "red bike", "fast blue bike",
+        "slow red car", "car", "red" };
+    for (int i = 0; i < 400; ++i) {
+      Document doc = new Document();
+      doc.add(new TextField("title", titles[i % titles.length] + (i % 3 == 0 ? " red" : ""),
+          Field.Store.NO));
+      writer.addDocument(doc);
+      if (i % 50 == 49) {
+        // one segment per commit
+        writer.commit();
+      }
+    }
+    writer.close();
+    List<BoboSegmentReader> segments = new ArrayList<BoboSegmentReader>();
+    for (AtomicReaderContext context : DirectoryReader.open(dir).leaves()) {
+      segments.add(BoboSegmentReader.getInstance(context.reader(),
+        Collections.<FacetHandler<?>> emptyList(),
+        Collections.<RuntimeFacetHandlerFactory<?, ?>> emptyList()));
+    }
+    return new MultiReader(segments.toArray(new BoboSegmentReader[segments.size()]));
+  }
+
+  @Test
+  public void testSharedFlexibleQuery() throws Exception {
+    MultiReader reader = createSegments();
+    try {
+      final IndexSearcher searcher = new IndexSearcher(reader);
+      final TopDocs expected = searcher.search(createFlexibleQuery(), 100);
+      assertTrue(expected.scoreDocs.length > 0);
+
+      final Query query = CompiledQueryBuilderFactory.compile(new SenseiQueryBuilderFactory() {
+        @Override
+        public SenseiQueryBuilder getQueryBuilder(SenseiQuery q) throws Exception {
+          final Query flexibleQuery = createFlexibleQuery();
+          return new SenseiQueryBuilder() {
+            @Override
+            public Query buildQuery() {
+              return flexibleQuery;
+            }
+
+            @Override
+            public Filter buildFilter() {
+              return null;
+            }
+          };
+        }
+      }, null).getQueryBuilder(null).buildQuery();
+
+      // every segment is scored with its own strategy
+      Weight weight = searcher.createNormalizedWeight(query);
+      List<AtomicReaderContext> leaves = searcher.getTopReaderContext().leaves();
+      assertTrue(leaves.size() > 1);
+      FlexibleScorer scorer1 = (FlexibleScorer) weight.scorer(leaves.get(0), true, false, null);
+      FlexibleScorer scorer2 = (FlexibleScorer) weight.scorer(leaves.get(1), true, false, null);
+      assertNotSame(scorer1.getStrategy(), scorer2.getStrategy());
+      assertNotSame(((FlexibleQuery) query).getStrategy(), scorer1.getStrategy());
+
+      // the partitions search the shared query at the same time
+      ExecutorService executor = Executors.newFixedThreadPool(8);
+      try {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 8; ++i) {
+          futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+              for (int run = 0; run < 50; ++run) {
+                ScoreDoc[] hits = searcher.search(query, 100).scoreDocs;
+                assertEquals(expected.scoreDocs.length, hits.length);
+                for (int j = 0; j < hits.length; ++j) {
+                  assertEquals(expected.scoreDocs[j].doc, hits[j].doc);
+                  assertEquals(expected.scoreDocs[j].score, hits[j].score, 0.0f);
+                }
+              }
+              return null;
+            }
+          }));
+        }
+        for (Future<Void> future : futures) {
+          future.get();
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package com.senseidb.search.query.filters;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.SortedVIntList;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+import com.browseengine.bobo.api.BoboSegmentReader;
+import com.browseengine.bobo.facets.FacetHandler;
+import com.browseengine.bobo.facets.RuntimeFacetHandlerFactory;
+import com.browseengine.bobo.facets.impl.SimpleFacetHandler;
+import com.senseidb.indexing.activity.facet.ActivityRangeFacetHandler;
+import com.senseidb.indexing.activity.primitives.ActivityIntValues;
+import com.senseidb.test.plugin.MockRuntimeFacetHandlerFactory;
+import com.senseidb.util.JSONUtil;
+import com.senseidb.util.JSONUtil.FastJSONObject;
+
+public class FilterDocIdSetCacheTest extends Assert {
+
+  private static FixedBitSet bits(int maxDoc, int... docs) {
+    FixedBitSet bits = new FixedBitSet(maxDoc);
+    for (int doc : docs) {
+      bits.set(doc);
+    }
+    return bits;
+  }
+
+  /**
+   * Counts the doc id sets it builds
+   */
+  private static class CountingFilter extends Filter {
+    private final Filter _filter = new QueryWrapperFilter(new TermQuery(new Term("color",
+        "red")));
+    int calls = 0;
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+      ++calls;
+      return _filter.getDocIdSet(context, acceptDocs);
+    }
+  }
+
+  /**
+   * The activity values are held by the activity manager, the test gives every doc its own index
+   */
+  private static class TestActivityFacetHandler extends ActivityRangeFacetHandler {
+    TestActivityFacetHandler(String name) {
+      super(name, name, null, new ActivityIntValues(10));
+    }
+
+    @Override
+    public int[] load(BoboSegmentReader reader) throws IOException {
+      int[] indexes = new int[reader.maxDoc()];
+      for (int i = 0; i < indexes.length; ++i) {
+        indexes[i] = i;
+      }
+      return indexes;
+    }
+  }
+
+  private static BoboSegmentReader createSegment(DirectoryReader reader) throws IOException {
+    assertEquals(1, reader.leaves().size());
+    List<FacetHandler<?>> handlers = new ArrayList<FacetHandler<?>>();
+    handlers.add(new SimpleFacetHandler("color"));
+    handlers.add(new TestActivityFacetHandler("likes"));
+    return BoboSegmentReader.getInstance(reader.leaves().get(0).reader(), handlers,
+      Collections.<RuntimeFacetHandlerFactory<?, ?>> singletonList(
+        new MockRuntimeFacetHandlerFactory()));
+  }
+
+  private static IndexWriter createIndex(RAMDirectory dir) throws IOException {
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_43,
+        new WhitespaceAnalyzer(Version.LUCENE_43)));
+    for (int i = 0; i < 10; ++i) {
+      Document doc = new Document();
+      doc.add(new StringField("id", String.valueOf(i), Field.Store.NO));
+      doc.add(new StringField("color", i % 2 == 0 ? "red" : "blue", Field.Store.NO));
+      writer.addDocument(doc);
+    }
+    writer.commit();
+    return writer;
+  }
+
+  private static List<Integer> getDocs(Filter filter, BoboSegmentReader reader)
+      throws IOException {
+    List<Integer> docs = new ArrayList<Integer>();
+    DocIdSetIterator iter = filter.getDocIdSet(reader.getContext(), reader.getLiveDocs())
+        .iterator();
+    for (int doc = iter.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iter.nextDoc()) {
+      docs.add(doc);
+    }
+    return docs;
+  }
+
+  @Test
+  public void testCanonicalKey() throws Exception {
+    assertEquals(
+      JSONUtil.toCanonicalString(new FastJSONObject(
+          "{\"color\":{\"values\":[\"red\",\"blue\"],\"operator\":\"or\",\"_noOptimize\":false}}")),
+      JSONUtil.toCanonicalString(new FastJSONObject(
+          "{\"color\":{\"_noOptimize\":false,\"operator\":\"or\",\"values\":[\"red\",\"blue\"]}}")));
+    assertFalse(JSONUtil.toCanonicalString(new FastJSONObject("{\"color\":[\"red\",\"blue\"]}"))
+        .equals(JSONUtil.toCanonicalString(new FastJSONObject("{\"color\":[\"red\"]}"))));
+  }
+
+  @Test
+  public void testCachedSets() throws Exception {
+    assertSame(DocIdSet.EMPTY_DOCIDSET, FilterDocIdSetCache.toCacheable(null, 100));
+    DocIdSet sparse = FilterDocIdSetCache.toCacheable(bits(1000, 3, 500), 1000);
+    assertTrue(sparse instanceof SortedVIntList);
+    assertEquals(3, sparse.iterator().nextDoc());
+    DocIdSet dense = FilterDocIdSetCache.toCacheable(bits(100, 1, 2, 3, 50), 100);
+    assertTrue(dense instanceof FixedBitSet);
+    assertEquals(4, ((FixedBitSet) dense).cardinality());
+  }
+
+  @Test
+  public void testOnlyFiltersUsedEnoughAreCached() {
+    FilterDocIdSetCache cache = new FilterDocIdSetCache(10000, 2);
+    cache.recordUse("terms:a");
+    assertFalse(cache.isWorthCaching("terms:a"));
+    cache.recordUse("terms:a");
+    assertTrue(cache.isWorthCaching("terms:a"));
+    assertFalse(cache.isWorthCaching("terms:b"));
+  }
+
+  @Test
+  public void testEviction() {
+    Object core1 = new Object();
+    Object core2 = new Object();
+    FilterDocIdSetCache cache = new FilterDocIdSetCache(2000, 1);
+    cache.put(core1, "a", bits(10, 1), 400);
+    for (int i = 0; i < 5; ++i) {
+      assertNotNull(cache.get(core1, "a"));
+    }
+    cache.put(core1, "b", bits(10, 2), 400);
+    cache.put(core2, "a", bits(10, 3), 400);
+    assertEquals(3, cache.size());
+
+    // the least used entry per byte goes first, the oldest of the equal ones
+    cache.put(core2, "c", bits(10, 4), 600);
+    assertEquals(3, cache.size());
+    assertNotNull(cache.get(core1, "a"));
+    assertNull(cache.get(core1, "b"));
+    assertNotNull(cache.get(core2, "a"));
+    assertNotNull(cache.get(core2, "c"));
+    assertTrue(cache.getBytes() <= 2000);
+
+    // a set bigger than the cache is never cached
+    cache.put(core1, "d", bits(10, 5), 5000);
+    assertNull(cache.get(core1, "d"));
+
+    cache.invalidate(core2);
+    assertEquals(1, cache.size());
+    assertNull(cache.get(core2, "a"));
+    cache.invalidate(core1);
+    assertEquals(0, cache.getBytes());
+  }
+
+  @Test
+  public void testCachingFilterOnSegments() throws Exception {
+    RAMDirectory dir = new RAMDirectory();
+    IndexWriter writer = createIndex(dir);
+    DirectoryReader reader = DirectoryReader.open(dir);
+    FilterDocIdSetCache cache = new FilterDocIdSetCache(1 << 20, 1);
+    cache.recordUse("term:red");
+    CountingFilter counting = new CountingFilter();
+    Filter filter = new FilterDocIdSetCache.CachingFilter(cache, "term:red", "color", counting);
+
+    BoboSegmentReader segment = createSegment(reader);
+    assertEquals(Arrays.asList(0, 2, 4, 6, 8), getDocs(filter, segment));
+    assertEquals(Arrays.asList(0, 2, 4, 6, 8), getDocs(filter, segment));
+    assertEquals(1, counting.calls);
+    assertEquals(1, cache.size());
+
+    // zoie wraps the segment again on a reopen, the entries are kept with the segment reader
+    AtomicReader segmentReader = reader.leaves().get(0).reader();
+    BoboSegmentReader copy = segment.copy(segmentReader);
+    assertSame(segmentReader, FilterDocIdSetCache.getSegmentReader(segment));
+    assertSame(segmentReader, FilterDocIdSetCache.getSegmentReader(copy));
+    assertEquals(Arrays.asList(0, 2, 4, 6, 8), getDocs(filter, copy));
+    assertEquals(1, counting.calls);
+
+    // the docs deleted after the set was cached are left out
+    writer.deleteDocuments(new Term("id", "2"));
+    writer.commit();
+    DirectoryReader reopened = DirectoryReader.openIfChanged(reader);
+    assertNotNull(reopened);
+    BoboSegmentReader withDeletes = createSegment(reopened);
+    assertSame(segment.getCoreCacheKey(), withDeletes.getCoreCacheKey());
+    assertEquals(Arrays.asList(0, 4, 6, 8), getDocs(filter, withDeletes));
+    assertEquals(1, counting.calls);
+
+    // the entries are dropped once the core is closed
+    reader.close();
+    assertEquals(1, cache.size());
+    reopened.close();
+    assertEquals(0, cache.size());
+    writer.close();
+  }
+
+  @Test
+  public void testRuntimeAndActivityFacetsAreNotCached() throws Exception {
+    RAMDirectory dir = new RAMDirectory();
+    IndexWriter writer = createIndex(dir);
+    writer.close();
+    DirectoryReader reader = DirectoryReader.open(dir);
+    try {
+      BoboSegmentReader segment = createSegment(reader);
+      FilterDocIdSetCache cache = new FilterDocIdSetCache(1 << 20, 1);
+      for (String field : new String[] { "mockHandlerFactory", "likes" }) {
+        String key = field + ":red";
+        cache.recordUse(key);
+        CountingFilter counting = new CountingFilter();
+        Filter filter = new FilterDocIdSetCache.CachingFilter(cache, key, field, counting);
+        assertEquals(Arrays.asList(0, 2, 4, 6, 8), getDocs(filter, segment));
+        assertEquals(Arrays.asList(0, 2, 4, 6, 8), getDocs(filter, segment));
+        assertEquals(field, 2, counting.calls);
+      }
+      assertEquals(0, cache.size());
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -1,9 +1,31 @@
 package com.senseidb.search.req.mapred;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import junit.framework.TestCase;
 
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.apache.lucene.search.SortField;
 import org.json.JSONObject;
 
+import proj.zoie.api.IndexReaderFactory;
+import proj.zoie.api.ZoieMultiReader;
+
+import com.browseengine.bobo.api.BoboSegmentReader;
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.api.FacetSpec.FacetSortSpec;
+import com.senseidb.conf.SenseiConfParams;
+import com.senseidb.search.node.SenseiCore;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+import com.senseidb.search.req.mapred.functions.SumMapReduce;
+import com.senseidb.svc.impl.CoreSenseiServiceImpl;
 import com.senseidb.test.SenseiStarter;
 import com.senseidb.test.TestSensei;
 
@@ -53,6 +75,15 @@ public class TestMapReduce extends TestCase {
 
   }
 
+  public void test5aHyperLogLogDistinctCount() throws Exception {
+    String req = "{\"filter\":{\"term\":{\"color\":\"red\"}}"
+        + ", \"mapReduce\":{\"function\":\"sensei.distinctCountHLL\",\"parameters\":{\"column\":\"groupid\", \"precision\":14}}}";
+    JSONObject res = TestSensei.search(new JSONObject(req));
+    JSONObject mapReduceResult = res.getJSONObject("mapReduceResult");
+    // the exact distinct count is 964
+    assertEquals(964, mapReduceResult.getLong("distinctCount"), 964 * 0.03);
+  }
+
   public void test6MinMapReduce() throws Exception {
     String req = "{\"filter\":{\"term\":{\"tags\":\"reliable\"}}"
         + ", \"mapReduce\":{\"function\":\"sensei.min\",\"parameters\":{\"column\":\"groupid\"}}}";
@@ -199,4 +230,88 @@ public class TestMapReduce extends TestCase {
     assertEquals(0, res.getJSONArray("errors").length());
   }
 
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static Object reduce(SenseiMapReduce mapReduce, SenseiResult res) {
+    return mapReduce.reduce(res.getMapReduceResult().getMapResults());
+  }
+
+  private static SenseiRequest createParallelSearchRequest(SenseiMapReduce<?, ?> mapReduce) {
+    SenseiRequest req = new SenseiRequest();
+    BrowseSelection sel = new BrowseSelection("color");
+    sel.addValue("red");
+    req.addSelection(sel);
+    req.addSortField(new SortField("groupid", SortField.Type.CUSTOM, true));
+    req.setOffset(5);
+    req.setCount(10);
+    FacetSpec spec = new FacetSpec();
+    spec.setMaxCount(10);
+    spec.setOrderBy(FacetSortSpec.OrderHitsDesc);
+    req.setFacetSpec("year", spec);
+    req.setMapReduceFunction(mapReduce);
+    return req;
+  }
+
+  public void test18ParallelSegmentSearchMatchesTheSequentialSearch() throws Exception {
+    SenseiCore core = SenseiStarter.node1.getCore();
+    Configuration conf = new BaseConfiguration();
+    conf.setProperty(SenseiConfParams.SENSEI_NODE_SEGMENT_PARALLELISM, 2);
+    conf.setProperty(SenseiConfParams.SENSEI_NODE_SEGMENT_PARALLEL_MIN_SEGMENTS, 2);
+    conf.setProperty(SenseiConfParams.SENSEI_NODE_SEGMENT_PARALLEL_MIN_DOCS, 1);
+    CoreSenseiServiceImpl parallel = new CoreSenseiServiceImpl(core, conf);
+    CoreSenseiServiceImpl sequential = new CoreSenseiServiceImpl(core, new BaseConfiguration());
+    Map<IndexReaderFactory<BoboSegmentReader>, List<ZoieMultiReader<BoboSegmentReader>>> readers =
+        new HashMap<IndexReaderFactory<BoboSegmentReader>, List<ZoieMultiReader<BoboSegmentReader>>>();
+    try {
+      // the segments of both partitions of the node are searched as one index, so there are
+      // segments to split however the docs were flushed
+      List<BoboSegmentReader> segments = new ArrayList<BoboSegmentReader>();
+      for (int partition : core.getPartitions()) {
+        IndexReaderFactory<BoboSegmentReader> readerFactory = core.getIndexReaderFactory(partition);
+        List<ZoieMultiReader<BoboSegmentReader>> readerList = readerFactory.getIndexReaders();
+        readers.put(readerFactory, readerList);
+        segments.addAll(ZoieMultiReader.extractDecoratedReaders(readerList));
+      }
+      assertTrue(segments.size() >= 2);
+
+      SumMapReduce sum = new SumMapReduce();
+      sum.init(new JSONObject().put("column", "groupid"));
+      SenseiRequest req = createParallelSearchRequest(sum);
+      SenseiResult expected = sequential.handlePartitionedRequest(req, segments,
+        core.getQueryBuilderFactory());
+      SenseiResult actual = parallel.handlePartitionedRequest(req, segments,
+        core.getQueryBuilderFactory(), System.currentTimeMillis() + 60000);
+      assertEquals(expected.getSenseiHits().length, actual.getSenseiHits().length);
+      for (int i = 0; i < expected.getSenseiHits().length; ++i) {
+        assertEquals(expected.getSenseiHits()[i].getUID(), actual.getSenseiHits()[i].getUID());
+        assertEquals(expected.getSenseiHits()[i].getDocid(), actual.getSenseiHits()[i].getDocid());
+      }
+      assertEquals(10, actual.getSenseiHits().length);
+      assertEquals(expected.getNumHits(), actual.getNumHits());
+      assertEquals(expected.getTotalDocs(), actual.getTotalDocs());
+      List<BrowseFacet> expectedFacets = expected.getFacetAccessor("year").getFacets();
+      List<BrowseFacet> actualFacets = actual.getFacetAccessor("year").getFacets();
+      assertEquals(expectedFacets.size(), actualFacets.size());
+      for (int i = 0; i < expectedFacets.size(); ++i) {
+        assertEquals(expectedFacets.get(i).getValue(), actualFacets.get(i).getValue());
+        assertEquals(expectedFacets.get(i).getFacetValueHitCount(), actualFacets.get(i)
+            .getFacetValueHitCount());
+      }
+      assertEquals(reduce(sum, expected), reduce(sum, actual));
+
+      // every doc of the segment groups is mapped once
+      DistinctUIDCount distinctUIDs = new DistinctUIDCount();
+      req = createParallelSearchRequest(distinctUIDs);
+      expected = sequential.handlePartitionedRequest(req, segments, core.getQueryBuilderFactory());
+      actual = parallel.handlePartitionedRequest(req, segments, core.getQueryBuilderFactory());
+      assertEquals(expected.getNumHits(), ((Integer) reduce(distinctUIDs, actual)).intValue());
+      assertEquals(reduce(distinctUIDs, expected), reduce(distinctUIDs, actual));
+    } finally {
+      for (IndexReaderFactory<BoboSegmentReader> readerFactory : readers.keySet()) {
+        readerFactory.returnIndexReaders(readers.get(readerFactory));
+      }
+      parallel.shutdown();
+      sequential.shutdown();
+    }
+  }
 }
@@ -0,0 +1,168 @@
+package com.senseidb.search.req.mapred.functions.groupby;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.browseengine.bobo.facets.data.TermStringList;
+import com.senseidb.search.req.mapred.CombinerStage;
+import com.senseidb.search.req.mapred.DefaultIntArray;
+import com.senseidb.search.req.mapred.FieldAccessor;
+import com.senseidb.search.req.mapred.SingleFieldAccessor;
+import com.senseidb.search.req.mapred.functions.groupby.AggregateFunctionFactory.MaxGroupedValue;
+import com.senseidb.search.req.mapred.functions.groupby.AggregateFunctionFactory.SumGroupedValue;
+
+public class GroupByDenseAggregationTest extends Assert {
+
+  private static GroupByMapReduceJob newJob(String function, int denseThreshold)
+      throws Exception {
+    GroupByMapReduceJob job = new GroupByMapReduceJob();
+    job.init(new JSONObject().put("metric", "price").put("function", function)
+        .put("columns", new JSONArray(Arrays.asList("color", "category"))).put("top", 1000)
+        .put("denseThreshold", denseThreshold));
+    return job;
+  }
+
+  private static Map<String, GroupedValue> run(GroupByMapReduceJob job, FieldAccessor accessor,
+      int numDocs) {
+    int[] docIds = new int[numDocs];
+    for (int i = 0; i < numDocs; i++) {
+      docIds[i] = i;
+    }
+    List<Serializable> mapResults = new ArrayList<Serializable>();
+    mapResults.add(job.map(new DefaultIntArray(docIds), numDocs, null, accessor, null));
+    return job.reduce(job.combine(mapResults, CombinerStage.partitionLevel));
+  }
+
+  @Test
+  public void test1DenseAggregationMatchesHashAggregation() throws Exception {
+    FieldAccessor accessor = newAccessor(100000, 10, 20);
+    Map<String, GroupedValue> dense = run(
+      newJob("sum", GroupByMapReduceJob.DEFAULT_DENSE_THRESHOLD), accessor, 100000);
+    Map<String, GroupedValue> hash = run(newJob("sum", 0), accessor, 100000);
+    assertEquals(200, dense.size());
+    assertEquals(hash.size(), dense.size());
+    for (String key : hash.keySet()) {
+      assertEquals(((SumGroupedValue) hash.get(key)).sum, ((SumGroupedValue) dense.get(key)).sum);
+    }
+
+    dense = run(newJob("max", GroupByMapReduceJob.DEFAULT_DENSE_THRESHOLD), accessor, 100000);
+    hash = run(newJob("max", 0), accessor, 100000);
+    for (String key : hash.keySet()) {
+      MaxGroupedValue expected = (MaxGroupedValue) hash.get(key);
+      MaxGroupedValue actual = (MaxGroupedValue) dense.get(key);
+      assertEquals(expected.max, actual.max, 0.0);
+      assertEquals(expected.uid, actual.uid);
+    }
+  }
+
+  private static FieldAccessor newAccessor(int numDocs, int colors, int categories) {
+    Random random = new Random(0);
+    final Map<String, TermStringList> dictionaries = new HashMap<String, TermStringList>();
+    final Map<String, SingleFieldAccessor> accessors = new HashMap<String, SingleFieldAccessor>();
+    dictionaries.put("color", newDictionary("color", colors));
+    accessors.put("color", new ArraySingleFieldAccessor(randomArray(random, numDocs, colors)));
+    dictionaries.put("category", newDictionary("category", categories));
+    accessors.put("category", new ArraySingleFieldAccessor(randomArray(random, numDocs,
+      categories)));
+    accessors.put("price", new ArraySingleFieldAccessor(randomArray(random, numDocs, 10000)));
+    return (FieldAccessor) Proxy.newProxyInstance(FieldAccessor.class.getClassLoader(),
+      new Class[] { FieldAccessor.class }, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          if ("getTermValueList".equals(method.getName())) {
+            return dictionaries.get(args[0]);
+          }
+          if ("getSingleFieldAccessor".equals(method.getName())) {
+            return accessors.get(args[0]);
+          }
+          return null;
+        }
+      });
+  }
+
+  private static TermStringList newDictionary(String prefix, int size) {
+    TermStringList ret = new TermStringList(size);
+    for (int i = 0; i < size; i++) {
+      ret.add(prefix + i);
+    }
+    return ret;
+  }
+
+  private static int[] randomArray(Random random, int size, int bound) {
+    int[] ret = new int[size];
+    for (int i = 0; i < size; i++) {
+      ret[i] = random.nextInt(bound);
+    }
+    return ret;
+  }
+
+  /**
+   * The dictionary id of a document is also its value
+   */
+  private static class ArraySingleFieldAccessor implements SingleFieldAccessor {
+    private final int[] values;
+
+    public ArraySingleFieldAccessor(int[] values) {
+      this.values = values;
+    }
+
+    @Override
+    public Object get(int docId) {
+      return values[docId];
+    }
+
+    @Override
+    public String getString(int docId) {
+      return String.valueOf(values[docId]);
+    }
+
+    @Override
+    public long getLong(int docId) {
+      return values[docId];
+    }
+
+    @Override
+    public double getDouble(int docId) {
+      return values[docId];
+    }
+
+    @Override
+    public short getShort(int docId) {
+      return (short) values[docId];
+    }
+
+    @Override
+    public int getInteger(int docId) {
+      return values[docId];
+    }
+
+    @Override
+    public float getFloat(int docId) {
+      return values[docId];
+    }
+
+    @Override
+    public Object[] getArray(int docId) {
+      return new Object[] { values[docId] };
+    }
+
+    @Override
+    public int getDictionaryId(int docId) {
+      return values[docId];
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package com.senseidb.search.req.mapred.functions.groupby;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.senseidb.search.req.mapred.functions.groupby.AggregateFunctionFactory.CountGroupedValue;
+
+public class GroupByErrorBoundsTest extends Assert {
+
+  private static GroupByMapReduceJob newJob(int top) throws Exception {
+    GroupByMapReduceJob job = new GroupByMapReduceJob();
+    job.init(new JSONObject().put("metric", "color").put("function", "count")
+        .put("columns", new JSONArray(Arrays.asList("color"))).put("top", top));
+    return job;
+  }
+
+  private static CountGroupedValue count(long count) {
+    CountGroupedValue ret = new CountGroupedValue();
+    ret.count = count;
+    return ret;
+  }
+
+  private static GroupedResult partition(long missingBound, Object... groups) {
+    GroupedResult ret = new GroupedResult(groups.length / 2);
+    for (int i = 0; i < groups.length; i += 2) {
+      ret.put((String) groups[i], count((Integer) groups[i + 1]));
+    }
+    ret.trimmed = missingBound > 0;
+    ret.missingBound = missingBound;
+    return ret;
+  }
+
+  @Test
+  public void test1MissingGroupsGetTheErrorOfTheOtherPartition() throws Exception {
+    GroupByMapReduceJob job = newJob(1);
+    HashMap<String, GroupedValue> reduced = job.reduce(Arrays.<Serializable> asList(
+      partition(3, "red", 100, "blue", 10), partition(5, "red", 50, "green", 20)));
+    assertEquals(150, ((CountGroupedValue) reduced.get("red")).count);
+    assertEquals(0, ((CountGroupedValue) reduced.get("red")).error);
+    assertEquals(5, ((CountGroupedValue) reduced.get("blue")).error);
+    assertEquals(3, ((CountGroupedValue) reduced.get("green")).error);
+
+    JSONObject json = job.render(reduced);
+    assertFalse(json.getBoolean("exact"));
+    assertTrue(json.getBoolean("topGuaranteed"));
+    assertEquals(8, json.getLong("missingBound"));
+    assertEquals("red", json.getJSONArray("grouped").getJSONObject(0).getString("group"));
+  }
+
+  @Test
+  public void test2TopIsNotGuaranteedWhenTheBoundsOverlap() throws Exception {
+    GroupByMapReduceJob job = newJob(1);
+    HashMap<String, GroupedValue> reduced = job.reduce(Arrays.<Serializable> asList(
+      partition(0, "red", 30, "blue", 25), partition(10, "red", 1)));
+    JSONObject json = job.render(reduced);
+    assertFalse(json.getBoolean("exact"));
+    // blue might have up to 35
+    assertFalse(json.getBoolean("topGuaranteed"));
+    assertEquals(1, json.getJSONArray("grouped").length());
+    assertEquals(31, json.getJSONArray("grouped").getJSONObject(0).getLong("count"));
+  }
+
+  @Test
+  public void test3UntrimmedResultIsExact() throws Exception {
+    GroupByMapReduceJob job = newJob(10);
+    HashMap<String, GroupedValue> reduced = job.reduce(Arrays.<Serializable> asList(
+      partition(0, "red", 30), partition(0, "blue", 25)));
+    JSONObject json = job.render(reduced);
+    assertTrue(json.getBoolean("exact"));
+    assertTrue(json.getBoolean("topGuaranteed"));
+    assertFalse(json.getJSONArray("grouped").getJSONObject(0).has("error"));
+  }
+
+  @Test
+  public void test4GroupedResultsAreRemovedForOldBrokers() throws Exception {
+    HashMap<String, Serializable> composite = new HashMap<String, Serializable>();
+    composite.put("groupBy", partition(3, "red", 100));
+    List<Serializable> mapResults = new ArrayList<Serializable>();
+    mapResults.add(partition(5, "blue", 10));
+    mapResults.add(composite);
+    GroupByMapReduceJob.removeGroupedResults(mapResults);
+    assertEquals(HashMap.class, mapResults.get(0).getClass());
+    assertEquals(10, ((CountGroupedValue) ((HashMap<?, ?>) mapResults.get(0)).get("blue")).count);
+    assertEquals(HashMap.class, composite.get("groupBy").getClass());
+
+    // the plain maps are reduced as trimmed results without error bounds
+    GroupByMapReduceJob job = newJob(10);
+    JSONObject json = job.render(job.reduce(Arrays.asList(mapResults.get(0))));
+    assertFalse(json.getBoolean("exact"));
+  }
+}
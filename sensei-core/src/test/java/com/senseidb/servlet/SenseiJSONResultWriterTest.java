@@ -0,0 +1,112 @@
+package com.senseidb.servlet;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.alibaba.fastjson.JSON;
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.FacetAccessible;
+import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.api.FacetSpec.FacetSortSpec;
+import com.senseidb.search.node.ResultMerger.MappedFacetAccessible;
+import com.senseidb.search.req.ErrorType;
+import com.senseidb.search.req.SenseiError;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+
+public class SenseiJSONResultWriterTest extends Assert {
+
+  private static SenseiHit createHit(int docid) {
+    SenseiHit hit = new SenseiHit();
+    hit.setUID(docid * 7L - 3);
+    hit.setDocid(docid);
+    hit.setScore(docid / 3.0f);
+    Map<String, String[]> fieldValues = new HashMap<String, String[]>();
+    fieldValues.put("color", new String[] { docid % 2 == 0 ? "red" : "blue" });
+    fieldValues.put("tags", new String[] { "cool", "hybrid \"quoted\"\n\u0001" });
+    hit.setFieldValues(fieldValues);
+    hit.setSrcData("{\"id\":" + docid + ",\"text\":\"café\"}");
+    return hit;
+  }
+
+  private static SenseiResult createResult(int numHits) {
+    SenseiResult result = new SenseiResult();
+    result.setTid(42);
+    result.setTime(15);
+    result.setNumHitsLong(12345678901L);
+    result.setNumGroupsLong(3);
+    result.setTotalDocsLong(15000);
+    result.setNumHitsLowerBound(true);
+    result.setParsedQuery("color:red");
+    result.addError(new SenseiError("partial result", ErrorType.ExecutionTimeout));
+
+    SenseiHit[] hits = new SenseiHit[numHits];
+    for (int i = 0; i < numHits; ++i) {
+      hits[i] = createHit(i);
+    }
+    if (numHits > 1) {
+      hits[0].setGroupField("color");
+      hits[0].setGroupValue("red");
+      hits[0].setGroupHitsCount(2);
+      hits[0].setGroupHits(new SenseiHit[] { createHit(100), createHit(101) });
+      hits[1].setSrcData(null);
+    }
+    result.setHits(hits);
+
+    Map<String, FacetAccessible> facetMap = new HashMap<String, FacetAccessible>();
+    facetMap.put("color", new MappedFacetAccessible(new BrowseFacet[] {
+        new BrowseFacet("red", 10), new BrowseFacet("blue", 5) }));
+    facetMap.put("year", new MappedFacetAccessible(new BrowseFacet[] {
+        new BrowseFacet("1999", 3), new BrowseFacet("", 1) }));
+    result.addAll(facetMap);
+    return result;
+  }
+
+  private static SenseiRequest createRequest() {
+    SenseiRequest req = new SenseiRequest();
+    BrowseSelection sel = new BrowseSelection("color");
+    sel.addValue("red");
+    sel.addValue("green");
+    req.addSelection(sel);
+    FacetSpec spec = new FacetSpec();
+    spec.setOrderBy(FacetSortSpec.OrderHitsDesc);
+    req.setFacetSpec("color", spec);
+    return req;
+  }
+
+  private static String stream(SenseiRequest req, SenseiResult res) throws Exception {
+    Writer writer = new StringWriter();
+    new SenseiJSONResultWriter(writer).write(req, res);
+    return writer.toString();
+  }
+
+  @Test
+  public void test1StreamedResultIsTheSameAsTheDOMResult() throws Exception {
+    SenseiRequest req = createRequest();
+    SenseiResult res = createResult(20);
+    // only the order of the keys may differ
+    assertEquals(JSON.parse(DefaultSenseiJSONServlet.buildJSONResultString(req, res)),
+      JSON.parse(stream(req, res)));
+
+    req.setSelectList(Arrays.asList("color", "_uid"));
+    assertEquals(JSON.parse(DefaultSenseiJSONServlet.buildJSONResultString(req, res)),
+      JSON.parse(stream(req, res)));
+  }
+
+  @Test
+  public void test2EmptyResult() throws Exception {
+    SenseiRequest req = new SenseiRequest();
+    SenseiResult res = new SenseiResult();
+    assertEquals(JSON.parse(DefaultSenseiJSONServlet.buildJSONResultString(req, res)),
+      JSON.parse(stream(req, res)));
+  }
+}
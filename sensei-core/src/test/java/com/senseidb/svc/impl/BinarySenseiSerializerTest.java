@@ -0,0 +1,236 @@
+package com.senseidb.svc.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import zu.finagle.serialize.JOSSSerializer;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.FacetAccessible;
+import com.senseidb.search.node.ResultMerger.MappedFacetAccessible;
+import com.senseidb.search.req.ErrorType;
+import com.senseidb.search.req.SenseiError;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiResult;
+
+public class BinarySenseiSerializerTest extends Assert {
+
+  private static SenseiHit createHit(int docid) {
+    SenseiHit hit = new SenseiHit();
+    hit.setUID(docid * 7L - 3);
+    hit.setDocid(docid);
+    hit.setScore(docid / 3.0f);
+    hit.setComparable(docid);
+    Map<String, String[]> fieldValues = new HashMap<String, String[]>();
+    fieldValues.put("color", new String[] { docid % 2 == 0 ? "red" : "blue" });
+    fieldValues.put("tags", new String[] { "cool", "hybrid" });
+    hit.setFieldValues(fieldValues);
+    Map<String, Object[]> rawFieldValues = new HashMap<String, Object[]>();
+    rawFieldValues.put("price", new Object[] { (float) docid * 1000 });
+    rawFieldValues.put("mileage", new Object[] { docid * 100 });
+    rawFieldValues.put("time", new Object[] { 1368000000000L + docid });
+    rawFieldValues.put("ids", new Object[] { new long[] { docid, -docid } });
+    rawFieldValues.put("name", new Object[] { null, "car" + docid });
+    hit.setRawFieldValues(rawFieldValues);
+    hit.setSrcData("{\"id\":" + docid + "}");
+    return hit;
+  }
+
+  private static SenseiResult createResult(int numHits) {
+    SenseiResult result = new SenseiResult();
+    result.setTid(42);
+    result.setTime(15);
+    result.setNumHitsLong(12345678901L);
+    result.setNumGroupsLong(3);
+    result.setTotalDocsLong(15000);
+    result.setNumHitsLowerBound(true);
+    result.setParsedQuery("color:red");
+    result.addError(new SenseiError("partial result", ErrorType.ExecutionTimeout));
+
+    SenseiHit[] hits = new SenseiHit[numHits];
+    for (int i = 0; i < numHits; ++i) {
+      hits[i] = createHit(i);
+    }
+    if (numHits > 1) {
+      hits[0].setGroupField("color");
+      hits[0].setGroupValue("red");
+      hits[0].setRawGroupValue("red");
+      hits[0].setGroupHitsCount(2);
+      hits[0].setGroupHits(new SenseiHit[] { createHit(100), createHit(101) });
+      hits[1].setStoredValue(new byte[] { 1, 2, 3 });
+    }
+    result.setHits(hits);
+
+    Map<String, FacetAccessible> facetMap = new HashMap<String, FacetAccessible>();
+    facetMap.put("color", new MappedFacetAccessible(new BrowseFacet[] {
+        new BrowseFacet("red", 10), new BrowseFacet("blue", 5) }));
+    facetMap.put("year", new MappedFacetAccessible(new BrowseFacet[] { new BrowseFacet("1999",
+        0) }));
+    result.addAll(facetMap);
+
+    Map<Integer, String> partitionVersions = new HashMap<Integer, String>();
+    partitionVersions.put(0, "1234");
+    partitionVersions.put(1, null);
+    result.setPartitionVersions(partitionVersions);
+    return result;
+  }
+
+  private static void assertHitsEqual(SenseiHit[] expected, SenseiHit[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; ++i) {
+      SenseiHit a = expected[i];
+      SenseiHit b = actual[i];
+      assertEquals(a.getUID(), b.getUID());
+      assertEquals(a.getDocid(), b.getDocid());
+      assertEquals(a.getScore(), b.getScore());
+      assertEquals(a.getComparable(), b.getComparable());
+      assertEquals(a.getGroupField(), b.getGroupField());
+      assertEquals(a.getGroupValue(), b.getGroupValue());
+      assertEquals(a.getRawGroupValue(), b.getRawGroupValue());
+      assertEquals(a.getGroupHitsCount(), b.getGroupHitsCount());
+      assertEquals(a.getSrcData(), b.getSrcData());
+      assertTrue(Arrays.equals(a.getStoredValue(), b.getStoredValue()));
+      assertEquals(a.getFieldValues().keySet(), b.getFieldValues().keySet());
+      for (String field : a.getFieldValues().keySet()) {
+        assertTrue(Arrays.equals(a.getFieldValues().get(field), b.getFieldValues().get(field)));
+      }
+      assertEquals(a.getRawFieldValues().keySet(), b.getRawFieldValues().keySet());
+      for (String field : a.getRawFieldValues().keySet()) {
+        assertTrue(Arrays.deepEquals(a.getRawFieldValues().get(field), b.getRawFieldValues()
+            .get(field)));
+      }
+      assertHitsEqual(a.getSenseiGroupHits(), b.getSenseiGroupHits());
+    }
+  }
+
+  private static void assertRoundTrip(BinarySenseiSerializer serializer, SenseiResult result) {
+    SenseiResult copy = serializer.deserializeResponse(serializer.serializeResponse(result));
+    assertEquals(result.getTid(), copy.getTid());
+    assertEquals(result.getTime(), copy.getTime());
+    assertEquals(result.getNumHitsLong(), copy.getNumHitsLong());
+    assertEquals(result.getNumGroupsLong(), copy.getNumGroupsLong());
+    assertEquals(result.getTotalDocsLong(), copy.getTotalDocsLong());
+    assertEquals(result.isNumHitsLowerBound(), copy.isNumHitsLowerBound());
+    assertEquals(result.getParsedQuery(), copy.getParsedQuery());
+    assertEquals(result.getErrors(), copy.getErrors());
+    assertEquals(result.getPartitionVersions(), copy.getPartitionVersions());
+    assertHitsEqual(result.getSenseiHits(), copy.getSenseiHits());
+    assertEquals(result.getFacetMap().keySet(), copy.getFacetMap().keySet());
+    for (String name : result.getFacetMap().keySet()) {
+      List<BrowseFacet> expected = result.getFacetMap().get(name).getFacets();
+      List<BrowseFacet> actual = copy.getFacetMap().get(name).getFacets();
+      assertEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void testRoundTrip() {
+    assertRoundTrip(new BinarySenseiSerializer(false), createResult(20));
+  }
+
+  @Test
+  public void testCompressedRoundTrip() {
+    assertRoundTrip(new BinarySenseiSerializer(true), createResult(20));
+  }
+
+  @Test
+  public void testEmptyResult() {
+    BinarySenseiSerializer serializer = new BinarySenseiSerializer(false);
+    SenseiResult copy = serializer.deserializeResponse(serializer
+        .serializeResponse(new SenseiResult()));
+    assertEquals(0, copy.getSenseiHits().length);
+    assertEquals(0, copy.getNumHitsLong());
+    assertTrue(copy.getErrors().isEmpty());
+  }
+
+  @Test
+  public void testReadsJavaSerializedResult() {
+    SenseiResult result = createResult(5);
+    ByteBuffer buffer = new JOSSSerializer<SenseiResult, SenseiResult>()
+        .serializeResponse(result);
+    SenseiResult copy = new BinarySenseiSerializer(false).deserializeResponse(buffer);
+    assertHitsEqual(result.getSenseiHits(), copy.getSenseiHits());
+  }
+
+  @Test
+  public void testWritesOldestVersionThatHoldsTheResult() {
+    BinarySenseiSerializer serializer = new BinarySenseiSerializer(false);
+    ByteBuffer buffer = serializer.serializeResponse(createResult(3));
+    assertEquals(BinarySenseiSerializer.VERSION_2, buffer.get(buffer.position() + 1));
+
+    // a result without partition versions can be read by the brokers that only know version 1
+    SenseiResult result = createResult(3);
+    result.setPartitionVersions(null);
+    buffer = serializer.serializeResponse(result);
+    assertEquals(BinarySenseiSerializer.VERSION_1, buffer.get(buffer.position() + 1));
+    assertRoundTrip(serializer, result);
+    assertRoundTrip(new BinarySenseiSerializer(true), result);
+  }
+
+  @Test
+  public void testReadsVersion1() {
+    byte[] bytes = new byte[] { BinarySenseiSerializer.MAGIC, 1, 0,
+        // tid 42, time 15, 3 hits, 0 groups, 10 docs, not a lower bound
+        0x54, 0x1E, 0x06, 0x00, 0x14, 0x00,
+        // parsed query
+        0x08, 'a', ':', 'b',
+        // no errors, hits, facets or map reduce result
+        0x00, 0x00, 0x00, 0x00 };
+    SenseiResult result = new BinarySenseiSerializer(false).deserializeResponse(ByteBuffer
+        .wrap(bytes));
+    assertEquals(42, result.getTid());
+    assertEquals(15, result.getTime());
+    assertEquals(3, result.getNumHitsLong());
+    assertEquals(0, result.getNumGroupsLong());
+    assertEquals(10, result.getTotalDocsLong());
+    assertFalse(result.isNumHitsLowerBound());
+    assertEquals("a:b", result.getParsedQuery());
+    assertTrue(result.getErrors().isEmpty());
+    assertEquals(0, result.getSenseiHits().length);
+    assertNull(result.getMapReduceResult());
+    assertNull(result.getPartitionVersions());
+  }
+
+  @Test
+  public void testRejectsNewerVersion() {
+    BinarySenseiSerializer serializer = new BinarySenseiSerializer(false);
+    ByteBuffer buffer = serializer.serializeResponse(createResult(1));
+    buffer.put(buffer.position() + 1, (byte) (BinarySenseiSerializer.VERSION + 1));
+    try {
+      serializer.deserializeResponse(buffer);
+      fail("newer format versions must be rejected");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testReadsUnknownErrorTypes() {
+    SenseiResult result = new SenseiResult();
+    result.addError(new SenseiError("took too long", ErrorType.ExecutionTimeout));
+    BinarySenseiSerializer serializer = new BinarySenseiSerializer(false);
+    ByteBuffer buffer = serializer.serializeResponse(result);
+    // a type this node does not know of, with a name of the same length
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    String content = new String(bytes, Charset.forName("ISO-8859-1"));
+    int pos = content.indexOf(ErrorType.ExecutionTimeout.name());
+    assertTrue(pos > 0);
+    bytes[pos + ErrorType.ExecutionTimeout.name().length() - 1] = 'x';
+
+    SenseiResult copy = serializer.deserializeResponse(ByteBuffer.wrap(bytes));
+    assertEquals(1, copy.getErrors().size());
+    SenseiError error = copy.getErrors().get(0);
+    assertEquals("took too long", error.getMessage());
+    assertEquals(ErrorType.UnknownError, error.getErrorType());
+    assertEquals(ErrorType.ExecutionTimeout.getDefaultErrorCode(), error.getErrorCode());
+  }
+}
@@ -0,0 +1,342 @@
+package com.senseidb.svc.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.Assert;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.easymock.classextension.EasyMock;
+import org.junit.After;
+import org.junit.Test;
+
+import proj.zoie.impl.indexing.ZoieConfig;
+
+import com.browseengine.bobo.api.BoboSegmentReader;
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.api.FacetSpec.FacetSortSpec;
+import com.browseengine.bobo.facets.FacetHandler;
+import com.browseengine.bobo.facets.RuntimeFacetHandlerFactory;
+import com.browseengine.bobo.facets.impl.SimpleFacetHandler;
+import com.senseidb.conf.SenseiConfParams;
+import com.senseidb.conf.SenseiFacetHandlerBuilder;
+import com.senseidb.indexing.SenseiIndexPruner.DefaultSenseiIndexPruner;
+import com.senseidb.search.facet.UIDFacetHandler;
+import com.senseidb.search.node.SenseiCore;
+import com.senseidb.search.node.SenseiQueryBuilderFactory;
+import com.senseidb.search.node.SenseiZoieFactory;
+import com.senseidb.search.node.impl.SimpleQueryBuilderFactory;
+import com.senseidb.search.req.ErrorType;
+import com.senseidb.search.req.SenseiError;
+import com.senseidb.search.req.SenseiHit;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.search.req.SenseiResult;
+
+public class CoreSenseiServiceImplTest extends Assert {
+  private static final SenseiQueryBuilderFactory QUERY_BUILDER_FACTORY =
+      new SimpleQueryBuilderFactory(new QueryParser(Version.LUCENE_43, "contents",
+          new WhitespaceAnalyzer(Version.LUCENE_43)));
+
+  private final List<DirectoryReader> _readers = new ArrayList<DirectoryReader>();
+  private final List<CoreSenseiServiceImpl> _services = new ArrayList<CoreSenseiServiceImpl>();
+
+  /**
+   * The uids are stored with the docs, there is no zoie reader to hold them
+   */
+  private static class TestUIDFacetHandler extends UIDFacetHandler {
+    TestUIDFacetHandler() {
+      super(SenseiFacetHandlerBuilder.UID_FACET_NAME);
+    }
+
+    @Override
+    public long[] load(BoboSegmentReader reader) throws IOException {
+      long[] uids = new long[reader.maxDoc()];
+      for (int i = 0; i < uids.length; ++i) {
+        uids[i] = Long.parseLong(reader.getInnerReader().document(i).get("uid"));
+      }
+      return uids;
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (CoreSenseiServiceImpl service : _services) {
+      service.shutdown();
+    }
+    for (DirectoryReader reader : _readers) {
+      reader.close();
+    }
+  }
+
+  private CoreSenseiServiceImpl createService(Configuration conf) {
+    ZoieConfig zoieConfig = EasyMock.createNiceMock(ZoieConfig.class);
+    EasyMock.expect(zoieConfig.getSimilarity()).andReturn(new DefaultSimilarity()).anyTimes();
+    SenseiZoieFactory<?> zoieFactory = EasyMock.createNiceMock(SenseiZoieFactory.class);
+    EasyMock.expect(zoieFactory.getZoieConfig()).andReturn(zoieConfig).anyTimes();
+    SenseiCore core = EasyMock.createNiceMock(SenseiCore.class);
+    EasyMock.expect(core.getIndexPruner()).andReturn(new DefaultSenseiIndexPruner()).anyTimes();
+    EasyMock.<SenseiZoieFactory<?>> expect(core.getZoieFactory()).andReturn(zoieFactory)
+        .anyTimes();
+    EasyMock.replay(zoieConfig, zoieFactory, core);
+    CoreSenseiServiceImpl service = new CoreSenseiServiceImpl(core, conf);
+    _services.add(service);
+    return service;
+  }
+
+  /**
+   * Creates a segment per array of prices, a null price is a doc without price. The uids count up
+   * from the given one.
+   */
+  private List<BoboSegmentReader> createSegments(long firstUid, String[]... prices)
+      throws IOException {
+    List<BoboSegmentReader> segments = new ArrayList<BoboSegmentReader>();
+    long uid = firstUid;
+    for (String[] segmentPrices : prices) {
+      RAMDirectory dir = new RAMDirectory();
+      IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_43,
+          new WhitespaceAnalyzer(Version.LUCENE_43)));
+      for (String price : segmentPrices) {
+        Document doc = new Document();
+        doc.add(new StringField("uid", String.valueOf(uid), Field.Store.YES));
+        doc.add(new StringField("color", uid % 3 == 0 ? "red" : "blue", Field.Store.NO));
+        if (price != null) {
+          doc.add(new StringField("price", price, Field.Store.NO));
+        }
+        writer.addDocument(doc);
+        ++uid;
+      }
+      writer.close();
+      DirectoryReader reader = DirectoryReader.open(dir);
+      _readers.add(reader);
+      assertEquals(1, reader.leaves().size());
+      List<FacetHandler<?>> handlers = new ArrayList<FacetHandler<?>>();
+      handlers.add(new TestUIDFacetHandler());
+      handlers.add(new SimpleFacetHandler("price"));
+      handlers.add(new SimpleFacetHandler("color"));
+      segments.add(BoboSegmentReader.getInstance(reader.leaves().get(0).reader(), handlers,
+        Collections.<RuntimeFacetHandlerFactory<?, ?>> emptyList()));
+    }
+    return segments;
+  }
+
+  private static SenseiRequest createSortedRequest(boolean reverse, int offset, int count) {
+    SenseiRequest req = new SenseiRequest();
+    req.addSortField(new SortField("price", SortField.Type.STRING, reverse));
+    req.setOffset(offset);
+    req.setCount(count);
+    return req;
+  }
+
+  private static Configuration createParallelConf() {
+    Configuration conf = new BaseConfiguration();
+    conf.setProperty(SenseiConfParams.SENSEI_NODE_SEGMENT_PARALLELISM, 2);
+    conf.setProperty(SenseiConfParams.SENSEI_NODE_SEGMENT_PARALLEL_MIN_SEGMENTS, 2);
+    conf.setProperty(SenseiConfParams.SENSEI_NODE_SEGMENT_PARALLEL_MIN_DOCS, 1);
+    return conf;
+  }
+
+  private static void setFacetSpecs(SenseiRequest req) {
+    FacetSpec spec = new FacetSpec();
+    spec.setMaxCount(20);
+    spec.setOrderBy(FacetSortSpec.OrderHitsDesc);
+    req.setFacetSpec("color", spec);
+    req.setFacetSpec("price", spec);
+  }
+
+  private static void assertSameFacets(SenseiResult expected, SenseiResult actual, String name) {
+    List<BrowseFacet> expectedFacets = expected.getFacetAccessor(name).getFacets();
+    List<BrowseFacet> actualFacets = actual.getFacetAccessor(name).getFacets();
+    assertEquals(name, expectedFacets.size(), actualFacets.size());
+    for (int i = 0; i < expectedFacets.size(); ++i) {
+      assertEquals(name, expectedFacets.get(i).getValue(), actualFacets.get(i).getValue());
+      assertEquals(name, expectedFacets.get(i).getFacetValueHitCount(), actualFacets.get(i)
+          .getFacetValueHitCount());
+    }
+  }
+
+  private static void assertSameResult(SenseiResult expected, SenseiResult actual) {
+    assertSameHits(expected, actual);
+    assertEquals(expected.getNumHits(), actual.getNumHits());
+    assertEquals(expected.getTotalDocs(), actual.getTotalDocs());
+    assertSameFacets(expected, actual, "color");
+    assertSameFacets(expected, actual, "price");
+  }
+
+  private static void assertSameHits(SenseiResult expected, SenseiResult actual) {
+    SenseiHit[] expectedHits = expected.getSenseiHits();
+    SenseiHit[] actualHits = actual.getSenseiHits();
+    assertEquals(expectedHits.length, actualHits.length);
+    for (int i = 0; i < expectedHits.length; ++i) {
+      assertEquals("hit " + i, expectedHits[i].getUID(), actualHits[i].getUID());
+      assertEquals("hit " + i, expectedHits[i].getDocid(), actualHits[i].getDocid());
+    }
+  }
+
+  @Test
+  public void testSegmentGroupDocidsFollowTheSegmentOrder() {
+    // segments of 10, 0, 5, 20 and 7 docs, the group has the 2nd, 3rd and 5th
+    int[] groupStarts = { 0, 0, 5 };
+    List<Integer> docBases = Arrays.asList(10, 10, 35);
+    assertEquals(10, CoreSenseiServiceImpl.toPartitionDocid(0, groupStarts, docBases));
+    assertEquals(14, CoreSenseiServiceImpl.toPartitionDocid(4, groupStarts, docBases));
+    assertEquals(35, CoreSenseiServiceImpl.toPartitionDocid(5, groupStarts, docBases));
+    assertEquals(41, CoreSenseiServiceImpl.toPartitionDocid(11, groupStarts, docBases));
+
+    // the group with the 1st and 4th segments
+    groupStarts = new int[] { 0, 10 };
+    docBases = Arrays.asList(0, 15);
+    assertEquals(9, CoreSenseiServiceImpl.toPartitionDocid(9, groupStarts, docBases));
+    assertEquals(15, CoreSenseiServiceImpl.toPartitionDocid(10, groupStarts, docBases));
+    assertEquals(34, CoreSenseiServiceImpl.toPartitionDocid(29, groupStarts, docBases));
+  }
+
+  @Test
+  public void testEarlyTerminationMatchesTheFullSearch() throws Exception {
+    Configuration conf = new BaseConfiguration();
+    conf.setProperty(SenseiConfParams.SENSEI_NODE_EARLY_TERMINATION_SORT_FIELDS, "price");
+    CoreSenseiServiceImpl earlyTermination = createService(conf);
+    CoreSenseiServiceImpl full = createService(new BaseConfiguration());
+    // docids 0-3, 4-6, 7-10 and 11-12, the third segment is searched first in ascending order
+    // and has docs without price, the second and third segments share the price 010
+    List<BoboSegmentReader> segments = createSegments(100, new String[] { "050", "051", "052",
+        "053" }, new String[] { "010", "010", "011" }, new String[] { "009", "010", null, null },
+      new String[] { "090", "091" });
+
+    // the docs without price come first, then 009 and the ties in docid order
+    SenseiRequest req = createSortedRequest(false, 0, 5);
+    SenseiResult expected = full.handlePartitionedRequest(req, segments, QUERY_BUILDER_FACTORY);
+    SenseiResult actual = earlyTermination.handlePartitionedRequest(req, segments,
+      QUERY_BUILDER_FACTORY);
+    assertSameHits(expected, actual);
+    assertEquals(9, actual.getSenseiHits()[0].getDocid());
+    assertEquals(4, actual.getSenseiHits()[3].getDocid());
+    assertEquals(5, actual.getSenseiHits()[4].getDocid());
+    assertFalse(expected.isNumHitsLowerBound());
+    assertEquals(13, expected.getNumHitsLong());
+    // the first and last segments were skipped
+    assertTrue(actual.isNumHitsLowerBound());
+    assertEquals(7, actual.getNumHitsLong());
+    assertEquals(13, actual.getTotalDocs());
+
+    req = createSortedRequest(false, 2, 3);
+    assertSameHits(full.handlePartitionedRequest(req, segments, QUERY_BUILDER_FACTORY),
+      earlyTermination.handlePartitionedRequest(req, segments, QUERY_BUILDER_FACTORY));
+
+    // the docs without price come last
+    req = createSortedRequest(true, 0, 3);
+    actual = earlyTermination.handlePartitionedRequest(req, segments, QUERY_BUILDER_FACTORY);
+    assertSameHits(full.handlePartitionedRequest(req, segments, QUERY_BUILDER_FACTORY), actual);
+    assertEquals(12, actual.getSenseiHits()[0].getDocid());
+    assertTrue(actual.isNumHitsLowerBound());
+    assertEquals(6, actual.getNumHitsLong());
+
+    // the page needs every segment, nothing is skipped
+    req = createSortedRequest(true, 0, 20);
+    expected = full.handlePartitionedRequest(req, segments, QUERY_BUILDER_FACTORY);
+    actual = earlyTermination.handlePartitionedRequest(req, segments, QUERY_BUILDER_FACTORY);
+    assertSameHits(expected, actual);
+    assertEquals(13, actual.getSenseiHits().length);
+    assertFalse(actual.isNumHitsLowerBound());
+    assertEquals(13, actual.getNumHitsLong());
+  }
+
+  @Test
+  public void testParallelSearchMatchesTheSequentialSearch() throws Exception {
+    CoreSenseiServiceImpl parallel = createService(createParallelConf());
+    CoreSenseiServiceImpl sequential = createService(new BaseConfiguration());
+    // the groups are the first and fourth segments and the second and third ones, the price 010
+    // is in both groups
+    List<BoboSegmentReader> segments = createSegments(100, new String[] { "050", "010", "052",
+        "053" }, new String[] { "010", "010", "011" }, new String[] { "009", "010", null, null },
+      new String[] { "090", "091" });
+
+    // every hit has the same score, the docids break the ties
+    SenseiRequest req = new SenseiRequest();
+    req.setCount(20);
+    setFacetSpecs(req);
+    SenseiResult expected = sequential.handlePartitionedRequest(req, segments,
+      QUERY_BUILDER_FACTORY);
+    SenseiResult actual = parallel.handlePartitionedRequest(req, segments, QUERY_BUILDER_FACTORY);
+    assertSameResult(expected, actual);
+    assertEquals(13, actual.getSenseiHits().length);
+    assertEquals(13, actual.getNumHits());
+    assertEquals(13, actual.getTotalDocs());
+
+    for (boolean reverse : new boolean[] { false, true }) {
+      req = createSortedRequest(reverse, 2, 5);
+      setFacetSpecs(req);
+      assertSameResult(sequential.handlePartitionedRequest(req, segments, QUERY_BUILDER_FACTORY),
+        parallel.handlePartitionedRequest(req, segments, QUERY_BUILDER_FACTORY));
+    }
+
+    req = createSortedRequest(false, 0, 3);
+    setFacetSpecs(req);
+    BrowseSelection sel = new BrowseSelection("color");
+    sel.addValue("red");
+    req.addSelection(sel);
+    expected = sequential.handlePartitionedRequest(req, segments, QUERY_BUILDER_FACTORY);
+    actual = parallel.handlePartitionedRequest(req, segments, QUERY_BUILDER_FACTORY,
+      System.currentTimeMillis() + 60000);
+    assertSameResult(expected, actual);
+    assertEquals(3, actual.getSenseiHits().length);
+    assertEquals(4, actual.getNumHits());
+    assertEquals(13, actual.getTotalDocs());
+  }
+
+  @Test(expected = TimeoutException.class)
+  public void testParallelSearchPastTheDeadline() throws Exception {
+    CoreSenseiServiceImpl parallel = createService(createParallelConf());
+    List<BoboSegmentReader> segments = createSegments(100, new String[] { "050", "051" },
+      new String[] { "010", "011" });
+    SenseiRequest req = createSortedRequest(false, 0, 5);
+    setFacetSpecs(req);
+    parallel.handlePartitionedRequest(req, segments, QUERY_BUILDER_FACTORY,
+      System.currentTimeMillis() - 1);
+  }
+
+  @Test
+  public void testCachedPartitionResultsAreCopied() {
+    CoreSenseiServiceImpl service = createService(new BaseConfiguration());
+    SenseiRequest req = createSortedRequest(false, 0, 10);
+    assertNotNull(service.getPartitionCacheKey(req));
+    setFacetSpecs(req);
+    assertNull(service.getPartitionCacheKey(req));
+    req = createSortedRequest(false, 0, 10);
+    req.setGroupBy(new String[] { "color" });
+    assertNull(service.getPartitionCacheKey(req));
+
+    SenseiHit hit = new SenseiHit();
+    hit.setUID(100);
+    hit.setGroupHitsCount(3);
+    SenseiResult res = new SenseiResult();
+    res.setHits(new SenseiHit[] { hit });
+    res.setNumHitsLong(1);
+    SenseiResult copy = service.copyPartitionResult(req, res);
+    assertEquals(1, copy.getNumHitsLong());
+    assertEquals(100, copy.getSenseiHits()[0].getUID());
+    copy.getSenseiHits()[0].setGroupHitsCount(5);
+    assertEquals(3, hit.getGroupHitsCount());
+
+    res.addError(new SenseiError("failed", ErrorType.BoboExecutionError));
+    assertNull(service.copyPartitionResult(req, res));
+  }
+}
@@ -0,0 +1,71 @@
+package com.senseidb.svc.impl;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class PartitionResultCacheTest extends Assert {
+  private final Object segment1 = new Object();
+  private final Object segment2 = new Object();
+
+  @Test
+  public void testHitWhileReadersUnchanged() {
+    PartitionResultCache<String> cache = new PartitionResultCache<String>(10);
+    List<Object> readers = Arrays.asList(segment1, segment2);
+    long generation = cache.getGeneration(0, "1", readers);
+    assertNull(cache.get("q", 0, generation));
+    cache.put("q", 0, generation, "result");
+
+    // a new list holding the same readers is the same generation
+    generation = cache.getGeneration(0, "1", Arrays.asList(segment1, segment2));
+    assertEquals("result", cache.get("q", 0, generation));
+    assertNull(cache.get("q", 1, generation));
+    assertNull(cache.get("other", 0, generation));
+  }
+
+  @Test
+  public void testInvalidatedByNewReaders() {
+    PartitionResultCache<String> cache = new PartitionResultCache<String>(10);
+    long generation = cache.getGeneration(0, "1", Arrays.asList(segment1));
+    cache.put("q", 0, generation, "result");
+    long other = cache.getGeneration(1, "1", Arrays.asList(segment1));
+    cache.put("q", 1, other, "result");
+
+    long newGeneration = cache.getGeneration(0, "1", Arrays.asList(segment1, segment2));
+    assertTrue(newGeneration != generation);
+    assertNull(cache.get("q", 0, newGeneration));
+    // other partitions are not affected
+    assertEquals("result", cache.get("q", 1, other));
+
+    // results computed on the old readers are not cached
+    cache.put("q", 0, generation, "stale");
+    assertNull(cache.get("q", 0, newGeneration));
+  }
+
+  @Test
+  public void testInvalidatedByNewVersion() {
+    PartitionResultCache<String> cache = new PartitionResultCache<String>(10);
+    List<Object> readers = Arrays.asList(segment1);
+    long generation = cache.getGeneration(0, "1", readers);
+    cache.put("q", 0, generation, "result");
+    generation = cache.getGeneration(0, "2", readers);
+    assertNull(cache.get("q", 0, generation));
+  }
+
+  @Test
+  public void testEviction() {
+    PartitionResultCache<String> cache = new PartitionResultCache<String>(2);
+    long generation = cache.getGeneration(0, "1", Arrays.asList(segment1));
+    cache.put("q1", 0, generation, "1");
+    cache.put("q2", 0, generation, "2");
+    assertEquals("1", cache.get("q1", 0, generation));
+    cache.put("q3", 0, generation, "3");
+    assertEquals(2, cache.size());
+    // q2 is the least recently used
+    assertNull(cache.get("q2", 0, generation));
+    assertEquals("1", cache.get("q1", 0, generation));
+  }
+}
@@ -0,0 +1,78 @@
+package com.senseidb.test.bql.parsers;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.senseidb.bql.parsers.BQLCompiler;
+import com.senseidb.bql.parsers.BQLStatementCache;
+import com.senseidb.bql.parsers.PreparedBQLStatement;
+import com.senseidb.util.JsonTemplateProcessor;
+
+public class TestBQLStatementCache {
+
+  private final JsonComparator _comp = new JsonComparator(1);
+  private final Map<String, String[]> _facetInfoMap = new HashMap<String, String[]>();
+  private final BQLStatementCache _cache;
+
+  public TestBQLStatementCache() {
+    _facetInfoMap.put("category", new String[] { "simple", "string" });
+    _facetInfoMap.put("color", new String[] { "simple", "string" });
+    _facetInfoMap.put("year", new String[] { "range", "int" });
+    _cache = new BQLStatementCache(new BQLCompiler(_facetInfoMap), 2);
+  }
+
+  @Test
+  public void testNormalize() throws Exception {
+    assertEquals("SELECT * FROM cars WHERE color = 'red  car'", PreparedBQLStatement
+        .normalize(" SELECT *\n  FROM cars -- LINE COMMENTS\n"
+            + "WHERE /* BLOCK COMMENTS */ color = 'red  car'  "));
+    assertEquals("SELECT * FROM cars WHERE tags-- = 'a'",
+      PreparedBQLStatement.normalize("SELECT * FROM cars WHERE tags-- = 'a'"));
+  }
+
+  @Test
+  public void testCachedStatementsAreCopied() throws Exception {
+    JSONObject json = _cache.compile("SELECT category FROM cars WHERE color = 'red'");
+    json.put("count", 5);
+    JSONObject json2 = _cache.compile("SELECT category\nFROM cars\nWHERE color = 'red'");
+    assertEquals(1, _cache.size());
+    assertFalse(json2.has("count"));
+    assertTrue(_comp.isEquals(json2,
+      new BQLCompiler(_facetInfoMap).compile(
+        "SELECT category FROM cars WHERE color = 'red'")));
+
+    _cache.compile("SELECT * FROM cars WHERE color = 'blue'");
+    _cache.compile("SELECT * FROM cars WHERE color = 'green'");
+    assertEquals(2, _cache.size());
+  }
+
+  @Test
+  public void testPreparedStatement() throws Exception {
+    PreparedBQLStatement statement = _cache
+        .prepare("SELECT * FROM cars WHERE color = '?' GIVEN FACET PARAM (member, 'age', int, ?)");
+    assertEquals(1, statement.getParameterCount());
+    assertTrue(statement == _cache.prepare("SELECT * FROM cars WHERE color = '?' "
+        + "GIVEN FACET PARAM (member, 'age', int, ?)"));
+
+    JSONObject json = new JsonTemplateProcessor().substituteTemplates(statement.bind(Arrays
+        .asList(25)));
+    assertEquals(25, json.getJSONObject("facetInit").getJSONObject("member")
+        .getJSONObject("age").getJSONArray("values").getInt(0));
+
+    try {
+      statement.bind();
+      fail("The parameter is not bound");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}